@@ -0,0 +1,179 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Streaming reader for language models in ARPA format. The {@code \data\}
+ * header is read when the file is opened, so the n-gram counts are known
+ * before the first n-gram is returned. Files without section headers are read
+ * as tab-separated lines, as the SQL loader has always accepted.
+ *
+ * @author John McCrae
+ */
+final class ARPAReader {
+
+    private final LineReader in;
+    private final IntArrayList counts = new IntArrayList();
+    private String line;
+    private int section = 0;
+    private boolean headers = false;
+    private String[] words;
+    private double score, backoff;
+    private int lineNo = 0;
+
+    public ARPAReader(File file) throws IOException {
+        this.in = LineReader.open(file);
+        readHeader();
+    }
+
+    private void readHeader() throws IOException {
+        while ((line = in.readLine()) != null) {
+            lineNo++;
+            final String l = line.trim();
+            if (l.equals("\\data\\")) {
+                headers = true;
+            } else if (l.startsWith("ngram ")) {
+                final int eq = l.indexOf('=');
+                if (eq < 0) {
+                    throw new IOException("Bad ARPA header at line " + lineNo + ": " + l);
+                }
+                final int n = Integer.parseInt(l.substring(6, eq).trim());
+                while (counts.size() < n) {
+                    counts.add(0);
+                }
+                counts.set(n - 1, Integer.parseInt(l.substring(eq + 1).trim()));
+            } else if (l.startsWith("\\") && l.endsWith("-grams:")) {
+                headers = true;
+                section = Integer.parseInt(l.substring(1, l.indexOf('-')));
+                line = null;
+                return;
+            } else if (!headers && line.indexOf('\t') >= 0) {
+                // No headers, the current line is the first n-gram
+                return;
+            }
+        }
+    }
+
+    /**
+     * The order of the model as declared in the header
+     *
+     * @return The order or 0 if the file has no header
+     */
+    public int order() {
+        return counts.size();
+    }
+
+    /**
+     * The number of n-grams as declared in the header
+     *
+     * @param n The length of the n-grams
+     * @return The count or 0 if not declared
+     */
+    public int count(int n) {
+        return n <= counts.size() ? counts.getInt(n - 1) : 0;
+    }
+
+    /**
+     * Advance to the next n-gram
+     *
+     * @return false if there are no more n-grams
+     */
+    public boolean next() throws IOException {
+        while (true) {
+            if (line == null) {
+                line = in.readLine();
+                lineNo++;
+                if (line == null) {
+                    return false;
+                }
+            }
+            final String l = line;
+            line = null;
+            if (headers) {
+                if (l.startsWith("\\")) {
+                    final String t = l.trim();
+                    if (t.equals("\\end\\")) {
+                        return false;
+                    } else if (t.endsWith("-grams:")) {
+                        section = Integer.parseInt(t.substring(1, t.indexOf('-')));
+                    }
+                    continue;
+                }
+                if (section == 0) {
+                    continue;
+                }
+                final String[] elems = l.trim().split("\\s+");
+                if (elems.length < section + 1) {
+                    // blank line or truncated entry
+                    continue;
+                }
+                score = Double.parseDouble(elems[0]);
+                words = new String[section];
+                System.arraycopy(elems, 1, words, 0, section);
+                backoff = elems.length > section + 1 ? Double.parseDouble(elems[section + 1]) : 0.0;
+                return true;
+            } else {
+                final String[] elems = l.split("\t");
+                if (elems.length == 2 || elems.length == 3) {
+                    score = Double.parseDouble(elems[0]);
+                    words = elems[1].split(" ");
+                    backoff = elems.length == 3 ? Double.parseDouble(elems[2]) : 0.0;
+                    return true;
+                }
+            }
+        }
+    }
+
+    /**
+     * The words of the current n-gram
+     */
+    public String[] words() {
+        return words;
+    }
+
+    /**
+     * The (log10) probability of the current n-gram
+     */
+    public double score() {
+        return score;
+    }
+
+    /**
+     * The (log10) backoff of the current n-gram, 0.0 if not given
+     */
+    public double backoff() {
+        return backoff;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -26,85 +26,342 @@
  */
 package eu.monnetproject.translation.fidel;
 
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectBidirectionalIterator;
 import it.unimi.dsi.fastutil.objects.ObjectList;
 import it.unimi.dsi.fastutil.objects.ObjectListIterator;
-import it.unimi.dsi.fastutil.objects.ObjectRBTreeSet;
+import java.util.Arrays;
 
 /**
+ * A bounded beam of solutions, held as a min-max heap on their scores so that
+ * both the best and the worst solution are at hand. Scores are kept in a
+ * primitive array alongside the solutions, and solutions are only compared
+ * (by {@link Solution#compareTo(Object)}) when their scores are equal. The
+ * position of each solution in the heap is kept in a hash map, so that, as in
+ * a set, a solution equal to one already in the beam is not added, and a
+ * solution may be found and removed from anywhere in the beam in logarithmic
+ * time. A solution no better than the worst in a full beam may be rejected
+ * with {@link #accepts(double)} before it is even constructed.
  *
  * @author John McCrae
  */
-public class Beam extends ObjectRBTreeSet<Solution> {
-    private final int beamSize;
-    
+public class Beam implements Iterable<Solution> {
+
+    private static final int INITIAL_CAPACITY = 16;
+    private int beamSize;
+    private Solution[] solns;
+    private double[] scores;
+    private int size;
+    // The position in the heap of each solution
+    private final Object2IntOpenHashMap<Solution> positions = new Object2IntOpenHashMap<Solution>();
+
     public Beam(int beamSize) {
-        super();
+        this.beamSize = beamSize;
+        this.solns = new Solution[Math.min(beamSize, INITIAL_CAPACITY)];
+        this.scores = new double[solns.length];
+        positions.defaultReturnValue(-1);
+    }
+
+    /**
+     * Empty the beam for reuse
+     *
+     * @param beamSize The new size of the beam
+     */
+    public void reset(int beamSize) {
+        clear();
+        removalListeners.clear();
         this.beamSize = beamSize;
     }
-    
+
+    /**
+     * Remove and return the best solution
+     */
     public Solution poll() {
-        Solution rval = super.first();
-        remove(rval);
+        final Solution rval = first();
+        delete(0);
+        fireRemoved(rval);
         return rval;
     }
-    
+
+    /**
+     * The best solution
+     */
+    public Solution first() {
+        if (size == 0) {
+            throw new java.util.NoSuchElementException();
+        }
+        return solns[0];
+    }
+
+    /**
+     * The worst solution
+     */
+    public Solution last() {
+        if (size == 0) {
+            throw new java.util.NoSuchElementException();
+        }
+        return solns[worst()];
+    }
+
     public double leastScore() {
-        return isEmpty() ? Double.NEGATIVE_INFINITY : super.last().score();
+        return size == 0 ? Double.NEGATIVE_INFINITY : scores[worst()];
     }
-    
+
     public double bestScore() {
-        return isEmpty() ? Double.POSITIVE_INFINITY : super.first().score();
+        return size == 0 ? Double.POSITIVE_INFINITY : scores[0];
     }
-    
+
     public boolean isFull() {
-        return super.size() == beamSize;
+        return size == beamSize;
     }
 
-    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Would a solution with this score be added to the beam
+     */
+    public boolean accepts(double score) {
+        return size < beamSize || (size > 0 && score > scores[worst()]);
+    }
+
+    /**
+     * Add a solution, evicting the worst if the beam is full
+     *
+     * @return false if the beam is full and the solution is no better than
+     * the worst in it, or an equal solution is already in the beam
+     */
     public boolean add(Solution k) {
-        if(size() < beamSize) {
-            return super.add(k);
-        } else {
-            if(size() > beamSize) {
-                throw new RuntimeException("The size of this beam... is too damn high!");
+        final double score = k.score();
+        if (size == beamSize) {
+            if (size == 0) {
+                return false;
             }
-            final Solution first = super.last();
-            if(k.compareTo(first) < 0) {
-                if(!remove(first)) {
-                    throw new RuntimeException("Failed to remove");
-                }
-                return super.add(k);
-            } else {
+            final int w = worst();
+            if (score < scores[w] || (score == scores[w] && k.compareTo(solns[w]) >= 0)) {
                 return false;
             }
         }
+        if (positions.containsKey(k)) {
+            return false;
+        }
+        if (size == beamSize) {
+            final int w = worst();
+            final Solution evicted = solns[w];
+            delete(w);
+            fireRemoved(evicted);
+        }
+        if (size == solns.length) {
+            final int capacity = (int) Math.min(beamSize, 2l * solns.length);
+            solns = Arrays.copyOf(solns, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+        }
+        place(size, k, score);
+        bubbleUp(size++);
+        return true;
     }
 
-    @Override
+    /**
+     * Remove a solution from the beam
+     */
+    public boolean remove(Object k) {
+        final int i = indexOf(k);
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    /**
+     * Is the solution in the beam
+     */
+    public boolean contains(Object k) {
+        return indexOf(k) >= 0;
+    }
+
+    /**
+     * The position of a solution in the beam, which is valid until the beam
+     * is next changed
+     *
+     * @return The position or -1 if the solution is not in the beam
+     */
+    public int indexOf(Object k) {
+        return k instanceof Solution ? positions.getInt(k) : -1;
+    }
+
+    /**
+     * Remove the solution at a position given by {@link #indexOf(Object)}
+     */
+    public void removeAt(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException();
+        }
+        final Solution removed = solns[i];
+        delete(i);
+        fireRemoved(removed);
+    }
+
+    public void clear() {
+        Arrays.fill(solns, 0, size, null);
+        positions.clear();
+        size = 0;
+    }
+
+    /**
+     * The solutions, best first
+     */
     public Solution[] toArray() {
-        return super.toArray(new Solution[size()]);
-    }       
-    
-    private final ObjectList<RemovalListener> removalListeners = new ObjectArrayList<RemovalListener>();
+        final Solution[] sorted = Arrays.copyOf(solns, size);
+        Arrays.sort(sorted);
+        return sorted;
+    }
 
+    /**
+     * Iterate over the solutions, best first. The iterator is over a copy of
+     * the beam
+     */
     @Override
-    public boolean remove(Object k) {
-        final ObjectListIterator<RemovalListener> iterator = removalListeners.iterator();
-        while(iterator.hasNext()) {
-            if(iterator.next().onRemove((Solution)k)) {
-                iterator.remove();
+    public ObjectBidirectionalIterator<Solution> iterator() {
+        return ObjectArrayList.wrap(toArray()).iterator();
+    }
+
+    // Is the solution at i better than that at j
+    private boolean better(int i, int j) {
+        return scores[i] > scores[j] || (scores[i] == scores[j] && solns[i].compareTo(solns[j]) < 0);
+    }
+
+    // The best solutions are at the even levels of the heap (the root is
+    // level 0) and the worst at the odd levels
+    private static boolean bestLevel(int i) {
+        return ((31 - Integer.numberOfLeadingZeros(i + 1)) & 1) == 0;
+    }
+
+    private int worst() {
+        if (size <= 2) {
+            return size - 1;
+        }
+        return better(1, 2) ? 2 : 1;
+    }
+
+    private void place(int i, Solution s, double score) {
+        solns[i] = s;
+        scores[i] = score;
+        positions.put(s, i);
+    }
+
+    private void swap(int i, int j) {
+        final Solution s = solns[i];
+        final double d = scores[i];
+        place(i, solns[j], scores[j]);
+        place(j, s, d);
+    }
+
+    // Remove the solution at i, moving the last solution into its place. As
+    // the last solution may be better than the ancestors of i or worse than
+    // its descendants, it is first bubbled up and whatever is then at i
+    // trickled down
+    private void delete(int i) {
+        positions.removeInt(solns[i]);
+        size--;
+        if (i < size) {
+            place(i, solns[size], scores[size]);
+            solns[size] = null;
+            bubbleUp(i);
+            trickleDown(i);
+        } else {
+            solns[size] = null;
+        }
+    }
+
+    private void bubbleUp(int i) {
+        if (i == 0) {
+            return;
+        }
+        final int parent = (i - 1) / 2;
+        if (bestLevel(i)) {
+            if (better(parent, i)) {
+                swap(i, parent);
+                bubbleUp(parent, false);
+            } else {
+                bubbleUp(i, true);
+            }
+        } else {
+            if (better(i, parent)) {
+                swap(i, parent);
+                bubbleUp(parent, true);
+            } else {
+                bubbleUp(i, false);
+            }
+        }
+    }
+
+    // Move a solution up through the levels of best (or worst) solutions
+    private void bubbleUp(int i, boolean best) {
+        while (i >= 3) {
+            final int grandparent = ((i - 1) / 2 - 1) / 2;
+            if (best ? better(i, grandparent) : better(grandparent, i)) {
+                swap(i, grandparent);
+                i = grandparent;
+            } else {
+                return;
             }
         }
-        return super.remove(k);
     }
-    
+
+    private void trickleDown(int i) {
+        final boolean best = bestLevel(i);
+        while (2 * i + 1 < size) {
+            // The best (or worst) of the children and grandchildren
+            int m = 2 * i + 1;
+            if (m + 1 < size && (best ? better(m + 1, m) : better(m, m + 1))) {
+                m++;
+            }
+            for (int c = 4 * i + 3; c <= 4 * i + 6 && c < size; c++) {
+                if (best ? better(c, m) : better(m, c)) {
+                    m = c;
+                }
+            }
+            if (!(best ? better(m, i) : better(i, m))) {
+                return;
+            }
+            swap(m, i);
+            if (m <= 2 * i + 2) {
+                return;
+            }
+            final int parent = (m - 1) / 2;
+            if (best ? better(parent, m) : better(m, parent)) {
+                swap(m, parent);
+            }
+            i = m;
+        }
+    }
+
+    private final ObjectList<RemovalListener> removalListeners = new ObjectArrayList<RemovalListener>();
+
+    private void fireRemoved(Solution k) {
+        if (!removalListeners.isEmpty()) {
+            final ObjectListIterator<RemovalListener> iterator = removalListeners.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().onRemove(k)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
     public void addRemovalListener(RemovalListener removalListener) {
         removalListeners.add(removalListener);
     }
-    
-    
+
     public static interface RemovalListener {
+
         boolean onRemove(Solution soln);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,603 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A read-only language model compiled to a binary trie and memory-mapped, so
+ * that the model need not fit in the heap and nothing but the vocabulary is
+ * read at start up. The page cache is shared by all JVMs using the same file.
+ *
+ * The trie is stored level by level. Level {@code k} lists the last word of
+ * every k-gram sorted by their full n-gram, so the children of each
+ * (k-1)-gram are a contiguous run found by a pointer array and searched by
+ * bisection. Unigrams are indexed directly by word id. Probabilities and
+ * backoffs are stored as floats or quantized to a codebook of at most 256
+ * values.
+ *
+ * @author John McCrae
+ */
+public class BinaryLanguageModel implements IncrementalLanguageModel {
+
+    private static final long MAGIC = 0x464944454c424c4dl; // FIDELBLM
+    private static final int VERSION = 1;
+    private final MappedFile data;
+    private final Object2IntMap<String> wordMap;
+    private final Int2ObjectMap<String> invWordMap;
+    private final int order, vocabSize, quantBits;
+    private final long[] counts, wordsOff, probOff, backoffOff, childOff;
+    private final float[][] probCodebook, backoffCodebook;
+    private final LMState.Probe probe = new LMState.Probe() {
+        public double prob(int[] ngram, int offset, int length) {
+            if (length == 0 || length > order) {
+                return Double.NaN;
+            }
+            final long idx = find(ngram, offset, length);
+            return idx < 0 ? Double.NaN : BinaryLanguageModel.this.prob(length, idx);
+        }
+
+        public double backoff(int[] ngram, int offset, int length) {
+            if (length == 0 || length > order) {
+                return 0.0;
+            }
+            final long idx = find(ngram, offset, length);
+            return idx < 0 ? 0.0 : BinaryLanguageModel.this.backoff(length, idx);
+        }
+    };
+
+    private BinaryLanguageModel(File file) throws IOException {
+        this.data = new MappedFile(file);
+        if (data.length() < 24 || data.getLong(0) != MAGIC) {
+            throw new IOException(file.getPath() + " is not a compiled language model");
+        }
+        if (data.getInt(8) != VERSION) {
+            throw new IOException(file.getPath() + " was compiled by an incompatible version, please delete");
+        }
+        this.order = data.getInt(12);
+        this.vocabSize = data.getInt(16);
+        this.quantBits = data.getInt(20);
+        this.counts = new long[order + 1];
+        this.wordsOff = new long[order + 1];
+        this.probOff = new long[order + 1];
+        this.backoffOff = new long[order + 1];
+        this.childOff = new long[order + 1];
+        this.probCodebook = new float[order + 1][];
+        this.backoffCodebook = new float[order + 1][];
+        long pos = 24;
+        for (int k = 1; k <= order; k++) {
+            counts[k] = data.getLong(pos);
+            wordsOff[k] = data.getLong(pos + 8);
+            probOff[k] = data.getLong(pos + 16);
+            backoffOff[k] = data.getLong(pos + 24);
+            childOff[k] = data.getLong(pos + 32);
+            if (quantBits > 0) {
+                probCodebook[k] = readCodebook(data.getLong(pos + 40));
+                if (k < order) {
+                    backoffCodebook[k] = readCodebook(data.getLong(pos + 48));
+                }
+            }
+            pos += 56;
+        }
+        final long vocabOff = data.getLong(pos);
+        this.wordMap = new Object2IntOpenHashMap<String>(vocabSize);
+        this.invWordMap = new Int2ObjectOpenHashMap<String>(vocabSize);
+        pos = vocabOff;
+        for (int w = 1; w <= vocabSize; w++) {
+            final int len = ((data.get(pos) & 0xff) << 24) | ((data.get(pos + 1) & 0xff) << 16)
+                    | ((data.get(pos + 2) & 0xff) << 8) | (data.get(pos + 3) & 0xff);
+            pos += 4;
+            final byte[] b = new byte[len];
+            for (int i = 0; i < len; i++) {
+                b[i] = data.get(pos++);
+            }
+            final String word = new String(b, "UTF-8");
+            wordMap.put(word, w);
+            invWordMap.put(w, word);
+        }
+    }
+
+    private float[] readCodebook(long off) {
+        final float[] codebook = new float[1 << quantBits];
+        for (int i = 0; i < codebook.length; i++) {
+            codebook[i] = data.getFloat(off + 4 * i);
+        }
+        return codebook;
+    }
+
+    private float prob(int k, long idx) {
+        if (quantBits > 0) {
+            return probCodebook[k][data.get(probOff[k] + idx) & 0xff];
+        } else {
+            return data.getFloat(probOff[k] + 4 * idx);
+        }
+    }
+
+    private float backoff(int k, long idx) {
+        if (k == order) {
+            return 0.0f;
+        } else if (quantBits > 0) {
+            return backoffCodebook[k][data.get(backoffOff[k] + idx) & 0xff];
+        } else {
+            return data.getFloat(backoffOff[k] + 4 * idx);
+        }
+    }
+
+    /**
+     * Find the index of an n-gram in its level of the trie
+     *
+     * @return The index or -1 if the n-gram is not in the model
+     */
+    private long find(int[] p, int offset, int length) {
+        int w = p[offset];
+        if (w <= 0 || w > vocabSize) {
+            return -1;
+        }
+        long idx = w - 1;
+        for (int k = 2; k <= length; k++) {
+            w = p[offset + k - 1];
+            long lo = data.getLong(childOff[k - 1] + 8 * idx);
+            long hi = data.getLong(childOff[k - 1] + 8 * (idx + 1)) - 1;
+            idx = -1;
+            while (lo <= hi) {
+                final long mid = (lo + hi) >>> 1;
+                final int v = data.getInt(wordsOff[k] + 4 * mid);
+                if (v < w) {
+                    lo = mid + 1;
+                } else if (v > w) {
+                    hi = mid - 1;
+                } else {
+                    idx = mid;
+                    break;
+                }
+            }
+            if (idx < 0) {
+                return -1;
+            }
+        }
+        return idx;
+    }
+
+    public double[] get(Phrase phrase) {
+        if (phrase.n == 0 || phrase.n > order) {
+            return null;
+        }
+        final long idx = find(phrase.p, phrase.l, phrase.n);
+        if (idx < 0) {
+            return null;
+        }
+        final float score = prob(phrase.n, idx);
+        if (Float.isNaN(score)) {
+            // Only present as the prefix of a longer n-gram
+            return null;
+        }
+        final float backoff = backoff(phrase.n, idx);
+        if (backoff == 0.0f) {
+            return new double[]{score};
+        } else {
+            return new double[]{score, backoff};
+        }
+    }
+
+    public double score(LMState in, int word, double unk, LMState out) {
+        return LMState.score(probe, in, word, unk, out);
+    }
+
+    public int order() {
+        return order;
+    }
+
+    public void close() {
+    }
+
+    public Object2IntMap<String> wordMap() {
+        return wordMap;
+    }
+
+    public Int2ObjectMap<String> invWordMap() {
+        return invWordMap;
+    }
+
+    public static class Factory implements LanguageModelFactory {
+
+        private final int quantBits;
+
+        public Factory() {
+            this(Integer.parseInt(System.getProperty("fidel.lm.quantbits", "0")));
+        }
+
+        /**
+         * Create a factory
+         *
+         * @param quantBits The number of bits to quantize probabilities and
+         * backoffs to when compiling, or 0 to store floats
+         */
+        public Factory(int quantBits) {
+            this.quantBits = quantBits;
+        }
+
+        public BinaryLanguageModel getModel(File file) {
+            try {
+                if (file.getPath().endsWith(".blm")) {
+                    return new BinaryLanguageModel(file);
+                }
+                final File blmFile;
+                if (file.getPath().endsWith(".gz")) {
+                    blmFile = new File(file.getPath().substring(0, file.getPath().length() - 3) + ".blm");
+                } else {
+                    blmFile = new File(file.getPath() + ".blm");
+                }
+                if (blmFile.exists()) {
+                    System.err.println(String.format("Reusing compiled model %s. Delete this file if out of date.", blmFile.getPath()));
+                } else {
+                    System.err.println("Compiling language model");
+                    Compiler.compile(file, blmFile, quantBits);
+                }
+                return new BinaryLanguageModel(blmFile);
+            } catch (IOException x) {
+                throw new RuntimeException(x);
+            }
+        }
+    }
+
+    /**
+     * Compiles an ARPA file to the binary format. The compiler holds the
+     * whole model in memory (the compiled model does not need to be).
+     */
+    public static class Compiler {
+
+        // The n-grams of one order, flattened
+        private static class Level {
+
+            final int n;
+            final IntArrayList ids = new IntArrayList();
+            final FloatArrayList probs = new FloatArrayList();
+            final FloatArrayList backoffs = new FloatArrayList();
+
+            Level(int n) {
+                this.n = n;
+            }
+
+            int size() {
+                return probs.size();
+            }
+
+            void add(int[] ngram, int off, float prob, float backoff) {
+                for (int i = 0; i < n; i++) {
+                    ids.add(ngram[off + i]);
+                }
+                probs.add(prob);
+                backoffs.add(backoff);
+            }
+
+            // Sort lexicographically, dropping repeated n-grams
+            void sort() {
+                final int[] a = ids.elements();
+                final int[] perm = new int[size()];
+                for (int i = 0; i < perm.length; i++) {
+                    perm[i] = i;
+                }
+                IntArrays.quickSort(perm, new AbstractIntComparator() {
+                    public int compare(int i, int j) {
+                        final int c = Compiler.compare(a, i * n, a, j * n, n);
+                        return c != 0 ? c : (i < j ? -1 : (i > j ? 1 : 0));
+                    }
+                });
+                final IntArrayList ids2 = new IntArrayList(ids.size());
+                final FloatArrayList probs2 = new FloatArrayList(perm.length);
+                final FloatArrayList backoffs2 = new FloatArrayList(perm.length);
+                for (int i = 0; i < perm.length; i++) {
+                    if (i > 0 && compare(a, perm[i] * n, a, perm[i - 1] * n, n) == 0) {
+                        continue;
+                    }
+                    ids2.addElements(ids2.size(), a, perm[i] * n, n);
+                    probs2.add(probs.getFloat(perm[i]));
+                    backoffs2.add(backoffs.getFloat(perm[i]));
+                }
+                ids.clear();
+                ids.addAll(ids2);
+                probs.clear();
+                probs.addAll(probs2);
+                backoffs.clear();
+                backoffs.addAll(backoffs2);
+            }
+        }
+
+        private static int compare(int[] a, int aOff, int[] b, int bOff, int len) {
+            for (int i = 0; i < len; i++) {
+                if (a[aOff + i] != b[bOff + i]) {
+                    return a[aOff + i] < b[bOff + i] ? -1 : 1;
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Add entries (with no probability) for prefixes of {@code upper} that
+         * are missing from {@code lower}, so every n-gram is reachable in the
+         * trie. Both levels must be sorted.
+         *
+         * @return true if any prefix was added
+         */
+        private static boolean addMissingPrefixes(Level upper, Level lower) {
+            final int[] u = upper.ids.elements();
+            final int[] l = lower.ids.elements();
+            final int n = lower.n;
+            final IntArrayList missing = new IntArrayList();
+            int j = 0;
+            for (int i = 0; i < upper.size(); i++) {
+                while (j < lower.size() && compare(l, j * n, u, i * upper.n, n) < 0) {
+                    j++;
+                }
+                if (j == lower.size() || compare(l, j * n, u, i * upper.n, n) != 0) {
+                    final int m = missing.size();
+                    if (m == 0 || compare(missing.elements(), m - n, u, i * upper.n, n) != 0) {
+                        missing.addElements(m, u, i * upper.n, n);
+                    }
+                }
+            }
+            for (int i = 0; i < missing.size(); i += n) {
+                lower.add(missing.elements(), i, Float.NaN, 0.0f);
+            }
+            return !missing.isEmpty();
+        }
+
+        /**
+         * Compile a language model
+         *
+         * @param arpaFile The model in ARPA format (may be gzipped)
+         * @param out The file to write
+         * @param quantBits The number of bits to quantize to (1-8) or 0 to
+         * store floats
+         */
+        public static void compile(File arpaFile, File out, int quantBits) throws IOException {
+            if (quantBits < 0 || quantBits > 8) {
+                throw new IllegalArgumentException("Quantization must be between 0 and 8 bits");
+            }
+            final Object2IntOpenHashMap<String> wordMap = new Object2IntOpenHashMap<String>();
+            final ObjectArrayList<String> words = new ObjectArrayList<String>();
+            final ObjectArrayList<Level> levels = new ObjectArrayList<Level>();
+            final ARPAReader in = new ARPAReader(arpaFile);
+            try {
+                int i = 0;
+                while (in.next()) {
+                    final String[] ws = in.words();
+                    final int[] ngram = new int[ws.length];
+                    for (int j = 0; j < ws.length; j++) {
+                        if (wordMap.containsKey(ws[j])) {
+                            ngram[j] = wordMap.getInt(ws[j]);
+                        } else {
+                            words.add(ws[j]);
+                            ngram[j] = words.size();
+                            wordMap.put(ws[j], ngram[j]);
+                        }
+                    }
+                    while (levels.size() < ws.length) {
+                        levels.add(new Level(levels.size() + 1));
+                    }
+                    levels.get(ws.length - 1).add(ngram, 0, (float) in.score(), (float) in.backoff());
+                    if (i++ % 1000000 == 999999) {
+                        System.err.println(String.format("Line %d", i));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            if (levels.isEmpty()) {
+                throw new IOException(arpaFile.getPath() + " contains no n-grams");
+            }
+            final int order = levels.size();
+            final int vocabSize = words.size();
+            // Unigrams are dense, indexed by word id
+            final Level unigrams = levels.get(0);
+            final float[] uniProbs = new float[vocabSize];
+            final float[] uniBackoffs = new float[vocabSize];
+            Arrays.fill(uniProbs, Float.NaN);
+            for (int i = unigrams.size() - 1; i >= 0; i--) {
+                uniProbs[unigrams.ids.getInt(i) - 1] = unigrams.probs.getFloat(i);
+                uniBackoffs[unigrams.ids.getInt(i) - 1] = unigrams.backoffs.getFloat(i);
+            }
+            unigrams.ids.clear();
+            unigrams.probs.clear();
+            unigrams.backoffs.clear();
+            for (int w = 1; w <= vocabSize; w++) {
+                unigrams.ids.add(w);
+                unigrams.probs.add(uniProbs[w - 1]);
+                unigrams.backoffs.add(uniBackoffs[w - 1]);
+            }
+            if (order > 1) {
+                levels.get(order - 1).sort();
+            }
+            for (int k = order - 1; k >= 2; k--) {
+                levels.get(k - 1).sort();
+                if (addMissingPrefixes(levels.get(k), levels.get(k - 1))) {
+                    levels.get(k - 1).sort();
+                }
+            }
+            write(out, levels, words, quantBits);
+        }
+
+        // Index in level k+1 of the first child of each k-gram
+        private static long[] children(Level lower, Level upper) {
+            final long[] child = new long[lower.size() + 1];
+            final int[] l = lower.ids.elements();
+            final int[] u = upper.ids.elements();
+            final int n = lower.n;
+            int i = 0;
+            for (int e = 0; e < lower.size(); e++) {
+                while (i < upper.size() && compare(u, i * upper.n, l, e * n, n) < 0) {
+                    i++;
+                }
+                child[e] = i;
+            }
+            child[lower.size()] = upper.size();
+            return child;
+        }
+
+        private static long align(long pos) {
+            return (pos + 7) & ~7l;
+        }
+
+        private static long pad(DataOutputStream out, long pos) throws IOException {
+            while ((pos & 7) != 0) {
+                out.writeByte(0);
+                pos++;
+            }
+            return pos;
+        }
+
+        private static void write(File file, ObjectArrayList<Level> levels, ObjectArrayList<String> words, int quantBits) throws IOException {
+            final int order = levels.size();
+            final int valueSize = quantBits > 0 ? 1 : 4;
+            final int codebookSize = 4 << quantBits;
+            final long[][] offsets = new long[order + 1][7];
+            long pos = align(24 + 56 * order + 8);
+            for (int k = 1; k <= order; k++) {
+                final long count = levels.get(k - 1).size();
+                offsets[k][0] = count;
+                offsets[k][1] = pos;
+                pos = align(pos + 4 * count);
+                offsets[k][2] = pos;
+                pos = align(pos + valueSize * count);
+                if (k < order) {
+                    offsets[k][3] = pos;
+                    pos = align(pos + valueSize * count);
+                    offsets[k][4] = pos;
+                    pos = align(pos + 8 * (count + 1));
+                }
+                if (quantBits > 0) {
+                    offsets[k][5] = pos;
+                    pos = align(pos + codebookSize);
+                    if (k < order) {
+                        offsets[k][6] = pos;
+                        pos = align(pos + codebookSize);
+                    }
+                }
+            }
+            final long vocabOff = pos;
+
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            try {
+                out.writeLong(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(order);
+                out.writeInt(words.size());
+                out.writeInt(quantBits);
+                for (int k = 1; k <= order; k++) {
+                    for (int i = 0; i < 7; i++) {
+                        out.writeLong(offsets[k][i]);
+                    }
+                }
+                out.writeLong(vocabOff);
+                pos = pad(out, 24 + 56 * order + 8);
+                for (int k = 1; k <= order; k++) {
+                    final Level level = levels.get(k - 1);
+                    final int[] ids = level.ids.elements();
+                    for (int i = 0; i < level.size(); i++) {
+                        out.writeInt(ids[i * k + k - 1]);
+                    }
+                    pos = pad(out, pos + 4l * level.size());
+                    float[] probCodebook = null, backoffCodebook = null;
+                    if (quantBits > 0) {
+                        probCodebook = Quantizer.codebook(level.probs.elements(), level.size(), quantBits, false);
+                        backoffCodebook = Quantizer.codebook(level.backoffs.elements(), level.size(), quantBits, true);
+                    }
+                    pos = writeValues(out, pos, level.probs, probCodebook);
+                    if (k < order) {
+                        pos = writeValues(out, pos, level.backoffs, backoffCodebook);
+                        final long[] child = children(level, levels.get(k));
+                        for (int i = 0; i < child.length; i++) {
+                            out.writeLong(child[i]);
+                        }
+                        pos = pad(out, pos + 8l * child.length);
+                    }
+                    if (quantBits > 0) {
+                        pos = writeCodebook(out, pos, probCodebook);
+                        if (k < order) {
+                            pos = writeCodebook(out, pos, backoffCodebook);
+                        }
+                    }
+                }
+                assert (pos == vocabOff);
+                for (String word : words) {
+                    final byte[] b = word.getBytes("UTF-8");
+                    out.writeInt(b.length);
+                    out.write(b);
+                }
+            } finally {
+                out.close();
+            }
+        }
+
+        private static long writeValues(DataOutputStream out, long pos, FloatArrayList values, float[] codebook) throws IOException {
+            final float[] v = values.elements();
+            for (int i = 0; i < values.size(); i++) {
+                if (codebook != null) {
+                    out.writeByte(Quantizer.encode(codebook, v[i]));
+                } else {
+                    out.writeFloat(v[i]);
+                }
+            }
+            return pad(out, pos + (codebook != null ? 1l : 4l) * values.size());
+        }
+
+        private static long writeCodebook(DataOutputStream out, long pos, float[] codebook) throws IOException {
+            for (float f : codebook) {
+                out.writeFloat(f);
+            }
+            return pad(out, pos + 4l * codebook.length);
+        }
+
+        public static void main(String[] args) throws Exception {
+            int quantBits = 0;
+            int i = 0;
+            if (args.length > 1 && args[0].equals("-q")) {
+                quantBits = Integer.parseInt(args[1]);
+                i = 2;
+            }
+            if (args.length != i + 2) {
+                System.err.println("Usage: BinaryLanguageModel$Compiler [-q bits] model.arpa[.gz] model.blm");
+                System.exit(-1);
+            }
+            compile(new File(args[i]), new File(args[i + 1]), quantBits);
+        }
+    }
+}
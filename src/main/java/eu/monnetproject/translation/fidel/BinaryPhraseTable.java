@@ -0,0 +1,458 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import eu.monnetproject.translation.fidel.Fidel.Feature;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A phrase table compiled to a trie over the ids of the source words, which
+ * is memory-mapped. Each node of the trie holds the translations of the
+ * phrase leading to it, as target word ids and log scores, so all the
+ * translations of a sentence are found by one walk from each position, which
+ * stops at the first span not in the table.
+ *
+ * The file has the layout (all values aligned to their size)
+ * <pre>
+ * long magic, int version, int features, long root, long translations
+ * node: int children, int translations, long offsets[children],
+ *       int words[children] (ascending),
+ *       (int length, int words[length], float scores[features])[translations]
+ * </pre>
+ * with the nodes written after their children. The source and target
+ * vocabularies are written beside the file, with the extensions
+ * {@code .src.vocab} and {@code .trg.vocab}.
+ *
+ * @author John McCrae
+ */
+public class BinaryPhraseTable implements IntegerPhraseTable {
+
+    private static final long MAGIC = 0x464944454c425054l; // FIDELBPT
+    private static final int VERSION = 1;
+    private static final int HEADER = 32;
+    private final String foreignLanguage, translationLanguage;
+    private final String[] features;
+    private final MappedFile data;
+    private final Vocabulary srcWords, trgWords;
+    private final int featureCount;
+    private final long root;
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("fidel.verbose", "false"));
+    // The ids in the decoder's target vocabulary of the table's target words
+    private Vocabulary remapVocabulary;
+    private int[] remap;
+
+    private BinaryPhraseTable(String foreignLanguage, String translationLanguage, String[] features, File file) throws IOException {
+        this.foreignLanguage = foreignLanguage;
+        this.translationLanguage = translationLanguage;
+        this.features = features;
+        this.data = new MappedFile(file);
+        if (data.length() < HEADER || data.getLong(0) != MAGIC) {
+            throw new IOException(file.getPath() + " is not a binary phrase table");
+        }
+        if (data.getInt(8) != VERSION) {
+            throw new IOException(file.getPath() + " was compiled by an incompatible version, please delete");
+        }
+        this.featureCount = data.getInt(12);
+        this.root = data.getLong(16);
+        this.srcWords = Vocabulary.open(new File(file.getPath() + ".src.vocab"));
+        this.trgWords = Vocabulary.open(new File(file.getPath() + ".trg.vocab"));
+    }
+
+    public String getForeignLanguage() {
+        return foreignLanguage;
+    }
+
+    public String getTranslationLanguage() {
+        return translationLanguage;
+    }
+
+    public void close() {
+    }
+
+    /**
+     * Find the child of a node
+     *
+     * @return The offset of the child or -1 if there is none
+     */
+    private long child(long node, int word) {
+        final int children = data.getInt(node);
+        final long words = node + 8 + 8l * children;
+        int lo = 0, hi = children - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int w = data.getInt(words + 4l * mid);
+            if (w < word) {
+                lo = mid + 1;
+            } else if (w > word) {
+                hi = mid - 1;
+            } else {
+                return data.getLong(node + 8 + 8l * mid);
+            }
+        }
+        return -1;
+    }
+
+    private long translations(long node) {
+        return node + 8 + 12l * data.getInt(node);
+    }
+
+    private synchronized int trgId(int id, Vocabulary trgVocabulary) {
+        if (remapVocabulary != trgVocabulary) {
+            remapVocabulary = trgVocabulary;
+            remap = new int[trgWords.size() + 1];
+        }
+        if (remap[id] == 0) {
+            remap[id] = trgVocabulary.add(trgWords.word(id));
+        }
+        return remap[id];
+    }
+
+    public Object2ObjectMap<Phrase, Collection<PhraseTranslation>> lookup(List<String> terms, int[] src, Vocabulary trgVocabulary, String[] featureNames, int maxSize) {
+        // The position in featureNames of each score in the table
+        final int[] featureIndex = new int[featureCount];
+        for (int f = 0; f < featureCount; f++) {
+            featureIndex[f] = -1;
+            for (int g = 0; g < featureNames.length; g++) {
+                if (f < features.length && features[f].equals(featureNames[g])) {
+                    featureIndex[f] = g;
+                }
+            }
+        }
+        final Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>> result = new Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>>();
+        final int[] ids = new int[terms.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = srcWords.id(terms.get(i));
+        }
+        int candidates = 0;
+        for (int i = 0; i < ids.length; i++) {
+            long node = root;
+            for (int j = i; j < ids.length; j++) {
+                if (ids[j] == 0 || (node = child(node, ids[j])) < 0) {
+                    break;
+                }
+                final Phrase phrase = new Phrase(Arrays.copyOfRange(src, i, j + 1));
+                final int n = data.getInt(node + 4);
+                if (n == 0 || result.containsKey(phrase)) {
+                    continue;
+                }
+                final int m = maxSize > 0 ? Math.min(n, maxSize) : n;
+                final ArrayList<PhraseTranslation> translations = new ArrayList<PhraseTranslation>(m);
+                long pos = translations(node);
+                for (int t = 0; t < m; t++) {
+                    final int[] trg = new int[data.getInt(pos)];
+                    pos += 4;
+                    for (int k = 0; k < trg.length; k++) {
+                        trg[k] = trgId(data.getInt(pos), trgVocabulary);
+                        pos += 4;
+                    }
+                    final double[] scores = new double[featureNames.length];
+                    for (int f = 0; f < featureCount; f++) {
+                        if (featureIndex[f] >= 0) {
+                            scores[featureIndex[f]] += data.getFloat(pos);
+                        }
+                        pos += 4;
+                    }
+                    translations.add(new PhraseTranslation(trg, scores));
+                }
+                candidates += m;
+                result.put(phrase, translations);
+            }
+        }
+        if (verbose) {
+            System.err.println(String.format("Collected %d translation candidates", candidates));
+        }
+        return result;
+    }
+
+    public Iterable<PhraseTableEntry> lookup(List<String> terms) {
+        final ArrayList<PhraseTableEntry> result = new ArrayList<PhraseTableEntry>();
+        for (int i = 0; i < terms.size(); i++) {
+            long node = root;
+            final StringBuilder source = new StringBuilder();
+            for (int j = i; j < terms.size(); j++) {
+                final int id = srcWords.id(terms.get(j));
+                if (id == 0 || (node = child(node, id)) < 0) {
+                    break;
+                }
+                if (j > i) {
+                    source.append(" ");
+                }
+                source.append(terms.get(j));
+                final int n = data.getInt(node + 4);
+                long pos = translations(node);
+                for (int t = 0; t < n; t++) {
+                    final int length = data.getInt(pos);
+                    pos += 4;
+                    final StringBuilder translation = new StringBuilder();
+                    for (int k = 0; k < length; k++) {
+                        if (k > 0) {
+                            translation.append(" ");
+                        }
+                        translation.append(trgWords.word(data.getInt(pos)));
+                        pos += 4;
+                    }
+                    final Feature[] fs = new Feature[featureCount];
+                    for (int f = 0; f < featureCount; f++) {
+                        fs[f] = new Feature(f < features.length ? features[f] : null, data.getFloat(pos));
+                        pos += 4;
+                    }
+                    result.add(new PhraseTableEntry(new Fidel.Label(source.toString(), foreignLanguage), new Fidel.Label(translation.toString(), translationLanguage), fs));
+                }
+            }
+        }
+        return result;
+    }
+
+    public static class Factory implements PhraseTableFactory {
+
+        public BinaryPhraseTable getPhraseTable(String foreignLanguage, String translationLanguage, String[] featureNames, File file) {
+            try {
+                if (file.getPath().endsWith(".bpt")) {
+                    return new BinaryPhraseTable(foreignLanguage, translationLanguage, featureNames, file);
+                }
+                final File bptFile;
+                if (file.getPath().endsWith(".gz")) {
+                    bptFile = new File(file.getPath().substring(0, file.getPath().length() - 3) + ".bpt");
+                } else {
+                    bptFile = new File(file.getPath() + ".bpt");
+                }
+                if (bptFile.exists()) {
+                    System.err.println(String.format("Reusing compiled phrase table %s. Delete this file if out of date.", bptFile.getPath()));
+                } else {
+                    System.err.println("Compiling phrase table");
+                    Compiler.compile(file, bptFile);
+                }
+                return new BinaryPhraseTable(foreignLanguage, translationLanguage, featureNames, bptFile);
+            } catch (IOException x) {
+                throw new RuntimeException(x);
+            }
+        }
+    }
+
+    /**
+     * Compiles a phrase table in the Moses text format to the binary format.
+     * Words are tokenized as by the decoder and scores are stored as their
+     * base 10 logarithms. The compiler holds the whole table in memory (the
+     * compiled table does not need to be).
+     */
+    public static class Compiler {
+
+        private static class Translation {
+
+            final int[] words;
+            final float[] scores;
+            final float approxScore;
+
+            Translation(int[] words, float[] scores) {
+                this.words = words;
+                this.scores = scores;
+                float as = 0.0f;
+                for (float s : scores) {
+                    as += s;
+                }
+                this.approxScore = as;
+            }
+        }
+
+        private static class Node {
+
+            final Int2ObjectOpenHashMap<Node> children = new Int2ObjectOpenHashMap<Node>(2);
+            final ObjectArrayList<Translation> translations = new ObjectArrayList<Translation>(1);
+        }
+
+        private static class Words {
+
+            final Object2IntOpenHashMap<String> ids = new Object2IntOpenHashMap<String>();
+            final ObjectArrayList<String> words = new ObjectArrayList<String>();
+
+            int[] ids(String phrase) {
+                final String[] tokens = FairlyGoodTokenizer.split(phrase);
+                final int[] p = new int[tokens.length];
+                for (int i = 0; i < tokens.length; i++) {
+                    int id = ids.getInt(tokens[i]);
+                    if (id == 0) {
+                        words.add(tokens[i]);
+                        id = words.size();
+                        ids.put(tokens[i], id);
+                    }
+                    p[i] = id;
+                }
+                return p;
+            }
+        }
+
+        // Best translations first
+        private static final Comparator<Translation> BY_SCORE = new Comparator<Translation>() {
+            public int compare(Translation t1, Translation t2) {
+                return Float.compare(t2.approxScore, t1.approxScore);
+            }
+        };
+
+        /**
+         * Compile a phrase table
+         *
+         * @param phraseTable The phrase table (may be gzipped)
+         * @param out The file to write
+         */
+        public static void compile(File phraseTable, File out) throws IOException {
+            final long start = System.currentTimeMillis();
+            final Words srcWords = new Words(), trgWords = new Words();
+            final Node root = new Node();
+            int featureCount = -1;
+            long lineNo = 0, entries = 0;
+            final LineReader in = LineReader.open(phraseTable);
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lineNo++;
+                    final String[] elems = line.split(" \\|\\|\\| ");
+                    if (elems.length < 3) {
+                        continue;
+                    }
+                    final String[] scoreStrs = elems[2].trim().split(" ");
+                    if (featureCount < 0) {
+                        featureCount = scoreStrs.length;
+                    } else if (featureCount != scoreStrs.length) {
+                        throw new IOException(String.format("Line %d of %s has %d scores, expected %d", lineNo, phraseTable.getPath(), scoreStrs.length, featureCount));
+                    }
+                    final float[] scores = new float[featureCount];
+                    for (int i = 0; i < featureCount; i++) {
+                        try {
+                            scores[i] = (float) Math.log10(Double.parseDouble(scoreStrs[i]));
+                        } catch (NumberFormatException x) {
+                            throw new IOException(String.format("Bad score on line %d of %s", lineNo, phraseTable.getPath()));
+                        }
+                    }
+                    Node node = root;
+                    for (int w : srcWords.ids(elems[0])) {
+                        Node child = node.children.get(w);
+                        if (child == null) {
+                            child = new Node();
+                            node.children.put(w, child);
+                        }
+                        node = child;
+                    }
+                    node.translations.add(new Translation(trgWords.ids(elems[1]), scores));
+                    entries++;
+                }
+            } finally {
+                in.close();
+            }
+            final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 1 << 16));
+            final long rootOffset;
+            try {
+                dos.writeLong(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(Math.max(featureCount, 0));
+                dos.writeLong(0);
+                dos.writeLong(entries);
+                rootOffset = write(root, dos, new long[]{HEADER});
+            } finally {
+                dos.close();
+            }
+            final RandomAccessFile raf = new RandomAccessFile(out, "rw");
+            try {
+                raf.seek(16);
+                raf.writeLong(rootOffset);
+            } finally {
+                raf.close();
+            }
+            Vocabulary.write(new File(out.getPath() + ".src.vocab"), srcWords.words);
+            Vocabulary.write(new File(out.getPath() + ".trg.vocab"), trgWords.words);
+            System.err.println(String.format("Compiled %d phrase pairs in %.1fs", entries, (System.currentTimeMillis() - start) / 1000.0));
+        }
+
+        /**
+         * Write a node after its children
+         *
+         * @param pos The current offset in the file, which is updated
+         * @return The offset of the node
+         */
+        private static long write(Node node, DataOutputStream out, long[] pos) throws IOException {
+            final int[] words = node.children.keySet().toIntArray();
+            IntArrays.quickSort(words);
+            final long[] offsets = new long[words.length];
+            for (int i = 0; i < words.length; i++) {
+                offsets[i] = write(node.children.get(words[i]), out, pos);
+            }
+            // The children are no longer needed
+            node.children.clear();
+            final long offset = pos[0];
+            out.writeInt(words.length);
+            out.writeInt(node.translations.size());
+            for (long o : offsets) {
+                out.writeLong(o);
+            }
+            for (int w : words) {
+                out.writeInt(w);
+            }
+            long size = 8 + 12l * words.length;
+            Collections.sort(node.translations, BY_SCORE);
+            for (Translation t : node.translations) {
+                out.writeInt(t.words.length);
+                for (int w : t.words) {
+                    out.writeInt(w);
+                }
+                for (float s : t.scores) {
+                    out.writeFloat(s);
+                }
+                size += 4 + 4l * t.words.length + 4l * t.scores.length;
+            }
+            if (size % 8 != 0) {
+                out.writeInt(0);
+                size += 4;
+            }
+            pos[0] += size;
+            return offset;
+        }
+
+        public static void main(String[] args) throws Exception {
+            if (args.length != 2) {
+                System.err.println("Usage: BinaryPhraseTable$Compiler phrase-table[.gz] phrase-table.bpt");
+                System.exit(-1);
+            }
+            compile(new File(args[0]), new File(args[1]));
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * A Bloom filter over n-grams of word ids. A negative answer is certain, a
+ * positive answer is wrong with (approximately) the false positive rate the
+ * filter was created for.
+ *
+ * @author John McCrae
+ */
+public class BloomFilter {
+
+    private static final int MAGIC = 0x464c4246; // FLBF
+    private final long[] bits;
+    private final long numBits;
+    private final int numHashes;
+    private final double falsePositiveRate;
+
+    /**
+     * Create an empty filter
+     *
+     * @param expectedInsertions The number of n-grams that will be added
+     * @param falsePositiveRate The desired false positive rate
+     */
+    public BloomFilter(long expectedInsertions, double falsePositiveRate) {
+        if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+        }
+        final long n = Math.max(expectedInsertions, 1);
+        final long m = Math.max(64, (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+        this.bits = new long[(int) ((m + 63) >>> 6)];
+        this.numBits = (long) bits.length << 6;
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / n * Math.log(2)));
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    private BloomFilter(long[] bits, int numHashes, double falsePositiveRate) {
+        this.bits = bits;
+        this.numBits = (long) bits.length << 6;
+        this.numHashes = numHashes;
+        this.falsePositiveRate = falsePositiveRate;
+    }
+
+    public void put(int[] p, int offset, int length) {
+        final long h = MurmurHash.hash64(p, offset, length);
+        final long step = (h >>> 32) | 1;
+        long combined = h;
+        for (int i = 0; i < numHashes; i++) {
+            final long idx = (combined & Long.MAX_VALUE) % numBits;
+            bits[(int) (idx >>> 6)] |= 1l << idx;
+            combined += step;
+        }
+    }
+
+    public boolean mightContain(int[] p, int offset, int length) {
+        final long h = MurmurHash.hash64(p, offset, length);
+        final long step = (h >>> 32) | 1;
+        long combined = h;
+        for (int i = 0; i < numHashes; i++) {
+            final long idx = (combined & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (idx >>> 6)] & (1l << idx)) == 0) {
+                return false;
+            }
+            combined += step;
+        }
+        return true;
+    }
+
+    /**
+     * The false positive rate this filter was created for
+     */
+    public double falsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    public void write(File file) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeDouble(falsePositiveRate);
+            out.writeInt(numHashes);
+            out.writeInt(bits.length);
+            for (long l : bits) {
+                out.writeLong(l);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static BloomFilter read(File file) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file.getPath() + " is not a Bloom filter");
+            }
+            final double falsePositiveRate = in.readDouble();
+            final int numHashes = in.readInt();
+            final long[] bits = new long[in.readInt()];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            return new BloomFilter(bits, numHashes, falsePositiveRate);
+        } finally {
+            in.close();
+        }
+    }
+}
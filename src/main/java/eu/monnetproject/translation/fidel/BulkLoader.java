@@ -0,0 +1,212 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads a line-based file into a database. Lines are read on the calling
+ * thread and parsed in chunks on a pool of worker threads, while the calling
+ * thread inserts the parsed rows in their original order, so that
+ * implementations may assign identifiers sequentially.
+ *
+ * @param <R> The type of a parsed row
+ * @author John McCrae
+ */
+abstract class BulkLoader<R> {
+
+    private static final int CHUNK_SIZE = 8192;
+    private static final int BATCH_SIZE = 10000;
+    private static final long REPORT_EVERY = 1000000;
+    private final int threads;
+
+    /**
+     * Create a loader
+     *
+     * @param threads The number of parsing threads
+     */
+    protected BulkLoader(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    protected BulkLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Examine a line on the reading thread, before it is parsed. Use this to
+     * track state such as the current section of the file.
+     *
+     * @return false if the line should not be parsed
+     */
+    protected boolean accept(String line) {
+        return true;
+    }
+
+    /**
+     * The context passed to {@link #parse(String, int)} for the last accepted
+     * line
+     */
+    protected int context() {
+        return 0;
+    }
+
+    /**
+     * Parse a line. Called concurrently on the worker threads.
+     *
+     * @return The row or null to skip the line
+     */
+    protected abstract R parse(String line, int context);
+
+    /**
+     * Insert a row (typically into a batch). Called on the loading thread in
+     * the order of the input.
+     */
+    protected abstract void insert(R row) throws SQLException;
+
+    /**
+     * Execute the pending batch
+     */
+    protected abstract void flush() throws SQLException;
+
+    /**
+     * Relax durability for the duration of a build. If the build fails the
+     * database must be deleted anyway.
+     */
+    public static void relax(Statement stat) throws SQLException {
+        stat.execute("pragma synchronous = off");
+        stat.execute("pragma journal_mode = off");
+    }
+
+    /**
+     * Load all lines
+     *
+     * @param in The input, closed when done
+     * @return The number of rows inserted
+     */
+    public long load(LineReader in) throws IOException, SQLException {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ArrayDeque<Future<List<R>>> pending = new ArrayDeque<Future<List<R>>>();
+        final long start = System.currentTimeMillis();
+        long rows = 0;
+        try {
+            String[] lines = new String[CHUNK_SIZE];
+            int[] contexts = new int[CHUNK_SIZE];
+            int n = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!accept(line)) {
+                    continue;
+                }
+                lines[n] = line;
+                contexts[n] = context();
+                if (++n == CHUNK_SIZE) {
+                    pending.add(executor.submit(new Chunk(lines, contexts, n)));
+                    lines = new String[CHUNK_SIZE];
+                    contexts = new int[CHUNK_SIZE];
+                    n = 0;
+                    if (pending.size() > 2 * threads) {
+                        rows = insertAll(pending.poll(), rows, start);
+                    }
+                }
+            }
+            if (n > 0) {
+                pending.add(executor.submit(new Chunk(lines, contexts, n)));
+            }
+            while (!pending.isEmpty()) {
+                rows = insertAll(pending.poll(), rows, start);
+            }
+            flush();
+        } finally {
+            executor.shutdownNow();
+            in.close();
+        }
+        final double secs = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+        System.err.println(String.format("Loaded %d rows in %.1fs (%.0f rows/s)", rows, secs, rows / secs));
+        return rows;
+    }
+
+    private long insertAll(Future<List<R>> chunk, long rows, long start) throws SQLException {
+        final List<R> parsed;
+        try {
+            parsed = chunk.get();
+        } catch (InterruptedException x) {
+            throw new RuntimeException(x);
+        } catch (ExecutionException x) {
+            if (x.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) x.getCause();
+            }
+            throw new RuntimeException(x.getCause());
+        }
+        for (R row : parsed) {
+            insert(row);
+            rows++;
+            if (rows % BATCH_SIZE == 0) {
+                flush();
+            }
+            if (rows % REPORT_EVERY == 0) {
+                final double secs = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+                System.err.println(String.format("%d rows (%.0f rows/s)", rows, rows / secs));
+            }
+        }
+        return rows;
+    }
+
+    private class Chunk implements Callable<List<R>> {
+
+        private final String[] lines;
+        private final int[] contexts;
+        private final int n;
+
+        public Chunk(String[] lines, int[] contexts, int n) {
+            this.lines = lines;
+            this.contexts = contexts;
+            this.n = n;
+        }
+
+        public List<R> call() throws Exception {
+            final ArrayList<R> rows = new ArrayList<R>(n);
+            for (int i = 0; i < n; i++) {
+                final R row = parse(lines[i], contexts[i]);
+                if (row != null) {
+                    rows.add(row);
+                }
+            }
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+
+/**
+ * A language model that caches the results (including misses) of another
+ * model. The cache is split into independently locked stripes, so it can be
+ * shared by several decoding threads, and each stripe evicts by the CLOCK
+ * (second chance) policy once it reaches its share of the memory ceiling.
+ *
+ * @author John McCrae
+ */
+public class CachedLanguageModel implements IncrementalLanguageModel {
+
+    // Approximate heap cost of one cached n-gram (key, value and table slots)
+    private static final int ENTRY_BYTES = 128;
+    private static final int STRIPES = 16;
+    private static final double[] MISS = new double[0];
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("fidel.verbose", "false"));
+    private final IntegerLanguageModel model;
+    private final Stripe[] stripes;
+    private final LMState.Probe probe = new LMState.Probe() {
+        public double prob(int[] ngram, int offset, int length) {
+            final double[] r = lookup(ngram, offset, length, MurmurHash.hash32(ngram, offset, length));
+            return r == null ? Double.NaN : r[0];
+        }
+
+        public double backoff(int[] ngram, int offset, int length) {
+            final double[] r = lookup(ngram, offset, length, MurmurHash.hash32(ngram, offset, length));
+            return r == null || r.length < 2 ? 0.0 : r[1];
+        }
+    };
+
+    /**
+     * Create a cache
+     *
+     * @param model The model to cache
+     * @param maxBytes The (approximate) maximum memory to use
+     */
+    public CachedLanguageModel(IntegerLanguageModel model, long maxBytes) {
+        this.model = model;
+        this.stripes = new Stripe[STRIPES];
+        final int entries = (int) Math.min(Integer.MAX_VALUE / 4, Math.max(1, maxBytes / ENTRY_BYTES / STRIPES));
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(entries);
+        }
+    }
+
+    public double[] get(Phrase phrase) {
+        return lookup(phrase.p, phrase.l, phrase.n, phrase.hashCode());
+    }
+
+    /**
+     * Score a word through the cache. The underlying model need not be
+     * incremental itself.
+     */
+    public double score(LMState in, int word, double unk, LMState out) {
+        return LMState.score(probe, in, word, unk, out);
+    }
+
+    private double[] lookup(int[] p, int offset, int length, int hash) {
+        final Stripe stripe = stripes[(hash >>> 16) & (STRIPES - 1)];
+        double[] result;
+        synchronized (stripe) {
+            result = stripe.get(p, offset, length, hash);
+        }
+        if (result != null) {
+            return result == MISS ? null : result;
+        }
+        result = model.get(new Phrase(p, offset, length));
+        synchronized (stripe) {
+            stripe.put(p, offset, length, hash, result == null ? MISS : result);
+        }
+        return result;
+    }
+
+    /**
+     * The number of queries answered from the cache
+     */
+    public long hits() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * The number of queries passed to the underlying model
+     */
+    public long misses() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * The number of entries evicted from the cache
+     */
+    public long evictions() {
+        long evictions = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                evictions += stripe.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    /**
+     * The proportion of queries answered from the cache
+     */
+    public double hitRate() {
+        final long hits = hits();
+        final long total = hits + misses();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    public int order() {
+        return model.order();
+    }
+
+    public void close() {
+        if (verbose) {
+            System.err.println(String.format("Language model cache: hit rate %.4f (%d hits, %d misses, %d evictions)", hitRate(), hits(), misses(), evictions()));
+        }
+        model.close();
+    }
+
+    public Object2IntMap<String> wordMap() {
+        return model.wordMap();
+    }
+
+    public Int2ObjectMap<String> invWordMap() {
+        return model.invWordMap();
+    }
+
+    /**
+     * A fixed number of entry slots, found through a linear-probing index and
+     * evicted by a clock hand. Not thread-safe.
+     */
+    private static final class Stripe {
+
+        private final int[][] keys;
+        private final int[] hashes;
+        private final double[][] values;
+        private final boolean[] referenced;
+        // Entry number + 1, or 0 for empty
+        private final int[] index;
+        private final int mask;
+        private int size = 0, hand = 0;
+        long hits, misses, evictions;
+
+        Stripe(int capacity) {
+            this.keys = new int[capacity][];
+            this.hashes = new int[capacity];
+            this.values = new double[capacity][];
+            this.referenced = new boolean[capacity];
+            int indexSize = 4;
+            while (indexSize < capacity * 2) {
+                indexSize <<= 1;
+            }
+            this.index = new int[indexSize];
+            this.mask = indexSize - 1;
+        }
+
+        private static boolean matches(int[] key, int[] p, int offset, int length) {
+            if (key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key[i] != p[offset + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        double[] get(int[] p, int offset, int length, int hash) {
+            int i = hash & mask;
+            int e;
+            while ((e = index[i]) != 0) {
+                e--;
+                if (hashes[e] == hash && matches(keys[e], p, offset, length)) {
+                    referenced[e] = true;
+                    hits++;
+                    return values[e];
+                }
+                i = (i + 1) & mask;
+            }
+            misses++;
+            return null;
+        }
+
+        void put(int[] p, int offset, int length, int hash, double[] value) {
+            // Another thread may have added it while the model was queried
+            int i = hash & mask;
+            int e;
+            while ((e = index[i]) != 0) {
+                e--;
+                if (hashes[e] == hash && matches(keys[e], p, offset, length)) {
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            if (size < keys.length) {
+                e = size++;
+            } else {
+                while (referenced[hand]) {
+                    referenced[hand] = false;
+                    hand = (hand + 1) % keys.length;
+                }
+                e = hand;
+                hand = (hand + 1) % keys.length;
+                removeFromIndex(e);
+                evictions++;
+                // The index may have shifted, find the free slot again
+                i = hash & mask;
+                while (index[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+            }
+            final int[] key = new int[length];
+            System.arraycopy(p, offset, key, 0, length);
+            keys[e] = key;
+            hashes[e] = hash;
+            values[e] = value;
+            referenced[e] = false;
+            index[i] = e + 1;
+        }
+
+        // Remove an entry from the index, shifting back later entries of its
+        // probe sequence so that no lookup stops early
+        private void removeFromIndex(int e) {
+            int i = hashes[e] & mask;
+            while (index[i] != e + 1) {
+                i = (i + 1) & mask;
+            }
+            index[i] = 0;
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                if (index[j] == 0) {
+                    return;
+                }
+                final int k = hashes[index[j] - 1] & mask;
+                if (j > i ? (k <= i || k > j) : (k <= i && k > j)) {
+                    index[i] = index[j];
+                    index[j] = 0;
+                    i = j;
+                }
+            }
+        }
+    }
+}
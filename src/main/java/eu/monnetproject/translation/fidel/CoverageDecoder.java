@@ -0,0 +1,457 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import static eu.monnetproject.translation.fidel.FidelDecoder.*;
+
+/**
+ * A decoder that may translate the source in any order. Each hypothesis
+ * records the source words it covers as a bitset, so the source may jump
+ * forward or back (within the distortion limit) while the translation is only
+ * ever appended to. A hypothesis is a small fixed-size record pointing back
+ * to the one it extends, so extending one copies nothing, and hypotheses
+ * that would be extended identically are easily recombined. Sentences of more
+ * than 64 words are decoded by {@link FidelDecoder} instead.
+ *
+ * @author John McCrae
+ */
+public class CoverageDecoder {
+
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("fidel.verbose", "false"));
+    /**
+     * The longest sentence this decoder can translate
+     */
+    public static final int MAX_LENGTH = 64;
+
+    /**
+     * Decode a sentence
+     *
+     * @param src The source phrase
+     * @param phraseTable The phrase table. Scores should already be logarithmic
+     * @param languageModel The language model. Scores should already be
+     * logarithmic
+     * @param lmN The n in the language model
+     * @param weights Of the form { UNK, DIST, LM, PT1, ... PTN }
+     * @param distortionLimit The furthest the source may jump between
+     * consecutive phrases
+     * @param nBest The nBest results to return
+     * @param beamSize The size of the beam for each number of words covered
+     * @return The best solutions
+     */
+    public static Solution[] decode(int[] src,
+            Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable,
+            IntegerLanguageModel languageModel,
+            int lmN,
+            double[] weights,
+            int distortionLimit,
+            int nBest,
+            int beamSize) {
+        if (src.length > MAX_LENGTH) {
+            return FidelDecoder.decode(src, phraseTable, languageModel, lmN, weights, distortionLimit, nBest, beamSize, false, Search.STACK);
+        }
+        final FutureCostTable futureCosts = new FutureCostTable(src, phraseTable, weights, languageModel, lmN);
+        final DecoderWorkspace workspace = DecoderWorkspace.acquire();
+        try {
+            return decode(src, phraseTable, languageModel, lmN, weights, distortionLimit, nBest, beamSize, futureCosts, workspace);
+        } finally {
+            workspace.release();
+        }
+    }
+
+    private static Solution[] decode(int[] src,
+            Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable,
+            IntegerLanguageModel languageModel, int lmN, double[] weights, int distortionLimit,
+            int nBest, int beamSize, FutureCostTable futureCosts, DecoderWorkspace workspace) {
+        final HypothesisArena arena = workspace.arena();
+        final Beam[] stacks = workspace.stacks(src.length + 1, beamSize, false);
+        final Beam solns = workspace.solutions(nBest);
+        final Object2ObjectOpenHashMap<Signature, Hypothesis> recombination = workspace.recombination();
+        stacks[0].add(new Hypothesis(futureCosts.cost(0l), weights.length));
+        // Context followed by a phrase, for language model scoring
+        final int[] buf = workspace.buffer(Math.max(lmN, 1) + src.length * 32);
+
+        for (int k = 0; k < src.length; k++) {
+            final Beam stack = stacks[k];
+            while (!stack.isEmpty()) {
+                final Hypothesis hyp = (Hypothesis) stack.poll();
+                hyp.expanded = true;
+                if (verbose) {
+                    System.err.print("Selecting ");
+                    hyp.printSoln(wordMap);
+                }
+                expand(hyp, src, phraseTable, languageModel, lmN, weights, distortionLimit, futureCosts, stacks, recombination, buf, arena);
+            }
+        }
+        while (!stacks[src.length].isEmpty()) {
+            final Hypothesis hyp = (Hypothesis) stacks[src.length].poll();
+            if (solns.accepts(hyp.score)) {
+                solns.add(hyp.solution(src));
+            }
+            if (nBest > 1) {
+                addRecombined(hyp, src, solns);
+            }
+        }
+        return solns.toArray();
+    }
+
+    private static void expand(Hypothesis hyp, int[] src,
+            Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable,
+            IntegerLanguageModel languageModel, int lmN, double[] weights, int distortionLimit,
+            FutureCostTable futureCosts, Beam[] stacks, Object2ObjectMap<Signature, Hypothesis> recombination, int[] buf,
+            HypothesisArena arena) {
+        final int lastEnd = hyp.end;
+        System.arraycopy(hyp.context, hyp.contextAt, buf, 0, hyp.contextLength);
+        final int ctx = hyp.contextLength;
+        for (int i = 0; i < src.length; i++) {
+            if ((hyp.coverage & (1l << i)) != 0 || Math.abs(i - lastEnd) > distortionLimit) {
+                continue;
+            }
+            long span = 0l;
+            PHRASE_END:
+            for (int j = i + 1; j <= src.length; j++) {
+                if ((hyp.coverage & (1l << (j - 1))) != 0) {
+                    break;
+                }
+                span |= 1l << (j - 1);
+                final long coverage = hyp.coverage | span;
+                // The first word not translated must still be reachable
+                final int gap = Long.numberOfTrailingZeros(~coverage);
+                if (gap < src.length && gap < i && j - gap > distortionLimit) {
+                    continue;
+                }
+                final double futureCost = futureCosts.cost(coverage);
+                final double dist = -Math.abs(i - lastEnd);
+                final Beam stack = stacks[j - i + Long.bitCount(hyp.coverage)];
+                final Collection<PhraseTranslation> candidates = phraseTable.get(new Phrase(Arrays.copyOfRange(src, i, j)));
+                if (candidates == null || candidates.isEmpty()) {
+                    if (j > i + 1) {
+                        // We don't search for longer phrases
+                        break PHRASE_END;
+                    }
+                    final double score = hyp.score - hyp.futureCost + futureCost
+                            + weights[UNK] + weights[DIST] * dist;
+                    if (!stack.accepts(score)) {
+                        continue;
+                    }
+                    buf[ctx] = -src[i];
+                    add(stack, recombination, new Hypothesis(hyp, coverage, j, null, -src[i], arena, buf, ctx + 1, lmN, 0.0, dist, score, futureCost));
+                } else {
+                    for (PhraseTranslation candidate : candidates) {
+                        double ptScore = 0.0;
+                        double lmScore = 0.0;
+                        for (int k = 0; k < candidate.scores.length; k++) {
+                            ptScore += weights[PT + k] * candidate.scores[k];
+                        }
+                        for (int k = 0; k < candidate.words.length; k++) {
+                            buf[ctx + k] = candidate.words[k];
+                            lmScore += lmScore(buf, ctx + k + 1, languageModel, Math.min(ctx + k + 1, lmN), weights[UNK]);
+                        }
+                        final double score = hyp.score - hyp.futureCost + futureCost
+                                + ptScore + weights[LM] * lmScore + weights[DIST] * dist;
+                        if (Double.isNaN(score) || Double.isInfinite(score) || !stack.accepts(score)) {
+                            continue;
+                        }
+                        add(stack, recombination, new Hypothesis(hyp, coverage, j, candidate, 0, arena, buf, ctx + candidate.words.length, lmN, lmScore, dist, score, futureCost));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void add(Beam stack, Object2ObjectMap<Signature, Hypothesis> recombination, Hypothesis hyp) {
+        if (!stack.accepts(hyp.score)) {
+            return;
+        }
+        final Signature signature = new Signature(hyp.coverage, hyp.end, hyp.context, hyp.contextAt, hyp.contextLength);
+        final Hypothesis previous = recombination.get(signature);
+        // Where the previous hypothesis is in the stack, if it is still there
+        final int at = previous == null || previous.expanded ? -1 : stack.indexOf(previous);
+        if (previous != null && (previous.expanded || at >= 0)) {
+            if (hyp.score <= previous.score) {
+                previous.recombine(hyp);
+                return;
+            } else if (!previous.expanded) {
+                stack.removeAt(at);
+                hyp.recombine(previous);
+            }
+        }
+        if (stack.add(hyp)) {
+            recombination.put(signature, hyp);
+            if (verbose) {
+                System.err.print("Adding ");
+                hyp.printSoln(wordMap);
+            }
+        }
+    }
+
+    /**
+     * Add to the n-best list the hypotheses recombined with any step of a
+     * complete hypothesis, completed in the same way
+     */
+    private static void addRecombined(Hypothesis complete, int[] src, Beam solns) {
+        for (Hypothesis step = complete; step != null; step = step.parent) {
+            if (step.recombined == null) {
+                continue;
+            }
+            for (Hypothesis loser : step.recombined) {
+                final double score = complete.score - step.score + loser.score;
+                if (!solns.accepts(score)) {
+                    continue;
+                }
+                final int[] head = loser.words();
+                final int[] completeWords = complete.words();
+                final int[] stepWords = step.words();
+                final int[] words = new int[head.length + completeWords.length - stepWords.length];
+                System.arraycopy(head, 0, words, 0, head.length);
+                System.arraycopy(completeWords, stepWords.length, words, head.length, completeWords.length - stepWords.length);
+                final double[] completeFeatures = complete.features();
+                final double[] stepFeatures = step.features();
+                final double[] loserFeatures = loser.features();
+                final double[] features = new double[completeFeatures.length];
+                for (int f = 0; f < features.length; f++) {
+                    features[f] = completeFeatures[f] - stepFeatures[f] + loserFeatures[f];
+                }
+                solns.add(new SolutionImpl(src.length, words, new int[words.length], score, 0.0, features));
+            }
+        }
+    }
+
+    /**
+     * The state of a hypothesis that determines the score of its extensions
+     */
+    private static final class Signature {
+
+        private final long coverage;
+        private final int end;
+        private final int[] context;
+        private final int contextAt, contextLength;
+        private final int hash;
+
+        public Signature(long coverage, int end, int[] context, int contextAt, int contextLength) {
+            this.coverage = coverage;
+            this.end = end;
+            this.context = context;
+            this.contextAt = contextAt;
+            this.contextLength = contextLength;
+            this.hash = 97 * (97 * (int) (coverage ^ (coverage >>> 32)) + end) + MurmurHash.hash32(context, contextAt, contextLength);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Signature)) {
+                return false;
+            }
+            final Signature other = (Signature) obj;
+            if (coverage != other.coverage || end != other.end || contextLength != other.contextLength) {
+                return false;
+            }
+            for (int i = 0; i < contextLength; i++) {
+                if (context[contextAt + i] != other.context[other.contextAt + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A partial translation: the translation of a phrase appended to the
+     * hypothesis it extends
+     */
+    private static final class Hypothesis implements Solution {
+
+        final Hypothesis parent;
+        // The source words covered
+        final long coverage;
+        // The end of the last source phrase translated
+        final int end;
+        // The translation appended, or null for an unknown word
+        final PhraseTranslation phrase;
+        // The word passed through for an unknown word
+        final int unknown;
+        // The last n-1 words of the translation, in a record of the arena
+        final int[] context;
+        final int contextAt, contextLength;
+        final double score, futureCost;
+        // The change in the language model and distortion features
+        final double lm, dist;
+        // The features of the empty hypothesis
+        final double[] features;
+        final int length;
+        ObjectArrayList<Hypothesis> recombined;
+        boolean expanded;
+
+        /**
+         * The empty hypothesis
+         */
+        Hypothesis(double futureCost, int features) {
+            this.parent = null;
+            this.coverage = 0l;
+            this.end = 0;
+            this.phrase = null;
+            this.unknown = -1;
+            this.context = new int[0];
+            this.contextAt = 0;
+            this.contextLength = 0;
+            this.score = futureCost;
+            this.futureCost = futureCost;
+            this.lm = 0.0;
+            this.dist = 0.0;
+            this.features = new double[features];
+            this.length = 0;
+        }
+
+        /**
+         * @param buf The context of the parent followed by the words appended,
+         * up to length, whose last n-1 words are stored in the arena
+         */
+        Hypothesis(Hypothesis parent, long coverage, int end, PhraseTranslation phrase, int unknown,
+                HypothesisArena arena, int[] buf, int length, int lmN, double lm, double dist, double score, double futureCost) {
+            this.parent = parent;
+            this.coverage = coverage;
+            this.end = end;
+            this.phrase = phrase;
+            this.unknown = unknown;
+            this.contextLength = Math.min(length, Math.max(0, lmN - 1));
+            final int handle = arena.alloc(contextLength);
+            this.context = arena.block(handle);
+            this.contextAt = HypothesisArena.offset(handle);
+            System.arraycopy(buf, length - contextLength, context, contextAt, contextLength);
+            this.score = score;
+            this.futureCost = futureCost;
+            this.lm = lm;
+            this.dist = dist;
+            this.features = null;
+            this.length = parent.length + (phrase == null ? 1 : phrase.words.length);
+        }
+
+        void recombine(Hypothesis loser) {
+            if (recombined == null) {
+                recombined = new ObjectArrayList<Hypothesis>();
+            }
+            recombined.add(loser);
+            if (loser.recombined != null) {
+                recombined.addAll(loser.recombined);
+                loser.recombined = null;
+            }
+        }
+
+        /**
+         * The translation, following the back-pointers
+         */
+        int[] words() {
+            final int[] words = new int[length];
+            int pos = length;
+            for (Hypothesis h = this; h.parent != null; h = h.parent) {
+                if (h.phrase == null) {
+                    words[--pos] = h.unknown;
+                } else {
+                    pos -= h.phrase.words.length;
+                    System.arraycopy(h.phrase.words, 0, words, pos, h.phrase.words.length);
+                }
+            }
+            return words;
+        }
+
+        SolutionImpl solution(int[] src) {
+            final int[] words = words();
+            return new SolutionImpl(src.length, words, new int[words.length], score, futureCost, features());
+        }
+
+        public void printSoln(Int2ObjectMap<String> wordMap) {
+            System.err.print("Hypothesis: ");
+            for (int i = 0; i < 64; i++) {
+                System.err.print((coverage & (1l << i)) != 0 ? "*" : ".");
+            }
+            System.err.print(" ");
+            for (int i = contextAt; i < contextAt + contextLength; i++) {
+                System.err.print((wordMap != null ? wordMap.get(context[i]) : Integer.toString(context[i])) + " ");
+            }
+            System.err.println("\t\t" + score + " - " + futureCost);
+        }
+
+        public double score() {
+            return score;
+        }
+
+        public int[] soln() {
+            return words();
+        }
+
+        /**
+         * The features, summed over the back-pointers
+         */
+        public double[] features() {
+            Hypothesis h = this;
+            while (h.parent != null) {
+                h = h.parent;
+            }
+            final double[] features = h.features.clone();
+            for (h = this; h.parent != null; h = h.parent) {
+                if (h.phrase == null) {
+                    features[UNK]++;
+                } else {
+                    for (int k = 0; k < h.phrase.scores.length; k++) {
+                        features[PT + k] += h.phrase.scores[k];
+                    }
+                    features[LM] += h.lm;
+                }
+                features[DIST] += h.dist;
+            }
+            return features;
+        }
+
+        public int compareTo(Solution t) {
+            if (score < t.score()) {
+                return +1;
+            } else if (score > t.score()) {
+                return -1;
+            } else {
+                final int thisHash = System.identityHashCode(this);
+                final int tHash = System.identityHashCode(t);
+                if (tHash < thisHash) {
+                    return -1;
+                } else if (tHash > thisHash) {
+                    return +1;
+                } else {
+                    return this == t ? 0 : -1;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import static eu.monnetproject.translation.fidel.FidelDecoder.*;
+
+/**
+ * Fills each stack by cube pruning. For every span of the source ending at a
+ * stack, the solutions of the stack the span starts at and the ways of
+ * translating the span (a translation inserted at some distortion) are each
+ * sorted by score, forming a grid whose best corners are the most promising
+ * extensions. The grids are explored best first by their score without the
+ * language model, and only the extensions popped from the queue, up to a
+ * limit, are scored with the language model and added to the stack.
+ *
+ * @author John McCrae
+ */
+final class CubePruning {
+
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("fidel.verbose", "false"));
+
+    private CubePruning() {
+    }
+
+    /**
+     * A translation of a span inserted at some distortion
+     */
+    private static final class Option {
+
+        // null for an unknown word
+        final PhraseTranslation candidate;
+        final int d;
+        final double score;
+
+        Option(PhraseTranslation candidate, int d, double score) {
+            this.candidate = candidate;
+            this.d = d;
+            this.score = score;
+        }
+    }
+    private static final Comparator<Option> OPTION_ORDER = new Comparator<Option>() {
+        public int compare(Option o1, Option o2) {
+            return Double.compare(o2.score, o1.score);
+        }
+    };
+
+    /**
+     * The extensions of the solutions covering the source to {@code i} by a
+     * translation of {@code i} to {@code j}
+     */
+    private static final class Cube {
+
+        final int i, j;
+        final SolutionImpl[] solns;
+        final Option[] options;
+        final LongOpenHashSet seen = new LongOpenHashSet();
+
+        Cube(int i, int j, SolutionImpl[] solns, Option[] options) {
+            this.i = i;
+            this.j = j;
+            this.solns = solns;
+            this.options = options;
+        }
+    }
+
+    /**
+     * A cell of a cube
+     */
+    private static final class Corner {
+
+        final Cube cube;
+        final int s, o;
+        final double estimate;
+
+        Corner(Cube cube, int s, int o, double estimate) {
+            this.cube = cube;
+            this.s = s;
+            this.o = o;
+            this.estimate = estimate;
+        }
+    }
+    private static final Comparator<Corner> CORNER_ORDER = new Comparator<Corner>() {
+        public int compare(Corner c1, Corner c2) {
+            return Double.compare(c2.estimate, c1.estimate);
+        }
+    };
+
+    /**
+     * Decode by cube pruning
+     *
+     * @param stacks The stacks, the first holding the empty solution
+     * @param solns The beam for complete solutions
+     * @param tptScore A buffer for the scores of putting a translation
+     * @param arena The arena to store the solutions' records in
+     * @param popLimit The most extensions to score for each stack
+     */
+    static void decode(int[] src,
+            Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable,
+            IntegerLanguageModel languageModel, int lmN, double[] weights, int distortionLimit,
+            FutureCostTable futureCosts, Beam[] stacks, Beam solns,
+            Object2ObjectMap<SolutionImpl.Signature, SolutionImpl> recombination,
+            int[] buf, double[] tptScore, HypothesisArena arena, int popLimit) {
+        // The solutions of each completed stack, best first
+        final SolutionImpl[][] sorted = new SolutionImpl[stacks.length][];
+        sorted[0] = drain(stacks[0], weights, languageModel, lmN, distortionLimit, recombination);
+        int pops = 0;
+        for (int j = 1; j <= src.length; j++) {
+            final double futureCost = futureCosts.cost(j, src.length);
+            final PriorityQueue<Corner> queue = new PriorityQueue<Corner>(16, CORNER_ORDER);
+            for (int i = 0; i < j; i++) {
+                if (sorted[i].length == 0) {
+                    continue;
+                }
+                final Option[] options = options(src, phraseTable, weights, distortionLimit, i, j);
+                if (options == null) {
+                    continue;
+                }
+                final Cube cube = new Cube(i, j, sorted[i], options);
+                push(queue, cube, 0, 0, futureCost);
+            }
+            final Beam stack = stacks[j];
+            int scored = 0;
+            while (!queue.isEmpty() && scored < popLimit) {
+                final Corner corner = queue.poll();
+                if (extend(corner, src, languageModel, lmN, weights, distortionLimit, futureCost, stack, solns, recombination, buf, tptScore, arena)) {
+                    scored++;
+                }
+                push(queue, corner.cube, corner.s + 1, corner.o, futureCost);
+                push(queue, corner.cube, corner.s, corner.o + 1, futureCost);
+            }
+            pops += scored;
+            sorted[j] = drain(stack, weights, languageModel, lmN, distortionLimit, recombination);
+        }
+        for (SolutionImpl soln : sorted[src.length]) {
+            solns.add(soln);
+        }
+        if (verbose) {
+            System.err.println(String.format("Cube pruning scored %d extensions", pops));
+        }
+    }
+
+    private static SolutionImpl[] drain(Beam stack, double[] weights, IntegerLanguageModel languageModel, int lmN, int distortionLimit,
+            Object2ObjectMap<SolutionImpl.Signature, SolutionImpl> recombination) {
+        final ArrayList<SolutionImpl> solns = new ArrayList<SolutionImpl>(stack.size());
+        while (!stack.isEmpty()) {
+            final SolutionImpl soln = select(stack, weights, languageModel, lmN, distortionLimit, recombination);
+            if (soln != null) {
+                solns.add(soln);
+            }
+        }
+        return solns.toArray(new SolutionImpl[solns.size()]);
+    }
+
+    /**
+     * The ways of translating a span, best first, or null if the span is not
+     * translated as a phrase. As in {@link FidelDecoder}, an untranslatable
+     * word is passed through and no longer span starting at the same word
+     * is considered once one is not in the phrase table
+     */
+    private static Option[] options(int[] src, Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable,
+            double[] weights, int distortionLimit, int i, int j) {
+        for (int k = i + 2; k < j; k++) {
+            final Collection<PhraseTranslation> shorter = phraseTable.get(new Phrase(Arrays.copyOfRange(src, i, k)));
+            if (shorter == null || shorter.isEmpty()) {
+                return null;
+            }
+        }
+        final Collection<PhraseTranslation> candidates = phraseTable.get(new Phrase(Arrays.copyOfRange(src, i, j)));
+        final List<Option> options = new ArrayList<Option>();
+        if (candidates == null || candidates.isEmpty()) {
+            if (j != i + 1) {
+                return null;
+            }
+            for (int d = 0; d < distortionLimit; d++) {
+                options.add(new Option(null, d, weights[UNK] + deltaDist(null, 1, d, weights)));
+            }
+        } else {
+            for (PhraseTranslation candidate : candidates) {
+                double ptScore = 0.0;
+                for (int k = 0; k < candidate.scores.length; k++) {
+                    ptScore += weights[PT + k] * candidate.scores[k];
+                }
+                for (int d = 0; d < distortionLimit; d++) {
+                    options.add(new Option(candidate, d, ptScore + deltaDist(null, candidate.words.length, d, weights)));
+                }
+            }
+        }
+        Collections.sort(options, OPTION_ORDER);
+        return options.toArray(new Option[options.size()]);
+    }
+
+    private static void push(PriorityQueue<Corner> queue, Cube cube, int s, int o, double futureCost) {
+        if (s < cube.solns.length && o < cube.options.length && cube.seen.add(((long) s << 32) | o)) {
+            final SolutionImpl soln = cube.solns[s];
+            queue.add(new Corner(cube, s, o, soln.score - soln.futureCost + futureCost + cube.options[o].score));
+        }
+    }
+
+    /**
+     * Score the extension at a corner with the language model and add it to
+     * the stack
+     *
+     * @return false if the distortion is not allowed for this solution
+     */
+    private static boolean extend(Corner corner, int[] src, IntegerLanguageModel languageModel, int lmN, double[] weights,
+            int distortionLimit, double futureCost, Beam stack, Beam solns,
+            Object2ObjectMap<SolutionImpl.Signature, SolutionImpl> recombination, int[] buf, double[] tptScore, HypothesisArena arena) {
+        final SolutionImpl soln = corner.cube.solns[corner.s];
+        final Option option = corner.cube.options[corner.o];
+        final int pos = soln.tailSize;
+        final int kept = SolutionImpl.keptLength(lmN, distortionLimit);
+        final int d = option.d;
+        if (d > pos) {
+            return false;
+        }
+        // Check this will not push an existing element over distortion limit
+        for (int e = 1; e <= d; e++) {
+            if (soln.tailDist(pos - e) + d > distortionLimit) {
+                return false;
+            }
+        }
+        soln.copyTail(buf);
+        final SolutionImpl newSoln;
+        if (option.candidate == null) {
+            final double score = option.score + soln.score + futureCost - soln.futureCost;
+            if (Double.isInfinite(score) || Double.isNaN(score)
+                    || !solns.accepts(score) || !stack.accepts(score)) {
+                return true;
+            }
+            rightShiftBuffer(buf, 1, pos - d);
+            buf[pos - d] = -src[corner.cube.i];
+            newSoln = soln.extend(arena, corner.cube.j, 1, d, null, 0.0, 0.0, buf, score, futureCost, kept);
+        } else {
+            final PhraseTranslation candidate = option.candidate;
+            final double ddScore = deltaDist(null, candidate.words.length, d, weights);
+            tryPutTranslation(candidate, weights, buf, pos, languageModel, lmN, d, tptScore);
+            final double score = tptScore[0] + soln.score + futureCost - soln.futureCost + ddScore;
+            if (Double.isInfinite(score) || Double.isNaN(score)
+                    || !stack.accepts(score)) {
+                return true;
+            }
+            newSoln = soln.extend(arena, corner.cube.j, candidate.words.length, d, candidate.scores, tptScore[1 + LM], ddScore / weights[DIST], buf, score, futureCost, kept);
+        }
+        addSolution(stack, recombination, newSoln, lmN, distortionLimit);
+        return true;
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * The buffers, beams and arena a decode works in. Each thread keeps one
+ * workspace, which is reused by every sentence it decodes and grown as
+ * needed. So that one very long sentence does not hold on to its memory
+ * forever, anything grown beyond the high-water mark (the system property
+ * {@code fidel.highwater}, in ints) is let go when the decode ends.
+ *
+ * @author John McCrae
+ */
+public final class DecoderWorkspace {
+
+    private static final int HIGH_WATER = Integer.parseInt(System.getProperty("fidel.highwater", Integer.toString(1 << 20)));
+    // The most beams and recombination entries kept between decodes
+    private static final int MAX_BEAMS = 256;
+    private static final int MAX_RECOMBINATION = 1 << 16;
+    private static final ThreadLocal<DecoderWorkspace> workspaces = new ThreadLocal<DecoderWorkspace>() {
+        @Override
+        protected DecoderWorkspace initialValue() {
+            return new DecoderWorkspace(HIGH_WATER);
+        }
+    };
+    private final int highWater;
+    private final HypothesisArena arena = new HypothesisArena();
+    private final ObjectArrayList<Beam> beams = new ObjectArrayList<Beam>();
+    private final Beam solns = new Beam(1);
+    private final Object2ObjectOpenHashMap<Object, Object> recombination = new Object2ObjectOpenHashMap<Object, Object>();
+    private int[] buf = new int[0];
+    private double[] scores = new double[0];
+    private Beam[] stacks = new Beam[0];
+    private boolean inUse;
+
+    /**
+     * @param highWater The largest buffer, in ints, to keep between decodes
+     */
+    public DecoderWorkspace(int highWater) {
+        this.highWater = highWater;
+    }
+
+    /**
+     * The workspace of the current thread
+     */
+    public static DecoderWorkspace forThread() {
+        return workspaces.get();
+    }
+
+    /**
+     * Take the workspace of this thread for a decode. If it is already in use
+     * (by a decode that has started another) a new workspace is returned
+     * instead. The workspace must be released when the decode ends
+     */
+    public static DecoderWorkspace acquire() {
+        final DecoderWorkspace workspace = workspaces.get();
+        if (workspace.inUse) {
+            final DecoderWorkspace fresh = new DecoderWorkspace(workspace.highWater);
+            fresh.inUse = true;
+            return fresh;
+        }
+        workspace.inUse = true;
+        return workspace;
+    }
+
+    /**
+     * The arena for the hypotheses' records
+     */
+    public HypothesisArena arena() {
+        return arena;
+    }
+
+    /**
+     * A buffer of at least n ints. Its contents are not cleared
+     */
+    public int[] buffer(int n) {
+        if (buf.length < n) {
+            buf = new int[n];
+        }
+        return buf;
+    }
+
+    /**
+     * A buffer of at least n doubles. Its contents are not cleared
+     */
+    public double[] scores(int n) {
+        if (scores.length < n) {
+            scores = new double[n];
+        }
+        return scores;
+    }
+
+    /**
+     * Empty stacks for a decode
+     *
+     * @param n The number of stacks
+     * @param beamSize The size of each stack
+     * @param shared If every stack is to be the same beam
+     */
+    public Beam[] stacks(int n, int beamSize, boolean shared) {
+        if (stacks.length != n) {
+            stacks = new Beam[n];
+        }
+        for (int k = 0; k < n; k++) {
+            if (k == 0 || !shared) {
+                if (k == beams.size()) {
+                    beams.add(new Beam(beamSize));
+                }
+                final Beam beam = beams.get(k);
+                beam.reset(beamSize);
+                stacks[k] = beam;
+            } else {
+                stacks[k] = stacks[0];
+            }
+        }
+        return stacks;
+    }
+
+    /**
+     * An empty beam for the complete solutions
+     */
+    public Beam solutions(int nBest) {
+        solns.reset(nBest);
+        return solns;
+    }
+
+    /**
+     * An empty map for recombining hypotheses
+     */
+    @SuppressWarnings("unchecked")
+    public <K, V> Object2ObjectOpenHashMap<K, V> recombination() {
+        recombination.clear();
+        return (Object2ObjectOpenHashMap<K, V>) (Object2ObjectOpenHashMap) recombination;
+    }
+
+    /**
+     * End a decode: free every hypothesis and let go of anything grown beyond
+     * the high-water mark. Nothing taken from the workspace may be used after
+     * this
+     */
+    public void release() {
+        arena.reset();
+        arena.trim(highWater);
+        for (Beam beam : stacks) {
+            beam.clear();
+        }
+        solns.clear();
+        recombination.clear();
+        recombination.trim(MAX_RECOMBINATION);
+        if (beams.size() > MAX_BEAMS) {
+            beams.size(MAX_BEAMS);
+            stacks = new Beam[0];
+        }
+        if (buf.length > highWater) {
+            buf = new int[0];
+        }
+        if (scores.length > highWater) {
+            scores = new double[0];
+        }
+        inUse = false;
+    }
+}
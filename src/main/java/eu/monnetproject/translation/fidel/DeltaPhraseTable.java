@@ -0,0 +1,543 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import eu.monnetproject.translation.fidel.Fidel.Feature;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A phrase table layered over a base table, with phrase pairs added to an
+ * append-only delta log ({@code <table>.delta}, in the Moses text format).
+ * The log may be appended to by other processes; new lines are picked up at
+ * most once a second. Lookups merge the results of the base table with the
+ * delta, which is held in memory in hash tables so that lookups do not slow
+ * down as it grows. Once the delta reaches a threshold, it is merged in the
+ * background with the base into a new generation of the phrase table
+ * ({@code <table>.g<n>.gz}), built by the base's factory, which then replaces
+ * the base without stopping lookups. The current generation and how much of
+ * the log it contains are recorded in {@code <table>.delta.state}. Earlier
+ * generations are not deleted.
+ *
+ * @author John McCrae
+ */
+public class DeltaPhraseTable implements IntegerPhraseTable {
+
+    private static final long REFRESH_MILLIS = 1000;
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("fidel.verbose", "false"));
+    private final PhraseTableFactory factory;
+    private final String foreignLanguage, translationLanguage;
+    private final String[] features;
+    private final File table, deltaFile, stateFile;
+    private final int mergeThreshold;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicBoolean merging = new AtomicBoolean(false);
+    // Guarded by lock
+    private PhraseTable base;
+    private File baseFile;
+    private int generation;
+    private long mergedOffset, readOffset;
+    private final ArrayList<String> deltaLines = new ArrayList<String>();
+    private final ArrayList<Long> deltaEnds = new ArrayList<Long>();
+    private final HashMap<String, List<PhraseTableEntry>> delta = new HashMap<String, List<PhraseTableEntry>>();
+    private int maxDeltaLength = 0;
+    private volatile long version = 0;
+    private volatile long lastRefresh = 0;
+
+    private DeltaPhraseTable(PhraseTableFactory factory, String foreignLanguage, String translationLanguage, String[] features, File table, int mergeThreshold) throws IOException {
+        this.factory = factory;
+        this.foreignLanguage = foreignLanguage;
+        this.translationLanguage = translationLanguage;
+        this.features = features;
+        this.table = table;
+        this.deltaFile = new File(table.getPath() + ".delta");
+        this.stateFile = new File(table.getPath() + ".delta.state");
+        this.mergeThreshold = mergeThreshold;
+        this.baseFile = table;
+        if (stateFile.exists()) {
+            final Properties state = new Properties();
+            final FileReader reader = new FileReader(stateFile);
+            try {
+                state.load(reader);
+            } finally {
+                reader.close();
+            }
+            this.baseFile = new File(state.getProperty("base"));
+            this.generation = Integer.parseInt(state.getProperty("generation"));
+            this.mergedOffset = this.readOffset = Long.parseLong(state.getProperty("offset"));
+        }
+        this.base = factory.getPhraseTable(foreignLanguage, translationLanguage, features, baseFile);
+        refresh();
+    }
+
+    /**
+     * Open a phrase table with its delta
+     *
+     * @param factory The factory of the base table
+     * @param foreignLanguage The source language
+     * @param translationLanguage The target language
+     * @param features The names of the scores
+     * @param table The phrase table, in the Moses text format
+     * @param mergeThreshold The number of delta entries at which to merge
+     * them into a new base
+     */
+    public static DeltaPhraseTable open(PhraseTableFactory factory, String foreignLanguage, String translationLanguage, String[] features, File table, int mergeThreshold) {
+        try {
+            return new DeltaPhraseTable(factory, foreignLanguage, translationLanguage, features, table, mergeThreshold);
+        } catch (IOException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    public String getForeignLanguage() {
+        return foreignLanguage;
+    }
+
+    public String getTranslationLanguage() {
+        return translationLanguage;
+    }
+
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            base.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Changes whenever the results of a lookup may have changed
+     */
+    public long version() {
+        return version;
+    }
+
+    /**
+     * The number of delta entries not yet merged into the base
+     */
+    public int deltaSize() {
+        lock.readLock().lock();
+        try {
+            return deltaLines.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The file the current base was built from
+     */
+    public File baseFile() {
+        lock.readLock().lock();
+        try {
+            return baseFile;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add a phrase pair to the delta log
+     *
+     * @param line The pair in the Moses text format
+     */
+    public void add(String line) throws IOException {
+        synchronized (deltaFile) {
+            final Writer out = new OutputStreamWriter(new FileOutputStream(deltaFile, true), "UTF-8");
+            try {
+                out.write(line);
+                out.write("\n");
+            } finally {
+                out.close();
+            }
+        }
+        refresh();
+    }
+
+    private static String key(String phrase) {
+        final StringBuilder sb = new StringBuilder();
+        for (String token : FairlyGoodTokenizer.split(phrase)) {
+            if (sb.length() > 0) {
+                sb.append(" ");
+            }
+            sb.append(token);
+        }
+        return sb.toString();
+    }
+
+    private PhraseTableEntry parse(String line) {
+        final String[] elems = line.split(" \\|\\|\\| ");
+        if (elems.length < 3) {
+            return null;
+        }
+        final String[] scores = elems[2].trim().split(" ");
+        final Feature[] fs = new Feature[scores.length];
+        for (int i = 0; i < scores.length; i++) {
+            fs[i] = new Feature(i < features.length ? features[i] : null, Math.log10(Double.parseDouble(scores[i])));
+        }
+        return new PhraseTableEntry(new Fidel.Label(key(elems[0]), foreignLanguage), new Fidel.Label(elems[1].trim(), translationLanguage), fs);
+    }
+
+    // Add a line to the in-memory delta, holding the write lock
+    private void index(String line) {
+        final PhraseTableEntry entry = parse(line);
+        if (entry == null) {
+            return;
+        }
+        final String source = entry.getForeign().asString();
+        List<PhraseTableEntry> entries = delta.get(source);
+        if (entries == null) {
+            entries = new ArrayList<PhraseTableEntry>(1);
+            delta.put(source, entries);
+        }
+        entries.add(entry);
+        maxDeltaLength = Math.max(maxDeltaLength, FairlyGoodTokenizer.split(source).length);
+    }
+
+    /**
+     * Read any complete lines added to the delta log since the last refresh
+     */
+    public void refresh() throws IOException {
+        lastRefresh = System.currentTimeMillis();
+        if (!deltaFile.exists() || deltaFile.length() <= readOffset) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(deltaFile, "r");
+            try {
+                raf.seek(readOffset);
+                final byte[] buf = new byte[(int) Math.min(raf.length() - readOffset, Integer.MAX_VALUE - 8)];
+                raf.readFully(buf);
+                final ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long offset = readOffset;
+                for (int i = 0; i < buf.length; i++) {
+                    if (buf[i] == '\n') {
+                        offset += line.size() + 1;
+                        final String l = line.toString("UTF-8");
+                        deltaLines.add(l);
+                        deltaEnds.add(offset);
+                        index(l);
+                        line.reset();
+                    } else if (buf[i] != '\r') {
+                        line.write(buf[i]);
+                    } else {
+                        offset++;
+                    }
+                }
+                // A partial last line is read again next time
+                readOffset = offset;
+            } finally {
+                raf.close();
+            }
+            version++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (deltaSize() >= mergeThreshold) {
+            mergeInBackground();
+        }
+    }
+
+    private void maybeRefresh() {
+        if (System.currentTimeMillis() - lastRefresh >= REFRESH_MILLIS) {
+            try {
+                refresh();
+            } catch (IOException x) {
+                x.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Start merging the delta into a new base on a background thread
+     *
+     * @return The thread or null if a merge is already running
+     */
+    public Thread mergeInBackground() {
+        if (merging.get()) {
+            return null;
+        }
+        final Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    merge();
+                } catch (IOException x) {
+                    System.err.println("Could not merge phrase table delta: " + x.getMessage());
+                }
+            }
+        }, "fidel-delta-merge");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Merge the delta into a new base. Lookups continue against the current
+     * base and delta until the new base is ready.
+     *
+     * @return false if a merge was already running
+     */
+    public boolean merge() throws IOException {
+        if (!merging.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            final List<String> lines;
+            final long offset;
+            final File oldFile;
+            final int gen;
+            lock.readLock().lock();
+            try {
+                lines = new ArrayList<String>(deltaLines);
+                offset = lines.isEmpty() ? mergedOffset : deltaEnds.get(lines.size() - 1);
+                oldFile = baseFile;
+                gen = generation + 1;
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (lines.isEmpty()) {
+                return true;
+            }
+            final long start = System.currentTimeMillis();
+            final String path = table.getPath().endsWith(".gz") ? table.getPath().substring(0, table.getPath().length() - 3) : table.getPath();
+            final File newFile = new File(path + ".g" + gen + ".gz");
+            final Writer out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(newFile), 1 << 16), "UTF-8"), 1 << 16);
+            try {
+                final LineReader in = LineReader.open(oldFile);
+                try {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        out.write(line);
+                        out.write("\n");
+                    }
+                } finally {
+                    in.close();
+                }
+                for (String line : lines) {
+                    out.write(line);
+                    out.write("\n");
+                }
+            } finally {
+                out.close();
+            }
+            final PhraseTable newBase = factory.getPhraseTable(foreignLanguage, translationLanguage, features, newFile);
+            final PhraseTable oldBase;
+            lock.writeLock().lock();
+            try {
+                oldBase = base;
+                base = newBase;
+                baseFile = newFile;
+                generation = gen;
+                mergedOffset = offset;
+                // Keep only the lines added during the merge
+                deltaLines.subList(0, lines.size()).clear();
+                deltaEnds.subList(0, lines.size()).clear();
+                delta.clear();
+                maxDeltaLength = 0;
+                for (String line : deltaLines) {
+                    index(line);
+                }
+                saveState();
+                version++;
+                oldBase.close();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            System.err.println(String.format("Merged %d delta entries into %s in %.1fs", lines.size(), newFile.getPath(), (System.currentTimeMillis() - start) / 1000.0));
+            return true;
+        } finally {
+            merging.set(false);
+        }
+    }
+
+    private void saveState() throws IOException {
+        final Properties state = new Properties();
+        state.setProperty("base", baseFile.getPath());
+        state.setProperty("generation", Integer.toString(generation));
+        state.setProperty("offset", Long.toString(mergedOffset));
+        final File tmp = new File(stateFile.getPath() + ".tmp");
+        final FileWriter writer = new FileWriter(tmp);
+        try {
+            state.store(writer, "Phrase table delta state");
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(stateFile)) {
+            stateFile.delete();
+            if (!tmp.renameTo(stateFile)) {
+                throw new IOException("Could not write " + stateFile.getPath());
+            }
+        }
+    }
+
+    private String mkString(List<String> terms, int i, int j) {
+        final StringBuilder sb = new StringBuilder();
+        for (int k = i; k < j; k++) {
+            if (k > i) {
+                sb.append(" ");
+            }
+            sb.append(terms.get(k));
+        }
+        return sb.toString();
+    }
+
+    public Iterable<PhraseTableEntry> lookup(List<String> terms) {
+        maybeRefresh();
+        lock.readLock().lock();
+        try {
+            final ArrayList<PhraseTableEntry> result = new ArrayList<PhraseTableEntry>();
+            for (PhraseTableEntry e : base.lookup(terms)) {
+                result.add(e);
+            }
+            for (int i = 0; i < terms.size(); i++) {
+                for (int j = i + 1; j <= terms.size() && j - i <= maxDeltaLength; j++) {
+                    final List<PhraseTableEntry> entries = delta.get(mkString(terms, i, j));
+                    if (entries != null) {
+                        result.addAll(entries);
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Object2ObjectMap<Phrase, Collection<PhraseTranslation>> lookup(List<String> terms, int[] src, Vocabulary trgVocabulary, String[] featureNames, int maxSize) {
+        maybeRefresh();
+        lock.readLock().lock();
+        try {
+            final Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>> result = new Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>>();
+            final HashMap<String, Phrase> spans = new HashMap<String, Phrase>();
+            // The spans whose lists were built by this lookup, so may be added to
+            final HashSet<Phrase> owned = new HashSet<Phrase>();
+            for (int i = 0; i < terms.size(); i++) {
+                for (int j = i + 1; j <= terms.size(); j++) {
+                    spans.put(mkString(terms, i, j), new Phrase(Arrays.copyOfRange(src, i, j)));
+                }
+            }
+            if (base instanceof IntegerPhraseTable) {
+                for (Object2ObjectMap.Entry<Phrase, Collection<PhraseTranslation>> e : ((IntegerPhraseTable) base).lookup(terms, src, trgVocabulary, featureNames, maxSize).object2ObjectEntrySet()) {
+                    result.put(e.getKey(), e.getValue());
+                }
+            } else {
+                for (PhraseTableEntry e : base.lookup(terms)) {
+                    final Phrase span = spans.get(e.getForeign().asString());
+                    if (span != null) {
+                        add(result, owned, span, e, trgVocabulary, featureNames);
+                    }
+                }
+            }
+            final HashSet<String> seen = new HashSet<String>();
+            for (int i = 0; i < terms.size(); i++) {
+                for (int j = i + 1; j <= terms.size() && j - i <= maxDeltaLength; j++) {
+                    final String source = mkString(terms, i, j);
+                    final List<PhraseTableEntry> entries = delta.get(source);
+                    // A phrase repeated in the sentence is only added once
+                    if (entries != null && seen.add(source)) {
+                        for (PhraseTableEntry e : entries) {
+                            add(result, owned, spans.get(source), e, trgVocabulary, featureNames);
+                        }
+                    }
+                }
+            }
+            if (maxSize > 0) {
+                for (Object2ObjectMap.Entry<Phrase, Collection<PhraseTranslation>> e : result.object2ObjectEntrySet()) {
+                    if (e.getValue().size() > maxSize) {
+                        final List<PhraseTranslation> best = new ArrayList<PhraseTranslation>(e.getValue());
+                        Collections.sort(best, BY_SCORE);
+                        e.setValue(new ArrayList<PhraseTranslation>(best.subList(0, maxSize)));
+                    }
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static double sum(double[] scores) {
+        double s = 0.0;
+        for (double d : scores) {
+            s += d;
+        }
+        return s;
+    }
+
+    // Best first
+    private static final Comparator<PhraseTranslation> BY_SCORE = new Comparator<PhraseTranslation>() {
+        public int compare(PhraseTranslation t1, PhraseTranslation t2) {
+            return Double.compare(sum(t2.scores), sum(t1.scores));
+        }
+    };
+
+    private void add(Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>> result, HashSet<Phrase> owned, Phrase span, PhraseTableEntry e, Vocabulary trgVocabulary, String[] featureNames) {
+        final String[] tokens = FairlyGoodTokenizer.split(e.getTranslation().asString());
+        final int[] trg = new int[tokens.length];
+        for (int k = 0; k < tokens.length; k++) {
+            trg[k] = trgVocabulary.add(tokens[k]);
+        }
+        final double[] scores = new double[featureNames.length];
+        for (int f = 0; f < featureNames.length; f++) {
+            for (Feature feat : e.getFeatures()) {
+                if (featureNames[f].equals(feat.name)) {
+                    scores[f] += feat.score;
+                }
+            }
+        }
+        if (owned.add(span)) {
+            // Copied once, as the base may return its own collections
+            final Collection<PhraseTranslation> existing = result.get(span);
+            result.put(span, existing == null ? new ArrayList<PhraseTranslation>() : new ArrayList<PhraseTranslation>(existing));
+        }
+        result.get(span).add(new PhraseTranslation(trg, scores));
+    }
+}
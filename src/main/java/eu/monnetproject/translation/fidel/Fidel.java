@@ -28,11 +28,6 @@ package eu.monnetproject.translation.fidel;
 
 import it.unimi.dsi.fastutil.doubles.DoubleRBTreeSet;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMaps;
-import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
-import it.unimi.dsi.fastutil.objects.Object2IntMap;
-import it.unimi.dsi.fastutil.objects.Object2IntMaps;
-import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import java.io.File;
@@ -57,11 +52,17 @@ import org.apache.commons.cli.ParseException;
 public class Fidel {
 
     private final IntegerLanguageModel languageModel;
-    private final Object2IntMap<String> srcWordMap, trgWordMap;
-    private final Int2ObjectMap<String> srcInvMap, invWordMap;
+    private final Vocabulary srcVocabulary, trgVocabulary;
     private final int distortionLimit = Integer.parseInt(System.getProperty("distortionlimit", "5"));
     private final Properties weights;
-    private static final String[] DEFAULT_FEATURE_NAMES = {
+    private final PhraseTranslationCache cache;
+    // The lookups the cache holds the results of
+    private PhraseTable cachedTable;
+    private String[] cachedFeatureNames;
+    private long cachedVersion;
+    private FidelDecoder.Search search = FidelDecoder.Search.BEST_FIRST;
+    private int popLimit = FidelDecoder.DEFAULT_POP_LIMIT;
+    static final String[] DEFAULT_FEATURE_NAMES = {
         "phi(t|f)",
         "lex(t|f)",
         "phi(f|t)",
@@ -70,12 +71,39 @@ public class Fidel {
     };
 
     public Fidel(IntegerLanguageModel languageModel, Properties weights) {
+        this(languageModel, weights, 0);
+    }
+
+    /**
+     * Create a decoder that caches the translations of source phrases across
+     * sentences. The cache holds the words by their ids in this decoder's
+     * vocabularies, so it is not shared with any other decoder.
+     *
+     * @param languageModel The language model
+     * @param weights The weights
+     * @param cacheBytes The (approximate) maximum memory the cache may use,
+     * or 0 for no cache
+     */
+    public Fidel(IntegerLanguageModel languageModel, Properties weights, long cacheBytes) {
         this.languageModel = languageModel;
-        this.srcWordMap = Object2IntMaps.synchronize(new Object2IntOpenHashMap<String>());
-        this.srcInvMap = Int2ObjectMaps.synchronize(new Int2ObjectOpenHashMap<String>());
-        this.trgWordMap = languageModel.wordMap();
-        this.invWordMap = languageModel.invWordMap();
+        this.srcVocabulary = new Vocabulary();
+        this.trgVocabulary = Vocabulary.of(languageModel);
         this.weights = weights;
+        this.cache = cacheBytes > 0 ? new PhraseTranslationCache(cacheBytes) : null;
+    }
+
+    /**
+     * Set the order in which the decoder extends partial translations
+     */
+    public void setSearch(FidelDecoder.Search search) {
+        this.search = search;
+    }
+
+    /**
+     * Set the number of extensions scored for each stack by cube pruning
+     */
+    public void setPopLimit(int popLimit) {
+        this.popLimit = popLimit;
     }
 
     public List<Translation> decode(List<String> phrase, PhraseTable phraseTable, String[] featureNames, int nBest) {
@@ -87,12 +115,17 @@ public class Fidel {
     }
 
     private List<Translation> decode(List<String> phrase, PhraseTable phraseTable, String[] featureNames, int nBest, int beamSize, boolean useLazy) {
-        FidelDecoder.wordMap = invWordMap;
-        FidelDecoder.srcWordMap = srcWordMap;
+        FidelDecoder.wordMap = trgVocabulary.asInverseMap();
+        FidelDecoder.srcWordMap = srcVocabulary.asMap();
         // Convert the phrase to an integer array
-        int[] src = convertPhrase(phrase, srcWordMap, srcInvMap);
+        int[] src = convertPhrase(phrase, srcVocabulary);
         // Collect translation candidates
-        Object2ObjectMap<Phrase, Collection<PhraseTranslation>> pt = convertPT(phraseTable.lookup(phrase), featureNames, beamSize + 10);
+        final Object2ObjectMap<Phrase, Collection<PhraseTranslation>> pt;
+        if (cache != null) {
+            pt = cache.lookup(src, beamSize + 10, cacheSource(phrase, src, phraseTable, featureNames, beamSize + 10));
+        } else {
+            pt = lookup(phrase, src, phraseTable, featureNames, beamSize + 10);
+        }
         // Extract paramaters
         int lmN = languageModel.order();
         double[] wts = new double[featureNames.length + FidelDecoder.PT];
@@ -101,11 +134,10 @@ public class Fidel {
         wts[FidelDecoder.DIST] = weights.getProperty("LinearDistortion") != null ? Double.parseDouble(weights.getProperty("LinearDistortion")) : 0.0;
         wts[FidelDecoder.LM] = weights.getProperty("LM") != null ? Double.parseDouble(weights.getProperty("LM")) : 0.0;
         for (String feat : featureNames) {
-            wts[i++] = weights.getProperty(feat) != null ? Double.parseDouble(weights.getProperty(feat))
-                    : (weights.getProperty("TM:" + feat) != null ? Double.parseDouble(weights.getProperty("TM:" + feat)) : 0);
+            wts[i++] = featureWeight(weights, feat);
         }
         // Do decoding
-        final Solution[] translations = FidelDecoder.decode(src, pt, languageModel, lmN, wts, distortionLimit, nBest, beamSize, useLazy);
+        final Solution[] translations = FidelDecoder.decode(src, pt, languageModel, lmN, wts, distortionLimit, nBest, beamSize, useLazy, search, popLimit);
         
         // Convert translations to strings
         final StringBuilder sb = new StringBuilder();
@@ -118,34 +150,55 @@ public class Fidel {
         return convertTranslations(translations, new Label(sb.toString(), phraseTable.getForeignLanguage()), phraseTable.getTranslationLanguage(), featureNames);
     }
 
-    private int[] convertPhrase(List<String> phrase, Object2IntMap<String> wordMap, Int2ObjectMap<String> invMap) {
+    private Object2ObjectMap<Phrase, Collection<PhraseTranslation>> lookup(List<String> phrase, int[] src, PhraseTable phraseTable, String[] featureNames, int maxSize) {
+        if (phraseTable instanceof IntegerPhraseTable) {
+            return ((IntegerPhraseTable) phraseTable).lookup(phrase, src, trgVocabulary, featureNames, maxSize);
+        } else {
+            return convertPT(phraseTable.lookup(phrase), featureNames, maxSize);
+        }
+    }
+
+    private PhraseTranslationCache.Source cacheSource(final List<String> phrase, final int[] src, final PhraseTable phraseTable, final String[] featureNames, final int maxSize) {
+        synchronized (cache) {
+            // A delta table's contents change under the same instance
+            final long version = phraseTable instanceof DeltaPhraseTable ? ((DeltaPhraseTable) phraseTable).version() : 0;
+            if (phraseTable != cachedTable || !Arrays.equals(featureNames, cachedFeatureNames) || version != cachedVersion) {
+                cache.clear();
+                cachedTable = phraseTable;
+                cachedFeatureNames = featureNames.clone();
+                cachedVersion = version;
+            }
+        }
+        return new PhraseTranslationCache.Source() {
+            public Object2ObjectMap<Phrase, Collection<PhraseTranslation>> lookup(int from, int to) {
+                return Fidel.this.lookup(phrase.subList(from, to), Arrays.copyOfRange(src, from, to), phraseTable, featureNames, maxSize);
+            }
+        };
+    }
+
+    /**
+     * The weight of a phrase table feature, given either by its name or
+     * prefixed with "TM:"
+     */
+    static double featureWeight(Properties weights, String feat) {
+        return weights.getProperty(feat) != null ? Double.parseDouble(weights.getProperty(feat))
+                : (weights.getProperty("TM:" + feat) != null ? Double.parseDouble(weights.getProperty("TM:" + feat)) : 0);
+    }
+
+    private int[] convertPhrase(List<String> phrase, Vocabulary vocabulary) {
         final int[] p = new int[phrase.size()];
         int i = 0;
-        int W = wordMap.size();
         for (String s : phrase) {
-            if (wordMap.containsKey(s)) {
-                p[i++] = wordMap.getInt(s);
-            } else {
-                p[i++] = ++W;
-                wordMap.put(s, W);
-                invMap.put(W, s);
-            }
+            p[i++] = vocabulary.add(s);
         }
         return p;
     }
 
-    private Phrase convertPhrase(String[] phrase, Object2IntMap<String> dict, Int2ObjectMap<String> invMap) {
+    private Phrase convertPhrase(String[] phrase, Vocabulary vocabulary) {
         final int[] p = new int[phrase.length];
         int i = 0;
-        int W = dict.size();
         for (String s : phrase) {
-            if (dict.containsKey(s)) {
-                p[i++] = dict.getInt(s);
-            } else {
-                p[i++] = ++W;
-                dict.put(s, W);
-                invMap.put(W, s);
-            }
+            p[i++] = vocabulary.add(s);
         }
         return new Phrase(p);
     }
@@ -157,7 +210,7 @@ public class Fidel {
             final Phrase src;// = convertPhrase(FairlyGoodTokenizer.split(pte.getForeign().asString()), srcWordMap);
             final Phrase trg;// = convertPhrase(FairlyGoodTokenizer.split(pte.getTranslation().asString()), trgDict);
 
-            src = convertPhrase(FairlyGoodTokenizer.split(pte.getForeign().asString()), srcWordMap, srcInvMap);
+            src = convertPhrase(FairlyGoodTokenizer.split(pte.getForeign().asString()), srcVocabulary);
             if (maxSize > 0) {
                 if (!approxScores.containsKey(src)) {
                     approxScores.put(src, new DoubleRBTreeSet());
@@ -174,7 +227,7 @@ public class Fidel {
                     as.add(pte.getApproxScore());
                 }
             }
-            trg = convertPhrase(FairlyGoodTokenizer.split(pte.getTranslation().asString()), trgWordMap, invWordMap);
+            trg = convertPhrase(FairlyGoodTokenizer.split(pte.getTranslation().asString()), trgVocabulary);
             final double[] wts = convertWeights(pte.getFeatures(), featureNames);
             final PhraseTranslation translation = new PhraseTranslation(trg.p, wts);
             if (!pt.containsKey(src)) {
@@ -198,7 +251,7 @@ public class Fidel {
                 features[i] = new Feature(featName.startsWith("TM:") ? featName : ("TM:" + featName), solnFeatures[i]);
                 i++;
             }
-            converted.add(new Translation(soln, srcLabel, trgLang, invWordMap, srcInvMap, features));
+            converted.add(new Translation(soln, srcLabel, trgLang, trgVocabulary, srcVocabulary, features));
         }
         return converted;
     }
@@ -222,12 +275,20 @@ public class Fidel {
         final Options opts = new Options();
         opts.addOption("p", true, "The phrase table");
         opts.addOption("l", true, "The language model");
+        opts.addOption("L", true, "The language model backend: sql (default), memory, binary, randomised or shards (-l lists the shard servers)");
+        opts.addOption("P", true, "The phrase table backend: sql (default), binary or suffix (-p is then the base name of an aligned corpus)");
+        opts.addOption("D", false, "Add the phrase pairs in <phrase table>.delta to the phrase table, merging them into it in the background");
+        opts.addOption("k", true, "Prune the phrase table to the best k translations of each source phrase before building it");
         opts.addOption("n", true, "Output n-best translations");
         opts.addOption("w", true, "The weights file");
         opts.addOption("f", true, "The foreign (source) language");
         opts.addOption("t", true, "The translation (target) language");
         opts.addOption("b", true, "The beam size (default=50)");
+        opts.addOption("c", true, "Cache language model queries in this many megabytes");
+        opts.addOption("C", true, "Cache phrase table lookups across sentences in this many megabytes");
         opts.addOption("z", false, "Use lazy distortion");
+        opts.addOption("d", true, "The search: best (default) extends the best partial translation first, stack keeps a beam for each number of source words translated, cube fills these beams by cube pruning, coverage translates the source in any order");
+        opts.addOption("m", true, "The number of extensions scored for each beam by cube pruning (default=" + FidelDecoder.DEFAULT_POP_LIMIT + ")");
         opts.addOption("v", false, "Display debugging information");
         opts.addOption("s", false, "Output scores");
         opts.addOption("?", false, "Display this message");
@@ -276,7 +337,40 @@ public class Fidel {
         } else {
             beamSize = 50;
         }
+        final int cacheSize;
+        try {
+            cacheSize = Integer.parseInt(cli.getOptionValue("c", "0"));
+        } catch (NumberFormatException x) {
+            System.err.println("Cache size must be an integer");
+            help.printHelp("fidel [opts]", fidelHeader, opts, exampleUsage);
+            return;
+        }
+        final int ptCacheSize;
+        try {
+            ptCacheSize = Integer.parseInt(cli.getOptionValue("C", "0"));
+        } catch (NumberFormatException x) {
+            System.err.println("Cache size must be an integer");
+            help.printHelp("fidel [opts]", fidelHeader, opts, exampleUsage);
+            return;
+        }
         final boolean useLazy = cli.hasOption("z");
+        final FidelDecoder.Search search = search(cli.getOptionValue("d", "best"));
+        if (search == null) {
+            System.err.println(String.format("Unknown search %s", cli.getOptionValue("d")));
+            help.printHelp("fidel [opts]", fidelHeader, opts, exampleUsage);
+            return;
+        }
+        if (useLazy && search != FidelDecoder.Search.BEST_FIRST) {
+            System.err.println("Lazy distortion is only used by best-first search");
+        }
+        final int popLimit;
+        try {
+            popLimit = Integer.parseInt(cli.getOptionValue("m", Integer.toString(FidelDecoder.DEFAULT_POP_LIMIT)));
+        } catch (NumberFormatException x) {
+            System.err.println("The pop limit must be an integer");
+            help.printHelp("fidel [opts]", fidelHeader, opts, exampleUsage);
+            return;
+        }
         final String foreignLanguage;
         if (cli.hasOption("f")) {
             foreignLanguage = cli.getOptionValue("f");
@@ -306,10 +400,38 @@ public class Fidel {
             help.printHelp("fidel [opts]", fidelHeader, opts, exampleUsage);
             return;
         }
-        final File phraseTableFile = new File(cli.getOptionValue("p"));
+        final LanguageModelFactory languageModelFactory = languageModelFactory(cli.getOptionValue("L", "sql"));
+        if (languageModelFactory == null) {
+            System.err.println(String.format("Unknown language model backend %s", cli.getOptionValue("L")));
+            help.printHelp("fidel [opts]", fidelHeader, opts, exampleUsage);
+            return;
+        }
+        final PhraseTableFactory phraseTableFactory = phraseTableFactory(cli.getOptionValue("P", "sql"));
+        if (phraseTableFactory == null) {
+            System.err.println(String.format("Unknown phrase table backend %s", cli.getOptionValue("P")));
+            help.printHelp("fidel [opts]", fidelHeader, opts, exampleUsage);
+            return;
+        }
+        final int tableLimit;
+        try {
+            tableLimit = Integer.parseInt(cli.getOptionValue("k", "0"));
+        } catch (NumberFormatException x) {
+            System.err.println("k must be an integer");
+            help.printHelp("fidel [opts]", fidelHeader, opts, exampleUsage);
+            return;
+        }
+        if (cli.hasOption("D") && phraseTableFactory instanceof SuffixArrayPhraseTable.Factory) {
+            System.err.println("A delta cannot be added to a suffix array phrase table");
+            help.printHelp("fidel [opts]", fidelHeader, opts, exampleUsage);
+            return;
+        }
+        File phraseTableFile = new File(cli.getOptionValue("p"));
         final File languageModelFile = new File(cli.getOptionValue("l"));
-        if(!phraseTableFile.exists()) {
-            System.err.println(String.format("%s does not exist", phraseTableFile.getPath()));
+        // A corpus is named by the base of its files
+        final File phraseTableCheck = phraseTableFactory instanceof SuffixArrayPhraseTable.Factory && !phraseTableFile.getPath().endsWith(".sa")
+                ? new File(phraseTableFile.getPath() + "." + foreignLanguage) : phraseTableFile;
+        if(!phraseTableCheck.exists()) {
+            System.err.println(String.format("%s does not exist", phraseTableCheck.getPath()));
             help.printHelp("fidel [opts]", fidelHeader, opts, exampleUsage);
             return;
         }
@@ -319,10 +441,34 @@ public class Fidel {
             return;
         }
         
-        final IntegerLanguageModel languageModel = new SQLLanguageModel.Factory().getModel(languageModelFile);
-        final PhraseTable phraseTable = new SQLPhraseTable.Factory().getPhraseTable(foreignLanguage, targetLanguage,DEFAULT_FEATURE_NAMES , phraseTableFile);
+        if (tableLimit > 0 && !(phraseTableFactory instanceof SuffixArrayPhraseTable.Factory)) {
+            if (!PhraseTablePruner.isMosesText(phraseTableFile)) {
+                System.err.println(String.format("%s is a compiled phrase table or database, so cannot be pruned; -k needs a phrase table in the Moses text format", phraseTableFile.getPath()));
+                help.printHelp("fidel [opts]", fidelHeader, opts, exampleUsage);
+                return;
+            }
+            final File prunedFile = PhraseTablePruner.prunedFile(phraseTableFile, tableLimit);
+            if (prunedFile.exists()) {
+                System.err.println(String.format("Reusing pruned phrase table %s. Delete this file if out of date.", prunedFile.getPath()));
+            } else {
+                System.err.println("Pruning phrase table");
+                new PhraseTablePruner(weights, DEFAULT_FEATURE_NAMES, tableLimit).prune(phraseTableFile, prunedFile);
+            }
+            phraseTableFile = prunedFile;
+        }
+        final IntegerLanguageModel languageModel;
+        if (cacheSize > 0) {
+            languageModel = new CachedLanguageModel(languageModelFactory.getModel(languageModelFile), cacheSize * 1024l * 1024l);
+        } else {
+            languageModel = languageModelFactory.getModel(languageModelFile);
+        }
+        final PhraseTable phraseTable = cli.hasOption("D")
+                ? DeltaPhraseTable.open(phraseTableFactory, foreignLanguage, targetLanguage, DEFAULT_FEATURE_NAMES, phraseTableFile, Integer.parseInt(System.getProperty("fidel.pt.delta.merge", "100000")))
+                : phraseTableFactory.getPhraseTable(foreignLanguage, targetLanguage, DEFAULT_FEATURE_NAMES, phraseTableFile);
         try {
-            final Fidel fidel = new Fidel(languageModel, weights);
+            final Fidel fidel = new Fidel(languageModel, weights, ptCacheSize * 1024l * 1024l);
+            fidel.setSearch(search);
+            fidel.setPopLimit(popLimit);
             final Scanner in = new Scanner(System.in);
             System.err.println("Translation system initialized");
             while(in.hasNextLine()) {
@@ -336,6 +482,9 @@ public class Fidel {
                     }
                 }
             }
+            if (fidel.cache != null && cli.hasOption("v")) {
+                System.err.println(fidel.cache);
+            }
         } finally {
             languageModel.close();
             phraseTable.close();
@@ -343,6 +492,48 @@ public class Fidel {
 
     }
 
+    static FidelDecoder.Search search(String name) {
+        if (name.equals("best")) {
+            return FidelDecoder.Search.BEST_FIRST;
+        } else if (name.equals("stack")) {
+            return FidelDecoder.Search.STACK;
+        } else if (name.equals("cube")) {
+            return FidelDecoder.Search.CUBE;
+        } else if (name.equals("coverage")) {
+            return FidelDecoder.Search.COVERAGE;
+        } else {
+            return null;
+        }
+    }
+
+    static LanguageModelFactory languageModelFactory(String backend) {
+        if (backend.equals("sql")) {
+            return new SQLLanguageModel.Factory();
+        } else if (backend.equals("memory")) {
+            return new MemoryLanguageModel.Factory();
+        } else if (backend.equals("binary")) {
+            return new BinaryLanguageModel.Factory();
+        } else if (backend.equals("randomised")) {
+            return new RandomisedLanguageModel.Factory();
+        } else if (backend.equals("shards")) {
+            return new ShardedLanguageModel.Factory();
+        } else {
+            return null;
+        }
+    }
+
+    static PhraseTableFactory phraseTableFactory(String backend) {
+        if (backend.equals("sql")) {
+            return new SQLPhraseTable.Factory();
+        } else if (backend.equals("binary")) {
+            return new BinaryPhraseTable.Factory();
+        } else if (backend.equals("suffix")) {
+            return new SuffixArrayPhraseTable.Factory();
+        } else {
+            return null;
+        }
+    }
+
     public static class Translation {
 
         final Solution solution;
@@ -368,6 +559,10 @@ public class Fidel {
             this.trgLabel = new Label(sb.toString(), trgLang);
         }
 
+        public Translation(Solution solution, Label srcLabel, String trgLang, Vocabulary trgVocabulary, Vocabulary srcVocabulary, Feature[] features) {
+            this(solution, srcLabel, trgLang, trgVocabulary.asInverseMap(), srcVocabulary.asInverseMap(), features);
+        }
+
         public Label getSourceLabel() {
             return srcLabel;
         }
@@ -29,6 +29,7 @@ package eu.monnetproject.translation.fidel;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import it.unimi.dsi.fastutil.objects.Object2IntMap;
 import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Random;
@@ -72,7 +73,9 @@ public class FidelDecoder {
      * @param beamSize The size of beam to use (20 for quick, 50 for slow)
      * @param useLazy Evaluate distortion lazily (much quicker, with slightly
      * worse performance)
-     * @return
+     * @return The best solutions. Solutions are recombined with any better
+     * solution that would be extended identically, and the n-best list
+     * includes the translations obtained by completing them in the same way
      */
     public static Solution[] decode(int[] src,
             Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable,
@@ -83,188 +86,462 @@ public class FidelDecoder {
             int nBest,
             int beamSize,
             boolean useLazy) {
-        final double[] scorePartial = calcPartialScore(src, phraseTable, weights, languageModel, lmN);
+        return decode(src, phraseTable, languageModel, lmN, weights, distortionLimit, nBest, beamSize, useLazy, Search.BEST_FIRST);
+    }
+
+    /**
+     * The order in which solutions are extended
+     */
+    public static enum Search {
+
+        /**
+         * Always extend the best solution in a single beam, until the best is
+         * sufficiently worse than the solutions found
+         */
+        BEST_FIRST,
+        /**
+         * Keep a beam (stack) for each number of source words covered and
+         * extend every solution in each in turn, so the work done is linear
+         * in the length of the sentence. Distortion is never lazy
+         */
+        STACK,
+        /**
+         * Fill each stack by cube pruning, scoring with the language model only
+         * the most promising extensions, up to the pop limit
+         */
+        CUBE,
+        /**
+         * Translate the source in any order, by {@link CoverageDecoder}, with
+         * a beam for each number of source words covered
+         */
+        COVERAGE
+    }
+
+    /**
+     * The default number of extensions scored for each stack by cube pruning
+     */
+    public static final int DEFAULT_POP_LIMIT = 1000;
+
+    /**
+     *
+     * @param src The source phrase
+     * @param phraseTable The phrase table. Scores should already be logarithmic
+     * @param languageModel The language model. Scores should already be
+     * logarithmic
+     * @param weights Of the form { UNK, DIST, LM, PT1, ... PTN }
+     * @param distortionLimit The maximum distortion to consider
+     * @param nBest The nBest results to return
+     * @param beamSize The size of beam (of each stack) to use
+     * @param useLazy Evaluate distortion lazily (in best-first search only)
+     * @param search The order in which to extend solutions
+     * @return The best solutions
+     */
+    public static Solution[] decode(int[] src,
+            Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable,
+            IntegerLanguageModel languageModel,
+            int lmN,
+            double[] weights,
+            int distortionLimit,
+            int nBest,
+            int beamSize,
+            boolean useLazy,
+            Search search) {
+        return decode(src, phraseTable, languageModel, lmN, weights, distortionLimit, nBest, beamSize, useLazy, search, DEFAULT_POP_LIMIT);
+    }
+
+    /**
+     *
+     * @param src The source phrase
+     * @param phraseTable The phrase table. Scores should already be logarithmic
+     * @param languageModel The language model. Scores should already be
+     * logarithmic
+     * @param weights Of the form { UNK, DIST, LM, PT1, ... PTN }
+     * @param distortionLimit The maximum distortion to consider
+     * @param nBest The nBest results to return
+     * @param beamSize The size of beam (of each stack) to use
+     * @param useLazy Evaluate distortion lazily (in best-first search only)
+     * @param search The order in which to extend solutions
+     * @param popLimit The most extensions to score for each stack, in cube
+     * pruning
+     * @return The best solutions
+     */
+    public static Solution[] decode(int[] src,
+            Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable,
+            IntegerLanguageModel languageModel,
+            int lmN,
+            double[] weights,
+            int distortionLimit,
+            int nBest,
+            int beamSize,
+            boolean useLazy,
+            Search search,
+            int popLimit) {
+        if (search == Search.COVERAGE) {
+            return CoverageDecoder.decode(src, phraseTable, languageModel, lmN, weights, distortionLimit, nBest, beamSize);
+        }
+        final FutureCostTable futureCosts = new FutureCostTable(src, phraseTable, weights, languageModel, lmN);
+        final DecoderWorkspace workspace = DecoderWorkspace.acquire();
+        try {
+            return decode(src, phraseTable, languageModel, lmN, weights, distortionLimit, nBest, beamSize, useLazy, search, popLimit, futureCosts, workspace);
+        } finally {
+            workspace.release();
+        }
+    }
 
-        final Beam beam = new Beam(beamSize);
-        final Beam solns = new Beam(nBest);
+    private static Solution[] decode(int[] src,
+            Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable,
+            IntegerLanguageModel languageModel, int lmN, double[] weights, int distortionLimit,
+            int nBest, int beamSize, boolean useLazy, Search search, int popLimit,
+            FutureCostTable futureCosts, DecoderWorkspace workspace) {
+        final HypothesisArena arena = workspace.arena();
+        final Beam solns = workspace.solutions(nBest);
+        // The best solution of each signature in the beam or already extended
+        final Object2ObjectOpenHashMap<SolutionImpl.Signature, SolutionImpl> recombination = workspace.recombination();
+        // stacks[k] holds the solutions covering the first k source words. In
+        // best-first search these are all the same beam
+        final Beam[] stacks = workspace.stacks(src.length + 1, beamSize, search == Search.BEST_FIRST);
         // Add null solution
-        beam.add(new SolutionImpl(0, new int[0], new int[0], sum(scorePartial), sum(scorePartial), new double[weights.length]));
+        stacks[0].add(new SolutionImpl(0, new int[0], new int[0], futureCosts.cost(0, src.length), futureCosts.cost(0, src.length), new double[weights.length]));
 
         // Potential code bug here if the maximum translation length is greater
         // than 32 times large than the source
-        final int[] buf = new int[src.length * 32];
-        final BufferCache bufferCache = new BufferCache(beamSize + 5, src.length * 32);
-
-        int iterationNo = 0;
-        int solnFound = 0;
-
-        while (!beam.isEmpty() && (beam.bestScore() * SEARCH_RATIO > solns.leastScore() || solns.size() < nBest)) {
-            // Take the best solution
-            final Solution solnTmp = beam.poll();
-            final SolutionImpl soln;
-            if (solnTmp instanceof SolutionImpl) {
-                soln = (SolutionImpl) solnTmp;
-            } else if (solnTmp instanceof LazyDistortedSolution) {
-                soln = ((LazyDistortedSolution) solnTmp).evaluate(weights, languageModel, lmN);
-            } else {
-                throw new RuntimeException("Unreachable");
-            }
-            iterationNo++;
-            if (verbose) {
-                System.err.print("Selecting "); 
-                soln.printSoln(wordMap);
+        final int[] buf = workspace.buffer(src.length * 32);
+        final double[] tptScore = workspace.scores(weights.length + 1);
+
+        if (search == Search.CUBE) {
+            CubePruning.decode(src, phraseTable, languageModel, lmN, weights, distortionLimit, futureCosts, stacks, solns, recombination, buf, tptScore, arena, popLimit);
+        } else if (search == Search.STACK) {
+            for (Beam stack : stacks) {
+                while (!stack.isEmpty()) {
+                    final SolutionImpl soln = select(stack, weights, languageModel, lmN, distortionLimit, recombination);
+                    if (soln == null) {
+                        continue;
+                    }
+                    if (soln.upto == src.length) {
+                        solns.add(soln);
+                    } else {
+                        expand(soln, src, phraseTable, languageModel, lmN, weights, distortionLimit, false, futureCosts, stacks, solns, recombination, buf, tptScore, arena);
+                    }
+                }
             }
-            // If it is a complete solution we add it to the solution beam
-            if (soln.upto == src.length) {
-                solns.add(soln);
-                if (soln == solns.first()) {
-                    solnFound = iterationNo;
+        } else {
+            final Beam beam = stacks[0];
+            int iterationNo = 0;
+            int solnFound = 0;
+
+            while (!beam.isEmpty() && (beam.bestScore() * SEARCH_RATIO > solns.leastScore() || solns.size() < nBest)) {
+                // Take the best solution
+                final SolutionImpl soln = select(beam, weights, languageModel, lmN, distortionLimit, recombination);
+                if (soln == null) {
+                    continue;
                 }
-                if(verbose) {
-                    System.err.println(String.format("Active/Solution ratio: %.6f/%.6f", beam.bestScore(), solns.leastScore()));
+                iterationNo++;
+                // If it is a complete solution we add it to the solution beam
+                if (soln.upto == src.length) {
+                    solns.add(soln);
+                    if (soln == solns.first()) {
+                        solnFound = iterationNo;
+                    }
+                    if(verbose) {
+                        System.err.println(String.format("Active/Solution ratio: %.6f/%.6f", beam.bestScore(), solns.leastScore()));
+                    }
+                    continue;
                 }
-                continue;
+                expand(soln, src, phraseTable, languageModel, lmN, weights, distortionLimit, useLazy, futureCosts, stacks, solns, recombination, buf, tptScore, arena);
             }
-            // i is the end of the curent solution (in the source)
-            final int i = soln.upto;
-            // pos is the end of the current solution (in the target)
-            final int pos = soln.soln.length;
-
-            // init buf
-            System.arraycopy(soln.soln, 0, buf, 0, soln.soln.length);
-
-            // j indicates the end of the phrase (in src)
-            PHRASE_END:
-            for (int j = i + 1; j <= src.length; j++) {
-                final double futureCost = sum(scorePartial, j);
-                if (Double.isNaN(futureCost) || Double.isInfinite(futureCost)) {
-                    throw new RuntimeException("Infinite future cost");
+        }
+        if (nBest > 1) {
+            addRecombined(solns, lmN, distortionLimit);
+        }
+        final Solution[] result = solns.toArray();
+        // Build the solutions while their records are still in the arena
+        for (Solution soln : result) {
+            soln.soln();
+        }
+        return result;
+    }
+
+    /**
+     * Take the best solution from a beam, evaluating it if lazy
+     *
+     * @return The solution or null if it need not be extended, as it was
+     * recombined with a solution already extended
+     */
+    static SolutionImpl select(Beam beam, double[] weights, IntegerLanguageModel languageModel, int lmN, int distortionLimit,
+            Object2ObjectMap<SolutionImpl.Signature, SolutionImpl> recombination) {
+        final Solution solnTmp = beam.poll();
+        final SolutionImpl soln;
+        if (solnTmp instanceof SolutionImpl) {
+            soln = (SolutionImpl) solnTmp;
+        } else if (solnTmp instanceof LazyDistortedSolution) {
+            soln = ((LazyDistortedSolution) solnTmp).evaluate(weights, languageModel, lmN);
+        } else {
+            throw new RuntimeException("Unreachable");
+        }
+        if (soln == null) {
+            return null;
+        }
+        final SolutionImpl.Signature signature = soln.signature(lmN, distortionLimit);
+        final SolutionImpl previous = recombination.get(signature);
+        if (previous != null && previous != soln && previous.expanded && previous.score >= soln.score) {
+            // Extensions of this solution could never beat those of previous
+            previous.recombine(soln);
+            return null;
+        }
+        soln.expanded = true;
+        recombination.put(signature, soln);
+        if (verbose) {
+            System.err.print("Selecting ");
+            soln.printSoln(wordMap);
+        }
+        return soln;
+    }
+
+    /**
+     * Add every extension of a solution by a translation of the source words
+     * following it to the stack for the source words it then covers
+     */
+    private static void expand(SolutionImpl soln, int[] src,
+            Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable,
+            IntegerLanguageModel languageModel, int lmN, double[] weights, int distortionLimit, boolean useLazy,
+            FutureCostTable futureCosts, Beam[] stacks, Beam solns,
+            Object2ObjectMap<SolutionImpl.Signature, SolutionImpl> recombination,
+            int[] buf, double[] tptScore, HypothesisArena arena) {
+        // i is the end of the curent solution (in the source)
+        final int i = soln.upto;
+        // pos is the end of the current solution (in the target), of which
+        // only the tail is in buf
+        final int pos = soln.tailSize;
+        final int kept = SolutionImpl.keptLength(lmN, distortionLimit);
+
+        // init buf
+        soln.copyTail(buf);
+        final int distortions = distortions(soln, pos, distortionLimit);
+        if (!useLazy && languageModel instanceof PrefetchingLanguageModel) {
+            prefetchExpansion(soln, src, phraseTable, (PrefetchingLanguageModel) languageModel, lmN, distortions, buf);
+        }
+
+        // j indicates the end of the phrase (in src)
+        PHRASE_END:
+        for (int j = i + 1; j <= src.length; j++) {
+            final Beam beam = stacks[j];
+            final double futureCost = futureCosts.cost(j, src.length);
+            if (Double.isNaN(futureCost) || Double.isInfinite(futureCost)) {
+                throw new RuntimeException("Infinite future cost");
+            }
+            final Collection<PhraseTranslation> candidates = phraseTable.get(new Phrase(Arrays.copyOfRange(src, i, j)));
+            // No candidate
+            if (candidates == null || candidates.isEmpty()) {
+                if (j == i + 1) {
+                    // d is distance back from beginning we wish to insert the candidate at
+                    for (int d = 0; d < distortions; d++) {
+                        // Get the score of the solution
+                        final double score = weights[UNK]
+                                + soln.score
+                                + futureCost
+                                - soln.futureCost
+                                + deltaDist(null, 1, d, weights);
+
+                        if (Double.isNaN(score)) {
+                            throw new RuntimeException();
+                        }
+
+                        rightShiftBuffer(buf, 1, pos - d);
+                        buf[pos - d] = -src[i];
+
+
+                        if (!Double.isInfinite(score)
+                                && solns.accepts(score) && beam.accepts(score)) {
+                            final SolutionImpl newSoln = soln.extend(arena, j, 1, d, null, 0.0, 0.0, buf, score, futureCost, kept);
+                            if (addSolution(beam, recombination, newSoln, lmN, distortionLimit) && verbose) {
+                                System.err.print("Adding ");
+                                newSoln.printSoln(wordMap);
+                            }
+                        }
+                        leftShiftBuffer(buf, 1, pos - d);
+                    }
+                } else {
+                    // We don't search for longer phrases
+                    break PHRASE_END;
                 }
-                final Collection<PhraseTranslation> candidates = phraseTable.get(new Phrase(Arrays.copyOfRange(src, i, j)));
-                // No candidate
-                if (candidates == null || candidates.isEmpty()) {
-                    if (j == i + 1) {
-                        // d is distance back from beginning we wish to insert the candidate at
-                        DISTORTION:
-                        for (int d = 0; d < distortionLimit && d <= pos; d++) {
-                            // Check this will not push an existing element over distortion limit
-                            for (int e = 1; e <= d; e++) {
-                                if (soln.dist[pos - e] + d > distortionLimit) {
-                                    break DISTORTION;
-                                }
+            } else {
+                for (PhraseTranslation candidate : candidates) {
+                    // d is distance back from beginning we wish to insert the candidate at
+                    for (int d = 0; d < distortions; d++) {
+                        final double ddScore = deltaDist(null, candidate.words.length, d, weights);
+                        if (useLazy) {
+                            double ptScore2 = 0.0;
+                            for (int k = 0; k < candidate.scores.length; k++) {
+                                ptScore2 += weights[PT + k] * candidate.scores[k];
+                            }
+                            double score = ptScore2
+                                    + soln.score
+                                    + futureCost
+                                    - soln.futureCost
+                                    + ddScore;
+
+                            if (!Double.isInfinite(score) && beam.accepts(score)) {
+                                beam.add(new LazyDistortedSolution(candidate, soln, d, j, futureCost, ddScore, ptScore2, weights, arena, kept));
                             }
+                        } else {
+                            putTranslation(candidate, weights, buf, pos, languageModel, lmN, d, tptScore);
                             // Get the score of the solution
-                            final double score = weights[UNK]
+                            final double score = tptScore[0]
                                     + soln.score
                                     + futureCost
                                     - soln.futureCost
-                                    + deltaDist(soln.dist, 1, d, weights);
+                                    + ddScore;
 
                             if (Double.isNaN(score)) {
-                                throw new RuntimeException();
+                                //System.err.println(ddScore);
+                                //System.err.println(soln.score);
+                                //System.err.println(futureCost);
+                                //System.err.println(soln.futureCost);
+                                //System.err.println(tptScore);
+                                //throw new RuntimeException();
+                                continue;
                             }
 
-                            rightShiftBuffer(buf, 1, pos - d);
-                            buf[pos - d] = -src[i];
-
-
                             if (!Double.isInfinite(score)
-                                    && (score > solns.leastScore() || !solns.isFull())
-                                    && (score > beam.leastScore() || !beam.isFull())) {
-                                double[] newFeatures = Arrays.copyOf(soln.features, soln.features.length);
-                                newFeatures[UNK]++;
-                                final Solution newSoln = new SolutionImpl(j, Arrays.copyOfRange(buf, 0, pos + 1), recalcDist(soln.dist, 1, d), score, futureCost, newFeatures);
-                                beam.add(newSoln);
-                                if (verbose) {
+                                    && beam.accepts(score)) {
+                                final SolutionImpl newSoln = soln.extend(arena, j, candidate.words.length, d, candidate.scores, tptScore[1 + LM], ddScore / weights[DIST], buf, score, futureCost, kept);
+                                // System.err.println(newSoln.toString());
+                                if (addSolution(beam, recombination, newSoln, lmN, distortionLimit) && verbose) {
                                     System.err.print("Adding ");
                                     newSoln.printSoln(wordMap);
                                 }
+                            } else if (verbose) {
+                                System.err.print("Rejecting ");
+                                soln.extend(arena, j, candidate.words.length, d, candidate.scores, tptScore[1 + LM], ddScore / weights[DIST], buf, score, futureCost, kept).printSoln(wordMap);
+
                             }
-                            leftShiftBuffer(buf, 1, pos - d);
+                            // Undo damage by tryPutTranslation
+                            leftShiftBuffer(buf, candidate.words.length, pos - d);
                         }
-                    } else {
-                        // We don't search for longer phrases
-                        break PHRASE_END;
                     }
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of distortions (counting from 0) at which a phrase may be
+     * inserted into a solution without pushing a word over the distortion
+     * limit
+     *
+     * @param pos The length of the solution's tail
+     */
+    static int distortions(SolutionImpl soln, int pos, int distortionLimit) {
+        int d = 0;
+        DISTORTION:
+        for (; d < distortionLimit && d <= pos; d++) {
+            // Check this will not push an existing element over distortion limit
+            for (int e = 1; e <= d; e++) {
+                if (soln.tailDist(pos - e) + d > distortionLimit) {
+                    break DISTORTION;
+                }
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Announce to a prefetching model every n-gram that scoring the
+     * extensions of a solution will query, so that they are fetched together
+     * (with one round trip to each shard) before any is scored
+     *
+     * @param distortions The number of distortions to consider
+     * @param buf The tail of the solution
+     */
+    private static void prefetchExpansion(SolutionImpl soln, int[] src,
+            Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable,
+            PrefetchingLanguageModel languageModel, int lmN, int distortions, int[] buf) {
+        languageModel.clearPrefetched();
+        final int i = soln.upto;
+        final int pos = soln.tailSize;
+        for (int j = i + 1; j <= src.length; j++) {
+            final Collection<PhraseTranslation> candidates = phraseTable.get(new Phrase(Arrays.copyOfRange(src, i, j)));
+            if (candidates == null || candidates.isEmpty()) {
+                if (j == i + 1) {
+                    // An unknown word, which is not scored by the language model
+                    continue;
                 } else {
-                    for (PhraseTranslation candidate : candidates) {
-                        // d is distance back from beginning we wish to insert the candidate at
-                        DISTORTION:
-                        for (int d = 0; d < distortionLimit && d <= pos; d++) {
-                            // Check this will not push an existing element over distortion limit
-                            for (int e = 1; e <= d; e++) {
-                                if (soln.dist[pos - e] + d > distortionLimit) {
-                                    break DISTORTION;
-                                }
-                            }
-                            final double ddScore = deltaDist(soln.dist, candidate.words.length, d, weights);
-                            if (useLazy) {
-                                double[] newFeatures = Arrays.copyOf(soln.features, soln.features.length);
-                                newFeatures[DIST] += ddScore / weights[DIST];
-                                double ptScore2 = 0.0;
-                                for (int k = 0; k < candidate.scores.length; k++) {
-                                    ptScore2 += weights[PT + k] * candidate.scores[k];
-                                    newFeatures[PT + k] += candidate.scores[k];
-                                }
-                                double score = ptScore2
-                                        + soln.score
-                                        + futureCost
-                                        - soln.futureCost
-                                        + ddScore;
-
-                                if (!Double.isInfinite(score) && (!beam.isFull() || score > beam.leastScore())) {
-                                    final LazyDistortedSolution lds = new LazyDistortedSolution(candidate, soln, buf, pos, d, j, futureCost, ddScore, ptScore2, weights, bufferCache, newFeatures);
-                                    if (beam.add(lds)) {
-                                        beam.addRemovalListener(lds);
-                                    }
-                                }
-                            } else {
-                                final double[] tptScore = tryPutTranslation(candidate, weights, buf, pos, languageModel, lmN, d);
-                                // Get the score of the solution
-                                final double score = tptScore[0]
-                                        + soln.score
-                                        + futureCost
-                                        - soln.futureCost
-                                        + ddScore;
-
-                                if (Double.isNaN(score)) {
-                                    //System.err.println(ddScore);
-                                    //System.err.println(soln.score);
-                                    //System.err.println(futureCost);
-                                    //System.err.println(soln.futureCost);
-                                    //System.err.println(tptScore);
-                                    //throw new RuntimeException();
-                                    continue;
-                                }
+                    break;
+                }
+            }
+            for (PhraseTranslation candidate : candidates) {
+                for (int d = 0; d < distortions; d++) {
+                    prefetch(languageModel, candidate, buf, pos, lmN, d);
+                }
+            }
+        }
+    }
 
-                                if (!Double.isInfinite(score)
-                                        && (score > beam.leastScore() || !beam.isFull())) {
-                                    final double[] newFeatures = Arrays.copyOf(soln.features, soln.features.length);
-                                    for (int f = 0; f < newFeatures.length; f++) {
-                                        newFeatures[f] += tptScore[f + 1];
-                                    }
-                                    newFeatures[DIST] += ddScore / weights[DIST];
-                                    final Solution newSoln = new SolutionImpl(j, Arrays.copyOfRange(buf, 0, pos + candidate.words.length), recalcDist(soln.dist, candidate.words.length, d), score, futureCost, newFeatures);
-                                    // System.err.println(newSoln.toString());
-                                    beam.add(newSoln);
-                                    if (verbose) {
-                                        System.err.print("Adding ");
-                                        newSoln.printSoln(wordMap);
-                                    }
-                                } else if (verbose) {
-                                    System.err.print("Rejecting ");
-                                    new SolutionImpl(j, Arrays.copyOfRange(buf, 0, pos + candidate.words.length), recalcDist(soln.dist, candidate.words.length, d), score, futureCost, soln.features).printSoln(wordMap);
+    /**
+     * Add a solution to the beam, unless a better solution with the same
+     * signature is in the beam or has been extended, in which case it is
+     * recombined with that solution
+     *
+     * @return true if the solution was added
+     */
+    static boolean addSolution(Beam beam, Object2ObjectMap<SolutionImpl.Signature, SolutionImpl> recombination, SolutionImpl newSoln, int lmN, int distortionLimit) {
+        final SolutionImpl.Signature signature = newSoln.signature(lmN, distortionLimit);
+        final SolutionImpl previous = recombination.get(signature);
+        // Where the previous solution is in the beam, if it is still there
+        final int at = previous == null || previous.expanded ? -1 : beam.indexOf(previous);
+        if (previous != null && (previous.expanded || at >= 0)) {
+            if (newSoln.score <= previous.score) {
+                previous.recombine(newSoln);
+                return false;
+            } else if (!previous.expanded) {
+                beam.removeAt(at);
+                newSoln.recombine(previous);
+            }
+        }
+        if (beam.add(newSoln)) {
+            recombination.put(signature, newSoln);
+            return true;
+        } else {
+            return false;
+        }
+    }
 
-                                }
-                                // Undo damage by tryPutTranslation
-                                leftShiftBuffer(buf, candidate.words.length, pos - d);
-                            }
-                        }
+    /**
+     * Add to the n-best list the solutions that were recombined with any step
+     * of a complete solution, completed as that solution was. As the
+     * solutions had the same signature, only the words before the tail differ
+     *
+     * @param solns The complete solutions
+     * @param lmN The n in the language model
+     * @param distortionLimit The distortion limit of the search
+     */
+    private static void addRecombined(Beam solns, int lmN, int distortionLimit) {
+        final int tail = SolutionImpl.tailLength(lmN, distortionLimit);
+        for (Solution s : solns.toArray()) {
+            final SolutionImpl complete = (SolutionImpl) s;
+            for (SolutionImpl step : complete.recombinedSteps()) {
+                final int head = step.length - Math.min(step.length, tail);
+                for (SolutionImpl loser : step.recombined) {
+                    final double score = complete.score - step.score + loser.score;
+                    if (!solns.accepts(score)) {
+                        continue;
+                    }
+                    final int loserHead = loser.length - Math.min(loser.length, tail);
+                    final int length = loserHead + complete.length - head;
+                    final int[] soln = new int[length];
+                    final int[] dist = new int[length];
+                    System.arraycopy(loser.soln(), 0, soln, 0, loserHead);
+                    System.arraycopy(complete.soln(), head, soln, loserHead, complete.length - head);
+                    System.arraycopy(loser.dist(), 0, dist, 0, loserHead);
+                    System.arraycopy(complete.dist(), head, dist, loserHead, complete.length - head);
+                    final double[] features = new double[complete.features().length];
+                    for (int f = 0; f < features.length; f++) {
+                        features[f] = complete.features()[f] - step.features()[f] + loser.features()[f];
                     }
+                    solns.add(new SolutionImpl(complete.upto, soln, dist, score, complete.futureCost, features));
                 }
             }
         }
-        return solns.toArray();
     }
 
     /**
@@ -280,6 +557,11 @@ public class FidelDecoder {
     public static double lmScore(int[] buf, int p,
             IntegerLanguageModel languageModel,
             int lmN, double unk) {
+        if (languageModel instanceof IncrementalLanguageModel) {
+            final LMState[] states = lmStates(Math.max(lmN, languageModel.order()));
+            states[0].set(buf, Math.max(0, p - lmN), p - 1);
+            return ((IncrementalLanguageModel) languageModel).score(states[0], buf[p - 1], unk, states[1]);
+        }
         final Phrase ph = p >= lmN
                 ? new Phrase(buf, p - lmN, lmN)
                 : new Phrase(buf, 0, p);
@@ -310,6 +592,63 @@ public class FidelDecoder {
          }*/
     }
 
+    private static final ThreadLocal<LMState[]> lmStates = new ThreadLocal<LMState[]>();
+
+    /**
+     * Scratch states for incremental language models, reused by each thread
+     */
+    private static LMState[] lmStates(int order) {
+        LMState[] states = lmStates.get();
+        if (states == null || states[0].capacity() < order) {
+            states = new LMState[]{new LMState(order), new LMState(order)};
+            lmStates.set(states);
+        }
+        return states;
+    }
+
+    /**
+     * Announce to a prefetching model the n-grams that putting a translation
+     * will score: those lost at the insertion point and those of the buffer
+     * after the translation is put
+     */
+    static void prefetch(PrefetchingLanguageModel languageModel, PhraseTranslation pt, int[] buf, int pos, int lmN, int dist) {
+        final int lost = Math.min(lmN, dist);
+        if (lost > 0) {
+            languageModel.prefetch(buf, pos - lost, pos, lmN);
+        }
+        // Only the part of the buffer after the translation is put that is
+        // read: from the context of the first n-gram to the end of the phrase
+        final int at = pos - dist;
+        final int length = pt.words.length;
+        final int start = Math.max(0, pos - lost - Math.max(0, lmN - 1));
+        final int end = pos + length;
+        final int[] window = prefetchBuffer(end - start);
+        for (int k = start; k < end; k++) {
+            if (k < at) {
+                window[k - start] = buf[k];
+            } else if (k < at + length) {
+                window[k - start] = pt.words[k - at];
+            } else {
+                window[k - start] = buf[k - length];
+            }
+        }
+        languageModel.prefetch(window, pos - lost - start, end - start, lmN);
+    }
+
+    private static final ThreadLocal<int[]> prefetchBuffers = new ThreadLocal<int[]>();
+
+    /**
+     * A scratch buffer for prefetching, reused by each thread
+     */
+    private static int[] prefetchBuffer(int n) {
+        int[] window = prefetchBuffers.get();
+        if (window == null || window.length < n) {
+            window = new int[Math.max(n, 64)];
+            prefetchBuffers.set(window);
+        }
+        return window;
+    }
+
     /**
      * Attempt to append a translation to the end of the array
      *
@@ -323,14 +662,35 @@ public class FidelDecoder {
      */
     public static double tryPutTranslation(PhraseTranslation pt, double[] weights,
             final int[] baselineBuffer, int pos, IntegerLanguageModel languageModel, int lmN) {
+        if (languageModel instanceof PrefetchingLanguageModel) {
+            prefetch((PrefetchingLanguageModel) languageModel, pt, baselineBuffer, pos, lmN, 0);
+        }
         double score = 0.0;
         for (int j = 0; j < pt.scores.length; j++) {
             score += weights[PT + j] * pt.scores[j];
         }
-        for (int w : pt.words) {
-            if (pos < baselineBuffer.length) {
-                baselineBuffer[pos++] = w;
-                score += weights[LM] * lmScore(baselineBuffer, pos, languageModel, Math.min(pos, lmN), weights[UNK]);
+        if (languageModel instanceof IncrementalLanguageModel) {
+            // Carry the state from word to word instead of rebuilding it
+            final IncrementalLanguageModel lm = (IncrementalLanguageModel) languageModel;
+            final LMState[] states = lmStates(Math.max(lmN, lm.order()));
+            LMState in = states[0], out = states[1];
+            in.set(baselineBuffer, Math.max(0, pos + 1 - lmN), pos);
+            for (int w : pt.words) {
+                if (pos < baselineBuffer.length) {
+                    baselineBuffer[pos++] = w;
+                    score += weights[LM] * lm.score(in, w, weights[UNK], out);
+                    out.truncate(lmN - 1);
+                    final LMState s = in;
+                    in = out;
+                    out = s;
+                }
+            }
+        } else {
+            for (int w : pt.words) {
+                if (pos < baselineBuffer.length) {
+                    baselineBuffer[pos++] = w;
+                    score += weights[LM] * lmScore(baselineBuffer, pos, languageModel, Math.min(pos, lmN), weights[UNK]);
+                }
             }
         }
         assert (!Double.isInfinite(score) && !Double.isNaN(score));
@@ -412,7 +772,29 @@ public class FidelDecoder {
      */
     public static double[] tryPutTranslation(PhraseTranslation pt, double[] weights,
             final int[] buf, int pos, IntegerLanguageModel languageModel, int lmN, int dist) {
-        double[] score = new double[weights.length + 1];
+        return tryPutTranslation(pt, weights, buf, pos, languageModel, lmN, dist, new double[weights.length + 1]);
+    }
+
+    /**
+     * Attempt to put a translation, potentially offset by some amount
+     *
+     * @param score An array of at least {@code weights.length + 1} to hold
+     * the cost followed by the change in each feature
+     * @return score
+     * @see #tryPutTranslation(PhraseTranslation, double[], int[], int, IntegerLanguageModel, int, int) 
+     */
+    public static double[] tryPutTranslation(PhraseTranslation pt, double[] weights,
+            final int[] buf, int pos, IntegerLanguageModel languageModel, int lmN, int dist, double[] score) {
+        if (languageModel instanceof PrefetchingLanguageModel) {
+            prefetch((PrefetchingLanguageModel) languageModel, pt, buf, pos, lmN, dist);
+        }
+        return putTranslation(pt, weights, buf, pos, languageModel, lmN, dist, score);
+    }
+
+    // As tryPutTranslation, when the n-grams have already been prefetched
+    private static double[] putTranslation(PhraseTranslation pt, double[] weights,
+            final int[] buf, int pos, IntegerLanguageModel languageModel, int lmN, int dist, double[] score) {
+        Arrays.fill(score, 0, weights.length + 1, 0.0);
         for (int j = 0; j < pt.scores.length; j++) {
             score[0] += weights[PT + j] * pt.scores[j];
             score[1 + PT + j] += pt.scores[j];
@@ -426,12 +808,29 @@ public class FidelDecoder {
         // shift the n-grams
         rightShiftBuffer(buf, pt.words.length, pos - dist);
 
-        //for (int w : pt.p) {
-        for (int i = 0; i < pt.words.length; i++) {
-            buf[pos - dist + i] = pt.words[i];
-            final double lm = lmScore(buf, pos + i + 1, languageModel, Math.min(pos + i + 1, lmN), weights[UNK]);
-            score[0] += weights[LM] * lm;
-            score[1 + LM] += lm;
+        if (dist == 0 && languageModel instanceof IncrementalLanguageModel) {
+            final IncrementalLanguageModel ilm = (IncrementalLanguageModel) languageModel;
+            final LMState[] states = lmStates(Math.max(lmN, ilm.order()));
+            LMState in = states[0], out = states[1];
+            in.set(buf, Math.max(0, pos + 1 - lmN), pos);
+            for (int i = 0; i < pt.words.length; i++) {
+                buf[pos + i] = pt.words[i];
+                final double lm = ilm.score(in, pt.words[i], weights[UNK], out);
+                score[0] += weights[LM] * lm;
+                score[1 + LM] += lm;
+                out.truncate(lmN - 1);
+                final LMState s = in;
+                in = out;
+                out = s;
+            }
+        } else {
+            //for (int w : pt.p) {
+            for (int i = 0; i < pt.words.length; i++) {
+                buf[pos - dist + i] = pt.words[i];
+                final double lm = lmScore(buf, pos + i + 1, languageModel, Math.min(pos + i + 1, lmN), weights[UNK]);
+                score[0] += weights[LM] * lm;
+                score[1 + LM] += lm;
+            }
         }
         for (int i = 0; i < Math.min(lmN, dist); i++) {
             final double lm = lmScore(buf, pos - i, languageModel, Math.min(pos - i, lmN), weights[UNK]);
@@ -447,24 +846,9 @@ public class FidelDecoder {
         return score;
     }
 
-    private static double sum(double[] ds) {
-        double n = 0.0;
-        for (double d : ds) {
-            n += d;
-        }
-        return n;
-    }
-
-    private static double sum(double[] ds, int off) {
-        double n = 0.0;
-        for (int i = off; i < ds.length; i++) {
-            n += ds[i];
-        }
-        return n;
-    }
-
     /**
-     * Calculate the naive scores at each point (for future cost estimation)
+     * Calculate the naive scores at each point (for future cost estimation).
+     * The decoder now estimates future costs with a {@link FutureCostTable}
      *
      * @param src The source phrase
      * @param phraseTable The phrase table
@@ -0,0 +1,144 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import java.util.Arrays;
+import java.util.Collection;
+import static eu.monnetproject.translation.fidel.FidelDecoder.*;
+
+/**
+ * An estimate of the best score of translating each span of a sentence,
+ * computed once per sentence. The estimate of a span is the best of its
+ * translations, scored by the phrase table and by the language model within
+ * the translation, or the best combination of estimates of the spans it
+ * can be split into.
+ *
+ * @author John McCrae
+ */
+public class FutureCostTable {
+
+    private final int n;
+    // costs[i * (n + 1) + j] is the estimate for the span i to j
+    private final double[] costs;
+
+    /**
+     * Compute the table for a sentence
+     *
+     * @param src The source sentence
+     * @param phraseTable The phrase table. Scores should already be logarithmic
+     * @param weights Of the form { UNK, DIST, LM, PT1, ... PTN }
+     * @param languageModel The language model
+     * @param lmN The n in the language model
+     */
+    public FutureCostTable(int[] src, Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable, double[] weights, IntegerLanguageModel languageModel, int lmN) {
+        this.n = src.length;
+        this.costs = new double[(n + 1) * (n + 1)];
+        Arrays.fill(costs, Double.NEGATIVE_INFINITY);
+        for (int i = 0; i <= n; i++) {
+            costs[i * (n + 1) + i] = 0.0;
+        }
+        int[] buf = new int[16];
+        // The best translation of each span, as in the decoder no span
+        // longer than one not in the phrase table is considered
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j <= n; j++) {
+                final Collection<PhraseTranslation> candidates = phraseTable.get(new Phrase(Arrays.copyOfRange(src, i, j)));
+                if (candidates == null || candidates.isEmpty()) {
+                    if (j == i + 1) {
+                        costs[i * (n + 1) + j] = weights[UNK];
+                        continue;
+                    } else {
+                        break;
+                    }
+                }
+                double best = Double.NEGATIVE_INFINITY;
+                for (PhraseTranslation candidate : candidates) {
+                    double score = 0.0;
+                    for (int k = 0; k < candidate.scores.length; k++) {
+                        score += weights[PT + k] * candidate.scores[k];
+                    }
+                    if (buf.length < candidate.words.length) {
+                        buf = new int[candidate.words.length];
+                    }
+                    for (int k = 0; k < candidate.words.length; k++) {
+                        buf[k] = candidate.words[k];
+                        score += weights[LM] * lmScore(buf, k + 1, languageModel, Math.min(k + 1, lmN), weights[UNK]);
+                    }
+                    if (score > best) {
+                        best = score;
+                    }
+                }
+                costs[i * (n + 1) + j] = best;
+            }
+        }
+        // Combine the spans, shortest first
+        for (int length = 2; length <= n; length++) {
+            for (int i = 0; i + length <= n; i++) {
+                final int j = i + length;
+                double best = costs[i * (n + 1) + j];
+                for (int k = i + 1; k < j; k++) {
+                    final double split = costs[i * (n + 1) + k] + costs[k * (n + 1) + j];
+                    if (split > best) {
+                        best = split;
+                    }
+                }
+                costs[i * (n + 1) + j] = best;
+            }
+        }
+    }
+
+    /**
+     * The estimated score of translating the span from {@code i} to
+     * {@code j}
+     */
+    public double cost(int i, int j) {
+        return costs[i * (n + 1) + j];
+    }
+
+    /**
+     * The estimated score of translating every word not covered
+     *
+     * @param coverage The covered words as a bitset (so at most the first 64
+     * words)
+     */
+    public double cost(long coverage) {
+        double cost = 0.0;
+        int i = 0;
+        while (i < n) {
+            if ((coverage & (1l << i)) != 0) {
+                i++;
+            } else {
+                // The run of uncovered words from i
+                final int j = Math.min(n, i + Long.numberOfTrailingZeros(coverage >>> i));
+                cost += costs[i * (n + 1) + j];
+                i = j;
+            }
+        }
+        return cost;
+    }
+}
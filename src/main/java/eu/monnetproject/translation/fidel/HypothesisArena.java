@@ -0,0 +1,137 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * Storage for the integer records of the hypotheses of a decode, held by the
+ * {@link DecoderWorkspace}. A record holds the words and distortions a
+ * hypothesis keeps (the hypothesis itself is still an object, which refers
+ * to its record). Records are allocated from large blocks that are kept
+ * between sentences and referred to by an integer handle; as a record is
+ * never freed on its own, clearing the arena for the next sentence only
+ * rewinds to the first block. Every record must therefore be dead (or copied
+ * out) before {@link #reset()} is called.
+ *
+ * @author John McCrae
+ */
+public final class HypothesisArena {
+
+    private static final int BLOCK_BITS = 16;
+    private static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    private final ObjectArrayList<int[]> blocks = new ObjectArrayList<int[]>();
+    private int block, top;
+    private int[] scratch = new int[0];
+
+    public HypothesisArena() {
+        blocks.add(new int[BLOCK_SIZE]);
+    }
+
+    /**
+     * Allocate a record
+     *
+     * @param n The number of ints in the record
+     * @return The handle of the record
+     */
+    public int alloc(int n) {
+        // A record may only start where its offset fits in the handle
+        if (top + n > blocks.get(block).length || top >= BLOCK_SIZE) {
+            block++;
+            top = 0;
+            if (block == blocks.size()) {
+                blocks.add(new int[Math.max(BLOCK_SIZE, n)]);
+            } else if (blocks.get(block).length < n) {
+                blocks.set(block, new int[n]);
+            }
+        }
+        final int handle = (block << BLOCK_BITS) | top;
+        top += n;
+        return handle;
+    }
+
+    /**
+     * The block holding a record
+     */
+    public int[] block(int handle) {
+        return blocks.get(handle >>> BLOCK_BITS);
+    }
+
+    /**
+     * The index of a record in its block
+     */
+    public static int offset(int handle) {
+        return handle & (BLOCK_SIZE - 1);
+    }
+
+    /**
+     * A buffer of at least n ints, for temporary use. This is the same buffer
+     * on every call, so may not be held
+     */
+    public int[] scratch(int n) {
+        if (scratch.length < n) {
+            scratch = new int[Math.max(n, 2 * scratch.length)];
+        }
+        return scratch;
+    }
+
+    /**
+     * The number of ints allocated since the last reset
+     */
+    public long size() {
+        long size = top;
+        for (int i = 0; i < block; i++) {
+            size += blocks.get(i).length;
+        }
+        return size;
+    }
+
+    /**
+     * Free every record, keeping the blocks for reuse
+     */
+    public void reset() {
+        block = 0;
+        top = 0;
+    }
+
+    /**
+     * Let go of the blocks (after the first) and scratch buffer beyond a
+     * number of ints. The arena must have been reset
+     */
+    public void trim(long ints) {
+        assert (block == 0 && top == 0);
+        long kept = blocks.get(0).length;
+        int n = 1;
+        while (n < blocks.size() && kept + blocks.get(n).length <= ints) {
+            kept += blocks.get(n++).length;
+        }
+        blocks.size(n);
+        if (scratch.length > ints) {
+            scratch = new int[0];
+        }
+    }
+}
@@ -1,4 +1,5 @@
-/*********************************************************************************
+/**
+ * *******************************************************************************
  * Copyright (c) 2011, Monnet Project All rights reserved.
  *
  * Redistribution and use in source and binary forms, with or without
@@ -26,43 +27,22 @@
 package eu.monnetproject.translation.fidel;
 
 /**
- * This is a bit of manual memory management as Java doesn't seem to be competent in doing it
- * by itself :(
- * 
+ * A language model that scores one word at a time given a context state, with
+ * backoff already applied, so that decoders need not build n-gram windows or
+ * allocate a result for every query.
+ *
  * @author John McCrae
  */
-public class BufferCache {
-    private final int N, M;
-    private final int[][] bufs;
-    private final Object[] locks;
-    
-    public BufferCache(int N, int M) {
-        this.N = N;
-        this.M = M;
-        this.bufs = new int[N][M];
-        this.locks = new Object[N];
-    }
-    
-    public int[] lock(Object lock) {
-        for(int i = 0; i < N; i++) {
-            if(locks[i] == null) {
-                locks[i] = lock;
-                return bufs[i];
-            }
-        }
-        throw new NoFreeLocksException();
-    }
-    
-    public void delock(Object lock) {
-        for(int i = 0; i < N; i++) {
-            if(locks[i] == lock) {
-                locks[i] = null;
-            }
-        }
-    }
- 
-    
-    public static class NoFreeLocksException extends RuntimeException {
-        
-    }
+public interface IncrementalLanguageModel extends IntegerLanguageModel {
+
+    /**
+     * Score a word
+     *
+     * @param in The context (unchanged unless it is {@code out})
+     * @param word The word to score
+     * @param unk The score of a word not in the model
+     * @param out Receives the context for the next word
+     * @return The log probability of {@code word} following {@code in}
+     */
+    double score(LMState in, int word, double unk, LMState out);
 }
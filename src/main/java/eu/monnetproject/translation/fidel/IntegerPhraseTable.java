@@ -0,0 +1,54 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A phrase table that gives the translations of a sentence directly as word
+ * ids and scores, rather than as strings to be tokenized and converted by
+ * the decoder.
+ *
+ * @author John McCrae
+ */
+public interface IntegerPhraseTable extends PhraseTable {
+
+    /**
+     * Look up the translations of every span of a sentence
+     *
+     * @param terms The sentence
+     * @param src The sentence as source word ids, which key the result
+     * @param trgVocabulary The vocabulary giving the ids of target words
+     * @param featureNames The order of the scores of each translation
+     * @param maxSize The maximum number of translations of a span (the best
+     * by the sum of their scores), or 0 for all
+     * @return The translations of each span that has any
+     */
+    Object2ObjectMap<Phrase, Collection<PhraseTranslation>> lookup(List<String> terms, int[] src, Vocabulary trgVocabulary, String[] featureNames, int maxSize);
+}
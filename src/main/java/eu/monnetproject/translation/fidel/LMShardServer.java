@@ -0,0 +1,232 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import org.apache.commons.cli.BasicParser;
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Serves one shard of a language model to {@link ShardedLanguageModel}
+ * clients over TCP. Each connection is handled by its own thread and carries
+ * a sequence of requests, each a one byte op code followed by its arguments:
+ * <ul>
+ * <li>{@code VOCAB}: replies with the order, the vocabulary size and the
+ * words in id order</li>
+ * <li>{@code GET}: a count and that many n-grams (a byte length then the
+ * ids); replies for each with a byte giving the number of values (0 if the
+ * n-gram is not in the model) and the values as doubles</li>
+ * </ul>
+ *
+ * @author John McCrae
+ */
+public class LMShardServer implements Runnable {
+
+    static final byte VOCAB = 1;
+    static final byte GET = 2;
+    private final IntegerLanguageModel model;
+    private final ServerSocket socket;
+    private volatile boolean closed = false;
+
+    /**
+     * Create a server
+     *
+     * @param model The model (or shard of a model) to serve
+     * @param port The port to listen on, or 0 for any free port
+     */
+    public LMShardServer(IntegerLanguageModel model, int port) throws IOException {
+        this.model = model;
+        this.socket = new ServerSocket(port);
+    }
+
+    /**
+     * The port the server is listening on
+     */
+    public int port() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Start accepting connections on a background thread
+     */
+    public LMShardServer start() {
+        final Thread thread = new Thread(this, "lm-shard-" + port());
+        thread.setDaemon(true);
+        thread.start();
+        return this;
+    }
+
+    public void run() {
+        while (!closed) {
+            try {
+                final Socket client = socket.accept();
+                client.setTcpNoDelay(true);
+                final Thread thread = new Thread(new Connection(client), "lm-shard-" + port() + "-" + client.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException x) {
+                if (!closed) {
+                    x.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop accepting connections. The model is not closed.
+     */
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException x) {
+            x.printStackTrace();
+        }
+    }
+
+    private class Connection implements Runnable {
+
+        private final Socket client;
+
+        public Connection(Socket client) {
+            this.client = client;
+        }
+
+        public void run() {
+            try {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()));
+                int[] ngram = new int[8];
+                while (true) {
+                    final byte op;
+                    try {
+                        op = in.readByte();
+                    } catch (EOFException x) {
+                        return;
+                    }
+                    if (op == VOCAB) {
+                        final Int2ObjectMap<String> invWordMap = model.invWordMap();
+                        out.writeInt(model.order());
+                        out.writeInt(invWordMap.size());
+                        for (int i = 1; i <= invWordMap.size(); i++) {
+                            out.writeUTF(invWordMap.get(i));
+                        }
+                    } else if (op == GET) {
+                        final int count = in.readInt();
+                        for (int i = 0; i < count; i++) {
+                            final int n = in.readByte();
+                            if (n > ngram.length) {
+                                ngram = new int[n];
+                            }
+                            for (int j = 0; j < n; j++) {
+                                ngram[j] = in.readInt();
+                            }
+                            final double[] result = model.get(new Phrase(ngram, 0, n));
+                            if (result == null) {
+                                out.writeByte(0);
+                            } else {
+                                out.writeByte(result.length);
+                                for (double d : result) {
+                                    out.writeDouble(d);
+                                }
+                            }
+                        }
+                    } else {
+                        throw new IOException("Bad request " + op);
+                    }
+                    out.flush();
+                }
+            } catch (SocketException x) {
+                // client went away
+            } catch (IOException x) {
+                x.printStackTrace();
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException x) {
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final CommandLineParser parser = new BasicParser();
+        final Options opts = new Options();
+        opts.addOption("l", true, "The language model (shard)");
+        opts.addOption("L", true, "The language model backend: sql (default), memory, binary or randomised");
+        opts.addOption("p", true, "The port to listen on");
+        opts.addOption("?", false, "Display this message");
+        final HelpFormatter help = new HelpFormatter();
+        final String header = "FIDEL: Language model shard server";
+        final String exampleUsage = "\nexample: lm-shard -L memory -l europarl.arpa.gz.0 -p 7001";
+        final CommandLine cli;
+        try {
+            cli = parser.parse(opts, args);
+        } catch (ParseException x) {
+            System.err.println(x.getMessage());
+            help.printHelp("lm-shard [opts]", header, opts, exampleUsage);
+            return;
+        }
+        if (cli.hasOption("?") || !cli.hasOption("l") || !cli.hasOption("p")) {
+            help.printHelp("lm-shard [opts]", header, opts, exampleUsage);
+            return;
+        }
+        final int port;
+        try {
+            port = Integer.parseInt(cli.getOptionValue("p"));
+        } catch (NumberFormatException x) {
+            System.err.println("Port must be an integer");
+            help.printHelp("lm-shard [opts]", header, opts, exampleUsage);
+            return;
+        }
+        final LanguageModelFactory factory = Fidel.languageModelFactory(cli.getOptionValue("L", "sql"));
+        if (factory == null || factory instanceof ShardedLanguageModel.Factory) {
+            System.err.println(String.format("Unknown language model backend %s", cli.getOptionValue("L")));
+            help.printHelp("lm-shard [opts]", header, opts, exampleUsage);
+            return;
+        }
+        final IntegerLanguageModel model = factory.getModel(new File(cli.getOptionValue("l")));
+        final LMShardServer server = new LMShardServer(model, port);
+        System.err.println(String.format("Serving %s on %s:%d", cli.getOptionValue("l"), InetAddress.getLocalHost().getHostName(), server.port()));
+        server.run();
+    }
+}
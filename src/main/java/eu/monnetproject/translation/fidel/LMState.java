@@ -0,0 +1,171 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+/**
+ * The context of an n-gram query for an {@link IncrementalLanguageModel}:
+ * the (at most order - 1) preceding words, oldest first. States are mutable
+ * so that decoders can reuse them rather than allocate one per query.
+ *
+ * @author John McCrae
+ */
+public final class LMState {
+
+    final int[] words;
+    int length;
+
+    /**
+     * Create an empty state (the start of a sentence)
+     *
+     * @param order The order of the language model
+     */
+    public LMState(int order) {
+        this.words = new int[Math.max(order, 1)];
+        this.length = 0;
+    }
+
+    /**
+     * The number of words of context
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * A word of the context
+     *
+     * @param i The index (0 is the oldest word)
+     */
+    public int word(int i) {
+        return words[i];
+    }
+
+    /**
+     * The largest order this state can be used with
+     */
+    public int capacity() {
+        return words.length;
+    }
+
+    /**
+     * Set the context to (the last order - 1 words of) {@code buf[from..to)}
+     */
+    public void set(int[] buf, int from, int to) {
+        final int n = Math.max(0, Math.min(to - from, words.length - 1));
+        System.arraycopy(buf, to - n, words, 0, n);
+        length = n;
+    }
+
+    public void copyFrom(LMState state) {
+        set(state.words, 0, state.length);
+    }
+
+    /**
+     * Keep only the most recent {@code n} words
+     */
+    public void truncate(int n) {
+        if (n < length) {
+            System.arraycopy(words, length - n, words, 0, n);
+            length = n;
+        }
+    }
+
+    public void clear() {
+        length = 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return MurmurHash.hash32(words, 0, length);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final LMState other = (LMState) obj;
+        if (length != other.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (words[i] != other.words[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Raw n-gram lookups by which a model implements
+     * {@link #score(Probe, LMState, int, double, LMState)}
+     */
+    interface Probe {
+
+        /**
+         * @return The log probability of the n-gram or NaN if it is not in the
+         * model
+         */
+        double prob(int[] ngram, int offset, int length);
+
+        /**
+         * @return The backoff of the n-gram or 0.0 if it has none
+         */
+        double backoff(int[] ngram, int offset, int length);
+    }
+
+    /**
+     * Score a word with backoff, as {@link FidelDecoder#lmScore} does, and
+     * compute the minimal state following it: the longest matched n-gram
+     * (less one word if it is of the full order). As every prefix of an
+     * n-gram in a (well-formed) model is itself in the model, no longer
+     * context can change a later score. {@code in} and {@code out} may be
+     * the same object.
+     */
+    static double score(Probe probe, LMState in, int word, double unk, LMState out) {
+        final int[] w = out.words;
+        final int m = Math.min(in.length, w.length - 1);
+        System.arraycopy(in.words, in.length - m, w, 0, m);
+        w[m] = word;
+        double backoff = 0.0;
+        for (int n = m + 1; n >= 1; n--) {
+            final int start = m + 1 - n;
+            final double p = probe.prob(w, start, n);
+            if (!Double.isNaN(p)) {
+                final int keep = Math.min(n, w.length - 1);
+                System.arraycopy(w, m + 1 - keep, w, 0, keep);
+                out.length = keep;
+                return backoff + (Double.isInfinite(p) ? unk : p);
+            }
+            if (n > 1) {
+                backoff += probe.backoff(w, start, n - 1);
+            }
+        }
+        out.length = 0;
+        return backoff + unk;
+    }
+}
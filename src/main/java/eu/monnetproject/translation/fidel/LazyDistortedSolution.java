@@ -27,40 +27,45 @@
 package eu.monnetproject.translation.fidel;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import java.util.Arrays;
 
 /**
  *
  * @author John McCrae
  */
-public class LazyDistortedSolution implements Solution, Beam.RemovalListener {
+public class LazyDistortedSolution implements Solution {
 
     private final PhraseTranslation candidate;
     private final SolutionImpl soln;
-    private final int[] buf;
-    private final int pos, d, j;
+    private final int d, j;
     private final double futureCost, ddScore, ptScore;
     private static final double LAZY_BONUS = 1.0;
-    private final BufferCache bufferCache;
-    private final double[] features;
+    private final HypothesisArena arena;
+    private final double distortion;
+    private final int kept;
 
-    @SuppressWarnings("LeakingThisInConstructor")
-    public LazyDistortedSolution(PhraseTranslation candidate, SolutionImpl soln, int[] buf, int pos, int d, int j, double futureCost, double ddScore, double ptScore, double[] weights, BufferCache bufferCache, double[] features) {
+    /**
+     * @param arena The arena of the decode, which the solution is evaluated
+     * in
+     * @param kept The number of words at the end of a translation that must
+     * be kept to extend it
+     */
+    public LazyDistortedSolution(PhraseTranslation candidate, SolutionImpl soln, int d, int j, double futureCost, double ddScore, double ptScore, double[] weights, HypothesisArena arena, int kept) {
         this.candidate = candidate;
         this.soln = soln;
-        this.buf = bufferCache.lock(this);
-        System.arraycopy(buf, 0, this.buf, 0, pos+candidate.words.length);
-        this.pos = pos;
         this.d = d;
         this.j = j;
         this.futureCost = futureCost;
         this.ddScore = ddScore;
         this.ptScore = ptScore;
-        this.bufferCache = bufferCache;
-        this.features = features;
+        this.arena = arena;
+        this.distortion = ddScore / weights[FidelDecoder.DIST];
+        this.kept = kept;
     }
     
     public SolutionImpl evaluate(double[] weights, IntegerLanguageModel languageModel, int lmN) {
+        final int pos = soln.tailSize;
+        final int[] buf = arena.scratch(pos + candidate.words.length);
+        soln.copyTail(buf);
         double tptScore = tryPutTranslation(candidate, weights, buf, pos, languageModel, lmN, d);
         // Get the score of the solution
         final double score = tptScore
@@ -73,13 +78,14 @@ public class LazyDistortedSolution implements Solution, Beam.RemovalListener {
             return null;
         }
 
-        features[FidelDecoder.LM] += tptScore / weights[FidelDecoder.LM];
-        
-        return new SolutionImpl(j, Arrays.copyOfRange(buf, 0, pos + candidate.words.length), FidelDecoder.recalcDist(soln.dist, candidate.words.length, d), score, futureCost,features);
+        return soln.extend(arena, j, candidate.words.length, d, candidate.scores, tptScore / weights[FidelDecoder.LM], distortion, buf, score, futureCost, kept);
     }
 
     public static double tryPutTranslation(PhraseTranslation pt, double[] weights,
             final int[] buf, int pos, IntegerLanguageModel languageModel, int lmN, int dist) {
+        if (languageModel instanceof PrefetchingLanguageModel) {
+            FidelDecoder.prefetch((PrefetchingLanguageModel) languageModel, pt, buf, pos, lmN, dist);
+        }
         double score = 0.0;
         //for (int j = 0; j < pt.scores.length; j++) {
 //            score += weights[FidelDecoder.PT + j] * pt.scores[j];
@@ -126,6 +132,12 @@ public class LazyDistortedSolution implements Solution, Beam.RemovalListener {
 
     @Override
     public double[] features() {
+        // Without the language model, until evaluated
+        final double[] features = soln.features().clone();
+        for (int k = 0; k < candidate.scores.length; k++) {
+            features[FidelDecoder.PT + k] += candidate.scores[k];
+        }
+        features[FidelDecoder.DIST] += distortion;
         return features;
     }
     
@@ -153,15 +165,4 @@ public class LazyDistortedSolution implements Solution, Beam.RemovalListener {
         }
     }
 
-    @Override
-    public boolean onRemove(Solution soln) {
-        if(soln == this) {
-            bufferCache.delock(this);
-            return true;
-        } else {
-            return false;
-        }
-    }
-    
-    
 }
@@ -0,0 +1,115 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads lines of UTF-8 text by scanning raw bytes for newlines, which is
+ * considerably faster than {@code Scanner} or a {@code Reader} on the large
+ * model files. Lines may end with "\n" or "\r\n".
+ *
+ * @author John McCrae
+ */
+final class LineReader {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final InputStream in;
+    private byte[] buf = new byte[1 << 20];
+    private int pos = 0, end = 0;
+    private boolean eof = false;
+
+    public LineReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Open a file, decompressing it if its name ends with ".gz"
+     */
+    public static LineReader open(File file) throws IOException {
+        final InputStream is = new FileInputStream(file);
+        return new LineReader(file.getPath().endsWith(".gz") ? new GZIPInputStream(is, 1 << 16) : is);
+    }
+
+    /**
+     * Read a line
+     *
+     * @return The line (without terminator) or null at the end of the input
+     */
+    public String readLine() throws IOException {
+        int scan = pos;
+        while (true) {
+            for (int i = scan; i < end; i++) {
+                if (buf[i] == '\n') {
+                    final int len = (i > pos && buf[i - 1] == '\r') ? i - 1 - pos : i - pos;
+                    final String line = new String(buf, pos, len, UTF8);
+                    pos = i + 1;
+                    return line;
+                }
+            }
+            if (eof) {
+                if (pos == end) {
+                    return null;
+                }
+                final String line = new String(buf, pos, end - pos, UTF8);
+                pos = end;
+                return line;
+            }
+            scan = end - pos;
+            fill();
+        }
+    }
+
+    // Move the unread bytes to the start of the buffer (growing it if the
+    // current line fills it) and read more
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, end - pos);
+            end -= pos;
+            pos = 0;
+        } else if (end == buf.length) {
+            final byte[] b = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, b, 0, end);
+            buf = b;
+        }
+        final int n = in.read(buf, end, buf.length - end);
+        if (n < 0) {
+            eof = true;
+        } else {
+            end += n;
+        }
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+}
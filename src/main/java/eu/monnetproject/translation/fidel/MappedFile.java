@@ -0,0 +1,88 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only memory map of a whole file. A single {@code MappedByteBuffer}
+ * is limited to 2GB, so the file is mapped in chunks; values must be aligned
+ * to their size so that none straddles two chunks.
+ *
+ * @author John McCrae
+ */
+final class MappedFile {
+
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK_MASK = (1l << CHUNK_BITS) - 1;
+    private final MappedByteBuffer[] chunks;
+    private final long length;
+
+    public MappedFile(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            this.length = channel.size();
+            this.chunks = new MappedByteBuffer[(int) ((length + CHUNK_MASK) >>> CHUNK_BITS)];
+            for (int i = 0; i < chunks.length; i++) {
+                final long start = (long) i << CHUNK_BITS;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_MASK + 1, length - start));
+            }
+        } finally {
+            // The mapping stays valid after the channel is closed
+            raf.close();
+        }
+    }
+
+    public long length() {
+        return length;
+    }
+
+    public byte get(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].get((int) (pos & CHUNK_MASK));
+    }
+
+    public char getChar(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].getChar((int) (pos & CHUNK_MASK));
+    }
+
+    public int getInt(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].getInt((int) (pos & CHUNK_MASK));
+    }
+
+    public long getLong(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].getLong((int) (pos & CHUNK_MASK));
+    }
+
+    public float getFloat(long pos) {
+        return chunks[(int) (pos >>> CHUNK_BITS)].getFloat((int) (pos & CHUNK_MASK));
+    }
+}
@@ -0,0 +1,360 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A language model held entirely in the heap. Each order is an open-addressing
+ * hash table keyed by the n-gram packed into a long, with scores and backoffs
+ * in parallel float arrays. The orders too long to pack with the size of the
+ * vocabulary are keyed by the n-gram's 64-bit hash instead, and also store a
+ * 32-bit check hash, so that an n-gram colliding with another is (all but
+ * certainly) reported missing rather than given the other's score.
+ *
+ * @author John McCrae
+ */
+public class MemoryLanguageModel implements IncrementalLanguageModel {
+
+    private final Object2IntMap<String> wordMap;
+    private final Int2ObjectMap<String> invWordMap;
+    private final int order;
+    private final NGramTable[] tables;
+    // Number of bits per word in a packed key
+    private final int bits;
+    // The largest word id in the model
+    private final int maxId;
+    private final LMState.Probe probe = new LMState.Probe() {
+        public double prob(int[] ngram, int offset, int length) {
+            final int i = find(ngram, offset, length);
+            return i < 0 ? Double.NaN : tables[length - 1].scores[i];
+        }
+
+        public double backoff(int[] ngram, int offset, int length) {
+            final int i = find(ngram, offset, length);
+            return i < 0 ? 0.0 : tables[length - 1].backoffs[i];
+        }
+    };
+
+    private MemoryLanguageModel(Object2IntMap<String> wordMap, Int2ObjectMap<String> invWordMap, int order, NGramTable[] tables, int bits, int maxId) {
+        this.wordMap = wordMap;
+        this.invWordMap = invWordMap;
+        this.order = order;
+        this.tables = tables;
+        this.bits = bits;
+        this.maxId = maxId;
+    }
+
+    private int find(int[] p, int offset, int length) {
+        if (length == 0 || length > order) {
+            return -1;
+        }
+        final long key = key(p, offset, length, bits, maxId);
+        if (key == 0) {
+            return -1;
+        }
+        return tables[length - 1].find(key, packed(bits, length) ? 0 : check(p, offset, length));
+    }
+
+    public double[] get(Phrase phrase) {
+        final int i = find(phrase.p, phrase.l, phrase.n);
+        if (i < 0) {
+            return null;
+        }
+        final NGramTable table = tables[phrase.n - 1];
+        if (table.backoffs[i] == 0.0f) {
+            return new double[]{table.scores[i]};
+        } else {
+            return new double[]{table.scores[i], table.backoffs[i]};
+        }
+    }
+
+    public double score(LMState in, int word, double unk, LMState out) {
+        return LMState.score(probe, in, word, unk, out);
+    }
+
+    public int order() {
+        return order;
+    }
+
+    public void close() {
+    }
+
+    public Object2IntMap<String> wordMap() {
+        return wordMap;
+    }
+
+    public Int2ObjectMap<String> invWordMap() {
+        return invWordMap;
+    }
+
+    /**
+     * Can n-grams of this length be packed into a long
+     *
+     * @param bits The number of bits per word
+     */
+    static boolean packed(int bits, int length) {
+        return bits * length <= 64;
+    }
+
+    /**
+     * Calculate the key of an n-gram: the word ids packed into a long if
+     * they fit, and their hash if not
+     *
+     * @return The key or 0 if the n-gram contains a word not in the model
+     */
+    static long key(int[] p, int offset, int length, int bits, int maxId) {
+        for (int i = offset; i < offset + length; i++) {
+            if (p[i] <= 0 || p[i] > maxId) {
+                return 0;
+            }
+        }
+        if (!packed(bits, length)) {
+            final long key = MurmurHash.hash64(p, offset, length);
+            return key == 0 ? 1 : key;
+        }
+        long key = 0;
+        for (int i = offset; i < offset + length; i++) {
+            key = (key << bits) | p[i];
+        }
+        return key;
+    }
+
+    /**
+     * The check hash of an n-gram with a hashed key, independent of its key
+     */
+    static int check(int[] p, int offset, int length) {
+        int h = 0x2f1a3b5d;
+        for (int i = offset; i < offset + length; i++) {
+            h = (h ^ p[i]) * 0x01000193;
+            h ^= h >>> 15;
+        }
+        return h;
+    }
+
+    /**
+     * Open-addressing (linear probing) table from n-gram keys to scores and
+     * backoffs. The key 0 marks an empty slot. A table of hashed keys also
+     * holds the check hash of each n-gram.
+     */
+    static final class NGramTable {
+
+        long[] keys;
+        float[] scores, backoffs;
+        int[] checks;
+        private final boolean hashed;
+        private int size, mask, collisions;
+
+        NGramTable(int expected, boolean hashed) {
+            this.hashed = hashed;
+            int capacity = 16;
+            while (capacity * 3 < expected * 4) {
+                capacity <<= 1;
+            }
+            alloc(capacity);
+        }
+
+        private void alloc(int capacity) {
+            this.keys = new long[capacity];
+            this.scores = new float[capacity];
+            this.backoffs = new float[capacity];
+            this.checks = hashed ? new int[capacity] : null;
+            this.mask = capacity - 1;
+        }
+
+        private static int mix(long key) {
+            return (int) ((key * 0x9e3779b97f4a7c15l) >>> 32);
+        }
+
+        /**
+         * @param check The check hash of the n-gram (ignored if the keys are
+         * packed)
+         */
+        int find(long key, int check) {
+            int i = mix(key) & mask;
+            long k;
+            while ((k = keys[i]) != 0) {
+                if (k == key) {
+                    return hashed && checks[i] != check ? -1 : i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        void put(long key, int check, float score, float backoff) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                final long[] oldKeys = keys;
+                final float[] oldScores = scores, oldBackoffs = backoffs;
+                final int[] oldChecks = checks;
+                alloc(keys.length * 2);
+                size = 0;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != 0) {
+                        put(oldKeys[i], hashed ? oldChecks[i] : 0, oldScores[i], oldBackoffs[i]);
+                    }
+                }
+            }
+            int i = mix(key) & mask;
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                size++;
+            } else if (hashed && checks[i] != check) {
+                // Two n-grams with the same hash: the later replaces the
+                // earlier, which is then reported missing
+                collisions++;
+            }
+            keys[i] = key;
+            scores[i] = score;
+            backoffs[i] = backoff;
+            if (hashed) {
+                checks[i] = check;
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * The number of n-grams lost as their hash was the same as another's
+         */
+        int collisions() {
+            return collisions;
+        }
+    }
+
+    public static class Factory implements LanguageModelFactory {
+
+        public MemoryLanguageModel getModel(File file) {
+            try {
+                return load(file);
+            } catch (IOException x) {
+                throw new RuntimeException(x);
+            }
+        }
+
+        private MemoryLanguageModel load(File file) throws IOException {
+            final Object2IntMap<String> wordMap = new Object2IntOpenHashMap<String>();
+            final Int2ObjectMap<String> invWordMap = new Int2ObjectOpenHashMap<String>();
+            final ARPAReader in = new ARPAReader(file);
+            System.err.println("Loading language model into memory");
+            // Unigrams are held back until the vocabulary is known, as it
+            // determines the key format
+            final IntArrayList unigrams = new IntArrayList(in.count(1));
+            final FloatArrayList unigramScores = new FloatArrayList(in.count(1));
+            final FloatArrayList unigramBackoffs = new FloatArrayList(in.count(1));
+            NGramTable[] tables = new NGramTable[Math.max(in.order(), 1)];
+            int bits = -1, maxId = 0, skipped = 0, i = 0;
+            try {
+                while (in.next()) {
+                    final String[] words = in.words();
+                    if (words.length > tables.length) {
+                        final NGramTable[] t2 = new NGramTable[words.length];
+                        System.arraycopy(tables, 0, t2, 0, tables.length);
+                        tables = t2;
+                    }
+                    if (words.length == 1 && bits < 0) {
+                        final int w = wordMap.size() + 1;
+                        wordMap.put(words[0], w);
+                        invWordMap.put(w, words[0]);
+                        unigrams.add(w);
+                        unigramScores.add((float) in.score());
+                        unigramBackoffs.add((float) in.backoff());
+                    } else {
+                        if (bits < 0) {
+                            maxId = wordMap.size();
+                            bits = keyBits(maxId);
+                            tables[0] = unigramTable(unigrams, unigramScores, unigramBackoffs, bits, maxId);
+                        }
+                        final int[] ids = new int[words.length];
+                        for (int j = 0; j < words.length; j++) {
+                            ids[j] = wordMap.containsKey(words[j]) ? wordMap.getInt(words[j]) : -1;
+                        }
+                        final long key = key(ids, 0, ids.length, bits, maxId);
+                        if (key == 0) {
+                            // n-gram contains a word with no unigram
+                            skipped++;
+                            continue;
+                        }
+                        final boolean hashed = !packed(bits, ids.length);
+                        if (tables[words.length - 1] == null) {
+                            tables[words.length - 1] = new NGramTable(in.count(words.length), hashed);
+                        }
+                        tables[words.length - 1].put(key, hashed ? check(ids, 0, ids.length) : 0, (float) in.score(), (float) in.backoff());
+                    }
+                    if (i++ % 1000000 == 999999) {
+                        System.err.println(String.format("Line %d", i));
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            if (bits < 0) {
+                // Unigram model
+                maxId = wordMap.size();
+                bits = keyBits(maxId);
+                tables[0] = unigramTable(unigrams, unigramScores, unigramBackoffs, bits, maxId);
+            }
+            for (int j = 0; j < tables.length; j++) {
+                if (tables[j] == null) {
+                    tables[j] = new NGramTable(0, !packed(bits, j + 1));
+                }
+                if (!packed(bits, j + 1)) {
+                    System.err.println(String.format("%d-grams are keyed by hash as %d words need %d bits each; %d lost to collisions",
+                            j + 1, maxId, bits, tables[j].collisions()));
+                }
+            }
+            if (skipped > 0) {
+                System.err.println(String.format("Skipped %d n-grams containing words with no unigram", skipped));
+            }
+            return new MemoryLanguageModel(wordMap, invWordMap, tables.length, tables, bits, maxId);
+        }
+
+        private static NGramTable unigramTable(IntArrayList unigrams, FloatArrayList scores, FloatArrayList backoffs, int bits, int maxId) {
+            final NGramTable table = new NGramTable(unigrams.size(), false);
+            for (int j = 0; j < unigrams.size(); j++) {
+                table.put(key(new int[]{unigrams.getInt(j)}, 0, 1, bits, maxId), 0, scores.getFloat(j), backoffs.getFloat(j));
+            }
+            return table;
+        }
+
+        // The number of bits needed for a word id
+        private static int keyBits(int maxId) {
+            return 32 - Integer.numberOfLeadingZeros(Math.max(maxId, 1));
+        }
+    }
+}
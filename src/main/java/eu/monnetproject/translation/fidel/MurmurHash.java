@@ -100,4 +100,37 @@ public class MurmurHash {
 
         return h;
     }
+
+    /**
+     * 64-bit variant (after MurmurHash64A) for keys where 32-bit collisions
+     * are too frequent to be ignored, e.g., n-gram keys of a large model
+     *
+     * @param data The array
+     * @param offset The start of the key
+     * @param length The length of the key
+     * @return The hash value
+     */
+    public static long hash64(final int[] data, final int offset, final int length) {
+        if(offset < 0 || offset > data.length) {
+            throw new IllegalArgumentException();
+        }
+        final long m = 0xc6a4a7935bd1e995l;
+        final int r = 47;
+        long h = 0x9747b28cl ^ (length * m);
+
+        for (int i = 0; i < length; i++) {
+            long k = data[offset + i] & 0xffffffffl;
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+
+        return h;
+    }
 }
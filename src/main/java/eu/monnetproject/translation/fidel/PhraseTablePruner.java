@@ -0,0 +1,354 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Prunes a phrase table in the Moses text format to the best {@code k}
+ * translations of each source phrase, ranked by the weighted sum of their
+ * log scores. The table is read in runs that are pruned and sorted by source
+ * phrase in memory and written to temporary files, which are then merged,
+ * so tables much larger than the heap can be pruned. The output is sorted
+ * by source phrase.
+ *
+ * @author John McCrae
+ */
+public class PhraseTablePruner {
+
+    private static final int RUN_LINES = 1000000;
+    private final double[] weights;
+    private final int k;
+    private final int runLines;
+    private long linesIn, linesOut, bytesIn, bytesOut;
+
+    /**
+     * Create a pruner
+     *
+     * @param weights The weight of each score of a translation
+     * @param k The number of translations to keep for each source phrase
+     */
+    public PhraseTablePruner(double[] weights, int k) {
+        this(weights, k, RUN_LINES);
+    }
+
+    PhraseTablePruner(double[] weights, int k, int runLines) {
+        if (k <= 0) {
+            throw new IllegalArgumentException("k must be positive");
+        }
+        this.weights = weights;
+        this.k = k;
+        this.runLines = runLines;
+    }
+
+    /**
+     * Create a pruner with the weights of the phrase table features in a
+     * weights file, as used by the decoder
+     */
+    public PhraseTablePruner(Properties weights, String[] featureNames, int k) {
+        this(featureWeights(weights, featureNames), k);
+    }
+
+    private static double[] featureWeights(Properties weights, String[] featureNames) {
+        final double[] wts = new double[featureNames.length];
+        for (int i = 0; i < featureNames.length; i++) {
+            wts[i] = Fidel.featureWeight(weights, featureNames[i]);
+        }
+        return wts;
+    }
+
+    /**
+     * The file a pruned table is written to, next to the table
+     */
+    public static File prunedFile(File phraseTable, int k) {
+        final String path = phraseTable.getPath();
+        if (path.endsWith(".gz")) {
+            return new File(path.substring(0, path.length() - 3) + ".top" + k + ".gz");
+        } else {
+            return new File(path + ".top" + k);
+        }
+    }
+
+    /**
+     * Is a file a phrase table in the Moses text format (gzipped or not),
+     * rather than a compiled table or a database, which cannot be pruned
+     */
+    public static boolean isMosesText(File phraseTable) throws IOException {
+        final String path = phraseTable.getPath();
+        if (path.endsWith(".gz")) {
+            return true;
+        }
+        if (path.endsWith(".db") || path.endsWith(".bpt") || path.endsWith(".sa")) {
+            return false;
+        }
+        // Compiled tables start with a magic number beginning "FIDEL", and
+        // SQLite databases with "SQLite format 3"
+        final byte[] head = new byte[15];
+        final InputStream in = new FileInputStream(phraseTable);
+        int n = 0;
+        try {
+            int r;
+            while (n < head.length && (r = in.read(head, n, head.length - n)) > 0) {
+                n += r;
+            }
+        } finally {
+            in.close();
+        }
+        final String start = new String(head, 0, n, "ISO-8859-1");
+        return !start.startsWith("FIDEL") && !start.equals("SQLite format 3");
+    }
+
+    // A line of the table with its source phrase and weighted score
+    private static final class Entry {
+
+        final String line, source;
+        final double score;
+
+        Entry(String line, String source, double score) {
+            this.line = line;
+            this.source = source;
+            this.score = score;
+        }
+    }
+
+    // Best first
+    private static final Comparator<Entry> BY_SCORE = new Comparator<Entry>() {
+        public int compare(Entry e1, Entry e2) {
+            return Double.compare(e2.score, e1.score);
+        }
+    };
+
+    private Entry parse(String line) {
+        final String[] elems = line.split(" \\|\\|\\| ");
+        if (elems.length < 3) {
+            return null;
+        }
+        final String[] scores = elems[2].trim().split(" ");
+        double score = 0.0;
+        for (int i = 0; i < scores.length && i < weights.length; i++) {
+            if (weights[i] != 0.0) {
+                score += weights[i] * Math.log10(Double.parseDouble(scores[i]));
+            }
+        }
+        return new Entry(line, elems[0], score);
+    }
+
+    /**
+     * Prune a phrase table
+     *
+     * @param phraseTable The table (may be gzipped)
+     * @param out The file to write (gzipped if its name ends in .gz)
+     */
+    public void prune(File phraseTable, File out) throws IOException {
+        if (!isMosesText(phraseTable)) {
+            throw new IOException(String.format("%s is not a phrase table in the Moses text format", phraseTable.getPath()));
+        }
+        final long start = System.currentTimeMillis();
+        linesIn = linesOut = bytesOut = 0;
+        bytesIn = phraseTable.length();
+        final File dir = out.getAbsoluteFile().getParentFile();
+        final List<File> runs = new ArrayList<File>();
+        try {
+            final LineReader in = LineReader.open(phraseTable);
+            try {
+                final ArrayList<Entry> run = new ArrayList<Entry>();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    final Entry e = parse(line);
+                    if (e == null) {
+                        continue;
+                    }
+                    linesIn++;
+                    run.add(e);
+                    if (run.size() >= runLines) {
+                        runs.add(writeRun(run, dir));
+                        run.clear();
+                    }
+                }
+                if (!run.isEmpty() || runs.isEmpty()) {
+                    runs.add(writeRun(run, dir));
+                }
+            } finally {
+                in.close();
+            }
+            merge(runs, out);
+        } finally {
+            for (File run : runs) {
+                run.delete();
+            }
+        }
+        bytesOut = out.length();
+        System.err.println(String.format("Pruned %d to %d phrase pairs (%.1f%%), %d to %d bytes, in %.1fs",
+                linesIn, linesOut, linesIn == 0 ? 0.0 : 100.0 * linesOut / linesIn, bytesIn, bytesOut,
+                (System.currentTimeMillis() - start) / 1000.0));
+    }
+
+    // Sort a run by source phrase, best first, and keep the best k of each
+    private File writeRun(final List<Entry> run, File dir) throws IOException {
+        final int[] perm = new int[run.size()];
+        for (int i = 0; i < perm.length; i++) {
+            perm[i] = i;
+        }
+        IntArrays.quickSort(perm, new AbstractIntComparator() {
+            public int compare(int i, int j) {
+                final Entry e1 = run.get(i), e2 = run.get(j);
+                final int c = e1.source.compareTo(e2.source);
+                return c != 0 ? c : Double.compare(e2.score, e1.score);
+            }
+        });
+        final File file = File.createTempFile("fidel-prune", ".run", dir);
+        final Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16);
+        try {
+            String source = null;
+            int kept = 0;
+            for (int i : perm) {
+                final Entry e = run.get(i);
+                if (!e.source.equals(source)) {
+                    source = e.source;
+                    kept = 0;
+                }
+                if (kept++ < k) {
+                    w.write(e.line);
+                    w.write("\n");
+                }
+            }
+        } finally {
+            w.close();
+        }
+        return file;
+    }
+
+    // The next line of a run
+    private final class Head {
+
+        final LineReader in;
+        Entry entry;
+
+        Head(File file) throws IOException {
+            this.in = LineReader.open(file);
+            advance();
+        }
+
+        boolean advance() throws IOException {
+            final String line = in.readLine();
+            entry = line == null ? null : parse(line);
+            return entry != null;
+        }
+    }
+
+    private void merge(List<File> runs, File out) throws IOException {
+        final PriorityQueue<Head> heads = new PriorityQueue<Head>(Math.max(1, runs.size()), new Comparator<Head>() {
+            public int compare(Head h1, Head h2) {
+                return h1.entry.source.compareTo(h2.entry.source);
+            }
+        });
+        final List<Head> open = new ArrayList<Head>();
+        final OutputStream os = out.getName().endsWith(".gz")
+                ? new GZIPOutputStream(new FileOutputStream(out), 1 << 16) : new FileOutputStream(out);
+        final Writer w = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 1 << 16);
+        try {
+            for (File run : runs) {
+                final Head h = new Head(run);
+                open.add(h);
+                if (h.entry != null) {
+                    heads.add(h);
+                }
+            }
+            final ArrayList<Entry> group = new ArrayList<Entry>();
+            while (!heads.isEmpty()) {
+                final String source = heads.peek().entry.source;
+                group.clear();
+                while (!heads.isEmpty() && heads.peek().entry.source.equals(source)) {
+                    final Head h = heads.poll();
+                    group.add(h.entry);
+                    if (h.advance()) {
+                        heads.add(h);
+                    }
+                }
+                // Each run already holds at most k of the group
+                Collections.sort(group, BY_SCORE);
+                for (int i = 0; i < group.size() && i < k; i++) {
+                    w.write(group.get(i).line);
+                    w.write("\n");
+                    linesOut++;
+                }
+            }
+        } finally {
+            w.close();
+            for (Head h : open) {
+                h.in.close();
+            }
+        }
+    }
+
+    /**
+     * The number of phrase pairs read by the last pruning
+     */
+    public long linesIn() {
+        return linesIn;
+    }
+
+    /**
+     * The number of phrase pairs written by the last pruning
+     */
+    public long linesOut() {
+        return linesOut;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 4) {
+            System.err.println("Usage: PhraseTablePruner k weights.cfg phrase-table[.gz] pruned-table[.gz]");
+            System.exit(-1);
+        }
+        final Properties weights = new Properties();
+        final FileReader reader = new FileReader(args[1]);
+        try {
+            weights.load(reader);
+        } finally {
+            reader.close();
+        }
+        new PhraseTablePruner(weights, Fidel.DEFAULT_FEATURE_NAMES, Integer.parseInt(args[0])).prune(new File(args[2]), new File(args[3]));
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the (pruned) translations of source phrases across sentences,
+ * including misses. The cache is split into independently locked stripes,
+ * each evicting its least recently used entries once their estimated size
+ * exceeds its share of the memory ceiling. A sentence is looked up in the
+ * phrase table only if some span of it is not cached, and then only the
+ * smallest window of the sentence containing all such spans.
+ *
+ * Spans longer than the maximum phrase length are assumed to have no
+ * translations when all shorter spans are cached. Translations are cached
+ * separately for each limit on the number of translations of a phrase, so
+ * lookups with different limits do not evict each other.
+ *
+ * @author John McCrae
+ */
+public class PhraseTranslationCache {
+
+    /**
+     * Looks up the translations of a window of the sentence in the phrase
+     * table
+     */
+    public static interface Source {
+
+        /**
+         * Look up the translations of all spans within {@code from} to
+         * {@code to} (exclusive) of the sentence
+         *
+         * @return The translations of every span that has any
+         */
+        Object2ObjectMap<Phrase, Collection<PhraseTranslation>> lookup(int from, int to);
+    }
+
+    // Approximate heap costs of an entry, a translation and a list
+    private static final int ENTRY_BYTES = 96, TRANSLATION_BYTES = 64, LIST_BYTES = 32;
+    private static final int STRIPES = 16;
+    private static final Collection<PhraseTranslation> MISS = Collections.emptyList();
+    private final Stripe[] stripes;
+    private final int maxPhraseLength;
+
+    /**
+     * Create a cache
+     *
+     * @param maxBytes The (approximate) maximum memory to use
+     * @param maxPhraseLength The length of the longest source phrase in the
+     * phrase table
+     */
+    public PhraseTranslationCache(long maxBytes, int maxPhraseLength) {
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(Math.max(1, maxBytes / STRIPES));
+        }
+        this.maxPhraseLength = maxPhraseLength;
+    }
+
+    /**
+     * Create a cache for phrases of up to seven words (the Moses default)
+     *
+     * @param maxBytes The (approximate) maximum memory to use
+     */
+    public PhraseTranslationCache(long maxBytes) {
+        this(maxBytes, 7);
+    }
+
+    private Stripe stripe(Key key) {
+        return stripes[(key.hashCode() >>> 16) & (STRIPES - 1)];
+    }
+
+    /**
+     * Look up the translations of every span of a sentence
+     *
+     * @param src The sentence
+     * @param source The phrase table, called at most once
+     * @return The translations of every span that has any
+     */
+    public Object2ObjectMap<Phrase, Collection<PhraseTranslation>> lookup(int[] src, Source source) {
+        return lookup(src, 0, source);
+    }
+
+    /**
+     * Look up the translations of every span of a sentence
+     *
+     * @param src The sentence
+     * @param maxSize The limit on the number of translations of each phrase
+     * the source returns (or 0 for no limit)
+     * @param source The phrase table, called at most once
+     * @return The translations of every span that has any
+     */
+    public Object2ObjectMap<Phrase, Collection<PhraseTranslation>> lookup(int[] src, int maxSize, Source source) {
+        final Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>> result = new Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>>();
+        // The smallest window containing every span not in the cache
+        int from = src.length, to = 0;
+        for (int i = 0; i < src.length; i++) {
+            for (int j = i + 1; j <= src.length && j - i <= maxPhraseLength; j++) {
+                final Phrase phrase = new Phrase(Arrays.copyOfRange(src, i, j));
+                if (result.containsKey(phrase)) {
+                    continue;
+                }
+                final Key key = new Key(phrase, maxSize);
+                final Stripe stripe = stripe(key);
+                final Collection<PhraseTranslation> translations;
+                synchronized (stripe) {
+                    translations = stripe.get(key);
+                }
+                if (translations == null) {
+                    from = Math.min(from, i);
+                    to = Math.max(to, j);
+                } else if (translations != MISS) {
+                    result.put(phrase, translations);
+                }
+            }
+        }
+        if (from >= to) {
+            return result;
+        }
+        final Object2ObjectMap<Phrase, Collection<PhraseTranslation>> found = source.lookup(from, to);
+        for (int i = from; i < to; i++) {
+            for (int j = i + 1; j <= to; j++) {
+                final Phrase phrase = new Phrase(Arrays.copyOfRange(src, i, j));
+                final Collection<PhraseTranslation> translations = found.get(phrase);
+                if (translations != null) {
+                    result.put(phrase, translations);
+                }
+                if (j - i <= maxPhraseLength) {
+                    final Key key = new Key(phrase, maxSize);
+                    final Stripe stripe = stripe(key);
+                    synchronized (stripe) {
+                        stripe.put(key, translations == null ? MISS : translations);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Remove all entries, for instance as the phrase table or pruning has
+     * changed. The counts are kept.
+     */
+    public void clear() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.map.clear();
+                stripe.bytes = 0;
+            }
+        }
+    }
+
+    /**
+     * The number of spans answered from the cache
+     */
+    public long hits() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * The number of spans not in the cache
+     */
+    public long misses() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * The number of entries evicted from the cache
+     */
+    public long evictions() {
+        long evictions = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                evictions += stripe.evictions;
+            }
+        }
+        return evictions;
+    }
+
+    /**
+     * The estimated memory used by the entries
+     */
+    public long bytes() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                bytes += stripe.bytes;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The proportion of spans answered from the cache
+     */
+    public double hitRate() {
+        final long hits = hits();
+        final long total = hits + misses();
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Phrase table cache: hit rate %.4f (%d hits, %d misses, %d evictions, %d bytes)", hitRate(), hits(), misses(), evictions(), bytes());
+    }
+
+    private static long size(Key key, Collection<PhraseTranslation> translations) {
+        long bytes = ENTRY_BYTES + 4l * key.phrase.n + LIST_BYTES;
+        for (PhraseTranslation t : translations) {
+            bytes += TRANSLATION_BYTES + 4l * t.words.length + 8l * t.scores.length;
+        }
+        return bytes;
+    }
+
+    /**
+     * A source phrase and the limit on its number of translations
+     */
+    private static final class Key {
+
+        final Phrase phrase;
+        final int maxSize;
+
+        Key(Phrase phrase, int maxSize) {
+            this.phrase = phrase;
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * phrase.hashCode() + maxSize;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return maxSize == other.maxSize && phrase.equals(other.phrase);
+        }
+    }
+
+    /**
+     * Entries in order of last use. Not thread-safe.
+     */
+    private static final class Stripe {
+
+        final LinkedHashMap<Key, Collection<PhraseTranslation>> map = new LinkedHashMap<Key, Collection<PhraseTranslation>>(16, 0.75f, true);
+        final long maxBytes;
+        long bytes, hits, misses, evictions;
+
+        Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        Collection<PhraseTranslation> get(Key key) {
+            final Collection<PhraseTranslation> translations = map.get(key);
+            if (translations != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return translations;
+        }
+
+        void put(Key key, Collection<PhraseTranslation> translations) {
+            final Collection<PhraseTranslation> old = map.put(key, translations);
+            if (old != null) {
+                bytes -= size(key, old);
+            }
+            bytes += size(key, translations);
+            final Iterator<Map.Entry<Key, Collection<PhraseTranslation>>> it = map.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                final Map.Entry<Key, Collection<PhraseTranslation>> e = it.next();
+                bytes -= size(e.getKey(), e.getValue());
+                it.remove();
+                evictions++;
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+/**
+ * A language model for which individual queries are expensive (such as one
+ * on another machine), so the decoder announces the n-grams it is about to
+ * score and the model fetches them together.
+ *
+ * @author John McCrae
+ */
+public interface PrefetchingLanguageModel extends IntegerLanguageModel {
+
+    /**
+     * Announce that the words at positions {@code from} to {@code to - 1} of
+     * the buffer are to be scored with {@code lmN} - 1 words of context. The
+     * n-grams (and backoff contexts) are fetched at the next query, together
+     * with those of any other calls since then, and are kept until
+     * {@link #clearPrefetched()}. Queries for n-grams that were not announced
+     * are still answered.
+     */
+    void prefetch(int[] buf, int from, int to, int lmN);
+
+    /**
+     * Forget the n-grams fetched so far. The decoder calls this before
+     * announcing the n-grams of each expansion of a solution
+     */
+    void clearPrefetched();
+}
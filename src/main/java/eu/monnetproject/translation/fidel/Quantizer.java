@@ -0,0 +1,121 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import java.util.Arrays;
+
+/**
+ * Quantization of scores to a small number of bits by equal-frequency binning:
+ * the values are sorted and split into bins of the same size, and each bin is
+ * represented by its mean. The last code is reserved for NaN (absent).
+ *
+ * @author John McCrae
+ */
+final class Quantizer {
+
+    private Quantizer() {
+    }
+
+    /**
+     * Build a codebook
+     *
+     * @param values The values to quantize (NaNs are ignored)
+     * @param n The number of values to use from {@code values}
+     * @param bits The number of bits (at most 8)
+     * @param keepZero If true 0.0 is always exactly representable (as
+     * backoffs of 0.0 mean "no backoff")
+     * @return The codebook with {@code 1 << bits} entries, sorted except for
+     * the final NaN entry
+     */
+    public static float[] codebook(float[] values, int n, int bits, boolean keepZero) {
+        if (bits < 1 || bits > 8) {
+            throw new IllegalArgumentException("Quantization must be between 1 and 8 bits");
+        }
+        final float[] sorted = new float[n];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (!Float.isNaN(values[i]) && !(keepZero && values[i] == 0.0f)) {
+                sorted[m++] = values[i];
+            }
+        }
+        Arrays.sort(sorted, 0, m);
+        final int bins = (1 << bits) - 1 - (keepZero ? 1 : 0);
+        final float[] centers = new float[bins + (keepZero ? 1 : 0)];
+        int c = 0;
+        if (keepZero) {
+            centers[c++] = 0.0f;
+        }
+        for (int b = 0; b < bins; b++) {
+            final int from = (int) ((long) m * b / bins);
+            final int to = (int) ((long) m * (b + 1) / bins);
+            if (to > from) {
+                double sum = 0.0;
+                for (int i = from; i < to; i++) {
+                    sum += sorted[i];
+                }
+                centers[c++] = (float) (sum / (to - from));
+            }
+        }
+        Arrays.sort(centers, 0, c);
+        final float[] codebook = new float[1 << bits];
+        System.arraycopy(centers, 0, codebook, 0, c);
+        // Unused codes repeat the largest center, so the codebook stays sorted
+        for (int i = c; i < codebook.length - 1; i++) {
+            codebook[i] = c > 0 ? centers[c - 1] : 0.0f;
+        }
+        codebook[codebook.length - 1] = Float.NaN;
+        return codebook;
+    }
+
+    /**
+     * Find the code nearest to a value
+     *
+     * @param codebook The codebook
+     * @param value The value
+     * @return The code (as an unsigned byte)
+     */
+    public static int encode(float[] codebook, float value) {
+        final int nan = codebook.length - 1;
+        if (Float.isNaN(value)) {
+            return nan;
+        }
+        int lo = 0, hi = nan - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (codebook[mid] < value) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        if (lo > 0 && Math.abs(codebook[lo - 1] - value) <= Math.abs(codebook[lo] - value)) {
+            return lo - 1;
+        } else {
+            return lo;
+        }
+    }
+}
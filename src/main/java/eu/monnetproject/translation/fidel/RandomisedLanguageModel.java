@@ -0,0 +1,591 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * A lossy language model in the style of RandLM: each n-gram is stored only
+ * as a short fingerprint of its hash together with quantized values, in a
+ * bit-packed open-addressing table. Queries for n-grams not in the model
+ * return a value with a small, configurable probability (the false positive
+ * rate). The tables are held in the heap when built, or mapped from a file
+ * written by {@link Builder#compile(File, File)}.
+ *
+ * @author John McCrae
+ */
+public class RandomisedLanguageModel implements IncrementalLanguageModel {
+
+    private static final long MAGIC = 0x464944454c524c4dl; // FIDELRLM
+    private static final int VERSION = 1;
+    private static final int HEADER = 32;
+    // Tables are filled to at most this load, at which a query for an absent
+    // n-gram compares against about PROBES fingerprints
+    private static final double LOAD = 0.66;
+    private static final int PROBES = 5;
+    private final Object2IntMap<String> wordMap;
+    private final Int2ObjectMap<String> invWordMap;
+    private final int order, fingerprintBits, quantBits;
+    private final Table[] tables;
+    private final float[][] probCodebook, backoffCodebook;
+    private final LMState.Probe probe = new LMState.Probe() {
+        public double prob(int[] ngram, int offset, int length) {
+            final long slot = find(ngram, offset, length);
+            return slot < 0 ? Double.NaN : probCodebook[length - 1][tables[length - 1].prob(slot)];
+        }
+
+        public double backoff(int[] ngram, int offset, int length) {
+            if (length >= order) {
+                return 0.0;
+            }
+            final long slot = find(ngram, offset, length);
+            return slot < 0 ? 0.0 : backoffCodebook[length - 1][tables[length - 1].backoff(slot)];
+        }
+    };
+
+    private RandomisedLanguageModel(Object2IntMap<String> wordMap, Int2ObjectMap<String> invWordMap, int fingerprintBits, int quantBits, Table[] tables, float[][] probCodebook, float[][] backoffCodebook) {
+        this.wordMap = wordMap;
+        this.invWordMap = invWordMap;
+        this.order = tables.length;
+        this.fingerprintBits = fingerprintBits;
+        this.quantBits = quantBits;
+        this.tables = tables;
+        this.probCodebook = probCodebook;
+        this.backoffCodebook = backoffCodebook;
+    }
+
+    /**
+     * Map a model written by {@link Builder#compile(File, File)}
+     */
+    public static RandomisedLanguageModel open(File file) throws IOException {
+        final MappedFile data = new MappedFile(file);
+        if (data.length() < HEADER || data.getLong(0) != MAGIC) {
+            throw new IOException(file.getPath() + " is not a randomised language model");
+        }
+        if (data.getInt(8) != VERSION) {
+            throw new IOException(file.getPath() + " was compiled by an incompatible version, please delete");
+        }
+        final int order = data.getInt(12);
+        final int vocabSize = data.getInt(16);
+        final int fingerprintBits = data.getInt(20);
+        final int quantBits = data.getInt(24);
+        final Table[] tables = new Table[order];
+        final float[][] probCodebook = new float[order][];
+        final float[][] backoffCodebook = new float[order][];
+        long pos = HEADER;
+        final long[] slots = new long[order];
+        for (int k = 0; k < order; k++) {
+            slots[k] = data.getLong(pos);
+            pos += 8;
+            probCodebook[k] = new float[1 << quantBits];
+            backoffCodebook[k] = new float[1 << quantBits];
+            for (int i = 0; i < probCodebook[k].length; i++) {
+                probCodebook[k][i] = data.getFloat(pos + 4 * i);
+                backoffCodebook[k][i] = data.getFloat(pos + 4 * (i + probCodebook[k].length));
+            }
+            pos += 8 << quantBits;
+        }
+        for (int k = 0; k < order; k++) {
+            tables[k] = new Table(slots[k], fingerprintBits, quantBits, k + 1 < order, data, pos);
+            pos += 8 * tables[k].words();
+        }
+        final Object2IntMap<String> wordMap = new Object2IntOpenHashMap<String>(vocabSize);
+        final Int2ObjectMap<String> invWordMap = new Int2ObjectOpenHashMap<String>(vocabSize);
+        for (int w = 1; w <= vocabSize; w++) {
+            final int len = data.getInt(pos);
+            pos += 4;
+            final byte[] b = new byte[len];
+            for (int i = 0; i < len; i++) {
+                b[i] = data.get(pos++);
+            }
+            pos = (pos + 3) & ~3l;
+            final String word = new String(b, "UTF-8");
+            wordMap.put(word, w);
+            invWordMap.put(w, word);
+        }
+        return new RandomisedLanguageModel(wordMap, invWordMap, fingerprintBits, quantBits, tables, probCodebook, backoffCodebook);
+    }
+
+    private long find(int[] p, int offset, int length) {
+        if (length == 0 || length > order) {
+            return -1;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            if (p[i] <= 0 || p[i] > invWordMap.size()) {
+                return -1;
+            }
+        }
+        return tables[length - 1].find(MurmurHash.hash64(p, offset, length));
+    }
+
+    public double[] get(Phrase phrase) {
+        final long slot = find(phrase.p, phrase.l, phrase.n);
+        if (slot < 0) {
+            return null;
+        }
+        final Table table = tables[phrase.n - 1];
+        final double score = probCodebook[phrase.n - 1][table.prob(slot)];
+        final double backoff = phrase.n < order ? backoffCodebook[phrase.n - 1][table.backoff(slot)] : 0.0;
+        if (backoff == 0.0) {
+            return new double[]{score};
+        } else {
+            return new double[]{score, backoff};
+        }
+    }
+
+    public double score(LMState in, int word, double unk, LMState out) {
+        return LMState.score(probe, in, word, unk, out);
+    }
+
+    /**
+     * The memory used by the n-gram tables in bytes
+     */
+    public long tableBytes() {
+        long bytes = 0;
+        for (Table table : tables) {
+            bytes += 8 * table.words();
+        }
+        return bytes;
+    }
+
+    public int order() {
+        return order;
+    }
+
+    public void close() {
+    }
+
+    public Object2IntMap<String> wordMap() {
+        return wordMap;
+    }
+
+    public Int2ObjectMap<String> invWordMap() {
+        return invWordMap;
+    }
+
+    /**
+     * Bit-packed linear-probing table. Each slot holds a fingerprint (0 for
+     * empty), the probability code and, except for the highest order, the
+     * backoff code.
+     */
+    static final class Table {
+
+        private final long slots;
+        private final int fingerprintBits, quantBits, width;
+        private final long fingerprintMask;
+        private final long[] heap;
+        private final MappedFile data;
+        private final long offset;
+        private long size = 0;
+
+        Table(long slots, int fingerprintBits, int quantBits, boolean backoffs, MappedFile data, long offset) {
+            this.slots = slots;
+            this.fingerprintBits = fingerprintBits;
+            this.quantBits = quantBits;
+            this.width = fingerprintBits + quantBits * (backoffs ? 2 : 1);
+            this.fingerprintMask = (1l << fingerprintBits) - 1;
+            this.data = data;
+            this.offset = offset;
+            if (data == null) {
+                if (words() > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException("Table too large for the heap, compile it to a file instead");
+                }
+                this.heap = new long[(int) words()];
+            } else {
+                this.heap = null;
+            }
+        }
+
+        /**
+         * The number of longs used, including one so reads may overrun the
+         * last slot
+         */
+        long words() {
+            return (slots * width + 63) / 64 + 1;
+        }
+
+        private long word(long i) {
+            return heap != null ? heap[(int) i] : data.getLong(offset + 8 * i);
+        }
+
+        private long bits(long pos, int n) {
+            final long w = pos >>> 6;
+            final int o = (int) (pos & 63);
+            long v = word(w) >>> o;
+            if (o + n > 64) {
+                v |= word(w + 1) << (64 - o);
+            }
+            return n == 64 ? v : v & ((1l << n) - 1);
+        }
+
+        private void setBits(long pos, int n, long value) {
+            final int w = (int) (pos >>> 6);
+            final int o = (int) (pos & 63);
+            heap[w] |= value << o;
+            if (o + n > 64) {
+                heap[w + 1] |= value >>> (64 - o);
+            }
+        }
+
+        private long index(long hash) {
+            return (hash >>> 1) % slots;
+        }
+
+        private long fingerprint(long hash) {
+            final long f = Vocabulary.mix(hash) & fingerprintMask;
+            return f == 0 ? 1 : f;
+        }
+
+        /**
+         * Find the slot of a hash
+         *
+         * @return The slot or -1 if not found
+         */
+        long find(long hash) {
+            if (slots == 0) {
+                return -1;
+            }
+            final long f = fingerprint(hash);
+            long i = index(hash);
+            while (true) {
+                final long v = bits(i * width, fingerprintBits);
+                if (v == 0) {
+                    return -1;
+                } else if (v == f) {
+                    return i;
+                }
+                i = i + 1 == slots ? 0 : i + 1;
+            }
+        }
+
+        void put(long hash, int prob, int backoff) {
+            long i = index(hash);
+            while (bits(i * width, fingerprintBits) != 0) {
+                i = i + 1 == slots ? 0 : i + 1;
+            }
+            setBits(i * width, fingerprintBits, fingerprint(hash));
+            setBits(i * width + fingerprintBits, quantBits, prob);
+            if (width > fingerprintBits + quantBits) {
+                setBits(i * width + fingerprintBits + quantBits, quantBits, backoff);
+            }
+            size++;
+        }
+
+        int prob(long slot) {
+            return (int) bits(slot * width + fingerprintBits, quantBits);
+        }
+
+        int backoff(long slot) {
+            return (int) bits(slot * width + fingerprintBits + quantBits, quantBits);
+        }
+
+        long size() {
+            return size;
+        }
+    }
+
+    /**
+     * Builds a model from an ARPA file in two passes: the first collects the
+     * vocabulary, the n-gram counts and a sample of the values for the
+     * codebooks, the second fills the tables.
+     */
+    public static class Builder {
+
+        // Values sampled for each codebook
+        private static final int SAMPLE = 1 << 20;
+        private static final int TRIALS = 100000;
+        private final double falsePositiveRate;
+        private final int quantBits;
+        private final int fingerprintBits;
+        private double measuredFalsePositiveRate = Double.NaN;
+        private double bitsPerNGram = Double.NaN;
+
+        /**
+         * Create a builder
+         *
+         * @param falsePositiveRate The target rate of false positives
+         * @param quantBits The number of bits to quantize probabilities and
+         * backoffs to (1 to 8)
+         */
+        public Builder(double falsePositiveRate, int quantBits) {
+            if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+                throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+            }
+            this.falsePositiveRate = falsePositiveRate;
+            this.quantBits = quantBits;
+            this.fingerprintBits = Math.max(1, Math.min(32, (int) Math.ceil(Math.log(PROBES / falsePositiveRate) / Math.log(2))));
+        }
+
+        /**
+         * Build a model in the heap
+         */
+        public RandomisedLanguageModel build(File arpa) throws IOException {
+            final Object2IntMap<String> wordMap = new Object2IntOpenHashMap<String>();
+            final Int2ObjectMap<String> invWordMap = new Int2ObjectOpenHashMap<String>();
+            final Random random = new Random(arpa.getPath().hashCode());
+            // First pass
+            long[] counts = new long[0];
+            float[][] probSample = new float[0][], backoffSample = new float[0][];
+            ARPAReader in = new ARPAReader(arpa);
+            try {
+                while (in.next()) {
+                    final String[] words = in.words();
+                    final int k = words.length - 1;
+                    if (k >= counts.length) {
+                        counts = grow(counts, k + 1);
+                        probSample = grow(probSample, k + 1);
+                        backoffSample = grow(backoffSample, k + 1);
+                    }
+                    if (k == 0 && !wordMap.containsKey(words[0])) {
+                        final int w = wordMap.size() + 1;
+                        wordMap.put(words[0], w);
+                        invWordMap.put(w, words[0]);
+                    }
+                    // Reservoir sample of the values
+                    final long c = counts[k]++;
+                    final int i = c < SAMPLE ? (int) c : (int) (random.nextDouble() * (c + 1));
+                    if (i < SAMPLE) {
+                        probSample[k][i] = (float) in.score();
+                        backoffSample[k][i] = (float) in.backoff();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            final int order = counts.length;
+            final Table[] tables = new Table[order];
+            final float[][] probCodebook = new float[order][];
+            final float[][] backoffCodebook = new float[order][];
+            for (int k = 0; k < order; k++) {
+                final int n = (int) Math.min(counts[k], SAMPLE);
+                probCodebook[k] = Quantizer.codebook(probSample[k], n, quantBits, false);
+                backoffCodebook[k] = Quantizer.codebook(backoffSample[k], n, quantBits, true);
+                tables[k] = new Table(counts[k] == 0 ? 0 : (long) Math.ceil(counts[k] / LOAD) + 1, fingerprintBits, quantBits, k + 1 < order, null, 0);
+            }
+            probSample = backoffSample = null;
+            // Second pass
+            long skipped = 0;
+            double error = 0.0;
+            int[] ids = new int[order];
+            in = new ARPAReader(arpa);
+            try {
+                while (in.next()) {
+                    final String[] words = in.words();
+                    boolean known = true;
+                    for (int j = 0; j < words.length; j++) {
+                        ids[j] = wordMap.containsKey(words[j]) ? wordMap.getInt(words[j]) : 0;
+                        known = known && ids[j] != 0;
+                    }
+                    if (!known) {
+                        skipped++;
+                        continue;
+                    }
+                    final int k = words.length - 1;
+                    final int prob = Quantizer.encode(probCodebook[k], (float) in.score());
+                    error += Math.abs(probCodebook[k][prob] - in.score());
+                    tables[k].put(MurmurHash.hash64(ids, 0, words.length), prob, Quantizer.encode(backoffCodebook[k], (float) in.backoff()));
+                }
+            } finally {
+                in.close();
+            }
+            if (skipped > 0) {
+                System.err.println(String.format("Skipped %d n-grams containing words with no unigram", skipped));
+            }
+            final RandomisedLanguageModel model = new RandomisedLanguageModel(wordMap, invWordMap, fingerprintBits, quantBits, tables, probCodebook, backoffCodebook);
+            // Hashes not of any n-gram measure the false positive rate
+            long ngrams = 0, falsePositives = 0, trials = 0;
+            for (Table table : tables) {
+                ngrams += table.size();
+                if (table.size() > 0) {
+                    for (int t = 0; t < TRIALS; t++) {
+                        if (table.find(random.nextLong()) >= 0) {
+                            falsePositives++;
+                        }
+                    }
+                    trials += TRIALS;
+                }
+            }
+            measuredFalsePositiveRate = trials == 0 ? 0.0 : (double) falsePositives / trials;
+            bitsPerNGram = ngrams == 0 ? 0.0 : 8.0 * model.tableBytes() / ngrams;
+            System.err.println(String.format("Randomised language model: %d n-grams in %d bytes (%.1f bits per n-gram), "
+                    + "false positive rate %.5f (target %.5f), mean quantization error %.5f",
+                    ngrams, model.tableBytes(), bitsPerNGram, measuredFalsePositiveRate, falsePositiveRate,
+                    ngrams == 0 ? 0.0 : error / ngrams));
+            return model;
+        }
+
+        /**
+         * Build a model and write it to a file to be mapped by
+         * {@link RandomisedLanguageModel#open(File)}
+         */
+        public void compile(File arpa, File out) throws IOException {
+            build(arpa).write(out);
+        }
+
+        /**
+         * The false positive rate measured for the last model built
+         */
+        public double measuredFalsePositiveRate() {
+            return measuredFalsePositiveRate;
+        }
+
+        /**
+         * The memory per n-gram (in bits) of the last model built
+         */
+        public double bitsPerNGram() {
+            return bitsPerNGram;
+        }
+
+        private static long[] grow(long[] a, int n) {
+            final long[] b = new long[n];
+            System.arraycopy(a, 0, b, 0, a.length);
+            return b;
+        }
+
+        private static float[][] grow(float[][] a, int n) {
+            final float[][] b = new float[n][];
+            System.arraycopy(a, 0, b, 0, a.length);
+            for (int i = a.length; i < n; i++) {
+                b[i] = new float[SAMPLE];
+            }
+            return b;
+        }
+
+        public static void main(String[] args) throws Exception {
+            double falsePositiveRate = 0.004;
+            int quantBits = 8;
+            int i = 0;
+            while (i + 1 < args.length && args[i].startsWith("-")) {
+                if (args[i].equals("-e")) {
+                    falsePositiveRate = Double.parseDouble(args[i + 1]);
+                } else if (args[i].equals("-q")) {
+                    quantBits = Integer.parseInt(args[i + 1]);
+                } else {
+                    break;
+                }
+                i += 2;
+            }
+            if (args.length != i + 2) {
+                System.err.println("Usage: RandomisedLanguageModel$Builder [-e falsePositiveRate] [-q bits] model.arpa[.gz] model.rlm");
+                System.exit(-1);
+            }
+            new Builder(falsePositiveRate, quantBits).compile(new File(args[i]), new File(args[i + 1]));
+        }
+    }
+
+    private void write(File file) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(order);
+            out.writeInt(invWordMap.size());
+            out.writeInt(fingerprintBits);
+            out.writeInt(quantBits);
+            out.writeInt(0);
+            for (int k = 0; k < order; k++) {
+                out.writeLong(tables[k].slots);
+                for (float f : probCodebook[k]) {
+                    out.writeFloat(f);
+                }
+                for (float f : backoffCodebook[k]) {
+                    out.writeFloat(f);
+                }
+            }
+            for (Table table : tables) {
+                for (long w : table.heap) {
+                    out.writeLong(w);
+                }
+            }
+            for (int w = 1; w <= invWordMap.size(); w++) {
+                final byte[] b = invWordMap.get(w).getBytes("UTF-8");
+                out.writeInt(b.length);
+                out.write(b);
+                // Keep the lengths aligned
+                out.write(new byte[(4 - b.length % 4) % 4]);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static class Factory implements LanguageModelFactory {
+
+        private final double falsePositiveRate;
+        private final int quantBits;
+
+        public Factory() {
+            this(Double.parseDouble(System.getProperty("fidel.lm.fprate", "0.004")),
+                    Integer.parseInt(System.getProperty("fidel.lm.quantbits", "8")));
+        }
+
+        /**
+         * Create a factory
+         *
+         * @param falsePositiveRate The target false positive rate when
+         * compiling
+         * @param quantBits The number of bits to quantize values to when
+         * compiling (0 is taken as 8, as values are always quantized)
+         */
+        public Factory(double falsePositiveRate, int quantBits) {
+            this.falsePositiveRate = falsePositiveRate;
+            this.quantBits = quantBits > 0 ? quantBits : 8;
+        }
+
+        public RandomisedLanguageModel getModel(File file) {
+            try {
+                if (file.getPath().endsWith(".rlm")) {
+                    return open(file);
+                }
+                final File rlmFile;
+                if (file.getPath().endsWith(".gz")) {
+                    rlmFile = new File(file.getPath().substring(0, file.getPath().length() - 3) + ".rlm");
+                } else {
+                    rlmFile = new File(file.getPath() + ".rlm");
+                }
+                if (rlmFile.exists()) {
+                    System.err.println(String.format("Reusing compiled model %s. Delete this file if out of date.", rlmFile.getPath()));
+                } else {
+                    System.err.println("Compiling randomised language model");
+                    new Builder(falsePositiveRate, quantBits).compile(file, rlmFile);
+                }
+                return open(rlmFile);
+            } catch (IOException x) {
+                throw new RuntimeException(x);
+            }
+        }
+    }
+}
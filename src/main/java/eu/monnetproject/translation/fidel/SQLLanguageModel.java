@@ -27,11 +27,10 @@
 package eu.monnetproject.translation.fidel;
 
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectRBTreeMap;
 import it.unimi.dsi.fastutil.objects.Object2IntMap;
-import it.unimi.dsi.fastutil.objects.Object2IntRBTreeMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -39,19 +38,31 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Scanner;
-import java.util.zip.GZIPInputStream;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
  * @author John McCrae
  */
-public class SQLLanguageModel implements IntegerLanguageModel {
+public class SQLLanguageModel implements IncrementalLanguageModel {
 
-    private final Object2IntMap<String> wordMap;
-    private final Int2ObjectMap<String> invWordMap;
+    private final Vocabulary vocabulary;
     private final int order;
     private final Connection conn;
+    private final BloomFilter filter;
+    private final AtomicLong filterHits = new AtomicLong(), filterMisses = new AtomicLong(), falsePositives = new AtomicLong();
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("fidel.verbose", "false"));
+    private final LMState.Probe probe = new LMState.Probe() {
+        public double prob(int[] ngram, int offset, int length) {
+            final double[] r = lookup(ngram, offset, length);
+            return r == null ? Double.NaN : r[0];
+        }
+
+        public double backoff(int[] ngram, int offset, int length) {
+            final double[] r = lookup(ngram, offset, length);
+            return r == null || r.length < 2 ? 0.0 : r[1];
+        }
+    };
 
     static {
         try {
@@ -61,10 +72,10 @@ public class SQLLanguageModel implements IntegerLanguageModel {
         }
     }
 
-    private SQLLanguageModel(Object2IntMap<String> wordMap, Int2ObjectMap<String> invWordMap, int order, File dbFile) {
-        this.wordMap = wordMap;
-        this.invWordMap = invWordMap;
+    private SQLLanguageModel(Vocabulary vocabulary, int order, File dbFile, BloomFilter filter) {
+        this.vocabulary = vocabulary;
         this.order = order;
+        this.filter = filter;
         try {
             this.conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
         } catch (SQLException x) {
@@ -73,15 +84,30 @@ public class SQLLanguageModel implements IntegerLanguageModel {
     }
 
     public double[] get(Phrase phrase) {
+        return lookup(phrase.p, phrase.l, phrase.n);
+    }
+
+    public double score(LMState in, int word, double unk, LMState out) {
+        return LMState.score(probe, in, word, unk, out);
+    }
+
+    private double[] lookup(int[] p, int offset, int length) {
+        if (filter != null) {
+            if (!filter.mightContain(p, offset, length)) {
+                filterMisses.incrementAndGet();
+                return null;
+            }
+            filterHits.incrementAndGet();
+        }
         try {
             final PreparedStatement statement = this.conn.prepareStatement("select score, backoff from language_model where ngram=?");
             final StringBuilder sb = new StringBuilder();
             boolean first = true;
-            for(int i = phrase.l; i < phrase.l + phrase.n; i++) {
+            for(int i = offset; i < offset + length; i++) {
                 if (!first) {
                     sb.append(" ");
                 }
-                sb.append(phrase.p[i]);
+                sb.append(p[i]);
                 first = false;
             }
             statement.setString(1, sb.toString());
@@ -97,6 +123,9 @@ public class SQLLanguageModel implements IntegerLanguageModel {
                 }
             } else {
                 statement.close();
+                if (filter != null) {
+                    falsePositives.incrementAndGet();
+                }
                 return null;
             }
         } catch (SQLException x) {
@@ -104,7 +133,32 @@ public class SQLLanguageModel implements IntegerLanguageModel {
         }
     }
 
+    /**
+     * The number of queries the Bloom filter passed on to the database
+     */
+    public long filterHits() {
+        return filterHits.get();
+    }
+
+    /**
+     * The number of queries the Bloom filter answered without the database
+     */
+    public long filterMisses() {
+        return filterMisses.get();
+    }
+
+    /**
+     * The number of queries the Bloom filter passed on to the database that
+     * were not found
+     */
+    public long falsePositives() {
+        return falsePositives.get();
+    }
+
     public void close() {
+        if (verbose && filter != null) {
+            System.err.println(String.format("Bloom filter: %d misses, %d hits (%d false positives)", filterMisses.get(), filterHits.get(), falsePositives.get()));
+        }
         try {
             if (conn != null) {
                 conn.close();
@@ -119,18 +173,45 @@ public class SQLLanguageModel implements IntegerLanguageModel {
     }
 
     public Object2IntMap<String> wordMap() {
-        return wordMap;
+        return vocabulary.asMap();
     }
 
     public Int2ObjectMap<String> invWordMap() {
-        return invWordMap;
+        return vocabulary.asInverseMap();
+    }
+
+    private static final class NGram {
+
+        final String[] words;
+        final double score, backoff;
+
+        public NGram(String[] words, double score, double backoff) {
+            this.words = words;
+            this.score = score;
+            this.backoff = backoff;
+        }
     }
 
     public static class Factory implements LanguageModelFactory {
 
-        private final Object2IntMap<String> wordMap = new Object2IntRBTreeMap<String>();
-        private final Int2ObjectMap<String> invWordMap = new Int2ObjectRBTreeMap<String>();
+        private Vocabulary vocabulary;
         private int n = 0;
+        private final double bloomFalsePositiveRate;
+
+        public Factory() {
+            this(Double.parseDouble(System.getProperty("fidel.lm.bloom", "0")));
+        }
+
+        /**
+         * Create a factory
+         *
+         * @param bloomFalsePositiveRate The false positive rate of the Bloom
+         * filter used to skip queries for n-grams not in the model, or 0 for
+         * no filter
+         */
+        public Factory(double bloomFalsePositiveRate) {
+            this.bloomFalsePositiveRate = bloomFalsePositiveRate;
+        }
 
         public SQLLanguageModel getModel(File file) {
 
@@ -142,14 +223,16 @@ public class SQLLanguageModel implements IntegerLanguageModel {
             if (file.getPath().endsWith(".db")) {
                 try {
                     init(file);
+                    return new SQLLanguageModel(vocabulary, n, file, loadFilter(file));
+                } catch (IOException x) {
+                    throw new RuntimeException(x);
                 } catch (SQLException x) {
                     throw new RuntimeException(x);
                 }
-                return new SQLLanguageModel(wordMap, invWordMap, n, file);
             } else {
                 try {
                     final File dbFile = loadDB(file);
-                    return new SQLLanguageModel(wordMap, invWordMap, n, dbFile);
+                    return new SQLLanguageModel(vocabulary, n, dbFile, loadFilter(dbFile));
                 } catch (IOException x) {
                     throw new RuntimeException(x);
                 } catch (SQLException x) {
@@ -160,13 +243,10 @@ public class SQLLanguageModel implements IntegerLanguageModel {
 
         private File loadDB(File file) throws IOException, SQLException {
             final File dbFile;
-            final Scanner in;
             if (file.getPath().endsWith(".gz")) {
                 dbFile = new File(file.getPath().substring(0, file.getPath().length() - 3) + ".db");
-                in = new Scanner(new GZIPInputStream(new FileInputStream(file)));
             } else {
                 dbFile = new File(file.getPath() + ".db");
-                in = new Scanner(file);
             }
             if (dbFile.exists()) {
                 System.err.println(String.format("Reusing database %s. Delete this file if out of date.", dbFile.getPath()));
@@ -181,59 +261,168 @@ public class SQLLanguageModel implements IntegerLanguageModel {
                 throw new RuntimeException("SQLite JDBC Drive not available", x);
             }
             final Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
-            conn.setAutoCommit(false);
             final Statement stat = conn.createStatement();
+            BulkLoader.relax(stat);
+            conn.setAutoCommit(false);
             stat.execute("create table language_model (ngram text, score real, backoff real);");
-            stat.execute("create index language_model_ngram on [language_model] (ngram)");
             stat.execute("create table word_map (word text, id integer)");
             stat.execute("create table ngram_order (value integer)");
-            final PreparedStatement insert = conn.prepareStatement("insert into language_model values (?,?,?)");
-            final PreparedStatement wordMapInsert = conn.prepareStatement("insert into word_map values (?,?)");
-            int i = 0;
-            int w = 0;
-            while (in.hasNextLine()) {
-                final String[] elems = in.nextLine().split("\t");
-                if (elems.length == 2 || elems.length == 3) {
-                    final StringBuilder sb = new StringBuilder();
-                    boolean first = true;
-                    final String[] words = elems[1].split(" ");
-                    for (String word : words) {
-                        if (!first) {
-                            sb.append(" ");
-                        }
-                        if (wordMap.containsKey(word)) {
-                            sb.append(wordMap.getInt(word));
-                        } else {
-                            w++;
-                            wordMap.put(word, w);
-                            invWordMap.put(w, word);
-                            wordMapInsert.setString(1, word);
-                            wordMapInsert.setInt(2, w);
-                            wordMapInsert.execute();
-                            sb.append(w);
-                        }
-                        first = false;
-                    }
-                    n = Math.max(n, words.length);
-                    insert.setString(1, sb.toString());
-                    insert.setDouble(2, Double.parseDouble(elems[0]));
-                    insert.setDouble(3, elems.length == 3 ? Double.parseDouble(elems[2]) : 0.0);
-                    insert.execute();
-                } // else { ignore }
-                if (i++ % 1000000 == 999999) {
-                    System.err.println(String.format("Line %d", i));
-                }
-            }
+            final Loader loader = new Loader(conn.prepareStatement("insert into language_model values (?,?,?)"),
+                    conn.prepareStatement("insert into word_map values (?,?)"));
+            loader.load(LineReader.open(file));
+            loader.insert.close();
+            loader.wordMapInsert.close();
+            System.err.println("Indexing language model");
+            stat.execute("create index language_model_ngram on [language_model] (ngram)");
             stat.execute("insert into ngram_order values (" + n + ")");
             conn.commit();
             conn.setAutoCommit(true);
             stat.close();
-            insert.close();
             conn.close();
+            Vocabulary.write(vocabularyFile(dbFile), loader.words);
+            vocabulary = Vocabulary.open(vocabularyFile(dbFile));
             return dbFile;
         }
 
-        private void init(File file) throws SQLException {
+        private static File vocabularyFile(File dbFile) {
+            return new File(dbFile.getPath() + ".vocab");
+        }
+
+        /**
+         * Loads an ARPA file, or a file of "score\tngram[\tbackoff]" lines if it
+         * has no section headers. Words are numbered in order of first
+         * appearance.
+         */
+        private class Loader extends BulkLoader<NGram> {
+
+            private final PreparedStatement insert, wordMapInsert;
+            private final StringBuilder sb = new StringBuilder();
+            private final Object2IntOpenHashMap<String> ids = new Object2IntOpenHashMap<String>();
+            private final ObjectArrayList<String> words = new ObjectArrayList<String>();
+            // 0 = no headers, -1 = outside an n-gram section
+            private int section = 0;
+
+            public Loader(PreparedStatement insert, PreparedStatement wordMapInsert) {
+                this.insert = insert;
+                this.wordMapInsert = wordMapInsert;
+            }
+
+            @Override
+            protected boolean accept(String line) {
+                if (line.startsWith("\\")) {
+                    final String t = line.trim();
+                    if (t.endsWith("-grams:")) {
+                        section = Integer.parseInt(t.substring(1, t.indexOf('-')));
+                    } else {
+                        // \data\ or \end\
+                        section = -1;
+                    }
+                    return false;
+                }
+                return section >= 0;
+            }
+
+            @Override
+            protected int context() {
+                return section;
+            }
+
+            @Override
+            protected NGram parse(String line, int section) {
+                if (section == 0) {
+                    final String[] elems = line.split("\t");
+                    if (elems.length != 2 && elems.length != 3) {
+                        return null;
+                    }
+                    return new NGram(elems[1].split(" "), Double.parseDouble(elems[0]),
+                            elems.length == 3 ? Double.parseDouble(elems[2]) : 0.0);
+                } else {
+                    final String[] elems = line.trim().split("\\s+");
+                    if (elems.length < section + 1) {
+                        // blank line or truncated entry
+                        return null;
+                    }
+                    final String[] words = new String[section];
+                    System.arraycopy(elems, 1, words, 0, section);
+                    return new NGram(words, Double.parseDouble(elems[0]),
+                            elems.length > section + 1 ? Double.parseDouble(elems[section + 1]) : 0.0);
+                }
+            }
+
+            @Override
+            protected void insert(NGram ngram) throws SQLException {
+                sb.setLength(0);
+                for (String word : ngram.words) {
+                    if (sb.length() > 0) {
+                        sb.append(" ");
+                    }
+                    final int id = ids.getInt(word);
+                    if (id != 0) {
+                        sb.append(id);
+                    } else {
+                        words.add(word);
+                        final int w = words.size();
+                        ids.put(word, w);
+                        wordMapInsert.setString(1, word);
+                        wordMapInsert.setInt(2, w);
+                        wordMapInsert.addBatch();
+                        sb.append(w);
+                    }
+                }
+                n = Math.max(n, ngram.words.length);
+                insert.setString(1, sb.toString());
+                insert.setDouble(2, ngram.score);
+                insert.setDouble(3, ngram.backoff);
+                insert.addBatch();
+            }
+
+            @Override
+            protected void flush() throws SQLException {
+                wordMapInsert.executeBatch();
+                insert.executeBatch();
+            }
+        }
+
+        /**
+         * Load the Bloom filter stored next to the database, building it if
+         * it does not exist, is older than the database or was built for a
+         * different false positive rate
+         */
+        private BloomFilter loadFilter(File dbFile) throws IOException, SQLException {
+            if (bloomFalsePositiveRate <= 0.0) {
+                return null;
+            }
+            final File filterFile = new File(dbFile.getPath() + ".bloom");
+            if (filterFile.exists() && filterFile.lastModified() >= dbFile.lastModified()) {
+                final BloomFilter filter = BloomFilter.read(filterFile);
+                if (filter.falsePositiveRate() == bloomFalsePositiveRate) {
+                    return filter;
+                }
+            }
+            System.err.println("Building Bloom filter for language model");
+            final Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+            final Statement stat = conn.createStatement();
+            final ResultSet rs1 = stat.executeQuery("select count(*) from language_model");
+            final BloomFilter filter = new BloomFilter(rs1.next() ? rs1.getLong(1) : 0, bloomFalsePositiveRate);
+            final ResultSet rs2 = stat.executeQuery("select ngram from language_model");
+            int[] ngram = new int[n];
+            while (rs2.next()) {
+                final String[] ids = rs2.getString(1).split(" ");
+                if (ids.length > ngram.length) {
+                    ngram = new int[ids.length];
+                }
+                for (int i = 0; i < ids.length; i++) {
+                    ngram[i] = Integer.parseInt(ids[i]);
+                }
+                filter.put(ngram, 0, ids.length);
+            }
+            stat.close();
+            conn.close();
+            filter.write(filterFile);
+            return filter;
+        }
+
+        private void init(File file) throws IOException, SQLException {
             final Connection conn = DriverManager.getConnection("jdbc:sqlite:" + file.getAbsolutePath());
             final Statement stat = conn.createStatement();
             final ResultSet rs1 = stat.executeQuery("select value from ngram_order");
@@ -241,15 +430,23 @@ public class SQLLanguageModel implements IntegerLanguageModel {
                 throw new RuntimeException("Language model database corrupt, please delete");
             }
             n = rs1.getInt(1);
-            final ResultSet rs2 = stat.executeQuery("select * from word_map");
-            while (rs2.next()) {
-                final String word = rs2.getString("word");
-                final int id = rs2.getInt("id");
-                wordMap.put(word, id);
-                invWordMap.put(id, word);
+            final File vocabularyFile = vocabularyFile(file);
+            if (!vocabularyFile.exists() || vocabularyFile.lastModified() < file.lastModified()) {
+                // Databases built before the vocabulary file was introduced
+                System.err.println("Building vocabulary for language model");
+                final ResultSet rs2 = stat.executeQuery("select word, id from word_map order by id");
+                final ObjectArrayList<String> words = new ObjectArrayList<String>();
+                while (rs2.next()) {
+                    if (rs2.getInt("id") != words.size() + 1) {
+                        throw new RuntimeException("Language model database corrupt, please delete");
+                    }
+                    words.add(rs2.getString("word"));
+                }
+                Vocabulary.write(vocabularyFile, words);
             }
             stat.close();
             conn.close();
+            vocabulary = Vocabulary.open(vocabularyFile);
         }
     }
 }
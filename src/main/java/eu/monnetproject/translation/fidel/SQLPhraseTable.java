@@ -27,8 +27,12 @@
 package eu.monnetproject.translation.fidel;
 
 import eu.monnetproject.translation.fidel.Fidel.Feature;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -37,21 +41,37 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Scanner;
-import java.util.zip.GZIPInputStream;
 
 /**
+ * A phrase table stored in an SQLite database. Source phrases, target
+ * phrases and scores are stored as blobs of packed word ids and base 10 log
+ * scores, so lookups need no parsing or tokenization, with the words of each
+ * side in the tables {@code src_words} and {@code trg_words}. Every prefix of
+ * a source phrase is recorded, so a lookup stops extending a span as soon as
+ * no phrase starts with it. Each span costs one query, which finds whether it
+ * is a prefix and, if it is a whole phrase, its translations. Databases in the first version of the schema (one
+ * row of strings per phrase pair) are upgraded when opened.
  *
  * @author John McCrae
  */
-public class SQLPhraseTable implements PhraseTable {
+public class SQLPhraseTable implements IntegerPhraseTable {
 
+    static final int SCHEMA_VERSION = 2;
     private final String foreignLanguage, translationLanguage;
     private final String[] features;
     private final Connection conn;
+    private final PreparedStatement trgWordStat, spanStat;
+    // The most words looked up by one query (SQLite allows 999 parameters)
+    private static final int MAX_WORDS_PER_QUERY = 500;
     private static final boolean verbose = Boolean.parseBoolean(System.getProperty("fidel.verbose", "false"));
+    private long queries = 0, skipped = 0;
+    // The ids in the decoder's target vocabulary of the table's target words
+    private Vocabulary remapVocabulary;
+    private final Int2IntOpenHashMap remap = new Int2IntOpenHashMap();
 
     static {
         try {
@@ -67,6 +87,18 @@ public class SQLPhraseTable implements PhraseTable {
         this.features = features;
         try {
             this.conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
+            final int version = schemaVersion(conn);
+            if (version == 1) {
+                System.err.println(String.format("Upgrading %s to the current schema", dbFile.getPath()));
+                upgrade(conn);
+            } else if (version != SCHEMA_VERSION) {
+                throw new RuntimeException(String.format("%s is not a phrase table database", dbFile.getPath()));
+            }
+            this.trgWordStat = conn.prepareStatement("select word from trg_words where id=?");
+            // No rows if the span is not a prefix, a row with full = 0 if it
+            // is only a prefix, and otherwise its translations
+            this.spanStat = conn.prepareStatement("select 0, null, null from phrase_prefix where prefix=? and full=0"
+                    + " union all select * from (select 1, translation, scores from phrase_table where forin=? order by approx desc limit ?)");
         } catch (SQLException x) {
             throw new RuntimeException("Could not connect to database", x);
         }
@@ -80,15 +112,62 @@ public class SQLPhraseTable implements PhraseTable {
         return translationLanguage;
     }
 
-    public void close() {
+    public synchronized void close() {
         try {
+            trgWordStat.close();
+            spanStat.close();
             conn.close();
         } catch(SQLException x) {
             x.printStackTrace();
         }
     }
-    
-    
+
+    private static int schemaVersion(Connection conn) throws SQLException {
+        final Statement stat = conn.createStatement();
+        try {
+            ResultSet rs = stat.executeQuery("select name from sqlite_master where type='table' and name='fidel_schema'");
+            final boolean versioned = rs.next();
+            rs.close();
+            if (versioned) {
+                rs = stat.executeQuery("select version from fidel_schema");
+                final int version = rs.next() ? rs.getInt(1) : 0;
+                rs.close();
+                return version;
+            }
+            rs = stat.executeQuery("select name from sqlite_master where type='table' and name='phrase_table'");
+            final boolean v1 = rs.next();
+            rs.close();
+            return v1 ? 1 : 0;
+        } finally {
+            stat.close();
+        }
+    }
+
+    // Convert the rows of the first schema (forin text, translation text, scores text)
+    private static void upgrade(Connection conn) throws SQLException {
+        final Statement stat = conn.createStatement();
+        BulkLoader.relax(stat);
+        conn.setAutoCommit(false);
+        stat.execute("alter table phrase_table rename to phrase_table_v1");
+        stat.execute("drop table if exists phrase_prefix");
+        final SchemaWriter writer = new SchemaWriter(conn);
+        final ResultSet rs = stat.executeQuery("select forin, translation, scores from phrase_table_v1 order by forin");
+        long rows = 0;
+        while (rs.next()) {
+            writer.insert(parseRow(rs.getString(1), rs.getString(2), rs.getString(3)));
+            if (++rows % 10000 == 0) {
+                writer.flush();
+            }
+        }
+        rs.close();
+        writer.flush();
+        stat.execute("drop table phrase_table_v1");
+        writer.finish();
+        conn.commit();
+        conn.setAutoCommit(true);
+        stat.execute("vacuum");
+        stat.close();
+    }
 
     private String mkString(List<String> terms, int i, int j) {
         boolean first = true;
@@ -103,42 +182,353 @@ public class SQLPhraseTable implements PhraseTable {
         return sb.toString();
     }
 
-    private PhraseTableEntry mkPTE(ResultSet rs, String source) throws SQLException {
+    static byte[] pack(int[] ids, int from, int to) {
+        final byte[] b = new byte[4 * (to - from)];
+        for (int i = from; i < to; i++) {
+            final int v = ids[i];
+            final int o = 4 * (i - from);
+            b[o] = (byte) (v >>> 24);
+            b[o + 1] = (byte) (v >>> 16);
+            b[o + 2] = (byte) (v >>> 8);
+            b[o + 3] = (byte) v;
+        }
+        return b;
+    }
 
-        final String translation = rs.getString("translation");
-        final String[] scores = rs.getString("scores").split(" ");
-        final Feature[] fs = new Feature[scores.length];
-        for (int i = 0; i < scores.length; i++) {
-            fs[i] = new Feature(features[i], Math.log10(Double.parseDouble(scores[i])));
+    static int unpack(byte[] b, int i) {
+        return ((b[4 * i] & 0xff) << 24) | ((b[4 * i + 1] & 0xff) << 16) | ((b[4 * i + 2] & 0xff) << 8) | (b[4 * i + 3] & 0xff);
+    }
+
+    /**
+     * Receives the translations of each span found by {@link #walk}
+     */
+    private static abstract class SpanVisitor {
+
+        /**
+         * Read the translations of a span
+         *
+         * @param rs The translations (in the second and third columns), on
+         * the first of them
+         */
+        abstract void visit(int i, int j, ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * The ids of the words of a sentence in the table, looked up together
+     *
+     * @return The ids, with 0 for a word not in the table
+     */
+    private int[] srcIds(List<String> terms) throws SQLException {
+        final Object2IntOpenHashMap<String> found = new Object2IntOpenHashMap<String>();
+        final ObjectArrayList<String> words = new ObjectArrayList<String>(new LinkedHashSet<String>(terms));
+        for (int from = 0; from < words.size(); from += MAX_WORDS_PER_QUERY) {
+            final int to = Math.min(words.size(), from + MAX_WORDS_PER_QUERY);
+            final StringBuilder sql = new StringBuilder("select word, id from src_words where word in (");
+            for (int k = from; k < to; k++) {
+                sql.append(k == from ? "?" : ",?");
+            }
+            final PreparedStatement stat = conn.prepareStatement(sql.append(")").toString());
+            for (int k = from; k < to; k++) {
+                stat.setString(k - from + 1, words.get(k));
+            }
+            final ResultSet rs = stat.executeQuery();
+            queries++;
+            while (rs.next()) {
+                found.put(rs.getString(1), rs.getInt(2));
+            }
+            rs.close();
+            stat.close();
+        }
+        final int[] ids = new int[terms.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = found.getInt(terms.get(i));
         }
-        return new PhraseTableEntry(new Fidel.Label(source, foreignLanguage), new Fidel.Label(translation, translationLanguage), fs);
+        return ids;
     }
 
-    public Iterable<PhraseTableEntry> lookup(List<String> terms) {
+    /**
+     * Query the translations of every span of a sentence which is a source
+     * phrase, stopping at the first span that is not a prefix of one
+     */
+    private void walk(List<String> terms, int maxSize, SpanVisitor visitor) throws SQLException {
+        final int[] ids = srcIds(terms);
+        long q = 0, s = 0;
+        for (int i = 0; i < ids.length; i++) {
+            for (int j = i + 1; j <= ids.length; j++) {
+                if (ids[j - 1] == 0) {
+                    s += ids.length - j + 1;
+                    break;
+                }
+                final byte[] key = pack(ids, i, j);
+                spanStat.setBytes(1, key);
+                spanStat.setBytes(2, key);
+                spanStat.setInt(3, maxSize > 0 ? maxSize : -1);
+                final ResultSet rs = spanStat.executeQuery();
+                q++;
+                if (!rs.next()) {
+                    // Not a prefix, so no longer span starting at i is either
+                    rs.close();
+                    s += ids.length - j;
+                    break;
+                }
+                if (rs.getInt(1) != 0) {
+                    visitor.visit(i, j, rs);
+                }
+                rs.close();
+            }
+        }
+        queries += q;
+        skipped += s;
+        if (verbose) {
+            System.err.println(String.format("Looked up %d spans with %d queries (%d skipped)", ids.length * (ids.length + 1) / 2, q, s));
+        }
+    }
 
+    private String trgWord(int id) throws SQLException {
+        trgWordStat.setInt(1, id);
+        final ResultSet rs = trgWordStat.executeQuery();
+        final String word = rs.next() ? rs.getString(1) : null;
+        rs.close();
+        return word;
+    }
+
+    private int trgId(int id, Vocabulary trgVocabulary) throws SQLException {
+        if (remapVocabulary != trgVocabulary) {
+            remapVocabulary = trgVocabulary;
+            remap.clear();
+        }
+        int v = remap.get(id);
+        if (v == 0) {
+            v = trgVocabulary.add(trgWord(id));
+            remap.put(id, v);
+        }
+        return v;
+    }
+
+    public synchronized Iterable<PhraseTableEntry> lookup(final List<String> terms) {
         try {
-            final PreparedStatement stat = conn.prepareStatement("select translation, scores from phrase_table where forin=?");
             final ArrayList<PhraseTableEntry> result = new ArrayList<PhraseTableEntry>();
-            for (int i = 0; i < terms.size(); i++) {
-                for (int j = i + 1; j <= terms.size(); j++) {
-                    final String query = mkString(terms, i, j);
-                    stat.setString(1, query);
-                    final ResultSet rs = stat.executeQuery();
-                    while (rs.next()) {
-                        result.add(mkPTE(rs, query));
-                    }
+            walk(terms, 0, new SpanVisitor() {
+                void visit(int i, int j, ResultSet rs) throws SQLException {
+                    final String source = mkString(terms, i, j);
+                    do {
+                        final byte[] trg = rs.getBytes(2);
+                        final StringBuilder translation = new StringBuilder();
+                        for (int k = 0; k < trg.length / 4; k++) {
+                            if (k > 0) {
+                                translation.append(" ");
+                            }
+                            translation.append(trgWord(unpack(trg, k)));
+                        }
+                        final byte[] scores = rs.getBytes(3);
+                        final Feature[] fs = new Feature[scores.length / 4];
+                        for (int f = 0; f < fs.length; f++) {
+                            fs[f] = new Feature(f < features.length ? features[f] : null, Float.intBitsToFloat(unpack(scores, f)));
+                        }
+                        result.add(new PhraseTableEntry(new Fidel.Label(source, foreignLanguage), new Fidel.Label(translation.toString(), translationLanguage), fs));
+                    } while (rs.next());
                 }
-            }
+            });
             if(verbose) {
                 System.err.println(String.format("Collected %d translation candidates", result.size()));
             }
-            stat.close();
             return result;
         } catch (SQLException x) {
             throw new RuntimeException(x);
         }
     }
 
+    public synchronized Object2ObjectMap<Phrase, Collection<PhraseTranslation>> lookup(List<String> terms, final int[] src, final Vocabulary trgVocabulary, final String[] featureNames, int maxSize) {
+        // The position in featureNames of each score in the table
+        final int[] featureIndex = new int[features.length];
+        for (int f = 0; f < features.length; f++) {
+            featureIndex[f] = -1;
+            for (int g = 0; g < featureNames.length; g++) {
+                if (features[f].equals(featureNames[g])) {
+                    featureIndex[f] = g;
+                }
+            }
+        }
+        try {
+            final Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>> result = new Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>>();
+            final int[] candidates = new int[1];
+            walk(terms, maxSize, new SpanVisitor() {
+                void visit(int i, int j, ResultSet rs) throws SQLException {
+                    final Phrase phrase = new Phrase(Arrays.copyOfRange(src, i, j));
+                    if (result.containsKey(phrase)) {
+                        return;
+                    }
+                    final ArrayList<PhraseTranslation> translations = new ArrayList<PhraseTranslation>();
+                    do {
+                        final byte[] trgBytes = rs.getBytes(2);
+                        final int[] trg = new int[trgBytes.length / 4];
+                        for (int k = 0; k < trg.length; k++) {
+                            trg[k] = trgId(unpack(trgBytes, k), trgVocabulary);
+                        }
+                        final byte[] scoreBytes = rs.getBytes(3);
+                        final double[] scores = new double[featureNames.length];
+                        for (int f = 0; f < scoreBytes.length / 4 && f < featureIndex.length; f++) {
+                            if (featureIndex[f] >= 0) {
+                                scores[featureIndex[f]] += Float.intBitsToFloat(unpack(scoreBytes, f));
+                            }
+                        }
+                        translations.add(new PhraseTranslation(trg, scores));
+                    } while (rs.next());
+                    candidates[0] += translations.size();
+                    result.put(phrase, translations);
+                }
+            });
+            if (verbose) {
+                System.err.println(String.format("Collected %d translation candidates", candidates[0]));
+            }
+            return result;
+        } catch (SQLException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    /**
+     * The number of queries made by all lookups so far
+     */
+    public long queries() {
+        return queries;
+    }
+
+    /**
+     * The number of spans not queried by all lookups so far, as they
+     * contained a word not in the table or extended a span that was not a
+     * prefix of a source phrase
+     */
+    public long skippedQueries() {
+        return skipped;
+    }
+
+    // A phrase pair, tokenized as by the decoder
+    private static final class Row {
+
+        final String[] source, translation;
+        final byte[] scores;
+        final double approx;
+
+        Row(String[] source, String[] translation, byte[] scores, double approx) {
+            this.source = source;
+            this.translation = translation;
+            this.scores = scores;
+            this.approx = approx;
+        }
+    }
+
+    private static Row parseRow(String source, String translation, String scores) {
+        final String[] s = scores.trim().split(" ");
+        final int[] bits = new int[s.length];
+        double approx = 0.0;
+        for (int i = 0; i < s.length; i++) {
+            final float score = (float) Math.log10(Double.parseDouble(s[i]));
+            bits[i] = Float.floatToIntBits(score);
+            approx += score;
+        }
+        return new Row(FairlyGoodTokenizer.split(source), FairlyGoodTokenizer.split(translation), pack(bits, 0, bits.length), approx);
+    }
+
+    /**
+     * Creates the tables of the current schema and inserts phrase pairs,
+     * numbering words in the order they are first seen
+     */
+    private static final class SchemaWriter {
+
+        private final Connection conn;
+        private final PreparedStatement insert, insertPrefix;
+        private final Object2IntOpenHashMap<String> srcIds = new Object2IntOpenHashMap<String>();
+        private final Object2IntOpenHashMap<String> trgIds = new Object2IntOpenHashMap<String>();
+        private final ObjectArrayList<String> srcWords = new ObjectArrayList<String>();
+        private final ObjectArrayList<String> trgWords = new ObjectArrayList<String>();
+        // Tables are usually sorted by source, so most repeats are adjacent
+        private int[] lastSource = null;
+
+        SchemaWriter(Connection conn) throws SQLException {
+            this.conn = conn;
+            final Statement stat = conn.createStatement();
+            // "foreign" is an SQL keyword, "forin" is creative spelling ;)
+            stat.execute("create table phrase_table (forin blob, translation blob, scores blob, approx real)");
+            // Every prefix of a source phrase, with whether it is a whole phrase;
+            // duplicates are removed after loading
+            stat.execute("create temp table phrase_prefix_load (prefix blob, full integer)");
+            stat.close();
+            this.insert = conn.prepareStatement("insert into phrase_table values (?,?,?,?)");
+            this.insertPrefix = conn.prepareStatement("insert into phrase_prefix_load values (?,?)");
+        }
+
+        private static int[] ids(String[] words, Object2IntOpenHashMap<String> map, List<String> list) {
+            final int[] p = new int[words.length];
+            for (int i = 0; i < words.length; i++) {
+                int id = map.getInt(words[i]);
+                if (id == 0) {
+                    list.add(words[i]);
+                    id = list.size();
+                    map.put(words[i], id);
+                }
+                p[i] = id;
+            }
+            return p;
+        }
+
+        void insert(Row row) throws SQLException {
+            final int[] src = ids(row.source, srcIds, srcWords);
+            insert.setBytes(1, pack(src, 0, src.length));
+            final int[] trg = ids(row.translation, trgIds, trgWords);
+            insert.setBytes(2, pack(trg, 0, trg.length));
+            insert.setBytes(3, row.scores);
+            insert.setDouble(4, row.approx);
+            insert.addBatch();
+            if (!Arrays.equals(src, lastSource)) {
+                for (int n = 1; n <= src.length; n++) {
+                    insertPrefix.setBytes(1, pack(src, 0, n));
+                    insertPrefix.setInt(2, n == src.length ? 1 : 0);
+                    insertPrefix.addBatch();
+                }
+                lastSource = src;
+            }
+        }
+
+        void flush() throws SQLException {
+            insert.executeBatch();
+            insertPrefix.executeBatch();
+        }
+
+        void finish() throws SQLException {
+            insert.close();
+            insertPrefix.close();
+            final Statement stat = conn.createStatement();
+            System.err.println("Indexing phrase table");
+            stat.execute("create index phrase_table_foreign on [phrase_table] (forin)");
+            stat.execute("create table phrase_prefix as select prefix, max(full) as full from phrase_prefix_load group by prefix");
+            stat.execute("drop table phrase_prefix_load");
+            stat.execute("create index phrase_prefix_prefix on [phrase_prefix] (prefix)");
+            stat.execute("create table src_words (id integer primary key, word text)");
+            stat.execute("create table trg_words (id integer primary key, word text)");
+            writeWords("src_words", srcWords);
+            writeWords("trg_words", trgWords);
+            stat.execute("create unique index src_words_word on [src_words] (word)");
+            stat.execute("create table fidel_schema (version integer)");
+            stat.execute("insert into fidel_schema values (" + SCHEMA_VERSION + ")");
+            stat.close();
+        }
+
+        private void writeWords(String table, List<String> words) throws SQLException {
+            final PreparedStatement stat = conn.prepareStatement("insert into " + table + " values (?,?)");
+            for (int i = 0; i < words.size(); i++) {
+                stat.setInt(1, i + 1);
+                stat.setString(2, words.get(i));
+                stat.addBatch();
+                if ((i + 1) % 10000 == 0) {
+                    stat.executeBatch();
+                }
+            }
+            stat.executeBatch();
+            stat.close();
+        }
+    }
+
     public static class Factory implements PhraseTableFactory {
 
         public SQLPhraseTable getPhraseTable(String foreignLanguage, String translationLanguage, String[] featureNames, File file) {
@@ -162,13 +552,10 @@ public class SQLPhraseTable implements PhraseTable {
 
         private File loadDB(File phraseTable) throws IOException, SQLException {
             final File dbFile;
-            final Scanner in;
             if (phraseTable.getPath().endsWith(".gz")) {
                 dbFile = new File(phraseTable.getPath().substring(0, phraseTable.getPath().length() - 3) + ".db");
-                in = new Scanner(new GZIPInputStream(new FileInputStream(phraseTable)));
             } else {
                 dbFile = new File(phraseTable.getPath() + ".db");
-                in = new Scanner(phraseTable);
             }
             if (dbFile.exists()) {
                 System.err.println(String.format("Reusing database %s. Delete this file if out of date.", dbFile.getPath()));
@@ -182,27 +569,31 @@ public class SQLPhraseTable implements PhraseTable {
                 throw new RuntimeException("SQLite JDBC Drive not available", x);
             }
             final Connection conn = DriverManager.getConnection("jdbc:sqlite:" + dbFile.getAbsolutePath());
-            conn.setAutoCommit(false);
             final Statement stat = conn.createStatement();
-            // "foreign" is an SQL keyword, "forin" is creative spelling ;)
-            stat.execute("create table phrase_table (forin text, translation text, scores text);");
-            stat.execute("create index phrase_table_foreign on [phrase_table] (forin)");
-            final PreparedStatement insert = conn.prepareStatement("insert into phrase_table values (?,?,?)");
-            int i = 0;
-            while (in.hasNextLine()) {
-                final String[] elems = in.nextLine().split(" \\|\\|\\| ");
-                insert.setString(1, elems[0]);
-                insert.setString(2, elems[1]);
-                insert.setString(3, elems[2]);
-                insert.execute();
-                if (i++ % 1000000 == 999999) {
-                    System.err.println(String.format("Line %d", i));
+            BulkLoader.relax(stat);
+            stat.close();
+            conn.setAutoCommit(false);
+            final SchemaWriter writer = new SchemaWriter(conn);
+            new BulkLoader<Row>() {
+                @Override
+                protected Row parse(String line, int context) {
+                    final String[] elems = line.split(" \\|\\|\\| ");
+                    return elems.length >= 3 ? parseRow(elems[0], elems[1], elems[2]) : null;
                 }
-            }
+
+                @Override
+                protected void insert(Row row) throws SQLException {
+                    writer.insert(row);
+                }
+
+                @Override
+                protected void flush() throws SQLException {
+                    writer.flush();
+                }
+            }.load(LineReader.open(phraseTable));
+            writer.finish();
             conn.commit();
             conn.setAutoCommit(true);
-            stat.close();
-            insert.close();
             conn.close();
             return dbFile;
         }
@@ -0,0 +1,593 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A language model split across several {@link LMShardServer} processes.
+ * Each n-gram of two or more words belongs to the shard that follows its
+ * hash on a consistent hash ring; every shard holds all the unigrams, so that
+ * all shards number the words in the same way. The n-grams announced by
+ * {@link #prefetch(int[], int, int, int)} are fetched with one round trip per
+ * shard, with all shards queried in parallel.
+ *
+ * @author John McCrae
+ */
+public class ShardedLanguageModel implements IncrementalLanguageModel, PrefetchingLanguageModel {
+
+    private static final double[] MISS = new double[0];
+    // Bound on the results held for one thread between clears
+    private static final int MAX_RESULTS = 1 << 16;
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("fidel.verbose", "false"));
+    private final Shard[] shards;
+    private final Ring ring;
+    private final Object2IntMap<String> wordMap;
+    private final Int2ObjectMap<String> invWordMap;
+    private final long[] wordHashes;
+    private final int order;
+    private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>() {
+        @Override
+        protected Batch initialValue() {
+            return new Batch();
+        }
+    };
+    private final LMState.Probe probe = new LMState.Probe() {
+        public double prob(int[] ngram, int offset, int length) {
+            final double[] r = lookup(ngram, offset, length);
+            return r == null ? Double.NaN : r[0];
+        }
+
+        public double backoff(int[] ngram, int offset, int length) {
+            final double[] r = lookup(ngram, offset, length);
+            return r == null || r.length < 2 ? 0.0 : r[1];
+        }
+    };
+
+    /**
+     * Connect to the shards
+     *
+     * @param addresses The shard servers, in the order used to split the
+     * model
+     */
+    public ShardedLanguageModel(List<InetSocketAddress> addresses) throws IOException {
+        if (addresses.isEmpty()) {
+            throw new IllegalArgumentException("No shards");
+        }
+        this.shards = new Shard[addresses.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard(addresses.get(i));
+        }
+        this.ring = new Ring(shards.length);
+        this.wordMap = new Object2IntOpenHashMap<String>();
+        this.invWordMap = new Int2ObjectOpenHashMap<String>();
+        int o = 0;
+        for (Shard shard : shards) {
+            shard.out.writeByte(LMShardServer.VOCAB);
+            shard.out.flush();
+            o = Math.max(o, shard.in.readInt());
+            final int size = shard.in.readInt();
+            if (shard == shards[0]) {
+                for (int i = 1; i <= size; i++) {
+                    final String word = shard.in.readUTF();
+                    wordMap.put(word, i);
+                    invWordMap.put(i, word);
+                }
+            } else {
+                if (size != invWordMap.size()) {
+                    throw new IOException(String.format("Shard %s has %d words but shard %s has %d", shard, size, shards[0], invWordMap.size()));
+                }
+                for (int i = 1; i <= size; i++) {
+                    final String word = shard.in.readUTF();
+                    if (!word.equals(invWordMap.get(i))) {
+                        throw new IOException(String.format("Shard %s has word %d as %s but shard %s has %s", shard, i, word, shards[0], invWordMap.get(i)));
+                    }
+                }
+            }
+        }
+        this.order = o;
+        this.wordHashes = new long[invWordMap.size() + 1];
+        for (int i = 1; i < wordHashes.length; i++) {
+            wordHashes[i] = Vocabulary.hash(invWordMap.get(i));
+        }
+    }
+
+    public double[] get(Phrase phrase) {
+        return lookup(phrase.p, phrase.l, phrase.n);
+    }
+
+    public double score(LMState in, int word, double unk, LMState out) {
+        return LMState.score(probe, in, word, unk, out);
+    }
+
+    public void prefetch(int[] buf, int from, int to, int lmN) {
+        final Batch batch = batches.get();
+        for (int p = Math.max(from, 0); p < Math.min(to, buf.length); p++) {
+            for (int k = 1; k <= Math.min(p + 1, lmN); k++) {
+                // The n-gram ending at p and its context ending at p - 1
+                request(batch, buf, p + 1 - k, k);
+                if (k > 1) {
+                    request(batch, buf, p + 1 - k, k - 1);
+                }
+            }
+        }
+    }
+
+    public void clearPrefetched() {
+        batches.get().results.clear();
+    }
+
+    private void request(Batch batch, int[] p, int offset, int length) {
+        if (valid(p, offset, length)) {
+            final Phrase key = new Phrase(p, offset, length);
+            if (!batch.results.containsKey(key) && !batch.pending.contains(key)) {
+                batch.pending.add(new Phrase(Arrays.copyOfRange(p, offset, offset + length)));
+            }
+        }
+    }
+
+    // Only n-grams of known words can be in the model
+    private boolean valid(int[] p, int offset, int length) {
+        if (length == 0 || length > order) {
+            return false;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            if (p[i] <= 0 || p[i] >= wordHashes.length) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private double[] lookup(int[] p, int offset, int length) {
+        if (!valid(p, offset, length)) {
+            return null;
+        }
+        final Batch batch = batches.get();
+        final Phrase key = new Phrase(p, offset, length);
+        double[] result = batch.results.get(key);
+        if (result == null) {
+            if (batch.results.size() > MAX_RESULTS) {
+                batch.results.clear();
+            }
+            if (!batch.pending.contains(key)) {
+                batch.pending.add(new Phrase(Arrays.copyOfRange(p, offset, offset + length)));
+            }
+            fetch(batch);
+            result = batch.results.get(key);
+        }
+        return result == MISS ? null : result;
+    }
+
+    /**
+     * The shard an n-gram belongs to
+     */
+    int shard(int[] p, int offset, int length) {
+        if (length == 1) {
+            // Every shard has the unigrams, spread the queries
+            return (int) ((wordHashes[p[offset]] >>> 1) % shards.length);
+        }
+        long h = 0;
+        for (int i = offset; i < offset + length; i++) {
+            h = combine(h, wordHashes[p[i]]);
+        }
+        return ring.owner(h);
+    }
+
+    static long combine(long h, long wordHash) {
+        return Vocabulary.mix(h * 31 + wordHash);
+    }
+
+    // Send all pending n-grams, to all shards before reading any reply
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private void fetch(Batch batch) {
+        final ObjectArrayList<Phrase>[] byShard = new ObjectArrayList[shards.length];
+        for (Phrase phrase : batch.pending) {
+            final int s = shard(phrase.p, phrase.l, phrase.n);
+            if (byShard[s] == null) {
+                byShard[s] = new ObjectArrayList<Phrase>();
+            }
+            byShard[s].add(phrase);
+        }
+        batch.pending.clear();
+        // Locks are always taken in shard order
+        for (int s = 0; s < shards.length; s++) {
+            if (byShard[s] != null) {
+                shards[s].lock.lock();
+            }
+        }
+        try {
+            final long[] start = new long[shards.length];
+            for (int s = 0; s < shards.length; s++) {
+                if (byShard[s] != null) {
+                    start[s] = System.nanoTime();
+                    shards[s].send(byShard[s]);
+                }
+            }
+            for (int s = 0; s < shards.length; s++) {
+                if (byShard[s] != null) {
+                    shards[s].receive(byShard[s], batch.results);
+                    shards[s].record(byShard[s].size(), System.nanoTime() - start[s]);
+                }
+            }
+        } catch (IOException x) {
+            throw new RuntimeException(x);
+        } finally {
+            for (int s = 0; s < shards.length; s++) {
+                if (byShard[s] != null) {
+                    shards[s].lock.unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * The number of shards
+     */
+    public int shards() {
+        return shards.length;
+    }
+
+    /**
+     * The number of round trips made to a shard
+     */
+    public long roundTrips(int shard) {
+        final Shard s = shards[shard];
+        s.lock.lock();
+        try {
+            return s.roundTrips;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * The mean time of a round trip to a shard in milliseconds
+     */
+    public double meanLatency(int shard) {
+        final Shard s = shards[shard];
+        s.lock.lock();
+        try {
+            return s.roundTrips == 0 ? 0.0 : s.totalNanos / 1e6 / s.roundTrips;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * The longest round trip to a shard in milliseconds
+     */
+    public double maxLatency(int shard) {
+        final Shard s = shards[shard];
+        s.lock.lock();
+        try {
+            return s.maxNanos / 1e6;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    public int order() {
+        return order;
+    }
+
+    public void close() {
+        for (int i = 0; i < shards.length; i++) {
+            if (verbose) {
+                System.err.println(String.format("Shard %s: %d round trips, %d n-grams, mean %.3fms, max %.3fms",
+                        shards[i], roundTrips(i), shards[i].ngrams, meanLatency(i), maxLatency(i)));
+            }
+            shards[i].close();
+        }
+    }
+
+    public Object2IntMap<String> wordMap() {
+        return wordMap;
+    }
+
+    public Int2ObjectMap<String> invWordMap() {
+        return invWordMap;
+    }
+
+    /**
+     * The n-grams announced by, and results fetched for, one thread
+     */
+    private static final class Batch {
+
+        final ObjectOpenHashSet<Phrase> pending = new ObjectOpenHashSet<Phrase>();
+        // Kept until cleared, or until there are too many
+        final Object2ObjectOpenHashMap<Phrase, double[]> results = new Object2ObjectOpenHashMap<Phrase, double[]>();
+    }
+
+    /**
+     * A connection to one shard server
+     */
+    private static final class Shard {
+
+        private final InetSocketAddress address;
+        private final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final ReentrantLock lock = new ReentrantLock();
+        long roundTrips, ngrams, totalNanos, maxNanos;
+
+        public Shard(InetSocketAddress address) throws IOException {
+            this.address = address;
+            this.socket = new Socket(address.getAddress(), address.getPort());
+            socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void send(List<Phrase> ngrams) throws IOException {
+            out.writeByte(LMShardServer.GET);
+            out.writeInt(ngrams.size());
+            for (Phrase phrase : ngrams) {
+                out.writeByte(phrase.n);
+                for (int i = phrase.l; i < phrase.l + phrase.n; i++) {
+                    out.writeInt(phrase.p[i]);
+                }
+            }
+            out.flush();
+        }
+
+        void receive(List<Phrase> ngrams, Object2ObjectOpenHashMap<Phrase, double[]> results) throws IOException {
+            for (Phrase phrase : ngrams) {
+                final int n = in.readByte();
+                if (n == 0) {
+                    results.put(phrase, MISS);
+                } else {
+                    final double[] result = new double[n];
+                    for (int i = 0; i < n; i++) {
+                        result[i] = in.readDouble();
+                    }
+                    results.put(phrase, result);
+                }
+            }
+        }
+
+        void record(int n, long nanos) {
+            roundTrips++;
+            ngrams += n;
+            totalNanos += nanos;
+            maxNanos = Math.max(maxNanos, nanos);
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException x) {
+                x.printStackTrace();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return address.getHostName() + ":" + address.getPort();
+        }
+    }
+
+    /**
+     * A consistent hash ring with a number of virtual nodes for each shard
+     */
+    static final class Ring {
+
+        private static final int VIRTUAL_NODES = 64;
+        private final long[] points;
+        private final int[] owners;
+
+        public Ring(int shards) {
+            final long[] p = new long[shards * VIRTUAL_NODES];
+            for (int s = 0; s < shards; s++) {
+                for (int v = 0; v < VIRTUAL_NODES; v++) {
+                    p[s * VIRTUAL_NODES + v] = Vocabulary.hash("shard" + s + "#" + v);
+                }
+            }
+            final long[] sorted = p.clone();
+            Arrays.sort(sorted);
+            this.points = sorted;
+            this.owners = new int[sorted.length];
+            for (int i = 0; i < p.length; i++) {
+                owners[Arrays.binarySearch(sorted, p[i])] = i / VIRTUAL_NODES;
+            }
+        }
+
+        /**
+         * The shard owning a hash: that of the first point at or after it
+         */
+        public int owner(long hash) {
+            int i = Arrays.binarySearch(points, hash);
+            if (i < 0) {
+                i = -i - 1;
+            }
+            return owners[i == points.length ? 0 : i];
+        }
+    }
+
+    /**
+     * Connects to the shards listed in a file, one "host:port" per line
+     */
+    public static class Factory implements LanguageModelFactory {
+
+        public ShardedLanguageModel getModel(File file) {
+            try {
+                final ObjectArrayList<InetSocketAddress> addresses = new ObjectArrayList<InetSocketAddress>();
+                final Scanner in = new Scanner(file);
+                while (in.hasNextLine()) {
+                    final String line = in.nextLine().trim();
+                    if (line.length() == 0 || line.startsWith("#")) {
+                        continue;
+                    }
+                    final int colon = line.lastIndexOf(':');
+                    if (colon < 0) {
+                        throw new IOException("Expected host:port but got " + line);
+                    }
+                    addresses.add(new InetSocketAddress(line.substring(0, colon), Integer.parseInt(line.substring(colon + 1))));
+                }
+                in.close();
+                return new ShardedLanguageModel(addresses);
+            } catch (IOException x) {
+                throw new RuntimeException(x);
+            }
+        }
+    }
+
+    /**
+     * Splits an ARPA file into shards for {@link LMShardServer}s
+     */
+    public static class Splitter {
+
+        /**
+         * Split a model
+         *
+         * @param arpa The model
+         * @param shards The number of shards
+         * @return The shards, named after the model with the shard number
+         * appended
+         */
+        public static File[] split(File arpa, int shards) throws IOException {
+            final Ring ring = new Ring(shards);
+            final String base = arpa.getPath().endsWith(".gz") ? arpa.getPath().substring(0, arpa.getPath().length() - 3) : arpa.getPath();
+            // First pass: count the n-grams of each shard, so that the
+            // headers can be written before the n-grams
+            final IntArrayList[] counts = new IntArrayList[shards];
+            for (int s = 0; s < shards; s++) {
+                counts[s] = new IntArrayList();
+            }
+            ARPAReader in = new ARPAReader(arpa);
+            try {
+                while (in.next()) {
+                    final String[] words = in.words();
+                    for (int s = 0; s < shards; s++) {
+                        while (counts[s].size() < words.length) {
+                            counts[s].add(0);
+                        }
+                    }
+                    if (words.length == 1) {
+                        for (int s = 0; s < shards; s++) {
+                            counts[s].set(0, counts[s].getInt(0) + 1);
+                        }
+                    } else {
+                        final int s = owner(ring, words);
+                        counts[s].set(words.length - 1, counts[s].getInt(words.length - 1) + 1);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            final File[] files = new File[shards];
+            final PrintWriter[] outs = new PrintWriter[shards];
+            for (int s = 0; s < shards; s++) {
+                files[s] = new File(base + "." + s);
+                outs[s] = new PrintWriter(new OutputStreamWriter(new FileOutputStream(files[s]), "UTF-8"));
+                outs[s].print("\\data\\\n");
+                for (int n = 1; n <= counts[s].size(); n++) {
+                    outs[s].print(String.format("ngram %d=%d\n", n, counts[s].getInt(n - 1)));
+                }
+            }
+            in = new ARPAReader(arpa);
+            int section = 0;
+            try {
+                while (in.next()) {
+                    final String[] words = in.words();
+                    if (words.length != section) {
+                        section = words.length;
+                        for (PrintWriter out : outs) {
+                            out.print(String.format("\n\\%d-grams:\n", section));
+                        }
+                    }
+                    final StringBuilder sb = new StringBuilder();
+                    sb.append(in.score()).append('\t');
+                    for (int i = 0; i < words.length; i++) {
+                        if (i > 0) {
+                            sb.append(' ');
+                        }
+                        sb.append(words[i]);
+                    }
+                    if (in.backoff() != 0.0) {
+                        sb.append('\t').append(in.backoff());
+                    }
+                    sb.append('\n');
+                    if (words.length == 1) {
+                        for (PrintWriter out : outs) {
+                            out.print(sb);
+                        }
+                    } else {
+                        outs[owner(ring, words)].print(sb);
+                    }
+                }
+            } finally {
+                in.close();
+                for (PrintWriter out : outs) {
+                    out.print("\n\\end\\\n");
+                    out.close();
+                }
+            }
+            return files;
+        }
+
+        private static int owner(Ring ring, String[] words) {
+            long h = 0;
+            for (String word : words) {
+                h = combine(h, Vocabulary.hash(word));
+            }
+            return ring.owner(h);
+        }
+
+        public static void main(String[] args) throws Exception {
+            if (args.length != 2) {
+                System.err.println("Usage: ShardedLanguageModel$Splitter model.arpa[.gz] shards");
+                System.exit(-1);
+            }
+            for (File file : split(new File(args[0]), Integer.parseInt(args[1]))) {
+                System.err.println(String.format("Wrote %s", file.getPath()));
+            }
+        }
+    }
+}
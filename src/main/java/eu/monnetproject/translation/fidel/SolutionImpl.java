@@ -29,19 +29,63 @@ package eu.monnetproject.translation.fidel;
 import java.util.Arrays;
 import static eu.monnetproject.translation.fidel.MurmurHash.*;
 import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
 
 /**
+ * A (partial) solution. A solution extended from another holds only what the
+ * extension added (the words inserted, where, and the change in the scores)
+ * with a pointer back to the solution it extends, along with the end of the
+ * translation, which is all that is needed to extend it further. The whole
+ * translation, its distortions and its features are only built when asked
+ * for. The words of an extended solution are kept in a record of the
+ * {@link HypothesisArena} of the decode, so must be built (by calling
+ * {@link #soln()}) before the arena is reset if the solution is to be kept.
+ * The solutions a solution was extended from are only followed back to the
+ * nearest built one, so a built solution never reads the arena again.
  *
  * @author John McCrae
  */
 public class SolutionImpl implements Solution {
 
     public final int upto;
-    public final int[] soln;
-    public final int[] dist;
     public final double score;
     public final double futureCost;
-    public final double[] features;
+    // The solution this was extended from (or null)
+    private final SolutionImpl parent;
+    /**
+     * The length of the translation
+     */
+    public final int length;
+    /**
+     * The number of words at the end of the translation that are kept
+     */
+    public final int tailSize;
+    // The end of the translation and the distortion of each of its words, in
+    // the arena until the solution is built
+    private int[] tailWords, tailDists;
+    private int tailAt, distAt;
+    // The record in the arena, which ends with the words added to the parent,
+    // inserted this many words from its end
+    private int[] record;
+    private final int wordsAt, words, d;
+    // The phrase table scores of the words, or null for an unknown word
+    private final double[] phraseScores;
+    // The change in the language model and distortion features
+    private final double lm, distortion;
+    // Built when first asked for
+    private int[] soln, dist;
+    private double[] features;
+    // The hash code, which is used each time the solution moves in a beam
+    private int hash;
+    /**
+     * Worse solutions with the same signature, which were recombined with this
+     * one
+     */
+    ObjectArrayList<SolutionImpl> recombined;
+    /**
+     * Whether this solution has been taken from the beam and extended
+     */
+    boolean expanded;
 
     public SolutionImpl(int upto, int[] soln, int[] dist, double score, double futureCost, double[] features) {
         assert (soln.length == dist.length);
@@ -49,9 +93,290 @@ public class SolutionImpl implements Solution {
         this.upto = upto;
         this.soln = soln;
         this.dist = dist;
+        this.tailWords = soln;
+        this.tailDists = dist;
+        this.tailSize = soln.length;
+        this.length = soln.length;
         this.score = score;
         this.futureCost = futureCost;
         this.features = features;
+        this.parent = null;
+        this.record = null;
+        this.wordsAt = 0;
+        this.words = 0;
+        this.d = 0;
+        this.phraseScores = null;
+        this.lm = 0.0;
+        this.distortion = 0.0;
+    }
+
+    private SolutionImpl(SolutionImpl parent, int upto, int[] record, int at, int tailSize, int words, int d,
+            double[] phraseScores, double lm, double distortion, double score, double futureCost) {
+        assert (futureCost >= score);
+        this.upto = upto;
+        this.parent = parent;
+        this.record = record;
+        this.tailWords = record;
+        this.tailAt = at;
+        this.tailDists = record;
+        this.distAt = at + tailSize;
+        this.tailSize = tailSize;
+        this.wordsAt = at + 2 * tailSize;
+        this.words = words;
+        this.d = d;
+        this.phraseScores = phraseScores;
+        this.lm = lm;
+        this.distortion = distortion;
+        this.length = parent.length + words;
+        this.score = score;
+        this.futureCost = futureCost;
+    }
+
+    /**
+     * Extend this solution
+     *
+     * @param arena The arena to store the new solution's record in
+     * @param upto The source words then covered
+     * @param words The number of words inserted
+     * @param d How far from the end of the translation they are inserted
+     * @param phraseScores Their phrase table scores, or null if they are an
+     * unknown word
+     * @param lm The change in the language model feature
+     * @param distortion The change in the distortion feature
+     * @param buf The end of this solution's translation, as copied by
+     * {@link #copyTail(int[])}, with the words inserted
+     * @param score The score of the new solution
+     * @param futureCost Its future cost estimate
+     * @param tailLength The number of words at the end of a translation
+     * that must be kept to extend it
+     * @return The new solution
+     */
+    public SolutionImpl extend(HypothesisArena arena, int upto, int words, int d, double[] phraseScores, double lm, double distortion,
+            int[] buf, double score, double futureCost, int tailLength) {
+        final int at = tailSize - d;
+        final int end = tailSize + words;
+        final int start = Math.max(0, end - tailLength);
+        final int size = end - start;
+        final int handle = arena.alloc(2 * size + words);
+        final int[] block = arena.block(handle);
+        final int offset = HypothesisArena.offset(handle);
+        System.arraycopy(buf, start, block, offset, size);
+        for (int i = start; i < end; i++) {
+            final int dist;
+            if (i < at) {
+                dist = tailDists[distAt + i];
+            } else if (i < at + words) {
+                dist = -d;
+            } else {
+                dist = tailDists[distAt + i - words] + words;
+            }
+            block[offset + size + i - start] = dist;
+        }
+        System.arraycopy(buf, at, block, offset + 2 * size, words);
+        return new SolutionImpl(this, upto, block, offset, size, words, d, phraseScores, lm, distortion, score, futureCost);
+    }
+
+    /**
+     * The i-th word of the end of the translation
+     */
+    public int tail(int i) {
+        return tailWords[tailAt + i];
+    }
+
+    /**
+     * The distortion of the i-th word of the end of the translation
+     */
+    public int tailDist(int i) {
+        return tailDists[distAt + i];
+    }
+
+    /**
+     * Copy the end of the translation to the start of a buffer
+     */
+    public void copyTail(int[] buf) {
+        System.arraycopy(tailWords, tailAt, buf, 0, tailSize);
+    }
+
+    /**
+     * The number of words at the end of a translation that are kept to extend
+     * it: those that may be changed or used as context (see
+     * {@link #tailLength(int, int)}) and one more, so that the language model
+     * may be queried from the start of the tail with no word missing
+     */
+    public static int keptLength(int lmN, int distortionLimit) {
+        return Math.max(0, distortionLimit - 1) + Math.max(1, lmN);
+    }
+
+    /**
+     * The solutions this was extended from with which worse solutions were
+     * recombined, along with this solution if it was, latest first
+     */
+    ObjectArrayList<SolutionImpl> recombinedSteps() {
+        final ObjectArrayList<SolutionImpl> steps = new ObjectArrayList<SolutionImpl>();
+        for (SolutionImpl step = this; step != null; step = step.parent) {
+            if (step.recombined != null) {
+                steps.add(step);
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * Record a worse solution with the same signature as recombined with this
+     * one, along with any it had already absorbed
+     *
+     * @param loser The worse solution
+     */
+    public void recombine(SolutionImpl loser) {
+        if (recombined == null) {
+            recombined = new ObjectArrayList<SolutionImpl>();
+        }
+        recombined.add(loser);
+        if (loser.recombined != null) {
+            recombined.addAll(loser.recombined);
+            loser.recombined = null;
+        }
+    }
+
+    /**
+     * The number of target words at the end of the solution that may still be
+     * changed or used as context by a later extension: a phrase may be
+     * inserted up to {@code distortionLimit - 1} words from the end and is
+     * scored with {@code lmN - 1} words of context
+     */
+    public static int tailLength(int lmN, int distortionLimit) {
+        return Math.max(0, distortionLimit - 1) + Math.max(0, lmN - 1);
+    }
+
+    /**
+     * The signature of this solution. Solutions with the same signature will
+     * be scored identically by any extension, so only the best need be
+     * extended
+     *
+     * @param lmN The n in the language model
+     * @param distortionLimit The distortion limit of the search
+     */
+    public Signature signature(int lmN, int distortionLimit) {
+        final int words = Math.min(tailSize, tailLength(lmN, distortionLimit));
+        final int dists = Math.min(tailSize, Math.max(0, distortionLimit - 1));
+        return new Signature(upto, tailWords, tailAt + tailSize - words, words,
+                tailDists, distAt + tailSize - dists, dists);
+    }
+
+    /**
+     * The state of a solution that determines the score of its extensions:
+     * the source words covered, the end of the translation and the distortion
+     * of the words at the end
+     */
+    public static final class Signature {
+
+        private final int upto;
+        private final int[] words, dists;
+        private final int wordsAt, wordCount, distsAt, distCount;
+        private final int hash;
+
+        public Signature(int upto, int[] words, int[] dists) {
+            this(upto, words, 0, words.length, dists, 0, dists.length);
+        }
+
+        Signature(int upto, int[] words, int wordsAt, int wordCount, int[] dists, int distsAt, int distCount) {
+            this.upto = upto;
+            this.words = words;
+            this.wordsAt = wordsAt;
+            this.wordCount = wordCount;
+            this.dists = dists;
+            this.distsAt = distsAt;
+            this.distCount = distCount;
+            this.hash = 97 * (97 * upto + hash32(words, wordsAt, wordCount)) + hash32(dists, distsAt, distCount);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Signature)) {
+                return false;
+            }
+            final Signature other = (Signature) obj;
+            return hash == other.hash && upto == other.upto
+                    && equal(words, wordsAt, wordCount, other.words, other.wordsAt, other.wordCount)
+                    && equal(dists, distsAt, distCount, other.dists, other.distsAt, other.distCount);
+        }
+
+        private static boolean equal(int[] a, int aAt, int aCount, int[] b, int bAt, int bCount) {
+            if (aCount != bCount) {
+                return false;
+            }
+            for (int i = 0; i < aCount; i++) {
+                if (a[aAt + i] != b[bAt + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Build the translation, distortions and features by replaying the
+     * extensions from the nearest solution that has them
+     */
+    private void materialize() {
+        int n = 0;
+        SolutionImpl base = this;
+        while (base.soln == null) {
+            base = base.parent;
+            n++;
+        }
+        final SolutionImpl[] steps = new SolutionImpl[n];
+        for (SolutionImpl s = this; s != base; s = s.parent) {
+            steps[--n] = s;
+        }
+        final int[] w = Arrays.copyOf(base.soln, length);
+        final int[] ds = Arrays.copyOf(base.dist, length);
+        final double[] fs = base.features.clone();
+        int len = base.length;
+        for (SolutionImpl s : steps) {
+            final int at = len - s.d;
+            final int l = s.words;
+            System.arraycopy(w, at, w, at + l, s.d);
+            System.arraycopy(s.record, s.wordsAt, w, at, l);
+            System.arraycopy(ds, at, ds, at + l, s.d);
+            for (int i = at; i < at + l; i++) {
+                ds[i] = -s.d;
+            }
+            for (int i = at + l; i < at + l + s.d; i++) {
+                ds[i] += l;
+            }
+            len += l;
+            if (s.phraseScores == null) {
+                fs[FidelDecoder.UNK]++;
+            } else {
+                for (int k = 0; k < s.phraseScores.length; k++) {
+                    fs[FidelDecoder.PT + k] += s.phraseScores[k];
+                }
+                fs[FidelDecoder.LM] += s.lm;
+                fs[FidelDecoder.DIST] += s.distortion;
+            }
+        }
+        this.dist = ds;
+        this.features = fs;
+        this.soln = w;
+        this.record = null;
+        // No longer read the end of the translation from the arena
+        this.tailWords = w;
+        this.tailAt = length - tailSize;
+        this.tailDists = ds;
+        this.distAt = length - tailSize;
+    }
+
+    public int[] dist() {
+        if (soln == null) {
+            materialize();
+        }
+        return dist;
     }
 
     @Override
@@ -68,13 +393,18 @@ public class SolutionImpl implements Solution {
                 } else if (upto > s.upto) {
                     return -1;
                 } else {
-                    if (soln.length < s.soln.length) {
+                    if (length < s.length) {
                         return +1;
-                    } else if (soln.length > s.soln.length) {
+                    } else if (length > s.length) {
                         return -1;
                     }
-                    for (int i = 0; i < soln.length; i++) {
-                        final int c = soln[i] - s.soln[i];
+                    if (tailSize < s.tailSize) {
+                        return +1;
+                    } else if (tailSize > s.tailSize) {
+                        return -1;
+                    }
+                    for (int i = 0; i < tailSize; i++) {
+                        final int c = tail(i) - s.tail(i);
                         if (c != 0) {
                             return c;
                         }
@@ -89,10 +419,14 @@ public class SolutionImpl implements Solution {
 
     @Override
     public int hashCode() {
-        int hash = 7;
-        hash = 97 * hash + this.upto;
-        hash = 97 * hash + hash32(this.soln);
-        hash = 97 * hash + (int) (Double.doubleToLongBits(this.score) ^ (Double.doubleToLongBits(this.score) >>> 32));
+        if (hash == 0) {
+            int h = 7;
+            h = 97 * h + this.upto;
+            h = 97 * h + this.length;
+            h = 97 * h + hash32(this.tailWords, this.tailAt, this.tailSize);
+            h = 97 * h + (int) (Double.doubleToLongBits(this.score) ^ (Double.doubleToLongBits(this.score) >>> 32));
+            hash = h;
+        }
         return hash;
     }
 
@@ -105,12 +439,17 @@ public class SolutionImpl implements Solution {
             return false;
         }
         final SolutionImpl other = (SolutionImpl) obj;
-        if (this.upto != other.upto) {
+        if (this.upto != other.upto || this.length != other.length) {
             return false;
         }
-        if (!Arrays.equals(this.soln, other.soln)) {
+        if (this.tailSize != other.tailSize) {
             return false;
         }
+        for (int i = 0; i < tailSize; i++) {
+            if (tail(i) != other.tail(i)) {
+                return false;
+            }
+        }
         if (Double.doubleToLongBits(this.score) != Double.doubleToLongBits(other.score)) {
             return false;
         }
@@ -119,7 +458,7 @@ public class SolutionImpl implements Solution {
 
     @Override
     public String toString() {
-        return "Solution{" + "upto=" + upto + ", soln=" + Arrays.toString(soln) + ", dist=" + Arrays.toString(dist) + ", score=" + score + " (" + futureCost + ")}";
+        return "Solution{" + "upto=" + upto + ", soln=" + Arrays.toString(soln()) + ", dist=" + Arrays.toString(dist()) + ", score=" + score + " (" + futureCost + ")}";
     }
 
     @Override
@@ -129,16 +468,24 @@ public class SolutionImpl implements Solution {
 
     @Override
     public int[] soln() {
+        if (soln == null) {
+            materialize();
+        }
         return soln;
     }
 
     @Override
     public double[] features() {
+        if (soln == null) {
+            materialize();
+        }
         return features;
     }
     
     @Override
     public void printSoln(Int2ObjectMap<String> wordMap) {
+        final int[] soln = soln();
+        final int[] dist = dist();
         System.err.print("Solution: ");
         for (int i = 0; i < soln.length; i++) {
             if (wordMap != null) {
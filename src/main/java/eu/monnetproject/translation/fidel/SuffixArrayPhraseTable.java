@@ -0,0 +1,698 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import eu.monnetproject.translation.fidel.Fidel.Feature;
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntArrays;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrays;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A phrase table that extracts translations on demand from a word-aligned
+ * parallel corpus, indexed by memory-mapped suffix arrays of both sides. For
+ * each span of a sentence at most a fixed number of its occurrences in the
+ * corpus are sampled and the phrase pairs consistent with the alignment are
+ * extracted and scored with the usual five features (phrase translation
+ * probabilities in both directions estimated from the sample, lexical
+ * weights in both directions and the phrase penalty). The results are
+ * memoized per span.
+ *
+ * The corpus {@code base} is read from the tokenized files
+ * {@code base.<foreign>} and {@code base.<translation>} and the alignment
+ * {@code base.align} (one line of {@code i-j} pairs per sentence, as written
+ * by Moses), and compiled once to {@code base.sa}.
+ *
+ * @author John McCrae
+ */
+public class SuffixArrayPhraseTable implements PhraseTable {
+
+    private static final long MAGIC = 0x464944454c534150l; // FIDELSAP
+    private static final int VERSION = 1;
+    private static final int HEADER = 48;
+    private static final int MAX_PHRASE_LENGTH = 7;
+    private static final int MEMO_SIZE = 100000;
+    private static final double PHRASE_PENALTY = 2.718;
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("fidel.verbose", "false"));
+    private final String foreignLanguage, translationLanguage;
+    private final String[] features;
+    private final int samples;
+    private final MappedFile data;
+    private final Vocabulary srcWords, trgWords;
+    private final Side src, trg;
+    private final int sentences, lexSize;
+    private final long alignStartOff, alignOff, lexKeyOff, lexTfOff, lexFtOff;
+    // Translations of recent spans, in order of last use
+    private final Object2ObjectLinkedOpenHashMap<Phrase, List<Extracted>> memo = new Object2ObjectLinkedOpenHashMap<Phrase, List<Extracted>>();
+
+    /**
+     * One side of the corpus: the tokens with 0 after each sentence, the
+     * start of each sentence and the suffix array of the token positions
+     */
+    private final class Side {
+
+        final long tokensOff, startOff, suffixOff;
+        final int length, suffixes;
+
+        Side(long tokensOff, int length, long startOff, long suffixOff, int suffixes) {
+            this.tokensOff = tokensOff;
+            this.length = length;
+            this.startOff = startOff;
+            this.suffixOff = suffixOff;
+            this.suffixes = suffixes;
+        }
+
+        int token(int pos) {
+            return data.getInt(tokensOff + 4l * pos);
+        }
+
+        int start(int sentence) {
+            return data.getInt(startOff + 4l * sentence);
+        }
+
+        int suffix(int i) {
+            return data.getInt(suffixOff + 4l * i);
+        }
+
+        int sentence(int pos) {
+            int lo = 0, hi = sentences - 1;
+            while (lo < hi) {
+                final int mid = (lo + hi + 1) >>> 1;
+                if (start(mid) <= pos) {
+                    lo = mid;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Narrow a range of the suffix array whose suffixes share their first
+         * {@code depth} words to those followed by {@code word}
+         *
+         * @param range The range, updated in place
+         * @return false if the range is now empty
+         */
+        boolean narrow(int[] range, int depth, int word) {
+            int lo = range[0], hi = range[1];
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (token(suffix(mid) + depth) < word) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            final int from = lo;
+            hi = range[1];
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (token(suffix(mid) + depth) <= word) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            range[0] = from;
+            range[1] = lo;
+            return from < lo;
+        }
+
+        /**
+         * The number of occurrences of a phrase
+         */
+        int count(int[] phrase) {
+            final int[] range = {0, suffixes};
+            for (int d = 0; d < phrase.length; d++) {
+                if (!narrow(range, d, phrase[d])) {
+                    return 0;
+                }
+            }
+            return range[1] - range[0];
+        }
+    }
+
+    // A phrase pair extracted for a span, with its scores as probabilities
+    private static final class Extracted {
+
+        final String translation;
+        final double[] scores;
+
+        Extracted(String translation, double[] scores) {
+            this.translation = translation;
+            this.scores = scores;
+        }
+    }
+
+    // The occurrences of one translation in the sample
+    private static final class Candidate {
+
+        final int[] words;
+        // The alignment of the first occurrence, as (source, target) pairs
+        final int[] alignment;
+        int count = 0;
+
+        Candidate(int[] words, int[] alignment) {
+            this.words = words;
+            this.alignment = alignment;
+        }
+    }
+
+    private SuffixArrayPhraseTable(String foreignLanguage, String translationLanguage, String[] features, int samples, File file) throws IOException {
+        this.foreignLanguage = foreignLanguage;
+        this.translationLanguage = translationLanguage;
+        this.features = features;
+        this.samples = samples;
+        this.data = new MappedFile(file);
+        if (data.length() < HEADER || data.getLong(0) != MAGIC) {
+            throw new IOException(file.getPath() + " is not a suffix array phrase table");
+        }
+        if (data.getInt(8) != VERSION) {
+            throw new IOException(file.getPath() + " was compiled by an incompatible version, please delete");
+        }
+        this.sentences = data.getInt(12);
+        final int srcLength = data.getInt(16), trgLength = data.getInt(20);
+        final int srcSuffixes = data.getInt(24), trgSuffixes = data.getInt(28);
+        final int alignSize = data.getInt(32);
+        this.lexSize = data.getInt(36);
+        long pos = HEADER;
+        final long srcTokens = pos;
+        pos += 4l * srcLength;
+        final long trgTokens = pos;
+        pos += 4l * trgLength;
+        final long srcStart = pos;
+        pos += 4l * sentences;
+        final long trgStart = pos;
+        pos += 4l * sentences;
+        this.alignStartOff = pos;
+        pos += 4l * (sentences + 1);
+        this.alignOff = pos;
+        pos += 8l * alignSize;
+        final long srcSuffix = pos;
+        pos += 4l * srcSuffixes;
+        final long trgSuffix = pos;
+        pos += 4l * trgSuffixes;
+        pos = (pos + 7) & ~7l;
+        this.lexKeyOff = pos;
+        pos += 8l * lexSize;
+        this.lexTfOff = pos;
+        pos += 4l * lexSize;
+        this.lexFtOff = pos;
+        this.src = new Side(srcTokens, srcLength, srcStart, srcSuffix, srcSuffixes);
+        this.trg = new Side(trgTokens, trgLength, trgStart, trgSuffix, trgSuffixes);
+        this.srcWords = Vocabulary.open(new File(file.getPath() + ".src.vocab"));
+        this.trgWords = Vocabulary.open(new File(file.getPath() + ".trg.vocab"));
+    }
+
+    public String getForeignLanguage() {
+        return foreignLanguage;
+    }
+
+    public String getTranslationLanguage() {
+        return translationLanguage;
+    }
+
+    public void close() {
+    }
+
+    /**
+     * The lexical translation probabilities of a pair of words (0 for NULL)
+     *
+     * @return {w(t|f), w(f|t)}, or zeros if the words were never aligned
+     */
+    private float[] lex(int f, int t) {
+        final long key = ((long) f << 32) | (t & 0xffffffffl);
+        int lo = 0, hi = lexSize - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final long k = data.getLong(lexKeyOff + 8l * mid);
+            if (k < key) {
+                lo = mid + 1;
+            } else if (k > key) {
+                hi = mid - 1;
+            } else {
+                return new float[]{data.getFloat(lexTfOff + 4l * mid), data.getFloat(lexFtOff + 4l * mid)};
+            }
+        }
+        return new float[]{0.0f, 0.0f};
+    }
+
+    /**
+     * The lexical weight of {@code e} given {@code g} under an alignment: the
+     * product over the words of {@code e} of the mean probability of the
+     * word given the words it is aligned to (or NULL)
+     *
+     * @param forward true for w(t|f), false for w(f|t)
+     */
+    private double lexicalWeight(int[] e, int[] g, int[] alignment, boolean forward) {
+        double weight = 1.0;
+        for (int j = 0; j < e.length; j++) {
+            double sum = 0.0;
+            int n = 0;
+            for (int a = 0; a < alignment.length; a += 2) {
+                final int ej = forward ? alignment[a + 1] : alignment[a];
+                if (ej == j) {
+                    final int gi = forward ? alignment[a] : alignment[a + 1];
+                    sum += forward ? lex(g[gi], e[j])[0] : lex(e[j], g[gi])[1];
+                    n++;
+                }
+            }
+            weight *= n == 0 ? (forward ? lex(0, e[j])[0] : lex(e[j], 0)[1]) : sum / n;
+        }
+        return weight;
+    }
+
+    /**
+     * Extract and score the translations of a phrase
+     *
+     * @param phrase The phrase, as source word ids
+     * @param range Its range in the source suffix array
+     */
+    private List<Extracted> extract(int[] phrase, int[] range) {
+        final int occurrences = range[1] - range[0];
+        final int sampled = Math.min(occurrences, samples);
+        final ObjectArrayList<Candidate> candidates = new ObjectArrayList<Candidate>();
+        final HashMap<Phrase, Candidate> byWords = new HashMap<Phrase, Candidate>();
+        int extracted = 0;
+        for (int s = 0; s < sampled; s++) {
+            // Evenly spaced through the range
+            final int pos = src.suffix(range[0] + (int) ((long) s * occurrences / sampled));
+            final int sentence = src.sentence(pos);
+            final int a = pos - src.start(sentence), b = a + phrase.length;
+            int tmin = Integer.MAX_VALUE, tmax = -1;
+            final int alignFrom = data.getInt(alignStartOff + 4l * sentence);
+            final int alignTo = data.getInt(alignStartOff + 4l * (sentence + 1));
+            for (int k = alignFrom; k < alignTo; k++) {
+                final int i = data.getInt(alignOff + 8l * k);
+                if (i >= a && i < b) {
+                    final int j = data.getInt(alignOff + 8l * k + 4);
+                    tmin = Math.min(tmin, j);
+                    tmax = Math.max(tmax, j);
+                }
+            }
+            if (tmax < 0 || tmax - tmin >= MAX_PHRASE_LENGTH) {
+                continue;
+            }
+            // No word of the target span may be aligned outside the source span
+            boolean consistent = true;
+            final IntArrayList alignment = new IntArrayList();
+            for (int k = alignFrom; k < alignTo && consistent; k++) {
+                final int i = data.getInt(alignOff + 8l * k);
+                final int j = data.getInt(alignOff + 8l * k + 4);
+                if (j >= tmin && j <= tmax) {
+                    if (i < a || i >= b) {
+                        consistent = false;
+                    } else {
+                        alignment.add(i - a);
+                        alignment.add(j - tmin);
+                    }
+                }
+            }
+            if (!consistent) {
+                continue;
+            }
+            final int[] words = new int[tmax - tmin + 1];
+            final int trgStart = trg.start(sentence);
+            for (int j = 0; j < words.length; j++) {
+                words[j] = trg.token(trgStart + tmin + j);
+            }
+            final Phrase key = new Phrase(words);
+            Candidate c = byWords.get(key);
+            if (c == null) {
+                c = new Candidate(words, alignment.toIntArray());
+                byWords.put(key, c);
+                candidates.add(c);
+            }
+            c.count++;
+            extracted++;
+        }
+        final List<Extracted> result = new ArrayList<Extracted>(candidates.size());
+        for (Candidate c : candidates) {
+            final double phiTF = (double) c.count / extracted;
+            // Scale the count in the sample to the whole corpus
+            final double estimate = (double) c.count * occurrences / sampled;
+            final double phiFT = Math.min(1.0, estimate / Math.max(1, trg.count(c.words)));
+            final double lexTF = lexicalWeight(c.words, phrase, c.alignment, true);
+            final double lexFT = lexicalWeight(phrase, c.words, c.alignment, false);
+            final StringBuilder translation = new StringBuilder();
+            for (int w : c.words) {
+                if (translation.length() > 0) {
+                    translation.append(" ");
+                }
+                translation.append(trgWords.word(w));
+            }
+            result.add(new Extracted(translation.toString(), new double[]{phiTF, lexTF, phiFT, lexFT, PHRASE_PENALTY}));
+        }
+        return result;
+    }
+
+    private synchronized List<Extracted> memoized(Phrase phrase) {
+        final List<Extracted> extracted = memo.get(phrase);
+        if (extracted != null) {
+            memo.putAndMoveToLast(phrase, extracted);
+        }
+        return extracted;
+    }
+
+    private synchronized void memoize(Phrase phrase, List<Extracted> extracted) {
+        memo.put(phrase, extracted);
+        while (memo.size() > MEMO_SIZE) {
+            memo.removeFirst();
+        }
+    }
+
+    public Iterable<PhraseTableEntry> lookup(List<String> terms) {
+        final ArrayList<PhraseTableEntry> result = new ArrayList<PhraseTableEntry>();
+        final int[] ids = new int[terms.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = srcWords.id(terms.get(i));
+        }
+        int spans = 0;
+        for (int i = 0; i < ids.length; i++) {
+            final int[] range = {0, src.suffixes};
+            final StringBuilder source = new StringBuilder();
+            for (int j = i; j < ids.length && j - i < MAX_PHRASE_LENGTH; j++) {
+                // Stop at the first span that does not occur in the corpus
+                if (ids[j] == 0 || !src.narrow(range, j - i, ids[j])) {
+                    break;
+                }
+                if (j > i) {
+                    source.append(" ");
+                }
+                source.append(terms.get(j));
+                final int[] phrase = Arrays.copyOfRange(ids, i, j + 1);
+                final Phrase key = new Phrase(phrase);
+                List<Extracted> extracted = memoized(key);
+                if (extracted == null) {
+                    extracted = extract(phrase, range);
+                    memoize(key, extracted);
+                }
+                spans++;
+                for (Extracted e : extracted) {
+                    final Feature[] fs = new Feature[e.scores.length];
+                    for (int f = 0; f < fs.length; f++) {
+                        fs[f] = new Feature(f < features.length ? features[f] : null, Math.log10(e.scores[f]));
+                    }
+                    result.add(new PhraseTableEntry(new Fidel.Label(source.toString(), foreignLanguage), new Fidel.Label(e.translation, translationLanguage), fs));
+                }
+            }
+        }
+        if (verbose) {
+            System.err.println(String.format("Collected %d translation candidates for %d spans", result.size(), spans));
+        }
+        return result;
+    }
+
+    public static class Factory implements PhraseTableFactory {
+
+        private final int samples;
+
+        public Factory() {
+            this(Integer.parseInt(System.getProperty("fidel.pt.samples", "100")));
+        }
+
+        /**
+         * Create a factory
+         *
+         * @param samples The maximum number of occurrences of a span to
+         * extract translations from
+         */
+        public Factory(int samples) {
+            this.samples = samples;
+        }
+
+        /**
+         * Open a corpus, compiling it if necessary
+         *
+         * @param file The base name of the corpus, or the compiled file
+         */
+        public SuffixArrayPhraseTable getPhraseTable(String foreignLanguage, String translationLanguage, String[] featureNames, File file) {
+            try {
+                if (file.getPath().endsWith(".sa")) {
+                    return new SuffixArrayPhraseTable(foreignLanguage, translationLanguage, featureNames, samples, file);
+                }
+                final File saFile = new File(file.getPath() + ".sa");
+                if (saFile.exists()) {
+                    System.err.println(String.format("Reusing compiled corpus %s. Delete this file if out of date.", saFile.getPath()));
+                } else {
+                    System.err.println("Indexing parallel corpus");
+                    Compiler.compile(new File(file.getPath() + "." + foreignLanguage), new File(file.getPath() + "." + translationLanguage),
+                            new File(file.getPath() + ".align"), saFile);
+                }
+                return new SuffixArrayPhraseTable(foreignLanguage, translationLanguage, featureNames, samples, saFile);
+            } catch (IOException x) {
+                throw new RuntimeException(x);
+            }
+        }
+    }
+
+    /**
+     * Compiles a word-aligned parallel corpus into suffix arrays and lexical
+     * translation probabilities. The compiler holds the corpus in memory
+     * (the compiled corpus does not need to be).
+     */
+    public static class Compiler {
+
+        // The tokens of one side with 0 after each sentence
+        private static class Corpus {
+
+            final Object2IntOpenHashMap<String> ids = new Object2IntOpenHashMap<String>();
+            final ObjectArrayList<String> words = new ObjectArrayList<String>();
+            final IntArrayList tokens = new IntArrayList();
+            final IntArrayList starts = new IntArrayList();
+
+            void add(String line) {
+                starts.add(tokens.size());
+                for (String token : line.trim().split("\\s+")) {
+                    if (token.length() == 0) {
+                        continue;
+                    }
+                    int id = ids.getInt(token);
+                    if (id == 0) {
+                        words.add(token);
+                        id = words.size();
+                        ids.put(token, id);
+                    }
+                    tokens.add(id);
+                }
+                tokens.add(0);
+            }
+
+            int length(int sentence) {
+                return (sentence + 1 < starts.size() ? starts.getInt(sentence + 1) : tokens.size()) - starts.getInt(sentence) - 1;
+            }
+
+            int[] suffixArray() {
+                final int[] t = tokens.elements();
+                final IntArrayList positions = new IntArrayList();
+                for (int i = 0; i < tokens.size(); i++) {
+                    if (t[i] != 0) {
+                        positions.add(i);
+                    }
+                }
+                final int[] sa = positions.toIntArray();
+                IntArrays.quickSort(sa, new AbstractIntComparator() {
+                    public int compare(int a, int b) {
+                        for (int k = 0;; k++) {
+                            final int ta = t[a + k], tb = t[b + k];
+                            if (ta != tb) {
+                                return ta < tb ? -1 : 1;
+                            } else if (ta == 0) {
+                                return a < b ? -1 : (a > b ? 1 : 0);
+                            }
+                        }
+                    }
+                });
+                return sa;
+            }
+        }
+
+        /**
+         * Compile a corpus
+         *
+         * @param srcFile The source side, tokenized, one sentence per line
+         * @param trgFile The target side
+         * @param alignFile The alignment, as Moses {@code i-j} pairs
+         * @param out The file to write
+         */
+        public static void compile(File srcFile, File trgFile, File alignFile, File out) throws IOException {
+            final long start = System.currentTimeMillis();
+            final Corpus src = new Corpus(), trg = new Corpus();
+            final IntArrayList align = new IntArrayList();
+            final IntArrayList alignStarts = new IntArrayList();
+            // Counts of aligned word pairs, with 0 for NULL
+            final Long2IntOpenHashMap pairs = new Long2IntOpenHashMap();
+            final Long2IntOpenHashMap srcCounts = new Long2IntOpenHashMap(), trgCounts = new Long2IntOpenHashMap();
+            int badPairs = 0;
+            final LineReader srcIn = LineReader.open(srcFile);
+            final LineReader trgIn = LineReader.open(trgFile);
+            final LineReader alignIn = LineReader.open(alignFile);
+            try {
+                String srcLine, trgLine, alignLine;
+                int sentence = 0;
+                while ((srcLine = srcIn.readLine()) != null) {
+                    trgLine = trgIn.readLine();
+                    alignLine = alignIn.readLine();
+                    if (trgLine == null || alignLine == null) {
+                        throw new IOException(String.format("%s has more lines than %s or %s", srcFile.getPath(), trgFile.getPath(), alignFile.getPath()));
+                    }
+                    src.add(srcLine);
+                    trg.add(trgLine);
+                    alignStarts.add(align.size() / 2);
+                    final int srcLength = src.length(sentence), trgLength = trg.length(sentence);
+                    final int srcOff = src.starts.getInt(sentence), trgOff = trg.starts.getInt(sentence);
+                    final boolean[] srcAligned = new boolean[srcLength], trgAligned = new boolean[trgLength];
+                    for (String pair : alignLine.trim().split("\\s+")) {
+                        final int dash = pair.indexOf('-');
+                        if (dash <= 0) {
+                            continue;
+                        }
+                        final int i, j;
+                        try {
+                            i = Integer.parseInt(pair.substring(0, dash));
+                            j = Integer.parseInt(pair.substring(dash + 1));
+                        } catch (NumberFormatException x) {
+                            badPairs++;
+                            continue;
+                        }
+                        if (i < 0 || i >= srcLength || j < 0 || j >= trgLength) {
+                            badPairs++;
+                            continue;
+                        }
+                        align.add(i);
+                        align.add(j);
+                        srcAligned[i] = trgAligned[j] = true;
+                        count(pairs, srcCounts, trgCounts, src.tokens.getInt(srcOff + i), trg.tokens.getInt(trgOff + j));
+                    }
+                    for (int i = 0; i < srcLength; i++) {
+                        if (!srcAligned[i]) {
+                            count(pairs, srcCounts, trgCounts, src.tokens.getInt(srcOff + i), 0);
+                        }
+                    }
+                    for (int j = 0; j < trgLength; j++) {
+                        if (!trgAligned[j]) {
+                            count(pairs, srcCounts, trgCounts, 0, trg.tokens.getInt(trgOff + j));
+                        }
+                    }
+                    sentence++;
+                }
+                if (trgIn.readLine() != null || alignIn.readLine() != null) {
+                    throw new IOException(String.format("%s has fewer lines than %s or %s", srcFile.getPath(), trgFile.getPath(), alignFile.getPath()));
+                }
+            } finally {
+                srcIn.close();
+                trgIn.close();
+                alignIn.close();
+            }
+            if (badPairs > 0) {
+                System.err.println(String.format("Ignored %d alignment points outside their sentences", badPairs));
+            }
+            alignStarts.add(align.size() / 2);
+            final int[] srcSA = src.suffixArray(), trgSA = trg.suffixArray();
+            final long[] lexKeys = pairs.keySet().toLongArray();
+            LongArrays.quickSort(lexKeys);
+            final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(out), 1 << 16));
+            try {
+                final int sentences = src.starts.size();
+                dos.writeLong(MAGIC);
+                dos.writeInt(VERSION);
+                dos.writeInt(sentences);
+                dos.writeInt(src.tokens.size());
+                dos.writeInt(trg.tokens.size());
+                dos.writeInt(srcSA.length);
+                dos.writeInt(trgSA.length);
+                dos.writeInt(align.size() / 2);
+                dos.writeInt(lexKeys.length);
+                dos.writeLong(0);
+                long pos = HEADER;
+                pos += write(dos, src.tokens);
+                pos += write(dos, trg.tokens);
+                pos += write(dos, src.starts);
+                pos += write(dos, trg.starts);
+                pos += write(dos, alignStarts);
+                pos += write(dos, align);
+                pos += write(dos, IntArrayList.wrap(srcSA));
+                pos += write(dos, IntArrayList.wrap(trgSA));
+                if (pos % 8 != 0) {
+                    dos.writeInt(0);
+                }
+                for (long key : lexKeys) {
+                    dos.writeLong(key);
+                }
+                for (long key : lexKeys) {
+                    dos.writeFloat((float) pairs.get(key) / srcCounts.get(key >>> 32));
+                }
+                for (long key : lexKeys) {
+                    dos.writeFloat((float) pairs.get(key) / trgCounts.get(key & 0xffffffffl));
+                }
+            } finally {
+                dos.close();
+            }
+            Vocabulary.write(new File(out.getPath() + ".src.vocab"), src.words);
+            Vocabulary.write(new File(out.getPath() + ".trg.vocab"), trg.words);
+            System.err.println(String.format("Indexed %d sentences (%d source and %d target words) in %.1fs",
+                    src.starts.size(), srcSA.length, trgSA.length, (System.currentTimeMillis() - start) / 1000.0));
+        }
+
+        private static void count(Long2IntOpenHashMap pairs, Long2IntOpenHashMap srcCounts, Long2IntOpenHashMap trgCounts, int f, int t) {
+            final long key = ((long) f << 32) | (t & 0xffffffffl);
+            pairs.put(key, pairs.get(key) + 1);
+            srcCounts.put(f, srcCounts.get(f) + 1);
+            trgCounts.put(t, trgCounts.get(t) + 1);
+        }
+
+        private static long write(DataOutputStream out, IntArrayList values) throws IOException {
+            final int[] a = values.elements();
+            for (int i = 0; i < values.size(); i++) {
+                out.writeInt(a[i]);
+            }
+            return 4l * values.size();
+        }
+
+        public static void main(String[] args) throws Exception {
+            if (args.length != 4) {
+                System.err.println("Usage: SuffixArrayPhraseTable$Compiler corpus.fr corpus.en corpus.align corpus.sa");
+                System.exit(-1);
+            }
+            compile(new File(args[0]), new File(args[1]), new File(args[2]), new File(args[3]));
+        }
+    }
+}
@@ -0,0 +1,570 @@
+/**
+ * *******************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.ints.AbstractInt2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntIterator;
+import it.unimi.dsi.fastutil.objects.AbstractObject2IntMap;
+import it.unimi.dsi.fastutil.objects.AbstractObjectIterator;
+import it.unimi.dsi.fastutil.objects.AbstractObjectSet;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import it.unimi.dsi.fastutil.objects.ObjectSet;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A two-way mapping between words and ids (numbered from 1). The words of a
+ * model are held in a memory-mapped file: a pool of UTF-8 strings with an
+ * offset array for id to word, and a minimal perfect hash (hash and
+ * displace) for word to id, so opening it takes the same time whatever the
+ * size of the vocabulary. Words added later (such as those only in the phrase
+ * table) are kept in memory, after the model's words.
+ *
+ * @author John McCrae
+ */
+public class Vocabulary {
+
+    private static final long MAGIC = 0x464944454c564f43l; // FIDELVOC
+    private static final int VERSION = 1;
+    private static final int HEADER = 24;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private final MappedFile data;
+    private final Object2IntMap<String> baseMap;
+    private final Int2ObjectMap<String> baseInvMap;
+    private final int baseSize, buckets;
+    // The largest id of the base, after which added words are numbered. The
+    // ids of a model's maps need not run from 1 to their size
+    private final int baseMaxId;
+    private final long slotsOff, offsetsOff, poolOff;
+    private final Object2IntOpenHashMap<String> added = new Object2IntOpenHashMap<String>();
+    private final ObjectArrayList<String> addedWords = new ObjectArrayList<String>();
+    private final WordMap wordMap = new WordMap();
+    private final InvWordMap invWordMap = new InvWordMap();
+
+    /**
+     * Create an empty vocabulary
+     */
+    public Vocabulary() {
+        this.data = null;
+        this.baseMap = null;
+        this.baseInvMap = null;
+        this.baseSize = this.buckets = this.baseMaxId = 0;
+        this.slotsOff = this.offsetsOff = this.poolOff = 0;
+    }
+
+    /**
+     * Create a vocabulary on top of existing maps, which are not modified
+     */
+    public Vocabulary(Object2IntMap<String> wordMap, Int2ObjectMap<String> invWordMap) {
+        this.data = null;
+        this.baseMap = wordMap;
+        this.baseInvMap = invWordMap;
+        this.baseSize = invWordMap.size();
+        int maxId = 0;
+        for (IntIterator it = invWordMap.keySet().iterator(); it.hasNext();) {
+            maxId = Math.max(maxId, it.nextInt());
+        }
+        this.baseMaxId = maxId;
+        this.buckets = 0;
+        this.slotsOff = this.offsetsOff = this.poolOff = 0;
+    }
+
+    private Vocabulary(File file) throws IOException {
+        this.data = new MappedFile(file);
+        if (data.length() < HEADER || data.getLong(0) != MAGIC) {
+            throw new IOException(file.getPath() + " is not a vocabulary file");
+        }
+        if (data.getInt(8) != VERSION) {
+            throw new IOException(String.format("%s has version %d, expected %d", file.getPath(), data.getInt(8), VERSION));
+        }
+        this.baseMap = null;
+        this.baseInvMap = null;
+        this.baseSize = this.baseMaxId = data.getInt(12);
+        this.buckets = data.getInt(16);
+        this.slotsOff = HEADER + 4l * buckets;
+        this.offsetsOff = align(slotsOff + 4l * baseSize);
+        this.poolOff = offsetsOff + 8l * (baseSize + 1);
+    }
+
+    /**
+     * Map a vocabulary file
+     */
+    public static Vocabulary open(File file) throws IOException {
+        return new Vocabulary(file);
+    }
+
+    /**
+     * The vocabulary of a language model, which the model's maps are views of
+     * if it was loaded from a vocabulary file
+     */
+    public static Vocabulary of(IntegerLanguageModel languageModel) {
+        final Object2IntMap<String> map = languageModel.wordMap();
+        if (map instanceof WordMap) {
+            return ((WordMap) map).vocabulary();
+        } else {
+            return new Vocabulary(map, languageModel.invWordMap());
+        }
+    }
+
+    /**
+     * The id of a word
+     *
+     * @return The id or 0 if the word is not in the vocabulary
+     */
+    public int id(String word) {
+        final int id = baseId(word);
+        if (id != 0) {
+            return id;
+        }
+        synchronized (added) {
+            return added.getInt(word);
+        }
+    }
+
+    /**
+     * The id of a word, adding it if it is not in the vocabulary
+     */
+    public int add(String word) {
+        final int id = baseId(word);
+        if (id != 0) {
+            return id;
+        }
+        synchronized (added) {
+            int a = added.getInt(word);
+            if (a == 0) {
+                addedWords.add(word);
+                a = baseMaxId + addedWords.size();
+                added.put(word, a);
+            }
+            return a;
+        }
+    }
+
+    /**
+     * The word with an id
+     *
+     * @return The word or null if there is no such id
+     */
+    public String word(int id) {
+        if (id <= 0) {
+            return null;
+        } else if (id <= baseMaxId) {
+            if (data == null) {
+                return baseInvMap.get(id);
+            }
+            final long from = data.getLong(offsetsOff + 8l * (id - 1));
+            final long to = data.getLong(offsetsOff + 8l * id);
+            final byte[] b = new byte[(int) (to - from)];
+            for (int i = 0; i < b.length; i++) {
+                b[i] = data.get(poolOff + from + i);
+            }
+            return new String(b, UTF8);
+        } else {
+            synchronized (added) {
+                return id - baseMaxId <= addedWords.size() ? addedWords.get(id - baseMaxId - 1) : null;
+            }
+        }
+    }
+
+    /**
+     * The number of words
+     */
+    public int size() {
+        synchronized (added) {
+            return baseSize + addedWords.size();
+        }
+    }
+
+    /**
+     * The largest id of any word
+     */
+    public int maxId() {
+        synchronized (added) {
+            return baseMaxId + addedWords.size();
+        }
+    }
+
+    // Is there a word with this id
+    private boolean hasId(int id) {
+        if (id <= 0 || id > maxId()) {
+            return false;
+        }
+        return id > baseMaxId || baseSize == baseMaxId || baseInvMap.containsKey(id);
+    }
+
+    /**
+     * A view of this vocabulary as a map from words to ids. Adding a word
+     * through the view is only allowed with the next free id.
+     */
+    public Object2IntMap<String> asMap() {
+        return wordMap;
+    }
+
+    /**
+     * A view of this vocabulary as a map from ids to words
+     */
+    public Int2ObjectMap<String> asInverseMap() {
+        return invWordMap;
+    }
+
+    private int baseId(String word) {
+        if (data == null) {
+            return baseMap == null ? 0 : baseMap.getInt(word);
+        }
+        if (baseSize == 0) {
+            return 0;
+        }
+        final int id = data.getInt(slotsOff + 4l * slot(word));
+        final long from = data.getLong(offsetsOff + 8l * (id - 1));
+        final long to = data.getLong(offsetsOff + 8l * id);
+        return matches(word, poolOff + from, poolOff + to) ? id : 0;
+    }
+
+    private int slot(String word) {
+        final long h = hash(word);
+        final int d = data.getInt(HEADER + 4l * bucket(h, buckets));
+        return d < 0 ? -d - 1 : slot(h, d, baseSize);
+    }
+
+    // Compare a word with its UTF-8 encoding in the pool without decoding
+    private boolean matches(String word, long from, long to) {
+        long p = from;
+        for (int i = 0; i < word.length(); i++) {
+            int c = word.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < word.length()) {
+                c = Character.toCodePoint((char) c, word.charAt(++i));
+            }
+            if (c < 0x80) {
+                if (p >= to || data.get(p++) != (byte) c) {
+                    return false;
+                }
+            } else {
+                final int n = c < 0x800 ? 2 : (c < 0x10000 ? 3 : 4);
+                if (p + n > to) {
+                    return false;
+                }
+                final int lead = n == 2 ? 0xc0 : (n == 3 ? 0xe0 : 0xf0);
+                if (data.get(p++) != (byte) (lead | (c >> (6 * (n - 1))))) {
+                    return false;
+                }
+                for (int k = n - 2; k >= 0; k--) {
+                    if (data.get(p++) != (byte) (0x80 | ((c >> (6 * k)) & 0x3f))) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return p == to;
+    }
+
+    // FNV-1a over the characters followed by the MurmurHash3 finalizer
+    static long hash(String word) {
+        long h = 0xcbf29ce484222325l;
+        for (int i = 0; i < word.length(); i++) {
+            h = (h ^ word.charAt(i)) * 0x100000001b3l;
+        }
+        return mix(h);
+    }
+
+    static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdl;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53l;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int bucket(long h, int buckets) {
+        return (int) ((h >>> 1) % buckets);
+    }
+
+    // Each displacement gives an independent hash of the word
+    private static int slot(long h, int d, int size) {
+        return (int) ((mix(h + (d + 1) * 0x9e3779b97f4a7c15l) >>> 1) % size);
+    }
+
+    private static long align(long pos) {
+        return (pos + 7) & ~7l;
+    }
+
+    /**
+     * Write a vocabulary file
+     *
+     * @param file The file to write
+     * @param words The words, the first having id 1
+     */
+    public static void write(File file, List<String> words) throws IOException {
+        final int size = words.size();
+        final int buckets = Math.max(1, (size + 1) / 2);
+        final long[] hashes = new long[size];
+        final IntArrayList[] members = new IntArrayList[buckets];
+        for (int i = 0; i < size; i++) {
+            hashes[i] = hash(words.get(i));
+            final int b = bucket(hashes[i], buckets);
+            if (members[b] == null) {
+                members[b] = new IntArrayList(4);
+            }
+            members[b].add(i);
+        }
+        // Place the largest buckets first, while the table is emptiest
+        int largest = 0;
+        for (int b = 0; b < buckets; b++) {
+            if (members[b] != null) {
+                largest = Math.max(largest, members[b].size());
+            }
+        }
+        final IntArrayList[] bySize = new IntArrayList[largest + 1];
+        for (int b = 0; b < buckets; b++) {
+            if (members[b] != null) {
+                final int n = members[b].size();
+                if (bySize[n] == null) {
+                    bySize[n] = new IntArrayList();
+                }
+                bySize[n].add(b);
+            }
+        }
+        final int[] displacements = new int[buckets];
+        final int[] slots = new int[size];
+        final boolean[] used = new boolean[size];
+        int free = 0;
+        for (int n = largest; n >= 1; n--) {
+            if (bySize[n] == null) {
+                continue;
+            }
+            for (int b : bySize[n]) {
+                final IntArrayList m = members[b];
+                if (n == 1) {
+                    while (used[free]) {
+                        free++;
+                    }
+                    used[free] = true;
+                    slots[free] = m.getInt(0) + 1;
+                    displacements[b] = -free - 1;
+                    continue;
+                }
+                for (int i = 0; i < n; i++) {
+                    for (int j = i + 1; j < n; j++) {
+                        if (hashes[m.getInt(i)] == hashes[m.getInt(j)]) {
+                            throw new IllegalArgumentException(String.format("Duplicate (or colliding) words %s and %s", words.get(m.getInt(i)), words.get(m.getInt(j))));
+                        }
+                    }
+                }
+                final int[] s = new int[n];
+                for (int d = 0;; d++) {
+                    if (d == Integer.MAX_VALUE) {
+                        throw new IllegalStateException("Could not build perfect hash");
+                    }
+                    boolean ok = true;
+                    for (int i = 0; i < n && ok; i++) {
+                        s[i] = slot(hashes[m.getInt(i)], d, size);
+                        ok = !used[s[i]];
+                        for (int j = 0; j < i && ok; j++) {
+                            ok = s[j] != s[i];
+                        }
+                    }
+                    if (ok) {
+                        for (int i = 0; i < n; i++) {
+                            used[s[i]] = true;
+                            slots[s[i]] = m.getInt(i) + 1;
+                        }
+                        displacements[b] = d;
+                        break;
+                    }
+                }
+            }
+        }
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            out.writeInt(buckets);
+            out.writeInt(0);
+            for (int d : displacements) {
+                out.writeInt(d);
+            }
+            for (int s : slots) {
+                out.writeInt(s);
+            }
+            long pos = HEADER + 4l * buckets + 4l * size;
+            while (pos < align(pos)) {
+                out.writeByte(0);
+                pos++;
+            }
+            final byte[][] encoded = new byte[size][];
+            long offset = 0;
+            out.writeLong(0);
+            for (int i = 0; i < size; i++) {
+                encoded[i] = words.get(i).getBytes(UTF8);
+                offset += encoded[i].length;
+                out.writeLong(offset);
+            }
+            for (byte[] b : encoded) {
+                out.write(b);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class WordMap extends AbstractObject2IntMap<String> {
+
+        Vocabulary vocabulary() {
+            return Vocabulary.this;
+        }
+
+        @Override
+        public int getInt(Object key) {
+            if (!(key instanceof String)) {
+                return defRetValue;
+            }
+            final int id = id((String) key);
+            return id == 0 ? defRetValue : id;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String && id((String) key) != 0;
+        }
+
+        @Override
+        public int put(String key, int value) {
+            final int id = id(key);
+            if (id != 0) {
+                throw new UnsupportedOperationException("Cannot renumber a word");
+            }
+            synchronized (added) {
+                if (value != maxId() + 1) {
+                    throw new UnsupportedOperationException("Words must be added with the next free id");
+                }
+                add(key);
+            }
+            return defRetValue;
+        }
+
+        public int size() {
+            return Vocabulary.this.size();
+        }
+
+        public ObjectSet<Object2IntMap.Entry<String>> object2IntEntrySet() {
+            return new AbstractObjectSet<Object2IntMap.Entry<String>>() {
+                @Override
+                public ObjectIterator<Object2IntMap.Entry<String>> iterator() {
+                    return new EntryIterator<Object2IntMap.Entry<String>>() {
+                        @Override
+                        Object2IntMap.Entry<String> entry(int id) {
+                            return new BasicEntry<String>(word(id), id);
+                        }
+                    };
+                }
+
+                public int size() {
+                    return Vocabulary.this.size();
+                }
+            };
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class InvWordMap extends AbstractInt2ObjectMap<String> {
+
+        @Override
+        public String get(int key) {
+            final String word = word(key);
+            return word == null ? defRetValue : word;
+        }
+
+        @Override
+        public boolean containsKey(int key) {
+            return hasId(key);
+        }
+
+        public int size() {
+            return Vocabulary.this.size();
+        }
+
+        public ObjectSet<Int2ObjectMap.Entry<String>> int2ObjectEntrySet() {
+            return new AbstractObjectSet<Int2ObjectMap.Entry<String>>() {
+                @Override
+                public ObjectIterator<Int2ObjectMap.Entry<String>> iterator() {
+                    return new EntryIterator<Int2ObjectMap.Entry<String>>() {
+                        @Override
+                        Int2ObjectMap.Entry<String> entry(int id) {
+                            return new BasicEntry<String>(id, word(id));
+                        }
+                    };
+                }
+
+                public int size() {
+                    return Vocabulary.this.size();
+                }
+            };
+        }
+    }
+
+    private abstract class EntryIterator<E> extends AbstractObjectIterator<E> {
+
+        private int next = nextId(1);
+
+        abstract E entry(int id);
+
+        // The first id from this one that has a word
+        private int nextId(int id) {
+            final int max = maxId();
+            while (id <= max && !hasId(id)) {
+                id++;
+            }
+            return id;
+        }
+
+        public boolean hasNext() {
+            return next <= maxId();
+        }
+
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final E e = entry(next);
+            next = nextId(next + 1);
+            return e;
+        }
+    }
+}
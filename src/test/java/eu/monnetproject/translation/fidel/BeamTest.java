@@ -86,6 +86,106 @@ public class BeamTest {
             i++;
         }
     }
+    @Test
+    public void testHeap() {
+        System.out.println("heap");
+        final Random random = new Random(1);
+        final TreeSet<Solution> solns = new TreeSet<Solution>();
+        final Beam beam = new Beam(50);
+        for (int i = 0; i < 5000; i++) {
+            // Few distinct scores, so that ties are broken by compareTo
+            final double s = random.nextInt(40);
+            final Solution soln = new SolutionImpl(random.nextInt(), new int[0], new int[0], s, s, new double[0]);
+            final boolean accepts = beam.accepts(s);
+            final boolean added = beam.add(soln);
+            assertTrue(!accepts || added);
+            if (added) {
+                solns.add(soln);
+                if (solns.size() > 50) {
+                    solns.remove(solns.last());
+                }
+            }
+            if (i % 7 == 6) {
+                assertEquals(solns.first(), beam.poll());
+                solns.remove(solns.first());
+            } else if (i % 11 == 10 && !solns.isEmpty()) {
+                final Solution middle = solns.toArray(new Solution[solns.size()])[solns.size() / 2];
+                assertTrue(beam.contains(middle));
+                assertTrue(beam.remove(middle));
+                assertFalse(beam.contains(middle));
+                solns.remove(middle);
+            }
+            assertEquals(solns.size(), beam.size());
+            if (!solns.isEmpty()) {
+                assertEquals(solns.first(), beam.first());
+                assertEquals(solns.last(), beam.last());
+                assertEquals(solns.first().score(), beam.bestScore(), 0.0);
+                assertEquals(solns.last().score(), beam.leastScore(), 0.0);
+            }
+        }
+        assertArrayEquals(solns.toArray(new Solution[solns.size()]), beam.toArray());
+    }
+
+    @Test
+    public void testDuplicates() {
+        System.out.println("duplicates");
+        final Beam beam = new Beam(10);
+        final Solution soln = new SolutionImpl(3, new int[] { 1, 2 }, new int[] { 0, 0 }, -1.0, -1.0, new double[0]);
+        assertTrue(beam.add(soln));
+        assertFalse(beam.add(soln));
+        assertFalse(beam.add(new SolutionImpl(3, new int[] { 1, 2 }, new int[] { 0, 0 }, -1.0, -1.0, new double[0])));
+        assertEquals(1, beam.size());
+        assertTrue(beam.add(new SolutionImpl(3, new int[] { 1, 3 }, new int[] { 0, 0 }, -1.0, -1.0, new double[0])));
+        assertEquals(2, beam.size());
+        final Beam full = new Beam(2);
+        assertTrue(full.add(new SolutionImpl(0, new int[0], new int[0], -3.0, -3.0, new double[0])));
+        assertTrue(full.add(soln));
+        assertFalse(full.add(soln));
+        assertEquals(2, full.size());
+        assertEquals(-3.0, full.leastScore(), 0.0);
+    }
+
+    @Test
+    public void testRemoveAnywhere() {
+        System.out.println("removeAnywhere");
+        final Random random = new Random(2);
+        final TreeSet<Solution> solns = new TreeSet<Solution>();
+        final Beam beam = new Beam(200);
+        for (int i = 0; i < 20000; i++) {
+            final double s = random.nextInt(100);
+            final Solution soln = new SolutionImpl(random.nextInt(), new int[0], new int[0], s, s, new double[0]);
+            if (beam.add(soln)) {
+                solns.add(soln);
+                if (solns.size() > 200) {
+                    solns.remove(solns.last());
+                }
+            }
+            if (random.nextInt(3) == 0 && !solns.isEmpty()) {
+                final Solution removed = solns.toArray(new Solution[solns.size()])[random.nextInt(solns.size())];
+                final int at = beam.indexOf(removed);
+                assertTrue(at >= 0);
+                beam.removeAt(at);
+                assertEquals(-1, beam.indexOf(removed));
+                solns.remove(removed);
+            }
+            assertEquals(solns.size(), beam.size());
+            if (!solns.isEmpty()) {
+                assertEquals(solns.first(), beam.first());
+                assertEquals(solns.last(), beam.last());
+            }
+        }
+        assertArrayEquals(solns.toArray(new Solution[solns.size()]), beam.toArray());
+    }
+
+    @Test
+    public void testEmptyBeam() {
+        System.out.println("emptyBeam");
+        final Beam beam = new Beam(0);
+        assertFalse(beam.accepts(0.0));
+        assertFalse(beam.add(new SolutionImpl(0, new int[0], new int[0], 0.0, 0.0, new double[0])));
+        assertTrue(beam.isEmpty());
+    }
+
     private static final Random r = new Random();
 
     private static Solution randomSolution() {
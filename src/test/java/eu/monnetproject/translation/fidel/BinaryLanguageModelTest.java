@@ -0,0 +1,128 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.monnetproject.translation.fidel;
+
+import java.io.File;
+import java.io.PrintWriter;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class BinaryLanguageModelTest {
+    
+    public BinaryLanguageModelTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() {
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+    }
+    
+    @Before
+    public void setUp() {
+    }
+    
+    @After
+    public void tearDown() {
+        final File file = new File("src/test/resources/model.lm.blm");
+        if(file.exists()) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that the compiled model agrees with the in-memory model
+     */
+    @Test
+    public void testGet() {
+        System.out.println("get");
+        final BinaryLanguageModel instance = new BinaryLanguageModel.Factory(0).getModel(new File("src/test/resources/model.lm"));
+        final MemoryLanguageModel expected = new MemoryLanguageModel.Factory().getModel(new File("src/test/resources/model.lm"));
+        assertEquals(3, instance.order());
+        assertEquals(expected.wordMap(), instance.wordMap());
+        final int[] buf = new int[3];
+        for (int i = 0; i <= 5; i++) {
+            for (int j = 0; j <= 5; j++) {
+                for (int k = 0; k <= 5; k++) {
+                    buf[0] = i;
+                    buf[1] = j;
+                    buf[2] = k;
+                    for (int n = 1; n <= 3; n++) {
+                        final Phrase p = new Phrase(buf, 0, n);
+                        assertArrayEquals(expected.get(p), instance.get(p), 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Test of a quantized model
+     */
+    @Test
+    public void testQuantized() {
+        System.out.println("quantized");
+        final BinaryLanguageModel instance = new BinaryLanguageModel.Factory(3).getModel(new File("src/test/resources/model.lm"));
+        final int a = instance.wordMap().getInt("A");
+        final int b = instance.wordMap().getInt("B");
+        final int d = instance.wordMap().getInt("D");
+        // With three bits there are enough codes for every distinct value
+        assertArrayEquals(new double[] { -1, -1 }, instance.get(new Phrase(new int[] { a, b })), 0.0);
+        assertArrayEquals(new double[] { -4 }, instance.get(new Phrase(new int[] { d, a, b })), 0.0);
+        assertNull(instance.get(new Phrase(new int[] { b, a })));
+    }
+
+    /**
+     * Test that n-grams are found even if their prefixes are not in the model
+     */
+    @Test
+    public void testMissingPrefix() throws Exception {
+        System.out.println("missingPrefix");
+        final File arpa = File.createTempFile("fidel", ".arpa");
+        final File blm = File.createTempFile("fidel", ".blm");
+        try {
+            final PrintWriter out = new PrintWriter(arpa);
+            out.println("\\data\\");
+            out.println("ngram 1=2");
+            out.println("ngram 2=1");
+            out.println("ngram 3=1");
+            out.println();
+            out.println("\\1-grams:");
+            out.println("-1\tx\t-0.5");
+            out.println("-2\ty");
+            out.println();
+            out.println("\\2-grams:");
+            out.println("-0.5\tx y");
+            out.println();
+            out.println("\\3-grams:");
+            out.println("-0.25\ty x z");
+            out.println();
+            out.println("\\end\\");
+            out.close();
+            BinaryLanguageModel.Compiler.compile(arpa, blm, 0);
+            final BinaryLanguageModel instance = new BinaryLanguageModel.Factory().getModel(blm);
+            final int x = instance.wordMap().getInt("x");
+            final int y = instance.wordMap().getInt("y");
+            final int z = instance.wordMap().getInt("z");
+            assertArrayEquals(new double[] { -0.25 }, instance.get(new Phrase(new int[] { y, x, z })), 0.0);
+            assertArrayEquals(new double[] { -1, -0.5 }, instance.get(new Phrase(new int[] { x })), 0.0);
+            assertNull(instance.get(new Phrase(new int[] { y, x })));
+            assertNull(instance.get(new Phrase(new int[] { z })));
+        } finally {
+            arpa.delete();
+            blm.delete();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class BinaryPhraseTableTest {
+    
+    private static final String[] FEATURES = { "a", "b", "c", "d", "e" };
+
+    public BinaryPhraseTableTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() {
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+    }
+    
+    @Before
+    public void setUp() {
+    }
+    
+    @After
+    public void tearDown() {
+        for (String ext : new String[] { ".bpt", ".bpt.src.vocab", ".bpt.trg.vocab", ".db" }) {
+            final File file = new File("src/test/resources/test.pt" + ext);
+            if(file.exists()) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Test that the compiled table gives the same entries as the SQL table
+     */
+    @Test
+    public void testLookup() {
+        System.out.println("lookup");
+        List<String> terms = Arrays.asList(new String[] { "A", "B", "C" });
+        BinaryPhraseTable instance = new BinaryPhraseTable.Factory().getPhraseTable("x", "y", FEATURES, new File("src/test/resources/test.pt"));
+        SQLPhraseTable expected = new SQLPhraseTable.Factory().getPhraseTable("x", "y", FEATURES, new File("src/test/resources/test.pt"));
+        final HashSet<String> result = new HashSet<String>();
+        for (PhraseTable.PhraseTableEntry e : instance.lookup(terms)) {
+            result.add(e.getForeign().asString() + " => " + e.getTranslation().asString());
+            for (int i = 0; i < FEATURES.length; i++) {
+                assertEquals(FEATURES[i], e.getFeatures()[i].name);
+            }
+        }
+        final HashSet<String> expResult = new HashSet<String>();
+        for (PhraseTable.PhraseTableEntry e : expected.lookup(terms)) {
+            expResult.add(e.getForeign().asString() + " => " + e.getTranslation().asString());
+        }
+        expected.close();
+        assertEquals(3, result.size());
+        assertEquals(expResult, result);
+    }
+
+    /**
+     * Test the lookup of word ids
+     */
+    @Test
+    public void testLookupIds() {
+        System.out.println("lookupIds");
+        List<String> terms = Arrays.asList(new String[] { "A", "B", "X", "A" });
+        BinaryPhraseTable instance = new BinaryPhraseTable.Factory().getPhraseTable("x", "y", FEATURES, new File("src/test/resources/test.pt"));
+        final Vocabulary trgVocabulary = new Vocabulary();
+        final int[] src = { 1, 2, 3, 1 };
+        final Object2ObjectMap<Phrase, Collection<PhraseTranslation>> result = instance.lookup(terms, src, trgVocabulary, new String[] { "e", "a" }, 0);
+        assertEquals(2, result.size());
+        final Collection<PhraseTranslation> ab = result.get(new Phrase(new int[] { 1, 2 }));
+        assertEquals(1, ab.size());
+        final PhraseTranslation f = ab.iterator().next();
+        assertEquals("F", trgVocabulary.word(f.words[0]));
+        assertArrayEquals(new double[] { Math.log10(2.718), 0.0 }, f.scores, 1e-6);
+        assertEquals(1, result.get(new Phrase(new int[] { 1 })).size());
+        assertNull(result.get(new Phrase(new int[] { 2 })));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class CachedLanguageModelTest {
+    
+    public CachedLanguageModelTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() {
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+    }
+    
+    @Before
+    public void setUp() {
+    }
+    
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of get method, of class CachedLanguageModel.
+     */
+    @Test
+    public void testGet() {
+        System.out.println("get");
+        final CountingModel model = new CountingModel();
+        final CachedLanguageModel instance = new CachedLanguageModel(model, 1 << 20);
+        final int[] buf = { 1, 2, 3, 4 };
+        assertArrayEquals(new double[] { -2, -1 }, instance.get(new Phrase(buf, 1, 1)), 0.0);
+        assertArrayEquals(new double[] { -2, -1 }, instance.get(new Phrase(new int[] { 2 })), 0.0);
+        assertNull(instance.get(new Phrase(buf, 0, 2)));
+        assertNull(instance.get(new Phrase(new int[] { 1, 2 })));
+        assertEquals(2, model.calls.get());
+        assertEquals(2, instance.hits());
+        assertEquals(2, instance.misses());
+        assertEquals(0.5, instance.hitRate(), 0.0);
+    }
+
+    /**
+     * Test that the cache evicts entries when full
+     */
+    @Test
+    public void testEviction() {
+        System.out.println("eviction");
+        final CountingModel model = new CountingModel();
+        // One entry per stripe
+        final CachedLanguageModel instance = new CachedLanguageModel(model, 16 * 128);
+        for (int i = 1; i <= 1000; i++) {
+            assertArrayEquals(new double[] { -i, -1 }, instance.get(new Phrase(new int[] { i })), 0.0);
+        }
+        for (int i = 1; i <= 1000; i++) {
+            assertArrayEquals(new double[] { -i, -1 }, instance.get(new Phrase(new int[] { i })), 0.0);
+        }
+        assertTrue(instance.evictions() > 0);
+        assertTrue(instance.hits() <= 16);
+        assertEquals(2000, instance.hits() + instance.misses());
+        assertEquals(instance.misses(), model.calls.get());
+    }
+
+    /**
+     * Test the cache is safe to use from several threads
+     */
+    @Test
+    public void testConcurrent() throws Exception {
+        System.out.println("concurrent");
+        final CountingModel model = new CountingModel();
+        final CachedLanguageModel instance = new CachedLanguageModel(model, 64 * 128);
+        final AtomicInteger errors = new AtomicInteger();
+        final Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 20000; i++) {
+                        final int w = (i * 7919) % 100 + 1;
+                        final double[] r = instance.get(new Phrase(new int[] { w }));
+                        if (r == null || r[0] != -w) {
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, errors.get());
+        assertEquals(8 * 20000, instance.hits() + instance.misses());
+    }
+
+    // Every unigram is present with score -w
+    private static class CountingModel implements IntegerLanguageModel {
+
+        final AtomicInteger calls = new AtomicInteger();
+
+        public double[] get(Phrase phrase) {
+            calls.incrementAndGet();
+            return phrase.n == 1 ? new double[] { -phrase.p[phrase.l], -1 } : null;
+        }
+
+        public int order() {
+            return 2;
+        }
+
+        public void close() {
+        }
+
+        public Object2IntMap<String> wordMap() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+
+        public Int2ObjectMap<String> invWordMap() {
+            throw new UnsupportedOperationException("Not supported yet.");
+        }
+    }
+}
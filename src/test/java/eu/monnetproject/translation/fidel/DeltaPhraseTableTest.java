@@ -0,0 +1,135 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class DeltaPhraseTableTest {
+
+    private static final String[] FEATURES = { "a", "b", "c", "d", "e" };
+    private File dir, table;
+
+    public DeltaPhraseTableTest() {
+    }
+
+    @BeforeClass
+    public static void setUpClass() {
+    }
+
+    @AfterClass
+    public static void tearDownClass() {
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("delta", "");
+        dir.delete();
+        dir.mkdir();
+        table = new File(dir, "test.pt");
+        final InputStream in = new FileInputStream("src/test/resources/test.pt");
+        final OutputStream out = new FileOutputStream(table);
+        final byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        out.close();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private static HashSet<String> pairs(PhraseTable pt, List<String> terms) {
+        final HashSet<String> result = new HashSet<String>();
+        for (PhraseTable.PhraseTableEntry e : pt.lookup(terms)) {
+            result.add(e.getForeign().asString() + " => " + e.getTranslation().asString());
+        }
+        return result;
+    }
+
+    /**
+     * Test that added entries are found with those of the base
+     */
+    @Test
+    public void testAdd() throws Exception {
+        System.out.println("add");
+        final DeltaPhraseTable instance = DeltaPhraseTable.open(new SQLPhraseTable.Factory(), "x", "y", FEATURES, table, 1000);
+        final List<String> terms = Arrays.asList(new String[] { "A", "B", "X" });
+        assertEquals(2, pairs(instance, terms).size());
+        final long version = instance.version();
+        instance.add("B X ||| G H ||| 1.0 0.5 0.5 0.5 2.718 ||| |||");
+        instance.add("A ||| I ||| 0.1 0.1 0.1 0.1 2.718 ||| |||");
+        assertTrue(instance.version() != version);
+        final HashSet<String> result = pairs(instance, terms);
+        assertEquals(4, result.size());
+        assertTrue(result.contains("B X => G H"));
+        assertTrue(result.contains("A => I"));
+
+        final Vocabulary trgVocabulary = new Vocabulary();
+        final Object2ObjectMap<Phrase, Collection<PhraseTranslation>> ids = instance.lookup(terms, new int[] { 1, 2, 3 }, trgVocabulary, new String[] { "e", "a" }, 1);
+        assertEquals(3, ids.size());
+        final Collection<PhraseTranslation> a = ids.get(new Phrase(new int[] { 1 }));
+        assertEquals(1, a.size());
+        assertEquals("B", trgVocabulary.word(a.iterator().next().words[0]));
+        final PhraseTranslation gh = ids.get(new Phrase(new int[] { 2, 3 })).iterator().next();
+        assertEquals(2, gh.words.length);
+        assertEquals("H", trgVocabulary.word(gh.words[1]));
+        assertArrayEquals(new double[] { Math.log10(2.718), 0.0 }, gh.scores, 1e-6);
+        // A phrase repeated in the sentence has each translation once
+        final Object2ObjectMap<Phrase, Collection<PhraseTranslation>> repeated = instance.lookup(Arrays.asList(new String[] { "B", "X", "B", "X" }),
+                new int[] { 2, 3, 2, 3 }, trgVocabulary, new String[] { "e", "a" }, 0);
+        assertEquals(1, repeated.get(new Phrase(new int[] { 2, 3 })).size());
+        instance.close();
+    }
+
+    /**
+     * Test that merging moves the delta into a new base, which is used on
+     * reopening
+     */
+    @Test
+    public void testMerge() throws Exception {
+        System.out.println("merge");
+        final DeltaPhraseTable instance = DeltaPhraseTable.open(new SQLPhraseTable.Factory(), "x", "y", FEATURES, table, 1000);
+        final List<String> terms = Arrays.asList(new String[] { "C", "X" });
+        instance.add("C X ||| J ||| 1.0 0.5 0.5 0.5 2.718 ||| |||");
+        assertTrue(instance.merge());
+        assertEquals(0, instance.deltaSize());
+        assertEquals(new File(dir, "test.pt.g1.gz"), instance.baseFile());
+        assertEquals(new HashSet<String>(Arrays.asList("C => D", "C X => J")), pairs(instance, terms));
+        instance.add("X ||| K ||| 1.0 0.5 0.5 0.5 2.718 ||| |||");
+        instance.close();
+
+        final DeltaPhraseTable reopened = DeltaPhraseTable.open(new SQLPhraseTable.Factory(), "x", "y", FEATURES, table, 1000);
+        assertEquals(new File(dir, "test.pt.g1.gz"), reopened.baseFile());
+        assertEquals(1, reopened.deltaSize());
+        assertEquals(new HashSet<String>(Arrays.asList("C => D", "C X => J", "X => K")), pairs(reopened, terms));
+        reopened.close();
+    }
+}
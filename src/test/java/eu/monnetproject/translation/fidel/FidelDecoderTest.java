@@ -289,6 +289,216 @@ public class FidelDecoderTest extends TestCase {
         }
     }
 
+    public void testRecombination() {
+        System.out.println("recombination");
+        int[] src = { 0, 1 };
+        Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable = new Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>>();
+        phraseTable.put(new Phrase(new int[] { 0 }), Arrays.asList(new PhraseTranslation(new int[] { 3 }, new double[] { -1 })));
+        phraseTable.put(new Phrase(new int[] { 1 }), Arrays.asList(new PhraseTranslation(new int[] { 4 }, new double[] { -1 })));
+        phraseTable.put(new Phrase(new int[] { 0, 1 }), Arrays.asList(new PhraseTranslation(new int[] { 3, 4 }, new double[] { -1.5 })));
+        final IntegerLanguageModelImpl languageModel = new IntegerLanguageModelImpl();
+        languageModel.put(new Phrase(new int[] { 3 }), new double[] { -1, -10 });
+        languageModel.put(new Phrase(new int[] { 4 }), new double[] { -1, -10 });
+        languageModel.put(new Phrase(new int[] { 3,4 }), new double[] { -1, });
+        double[] weights = new double[]{1.0, 1.0, 1.0, 1.0};
+        // Both segmentations give the same translation, so one is recombined
+        // with the other, and is recovered for the n-best list
+        Solution[] result = FidelDecoder.decode(src, phraseTable, languageModel, 2, weights, 1, 2, 1000, false);
+        assertEquals(2, result.length);
+        assertArrayEquals(new int[] { 3, 4 }, result[0].soln());
+        assertArrayEquals(new int[] { 3, 4 }, result[1].soln());
+        assertEquals(-3.5, result[0].score(), 0.01);
+        assertEquals(-4.0, result[1].score(), 0.01);
+        for (Solution soln : result) {
+            double scoreFromFeats = 0.0;
+            for (int i = 0; i < weights.length; i++) {
+                scoreFromFeats += soln.features()[i];
+            }
+            assertEquals(soln.score(), scoreFromFeats, 0.0001);
+        }
+    }
+
+    public void testDecodeStack() {
+        System.out.println("decodeStack");
+        int[] src = { 0, 1, 2 };
+        Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable = new Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>>();
+        phraseTable.put(new Phrase(new int[] { 0 }), Arrays.asList(new PhraseTranslation(new int[] { 3 }, new double[] { -1 })));
+        phraseTable.put(new Phrase(new int[] { 1 }), Arrays.asList(new PhraseTranslation(new int[] { 4 }, new double[] { -1 })));
+        phraseTable.put(new Phrase(new int[] { 2 }), Arrays.asList(new PhraseTranslation(new int[] { 5 }, new double[] { -1 })));
+        phraseTable.put(new Phrase(new int[] { 1, 2 }), Arrays.asList(new PhraseTranslation(new int[] { 4, 5 }, new double[] { -1.5 })));
+        final IntegerLanguageModelImpl languageModel = new IntegerLanguageModelImpl();
+        languageModel.put(new Phrase(new int[] { 3 }), new double[] { -1, -10 });
+        languageModel.put(new Phrase(new int[] { 4 }), new double[] { -1, -10 });
+        languageModel.put(new Phrase(new int[] { 5 }), new double[] { -1, -10 });
+        languageModel.put(new Phrase(new int[] { 3,4 }), new double[] { -1, });
+        languageModel.put(new Phrase(new int[] { 4,5 }), new double[] { -1, });
+        double[] weights = new double[]{1.0, 1.0, 1.0, 1.0};
+        Solution[] result = FidelDecoder.decode(src, phraseTable, languageModel, 2, weights, 3, 2, 10, false, FidelDecoder.Search.STACK);
+        assertEquals(2, result.length);
+        assertArrayEquals(new int[] { 3,4,5 }, result[0].soln());
+        assertEquals(-5.5, result[0].score(), 0.01);
+        assertArrayEquals(new int[] { 3,4,5 }, result[1].soln());
+        assertEquals(-6, result[1].score(), 0.01);
+        // With a wide beam the stacks search everything, so do no worse than
+        // best-first search, which stops early
+        int[] src2 = {0, 1, 2, 3, 4, 5};
+        double[] weights2 = new double[]{1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0};
+        Solution[] stack = FidelDecoder.decode(src2, pt, lm, 2, weights2, 3, 1, 1000, false, FidelDecoder.Search.STACK);
+        Solution[] best = FidelDecoder.decode(src2, pt, lm, 2, weights2, 3, 1, 1000, false);
+        assertTrue(stack[0].score() >= best[0].score() - 0.0001);
+    }
+
+    public void testDecodeCube() {
+        System.out.println("decodeCube");
+        int[] src = {0, 1, 2, 3, 4, 5};
+        double[] weights = new double[]{1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0};
+        // With no limit every extension is scored, as in stack search
+        Solution[] stack = FidelDecoder.decode(src, pt, lm, 2, weights, 3, 1, 1000, false, FidelDecoder.Search.STACK);
+        Solution[] cube = FidelDecoder.decode(src, pt, lm, 2, weights, 3, 1, 1000, false, FidelDecoder.Search.CUBE, Integer.MAX_VALUE);
+        assertArrayEquals(stack[0].soln(), cube[0].soln());
+        assertEquals(stack[0].score(), cube[0].score(), 0.0001);
+        double scoreFromFeats = 0.0;
+        for (int i = 0; i < weights.length; i++) {
+            scoreFromFeats += cube[0].features()[i];
+        }
+        assertEquals(cube[0].score(), scoreFromFeats, 0.0001);
+        // A small limit still gives a translation of the whole sentence
+        Solution[] limited = FidelDecoder.decode(src, pt, lm, 2, weights, 3, 1, 1000, false, FidelDecoder.Search.CUBE, 2);
+        assertEquals(1, limited.length);
+        assertTrue(limited[0].score() <= cube[0].score() + 0.0001);
+    }
+
+    public void testDecodeCoverage() {
+        System.out.println("decodeCoverage");
+        int[] src = { 0, 1 };
+        Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable = new Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>>();
+        phraseTable.put(new Phrase(new int[] { 0 }), Arrays.asList(new PhraseTranslation(new int[] { 3 }, new double[] { -1 })));
+        phraseTable.put(new Phrase(new int[] { 1 }), Arrays.asList(new PhraseTranslation(new int[] { 4 }, new double[] { -1 })));
+        final IntegerLanguageModelImpl languageModel = new IntegerLanguageModelImpl();
+        languageModel.put(new Phrase(new int[] { 3 }), new double[] { -1, -10 });
+        languageModel.put(new Phrase(new int[] { 4 }), new double[] { -1, -10 });
+        languageModel.put(new Phrase(new int[] { 4,3 }), new double[] { -0.1, });
+        double[] weights = new double[]{1.0, 1.0, 1.0, 1.0};
+        // Translating the second word first costs 3 in distortion but saves
+        // 10.9 in the language model
+        Solution[] result = CoverageDecoder.decode(src, phraseTable, languageModel, 2, weights, 3, 2, 10);
+        assertEquals(2, result.length);
+        assertArrayEquals(new int[] { 4, 3 }, result[0].soln());
+        assertEquals(-6.1, result[0].score(), 0.01);
+        assertArrayEquals(new int[] { 3, 4 }, result[1].soln());
+        assertEquals(-14, result[1].score(), 0.01);
+        for (Solution soln : result) {
+            double scoreFromFeats = 0.0;
+            for (int i = 0; i < weights.length; i++) {
+                scoreFromFeats += soln.features()[i];
+            }
+            assertEquals(soln.score(), scoreFromFeats, 0.0001);
+        }
+        // Without reordering the decoder is monotone
+        result = FidelDecoder.decode(src, phraseTable, languageModel, 2, weights, 0, 1, 10, false, FidelDecoder.Search.COVERAGE);
+        assertArrayEquals(new int[] { 3, 4 }, result[0].soln());
+        result = FidelDecoder.decode(new int[] {0, 1, 2, 3, 4, 5}, pt, lm, 2, new double[]{1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0}, 3, 1, 1000, false, FidelDecoder.Search.COVERAGE);
+        assertEquals(1, result.length);
+        assertTrue(result[0].soln().length > 0);
+    }
+
+    public void testFutureCostTable() {
+        System.out.println("futureCostTable");
+        int[] src = { 0, 1, 2 };
+        Object2ObjectMap<Phrase, Collection<PhraseTranslation>> phraseTable = new Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>>();
+        phraseTable.put(new Phrase(new int[] { 0 }), Arrays.asList(new PhraseTranslation(new int[] { 3 }, new double[] { -1 })));
+        phraseTable.put(new Phrase(new int[] { 1 }), Arrays.asList(new PhraseTranslation(new int[] { 4 }, new double[] { -1 })));
+        phraseTable.put(new Phrase(new int[] { 0, 1 }), Arrays.asList(new PhraseTranslation(new int[] { 3, 4 }, new double[] { -0.5 })));
+        final IntegerLanguageModelImpl languageModel = new IntegerLanguageModelImpl();
+        languageModel.put(new Phrase(new int[] { 3 }), new double[] { -1, -10 });
+        languageModel.put(new Phrase(new int[] { 4 }), new double[] { -1, -10 });
+        languageModel.put(new Phrase(new int[] { 3,4 }), new double[] { -0.2, });
+        double[] weights = new double[]{-100.0, 1.0, 1.0, 1.0};
+        final FutureCostTable instance = new FutureCostTable(src, phraseTable, weights, languageModel, 2);
+        assertEquals(-2.0, instance.cost(0, 1), 0.0001);
+        assertEquals(-2.0, instance.cost(1, 2), 0.0001);
+        // The phrase and its internal language model score beat the words
+        assertEquals(-1.7, instance.cost(0, 2), 0.0001);
+        assertEquals(-100.0, instance.cost(2, 3), 0.0001);
+        assertEquals(-101.7, instance.cost(0, 3), 0.0001);
+        assertEquals(0.0, instance.cost(3, 3), 0.0001);
+        assertEquals(-101.7, instance.cost(0l), 0.0001);
+        assertEquals(-102.0, instance.cost(2l), 0.0001);
+        assertEquals(0.0, instance.cost(7l), 0.0001);
+    }
+
+    public void testDecodeLazy() {
+        System.out.println("decodeLazy");
+        int[] src = {0, 1, 2, 3, 4, 5};
+        double[] weights = new double[]{1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0};
+        Solution[] result = FidelDecoder.decode(src, pt, lm, 2, weights, 3, 3, 1000, true);
+        assertTrue(result.length > 0);
+        assertTrue(java.util.Arrays.equals(new int[] { 7, 9, 10, 11, 16 }, result[0].soln()));
+        assertEquals(-18.0729, result[0].score(), 0.0001);
+        for (Solution soln : result) {
+            assertTrue(soln.soln().length > 0);
+            assertEquals(weights.length, soln.features().length);
+        }
+    }
+
+    public void testArena() {
+        System.out.println("arena");
+        int[] src = {0, 1, 2, 3, 4, 5};
+        double[] weights = new double[]{1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0, 1.0};
+        final Solution[] first = FidelDecoder.decode(src, pt, lm, 2, weights, 3, 3, 1000, false, FidelDecoder.Search.STACK);
+        assertEquals(0, DecoderWorkspace.forThread().arena().size());
+        final Solution[] second = FidelDecoder.decode(src, pt, lm, 2, weights, 3, 3, 1000, false, FidelDecoder.Search.STACK);
+        assertEquals(first.length, second.length);
+        for (int i = 0; i < first.length; i++) {
+            assertTrue(java.util.Arrays.equals(first[i].soln(), second[i].soln()));
+            assertEquals(first[i].score(), second[i].score(), 0.0);
+        }
+        final HypothesisArena arena = new HypothesisArena();
+        final SolutionImpl root = new SolutionImpl(0, new int[] { 1, 2 }, new int[] { 0, 0 }, -2, 0, new double[weights.length]);
+        final int[] buf = new int[] { 1, 3, 2 };
+        final SolutionImpl ext = root.extend(arena, 1, 1, 1, null, 0.0, 0.0, buf, -3, 0, 2);
+        assertEquals(2, ext.tailSize);
+        assertEquals(3, ext.tail(0));
+        assertEquals(-1, ext.tailDist(0));
+        assertEquals(1, ext.tailDist(1));
+        assertTrue(java.util.Arrays.equals(new int[] { 1, 3, 2 }, ext.soln()));
+        assertTrue(java.util.Arrays.equals(new int[] { 0, -1, 1 }, ext.dist()));
+        arena.reset();
+        assertEquals(0, arena.size());
+        assertEquals(3, ext.tail(0));
+    }
+
+    public void testWorkspace() {
+        System.out.println("workspace");
+        final DecoderWorkspace workspace = DecoderWorkspace.acquire();
+        assertNotSame(workspace, DecoderWorkspace.acquire());
+        workspace.release();
+        assertSame(workspace, DecoderWorkspace.acquire());
+        final int[] buf = workspace.buffer(100);
+        final Beam[] stacks = workspace.stacks(3, 10, true);
+        assertSame(stacks[0], stacks[2]);
+        workspace.release();
+        assertSame(buf, DecoderWorkspace.acquire().buffer(50));
+        assertEquals(3, workspace.stacks(3, 10, false).length);
+        assertNotSame(stacks[0], workspace.stacks(3, 10, false)[1]);
+        workspace.buffer(1 << 21);
+        workspace.release();
+        assertTrue(DecoderWorkspace.acquire().buffer(1).length < 1 << 21);
+        workspace.release();
+    }
+
+    public void testSignature() {
+        System.out.println("signature");
+        final SolutionImpl s1 = new SolutionImpl(3, new int[] { 1, 2, 3, 4 }, new int[] { 0, 0, 0, 0 }, -4, -4, new double[0]);
+        final SolutionImpl s2 = new SolutionImpl(3, new int[] { 5, 3, 4 }, new int[] { 0, 0, 0 }, -3, -3, new double[0]);
+        final SolutionImpl s3 = new SolutionImpl(2, new int[] { 5, 3, 4 }, new int[] { 0, 0, 0 }, -3, -3, new double[0]);
+        final SolutionImpl s4 = new SolutionImpl(3, new int[] { 5, 3, 4 }, new int[] { 0, 1, -1 }, -3, -3, new double[0]);
+        assertEquals(s1.signature(2, 2), s2.signature(2, 2));
+        assertFalse(s1.signature(2, 2).equals(s3.signature(2, 2)));
+        assertFalse(s1.signature(2, 2).equals(s4.signature(2, 2)));
+        assertFalse(s1.signature(3, 2).equals(s2.signature(3, 2)));
+    }
+
     public void testHash() {
         final HashSet<Phrase> hs = new HashSet<Phrase>();
         hs.add(new Phrase(new int[]{1, 2}));
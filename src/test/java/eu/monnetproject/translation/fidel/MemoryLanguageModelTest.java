@@ -0,0 +1,176 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.monnetproject.translation.fidel;
+
+import java.io.File;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class MemoryLanguageModelTest {
+    
+    public MemoryLanguageModelTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() {
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+    }
+    
+    @Before
+    public void setUp() {
+    }
+    
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of get method, of class MemoryLanguageModel.
+     */
+    @Test
+    public void testGet() {
+        System.out.println("get");
+        final MemoryLanguageModel instance = new MemoryLanguageModel.Factory().getModel(new File("src/test/resources/model.lm"));
+        final int a = instance.wordMap().getInt("A");
+        final int b = instance.wordMap().getInt("B");
+        final int c = instance.wordMap().getInt("C");
+        assertArrayEquals(new double[] { -1, -1 }, instance.get(new Phrase(new int[] { a })), 0.0);
+        assertArrayEquals(new double[] { -1, -1 }, instance.get(new Phrase(new int[] { a, b })), 0.0);
+        assertArrayEquals(new double[] { -1 }, instance.get(new Phrase(new int[] { a, b, c })), 0.0);
+        assertNull(instance.get(new Phrase(new int[] { b, a })));
+        assertNull(instance.get(new Phrase(new int[] { a, -1 })));
+        assertNull(instance.get(new Phrase(new int[] { a, b, c, a })));
+    }
+
+    /**
+     * Test that the in-memory model agrees with the SQL model
+     */
+    @Test
+    public void testAgreesWithSQL() {
+        System.out.println("agreesWithSQL");
+        final MemoryLanguageModel instance = new MemoryLanguageModel.Factory().getModel(new File("src/test/resources/model.lm"));
+        final SQLLanguageModel expected = new SQLLanguageModel.Factory().getModel(new File("src/test/resources/model.lm"));
+        try {
+            final int[] buf = new int[3];
+            for (int i = 1; i <= 4; i++) {
+                for (int j = 1; j <= 4; j++) {
+                    for (int k = 1; k <= 4; k++) {
+                        buf[0] = i;
+                        buf[1] = j;
+                        buf[2] = k;
+                        for (int n = 1; n <= 3; n++) {
+                            final Phrase p = new Phrase(buf, 0, n);
+                            assertArrayEquals(expected.get(p), instance.get(p), 0.0);
+                        }
+                    }
+                }
+            }
+        } finally {
+            expected.close();
+            final File file = new File("src/test/resources/model.lm.db");
+            if (file.exists()) {
+                file.delete();
+            }
+            final File vocabularyFile = new File("src/test/resources/model.lm.db.vocab");
+            if (vocabularyFile.exists()) {
+                vocabularyFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Test that chained state scoring agrees with n-gram backoff scoring
+     */
+    @Test
+    public void testScore() {
+        System.out.println("score");
+        final MemoryLanguageModel instance = new MemoryLanguageModel.Factory().getModel(new File("src/test/resources/model.lm"));
+        // Hide the incremental interface so lmScore falls back to get()
+        final IntegerLanguageModel plain = new IntegerLanguageModel() {
+            public double[] get(Phrase phrase) {
+                return instance.get(phrase);
+            }
+
+            public int order() {
+                return instance.order();
+            }
+
+            public void close() {
+            }
+
+            public it.unimi.dsi.fastutil.objects.Object2IntMap<String> wordMap() {
+                return instance.wordMap();
+            }
+
+            public it.unimi.dsi.fastutil.ints.Int2ObjectMap<String> invWordMap() {
+                return instance.invWordMap();
+            }
+        };
+        final java.util.Random random = new java.util.Random(1);
+        final int[] buf = new int[8];
+        for (int t = 0; t < 200; t++) {
+            LMState in = new LMState(3), out = new LMState(3);
+            for (int p = 0; p < buf.length; p++) {
+                buf[p] = random.nextInt(6) - 1;
+                final double expected = FidelDecoder.lmScore(buf, p + 1, plain, Math.min(p + 1, 3), -100.0);
+                assertEquals(expected, instance.score(in, buf[p], -100.0, out), 1e-9);
+                assertEquals(expected, FidelDecoder.lmScore(buf, p + 1, instance, Math.min(p + 1, 3), -100.0), 1e-9);
+                final LMState s = in;
+                in = out;
+                out = s;
+            }
+        }
+    }
+
+    /**
+     * Test of order method, of class MemoryLanguageModel.
+     */
+    @Test
+    public void testOrder() {
+        System.out.println("order");
+        MemoryLanguageModel instance = new MemoryLanguageModel.Factory().getModel(new File("src/test/resources/model.lm"));
+        assertEquals(3, instance.order());
+        assertEquals(4, instance.wordMap().size());
+        assertEquals("A", instance.invWordMap().get(instance.wordMap().getInt("A")));
+    }
+
+    /**
+     * Test that the orders that fit are packed exactly with a large
+     * vocabulary, and that hashed keys are checked
+     */
+    @Test
+    public void testKeys() {
+        System.out.println("keys");
+        // 5000 words need 13 bits, so up to 4-grams are packed
+        final int bits = 13;
+        final int[] p = new int[] { 4999, 1, 4096, 17, 2 };
+        assertTrue(MemoryLanguageModel.packed(bits, 4));
+        assertFalse(MemoryLanguageModel.packed(bits, 5));
+        assertEquals(4999l, MemoryLanguageModel.key(p, 0, 1, bits, 5000));
+        assertEquals((((4999l << 13 | 1) << 13 | 4096) << 13) | 17, MemoryLanguageModel.key(p, 0, 4, bits, 5000));
+        assertEquals(0l, MemoryLanguageModel.key(p, 0, 4, bits, 4098));
+        final long key = MemoryLanguageModel.key(p, 0, 5, bits, 5000);
+        final int check = MemoryLanguageModel.check(p, 0, 5);
+        final MemoryLanguageModel.NGramTable table = new MemoryLanguageModel.NGramTable(4, true);
+        table.put(key, check, -1.0f, 0.0f);
+        assertTrue(table.find(key, check) >= 0);
+        // Another n-gram with the same hash is not given its score
+        assertEquals(-1, table.find(key, check + 1));
+        table.put(key, check + 1, -2.0f, 0.0f);
+        assertEquals(1, table.collisions());
+        assertEquals(-1, table.find(key, check));
+    }
+}
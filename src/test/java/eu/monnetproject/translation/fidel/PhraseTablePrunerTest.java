@@ -0,0 +1,124 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.monnetproject.translation.fidel;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class PhraseTablePrunerTest {
+    
+    public PhraseTablePrunerTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() {
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+    }
+    
+    @Before
+    public void setUp() {
+    }
+    
+    @After
+    public void tearDown() {
+    }
+
+    private static List<String> readLines(File file) throws Exception {
+        final List<String> lines = new ArrayList<String>();
+        final LineReader in = LineReader.open(file);
+        String line;
+        while ((line = in.readLine()) != null) {
+            lines.add(line);
+        }
+        in.close();
+        return lines;
+    }
+
+    /**
+     * Test of prune method, of class PhraseTablePruner.
+     */
+    @Test
+    public void testPrune() throws Exception {
+        System.out.println("prune");
+        final File pt = File.createTempFile("fidel", ".pt");
+        final File out = File.createTempFile("fidel", ".pt.gz");
+        try {
+            final PrintWriter w = new PrintWriter(pt);
+            w.println("b ||| v ||| 0.1 0.9 ||| |||");
+            w.println("a ||| x ||| 0.5 0.5 ||| |||");
+            w.println("a ||| y ||| 0.9 0.1 ||| |||");
+            w.println("b ||| u ||| 0.9 0.1 ||| |||");
+            w.println("a ||| z ||| 0.1 0.9 ||| |||");
+            w.println("a b ||| w ||| 0.5 0.5 ||| |||");
+            w.println("a ||| t ||| 0.01 0.01 ||| |||");
+            w.close();
+            // Runs of two lines, so that the runs must be merged
+            final PhraseTablePruner instance = new PhraseTablePruner(new double[] { 0.0, 1.0 }, 2, 2);
+            instance.prune(pt, out);
+            assertEquals(7, instance.linesIn());
+            assertEquals(5, instance.linesOut());
+            assertEquals(Arrays.asList(
+                    "a ||| z ||| 0.1 0.9 ||| |||",
+                    "a ||| x ||| 0.5 0.5 ||| |||",
+                    "a b ||| w ||| 0.5 0.5 ||| |||",
+                    "b ||| v ||| 0.1 0.9 ||| |||",
+                    "b ||| u ||| 0.9 0.1 ||| |||"), readLines(out));
+        } finally {
+            pt.delete();
+            out.delete();
+        }
+    }
+
+    /**
+     * Test that the pruned file is named after the table
+     */
+    @Test
+    public void testPrunedFile() {
+        System.out.println("prunedFile");
+        assertEquals(new File("pt.top20.gz"), PhraseTablePruner.prunedFile(new File("pt.gz"), 20));
+        assertEquals(new File("pt.top20"), PhraseTablePruner.prunedFile(new File("pt"), 20));
+    }
+
+    /**
+     * Test that compiled tables and databases are not pruned
+     */
+    @Test
+    public void testIsMosesText() throws Exception {
+        System.out.println("isMosesText");
+        assertTrue(PhraseTablePruner.isMosesText(new File("src/test/resources/test.pt")));
+        assertFalse(PhraseTablePruner.isMosesText(new File("pt.db")));
+        assertFalse(PhraseTablePruner.isMosesText(new File("pt.bpt")));
+        final File db = File.createTempFile("fidel", ".pt");
+        db.deleteOnExit();
+        final FileOutputStream out = new FileOutputStream(db);
+        out.write("SQLite format 3\0".getBytes("ISO-8859-1"));
+        out.close();
+        assertFalse(PhraseTablePruner.isMosesText(db));
+        try {
+            new PhraseTablePruner(new double[] { 1.0 }, 1).prune(db, new File(db.getPath() + ".top1"));
+            fail("A database was pruned");
+        } catch (IOException x) {
+        }
+        assertFalse(new File(db.getPath() + ".top1").exists());
+    }
+}
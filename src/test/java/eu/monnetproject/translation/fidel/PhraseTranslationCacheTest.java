@@ -0,0 +1,139 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenHashMap;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class PhraseTranslationCacheTest {
+    
+    public PhraseTranslationCacheTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() {
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+    }
+    
+    @Before
+    public void setUp() {
+    }
+    
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * A phrase table where only the word 1 has a translation, recording the
+     * windows looked up
+     */
+    private static class SourceImpl implements PhraseTranslationCache.Source {
+
+        final int[] src;
+        int calls = 0, from = -1, to = -1;
+
+        SourceImpl(int[] src) {
+            this.src = src;
+        }
+
+        public Object2ObjectMap<Phrase, Collection<PhraseTranslation>> lookup(int from, int to) {
+            calls++;
+            this.from = from;
+            this.to = to;
+            final Object2ObjectMap<Phrase, Collection<PhraseTranslation>> pt = new Object2ObjectOpenHashMap<Phrase, Collection<PhraseTranslation>>();
+            for (int i = from; i < to; i++) {
+                if (src[i] == 1) {
+                    pt.put(new Phrase(new int[] { 1 }), Collections.singletonList(new PhraseTranslation(new int[] { 10 }, new double[] { -1.0 })));
+                }
+            }
+            return pt;
+        }
+    }
+
+    /**
+     * Test of lookup method, of class PhraseTranslationCache.
+     */
+    @Test
+    public void testLookup() {
+        System.out.println("lookup");
+        final PhraseTranslationCache instance = new PhraseTranslationCache(1 << 20, 2);
+        final int[] sentence1 = { 1, 2, 3 };
+        SourceImpl source = new SourceImpl(sentence1);
+        Object2ObjectMap<Phrase, Collection<PhraseTranslation>> result = instance.lookup(sentence1, source);
+        assertEquals(1, source.calls);
+        assertEquals(1, result.size());
+        assertEquals(0, instance.hits());
+        // Every span is cached, including the misses
+        source = new SourceImpl(sentence1);
+        result = instance.lookup(sentence1, source);
+        assertEquals(0, source.calls);
+        assertEquals(1, result.size());
+        assertEquals(10, result.get(new Phrase(new int[] { 1 })).iterator().next().words[0]);
+        assertEquals(5, instance.hits());
+        // Only the window with the spans not yet seen is looked up
+        final int[] sentence2 = { 1, 2, 4 };
+        source = new SourceImpl(sentence2);
+        result = instance.lookup(sentence2, source);
+        assertEquals(1, source.calls);
+        assertEquals(1, source.from);
+        assertEquals(3, source.to);
+        assertEquals(1, result.size());
+        assertTrue(instance.hitRate() > 0.0);
+    }
+
+    /**
+     * Test that lookups with different limits are cached separately
+     */
+    @Test
+    public void testMaxSize() {
+        System.out.println("maxSize");
+        final PhraseTranslationCache instance = new PhraseTranslationCache(1 << 20, 2);
+        final int[] sentence = { 1, 2 };
+        SourceImpl source = new SourceImpl(sentence);
+        instance.lookup(sentence, 60, source);
+        assertEquals(1, source.calls);
+        source = new SourceImpl(sentence);
+        instance.lookup(sentence, 30, source);
+        assertEquals(1, source.calls);
+        // Neither lookup evicted the other
+        source = new SourceImpl(sentence);
+        instance.lookup(sentence, 60, source);
+        instance.lookup(sentence, 30, source);
+        assertEquals(0, source.calls);
+    }
+
+    /**
+     * Test that the cache stays within its memory ceiling
+     */
+    @Test
+    public void testEviction() {
+        System.out.println("eviction");
+        final PhraseTranslationCache instance = new PhraseTranslationCache(16 * 1024);
+        for (int i = 1; i <= 1000; i++) {
+            final int[] sentence = { i, i + 1 };
+            instance.lookup(sentence, new SourceImpl(sentence));
+        }
+        assertTrue(instance.evictions() > 0);
+        assertTrue(instance.bytes() <= 16 * 1024);
+        instance.clear();
+        assertEquals(0, instance.bytes());
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.monnetproject.translation.fidel;
+
+import java.io.File;
+import java.io.PrintWriter;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class RandomisedLanguageModelTest {
+    
+    public RandomisedLanguageModelTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() {
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+    }
+    
+    @Before
+    public void setUp() {
+    }
+    
+    @After
+    public void tearDown() {
+        final File file = new File("src/test/resources/model.lm.rlm");
+        if(file.exists()) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test that the compiled model agrees with the in-memory model
+     */
+    @Test
+    public void testGet() {
+        System.out.println("get");
+        final RandomisedLanguageModel instance = new RandomisedLanguageModel.Factory(1e-6, 8).getModel(new File("src/test/resources/model.lm"));
+        final MemoryLanguageModel expected = new MemoryLanguageModel.Factory().getModel(new File("src/test/resources/model.lm"));
+        assertEquals(3, instance.order());
+        assertEquals(expected.wordMap(), instance.wordMap());
+        final int[] buf = new int[3];
+        for (int i = 0; i <= 5; i++) {
+            for (int j = 0; j <= 5; j++) {
+                for (int k = 0; k <= 5; k++) {
+                    buf[0] = i;
+                    buf[1] = j;
+                    buf[2] = k;
+                    for (int n = 1; n <= 3; n++) {
+                        final Phrase p = new Phrase(buf, 0, n);
+                        assertArrayEquals(expected.get(p), instance.get(p), 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that the false positive rate is close to the target
+     */
+    @Test
+    public void testFalsePositiveRate() throws Exception {
+        System.out.println("falsePositiveRate");
+        final File arpa = File.createTempFile("fidel", ".arpa");
+        try {
+            final int n = 2000;
+            final PrintWriter out = new PrintWriter(arpa);
+            out.println("\\data\\");
+            out.println("ngram 1=" + n);
+            out.println("ngram 2=" + (n - 1));
+            out.println();
+            out.println("\\1-grams:");
+            for (int i = 0; i < n; i++) {
+                out.println("-" + (i % 7) + "\tw" + i + "\t-0.5");
+            }
+            out.println();
+            out.println("\\2-grams:");
+            for (int i = 1; i < n; i++) {
+                out.println("-" + (i % 5) + "\tw" + (i - 1) + " w" + i);
+            }
+            out.println();
+            out.println("\\end\\");
+            out.close();
+            final RandomisedLanguageModel.Builder builder = new RandomisedLanguageModel.Builder(0.05, 4);
+            final RandomisedLanguageModel instance = builder.build(arpa);
+            assertTrue(builder.measuredFalsePositiveRate() > 0.0);
+            assertTrue(builder.measuredFalsePositiveRate() < 0.1);
+            assertTrue(builder.bitsPerNGram() < 24);
+            final int w0 = instance.wordMap().getInt("w0");
+            final int w1 = instance.wordMap().getInt("w1");
+            assertArrayEquals(new double[] { -1 }, instance.get(new Phrase(new int[] { w0, w1 })), 0.0);
+        } finally {
+            arpa.delete();
+        }
+    }
+
+    /**
+     * Test that a mapped model gives the same results as one in the heap
+     */
+    @Test
+    public void testCompile() throws Exception {
+        System.out.println("compile");
+        final File rlm = File.createTempFile("fidel", ".rlm");
+        try {
+            final RandomisedLanguageModel.Builder builder = new RandomisedLanguageModel.Builder(0.01, 8);
+            final RandomisedLanguageModel expected = builder.build(new File("src/test/resources/model.lm"));
+            builder.compile(new File("src/test/resources/model.lm"), rlm);
+            final RandomisedLanguageModel instance = RandomisedLanguageModel.open(rlm);
+            assertEquals(expected.wordMap(), instance.wordMap());
+            assertEquals(expected.tableBytes(), instance.tableBytes());
+            final int[] buf = new int[3];
+            for (int i = 0; i <= 5; i++) {
+                for (int j = 0; j <= 5; j++) {
+                    for (int k = 0; k <= 5; k++) {
+                        buf[0] = i;
+                        buf[1] = j;
+                        buf[2] = k;
+                        for (int n = 1; n <= 3; n++) {
+                            final Phrase p = new Phrase(buf, 0, n);
+                            assertArrayEquals(expected.get(p), instance.get(p), 0.0);
+                        }
+                    }
+                }
+            }
+        } finally {
+            rlm.delete();
+        }
+    }
+}
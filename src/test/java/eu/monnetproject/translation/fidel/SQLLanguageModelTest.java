@@ -41,6 +41,14 @@ public class SQLLanguageModelTest {
         if(file.exists()) {
             file.delete();
         }
+        final File filterFile = new File("src/test/resources/model.lm.db.bloom");
+        if(filterFile.exists()) {
+            filterFile.delete();
+        }
+        final File vocabularyFile = new File("src/test/resources/model.lm.db.vocab");
+        if(vocabularyFile.exists()) {
+            vocabularyFile.delete();
+        }
     }
 
     /**
@@ -57,6 +65,30 @@ public class SQLLanguageModelTest {
         assertArrayEquals(expResult, result, 0.0);
     }
 
+    /**
+     * Test of get method with a Bloom filter, of class SQLLanguageModel.
+     */
+    @Test
+    public void testGetFiltered() throws Exception {
+        System.out.println("getFiltered");
+        final SQLLanguageModel instance = new SQLLanguageModel.Factory(0.01).getModel(new File("src/test/resources/model.lm"));
+        assertTrue(new File("src/test/resources/model.lm.db.bloom").exists());
+        assertArrayEquals(new double[] { -1, -1 }, instance.get(new Phrase(new int[] { 1, 2 })), 0.0);
+        assertArrayEquals(new double[] { -2 }, instance.get(new Phrase(new int[] { 2, 3, 4 })), 0.0);
+        for (int i = 5; i < 100; i++) {
+            assertNull(instance.get(new Phrase(new int[] { 1, i })));
+        }
+        assertEquals(2 + 95, instance.filterHits() + instance.filterMisses());
+        assertEquals(instance.falsePositives(), instance.filterHits() - 2);
+        assertTrue(instance.filterMisses() > 80);
+        instance.close();
+        // Reopening uses the stored filter
+        final SQLLanguageModel instance2 = new SQLLanguageModel.Factory(0.01).getModel(new File("src/test/resources/model.lm.db"));
+        assertArrayEquals(new double[] { -1, -1 }, instance2.get(new Phrase(new int[] { 1, 2 })), 0.0);
+        assertEquals(1, instance2.filterHits());
+        instance2.close();
+    }
+
     /**
      * Test of close method, of class SQLLanguageModel.
      */
@@ -4,8 +4,13 @@
  */
 package eu.monnetproject.translation.fidel;
 
+import it.unimi.dsi.fastutil.objects.Object2ObjectMap;
 import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import org.junit.After;
@@ -82,4 +87,78 @@ public class SQLPhraseTableTest {
         }
         assertEquals(2, result.size());
     }
-}
\ No newline at end of file
+
+    /**
+     * Test that spans are not extended past the prefixes in the table
+     */
+    @Test
+    public void testLookupSkipsPrefixes() {
+        System.out.println("lookupSkipsPrefixes");
+        List<String> terms = Arrays.asList(new String[] { "A", "B", "C", "X", "Y" });
+        SQLPhraseTable instance = new SQLPhraseTable.Factory().getPhraseTable("x", "y", new String[] { "a", "b", "c", "d", "e" }, new File("src/test/resources/test.pt"));
+        List<PhraseTable.PhraseTableEntry> result = (List< PhraseTable.PhraseTableEntry>)instance.lookup(terms);
+        assertEquals(3, result.size());
+        // Only A, A B, A B C, B and C are queried, out of 15 spans, as spans
+        // with words not in the table (X and Y) or extending a span that is
+        // not a prefix are never queried
+        assertEquals(10, instance.skippedQueries());
+        // One query for each of those spans and one for the words
+        assertEquals(6, instance.queries());
+        instance.close();
+    }
+
+    /**
+     * Test the lookup of word ids
+     */
+    @Test
+    public void testLookupIds() {
+        System.out.println("lookupIds");
+        List<String> terms = Arrays.asList(new String[] { "A", "B", "X", "A" });
+        SQLPhraseTable instance = new SQLPhraseTable.Factory().getPhraseTable("x", "y", new String[] { "a", "b", "c", "d", "e" }, new File("src/test/resources/test.pt"));
+        final Vocabulary trgVocabulary = new Vocabulary();
+        final Object2ObjectMap<Phrase, Collection<PhraseTranslation>> result = instance.lookup(terms, new int[] { 1, 2, 3, 1 }, trgVocabulary, new String[] { "e", "a" }, 0);
+        assertEquals(2, result.size());
+        final Collection<PhraseTranslation> ab = result.get(new Phrase(new int[] { 1, 2 }));
+        assertEquals(1, ab.size());
+        final PhraseTranslation f = ab.iterator().next();
+        assertEquals("F", trgVocabulary.word(f.words[0]));
+        assertArrayEquals(new double[] { Math.log10(2.718), 0.0 }, f.scores, 1e-6);
+        assertNull(result.get(new Phrase(new int[] { 2 })));
+        instance.close();
+    }
+
+    /**
+     * Test that a database with the first schema is upgraded
+     */
+    @Test
+    public void testUpgrade() throws Exception {
+        System.out.println("upgrade");
+        final File db = File.createTempFile("fidel", ".db");
+        try {
+            final Connection conn = DriverManager.getConnection("jdbc:sqlite:" + db.getAbsolutePath());
+            final Statement stat = conn.createStatement();
+            stat.execute("create table phrase_table (forin text, translation text, scores text);");
+            stat.execute("insert into phrase_table values ('A', 'B', '1.0 0.6 0.4 0.3 2.718')");
+            stat.execute("insert into phrase_table values ('A B', 'F', '1.0 0.3 0.4 1e-6 2.718')");
+            stat.execute("insert into phrase_table values ('C', 'D', '1.0 0.4 0.0001 0.3 2.718')");
+            stat.close();
+            conn.close();
+            SQLPhraseTable instance = new SQLPhraseTable.Factory().getPhraseTable("x", "y", new String[] { "a", "b", "c", "d", "e" }, db);
+            List<PhraseTable.PhraseTableEntry> result = (List< PhraseTable.PhraseTableEntry>)instance.lookup(Arrays.asList(new String[] { "A", "B" }));
+            assertEquals(2, result.size());
+            for(PhraseTable.PhraseTableEntry r : result) {
+                if (r.getForeign().asString().equals("A B")) {
+                    assertEquals("F", r.getTranslation().asString());
+                    assertEquals(-6.0, r.getFeatures()[3].score, 1e-6);
+                }
+            }
+            instance.close();
+            // Opening it again does not upgrade it again
+            instance = new SQLPhraseTable.Factory().getPhraseTable("x", "y", new String[] { "a", "b", "c", "d", "e" }, db);
+            assertEquals(2, ((List< PhraseTable.PhraseTableEntry>)instance.lookup(Arrays.asList(new String[] { "A", "B" }))).size());
+            instance.close();
+        } finally {
+            db.delete();
+        }
+    }
+}
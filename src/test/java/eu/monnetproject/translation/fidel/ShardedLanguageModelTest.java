@@ -0,0 +1,158 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.monnetproject.translation.fidel;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class ShardedLanguageModelTest {
+
+    private static final int SHARDS = 3;
+    private File dir;
+    private final List<LMShardServer> servers = new ArrayList<LMShardServer>();
+    private ShardedLanguageModel instance;
+    
+    public ShardedLanguageModelTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() {
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        dir = File.createTempFile("fidel", "shards");
+        dir.delete();
+        dir.mkdir();
+        final File model = new File(dir, "model.lm");
+        final InputStream in = new FileInputStream("src/test/resources/model.lm");
+        final OutputStream out = new FileOutputStream(model);
+        final byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        out.close();
+        final List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        for (File shard : ShardedLanguageModel.Splitter.split(model, SHARDS)) {
+            final LMShardServer server = new LMShardServer(new MemoryLanguageModel.Factory().getModel(shard), 0).start();
+            servers.add(server);
+            addresses.add(new InetSocketAddress("localhost", server.port()));
+        }
+        instance = new ShardedLanguageModel(addresses);
+    }
+    
+    @After
+    public void tearDown() {
+        instance.close();
+        for (LMShardServer server : servers) {
+            server.close();
+        }
+        for (File file : dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * Test that the shards together agree with the whole model
+     */
+    @Test
+    public void testGet() {
+        System.out.println("get");
+        final MemoryLanguageModel expected = new MemoryLanguageModel.Factory().getModel(new File("src/test/resources/model.lm"));
+        assertEquals(expected.order(), instance.order());
+        assertEquals(expected.wordMap().size(), instance.wordMap().size());
+        final int[] buf = new int[3];
+        for (int i = 0; i <= 5; i++) {
+            for (int j = 1; j <= 4; j++) {
+                for (int k = 1; k <= 4; k++) {
+                    buf[0] = i;
+                    buf[1] = j;
+                    buf[2] = k;
+                    for (int n = 1; n <= 3; n++) {
+                        final Phrase p = new Phrase(buf, 0, n);
+                        assertArrayEquals(expected.get(p), instance.get(p), 0.0);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Test that prefetched n-grams take one round trip per shard
+     */
+    @Test
+    public void testPrefetch() {
+        System.out.println("prefetch");
+        final int[] buf = new int[] { 1, 2, 3, 4, 1, 2 };
+        instance.prefetch(buf, 0, buf.length, 3);
+        double score = 0.0;
+        for (int p = 1; p <= buf.length; p++) {
+            score += FidelDecoder.lmScore(buf, p, instance, Math.min(p, 3), -100.0);
+        }
+        long roundTrips = 0;
+        for (int s = 0; s < instance.shards(); s++) {
+            roundTrips += instance.roundTrips(s);
+            assertTrue(instance.roundTrips(s) <= 1);
+            assertTrue(instance.meanLatency(s) >= 0.0);
+        }
+        assertTrue(roundTrips >= 1);
+        final MemoryLanguageModel expected = new MemoryLanguageModel.Factory().getModel(new File("src/test/resources/model.lm"));
+        double expectedScore = 0.0;
+        for (int p = 1; p <= buf.length; p++) {
+            expectedScore += FidelDecoder.lmScore(buf, p, expected, Math.min(p, 3), -100.0);
+        }
+        assertEquals(expectedScore, score, 1e-9);
+    }
+
+    /**
+     * Test that fetched n-grams are kept until cleared
+     */
+    @Test
+    public void testClearPrefetched() {
+        System.out.println("clearPrefetched");
+        final int[] buf = new int[] { 1, 2, 3 };
+        instance.prefetch(buf, 0, buf.length, 3);
+        final double score = FidelDecoder.lmScore(buf, 3, instance, 3, -100.0);
+        final long roundTrips = totalRoundTrips();
+        // Another prefetch does not lose what was fetched
+        instance.prefetch(new int[] { 4, 1 }, 0, 2, 3);
+        assertEquals(score, FidelDecoder.lmScore(buf, 3, instance, 3, -100.0), 0.0);
+        assertEquals(roundTrips, totalRoundTrips());
+        instance.clearPrefetched();
+        assertEquals(score, FidelDecoder.lmScore(buf, 3, instance, 3, -100.0), 0.0);
+        assertTrue(totalRoundTrips() > roundTrips);
+    }
+
+    private long totalRoundTrips() {
+        long roundTrips = 0;
+        for (int s = 0; s < instance.shards(); s++) {
+            roundTrips += instance.roundTrips(s);
+        }
+        return roundTrips;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.monnetproject.translation.fidel;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class SuffixArrayPhraseTableTest {
+    
+    private static final String[] FEATURES = { "a", "b", "c", "d", "e" };
+    private File base;
+
+    public SuffixArrayPhraseTableTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() {
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+    }
+    
+    @Before
+    public void setUp() throws Exception {
+        base = File.createTempFile("fidel", "corpus");
+        write(new File(base.getPath() + ".fr"), "a b c", "a b d", "c a");
+        write(new File(base.getPath() + ".en"), "x y z", "x y w", "z v x");
+        write(new File(base.getPath() + ".align"), "0-0 1-1 2-2", "0-0 1-1 2-2", "0-1 1-2");
+    }
+    
+    @After
+    public void tearDown() {
+        for (String ext : new String[] { "", ".fr", ".en", ".align", ".sa", ".sa.src.vocab", ".sa.trg.vocab" }) {
+            new File(base.getPath() + ext).delete();
+        }
+    }
+
+    private static void write(File file, String... lines) throws Exception {
+        final PrintWriter out = new PrintWriter(file, "UTF-8");
+        for (String line : lines) {
+            out.println(line);
+        }
+        out.close();
+    }
+
+    private static Map<String, PhraseTable.PhraseTableEntry> lookup(PhraseTable table, String... terms) {
+        final Map<String, PhraseTable.PhraseTableEntry> result = new HashMap<String, PhraseTable.PhraseTableEntry>();
+        for (PhraseTable.PhraseTableEntry e : table.lookup(Arrays.asList(terms))) {
+            result.put(e.getForeign().asString() + " => " + e.getTranslation().asString(), e);
+        }
+        return result;
+    }
+
+    /**
+     * Test of lookup method, of class SuffixArrayPhraseTable.
+     */
+    @Test
+    public void testLookup() {
+        System.out.println("lookup");
+        final SuffixArrayPhraseTable instance = new SuffixArrayPhraseTable.Factory(100).getPhraseTable("fr", "en", FEATURES, base);
+        final Map<String, PhraseTable.PhraseTableEntry> result = lookup(instance, "a", "b", "d", "e");
+        assertEquals(6, result.size());
+        assertTrue(result.containsKey("a => x"));
+        assertTrue(result.containsKey("a b => x y"));
+        assertTrue(result.containsKey("a b d => x y w"));
+        assertTrue(result.containsKey("b => y"));
+        assertTrue(result.containsKey("b d => y w"));
+        assertTrue(result.containsKey("d => w"));
+        final Fidel.Feature[] features = result.get("a => x").getFeatures();
+        assertEquals(FEATURES[0], features[0].name);
+        // a is always aligned to x and x to a
+        assertEquals(0.0, features[0].score, 1e-6);
+        assertEquals(0.0, features[1].score, 1e-6);
+        assertEquals(0.0, features[2].score, 1e-6);
+        assertEquals(0.0, features[3].score, 1e-6);
+        assertEquals(Math.log10(2.718), features[4].score, 1e-6);
+        // Memoized spans give the same result
+        assertEquals(result.keySet(), lookup(instance, "a", "b", "d", "e").keySet());
+    }
+
+    /**
+     * Test that translations inconsistent with the alignment are not
+     * extracted and that occurrences are sampled
+     */
+    @Test
+    public void testSample() {
+        System.out.println("sample");
+        SuffixArrayPhraseTable instance = new SuffixArrayPhraseTable.Factory(100).getPhraseTable("fr", "en", FEATURES, base);
+        Map<String, PhraseTable.PhraseTableEntry> result = lookup(instance, "c", "a");
+        // c is aligned to z once and to v once
+        assertTrue(result.containsKey("c a => v x"));
+        assertTrue(result.containsKey("c => v"));
+        assertEquals(Math.log10(0.5), result.get("c => z").getFeatures()[0].score, 1e-6);
+        instance = new SuffixArrayPhraseTable.Factory(1).getPhraseTable("fr", "en", FEATURES, new File(base.getPath() + ".sa"));
+        result = lookup(instance, "c");
+        assertEquals(1, result.size());
+        assertEquals(0.0, result.values().iterator().next().getFeatures()[0].score, 1e-6);
+    }
+}
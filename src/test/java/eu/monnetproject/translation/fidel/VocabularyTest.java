@@ -0,0 +1,129 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package eu.monnetproject.translation.fidel;
+
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class VocabularyTest {
+    
+    public VocabularyTest() {
+    }
+    
+    @BeforeClass
+    public static void setUpClass() {
+    }
+    
+    @AfterClass
+    public static void tearDownClass() {
+    }
+    
+    @Before
+    public void setUp() {
+    }
+    
+    @After
+    public void tearDown() {
+    }
+
+    /**
+     * Test of id and word methods, of class Vocabulary.
+     */
+    @Test
+    public void testOpen() throws Exception {
+        System.out.println("open");
+        final List<String> words = new ArrayList<String>(Arrays.asList("<s>", "</s>", "caf\u00e9", "\u6f22\u5b57", "\ud83d\ude00", ""));
+        for (int i = 0; i < 1000; i++) {
+            words.add("w" + i);
+        }
+        final File file = File.createTempFile("fidel", ".vocab");
+        file.deleteOnExit();
+        Vocabulary.write(file, words);
+        final Vocabulary instance = Vocabulary.open(file);
+        assertEquals(words.size(), instance.size());
+        for (int i = 0; i < words.size(); i++) {
+            assertEquals(i + 1, instance.id(words.get(i)));
+            assertEquals(words.get(i), instance.word(i + 1));
+        }
+        assertEquals(0, instance.id("w1000"));
+        assertEquals(0, instance.id("caf"));
+        assertEquals(0, instance.id("caf\u00e9s"));
+        assertNull(instance.word(0));
+        assertNull(instance.word(words.size() + 1));
+    }
+
+    /**
+     * Test of add method, of class Vocabulary.
+     */
+    @Test
+    public void testAdd() throws Exception {
+        System.out.println("add");
+        final File file = File.createTempFile("fidel", ".vocab");
+        file.deleteOnExit();
+        Vocabulary.write(file, Arrays.asList("a", "b"));
+        final Vocabulary instance = Vocabulary.open(file);
+        assertEquals(2, instance.add("b"));
+        assertEquals(3, instance.add("c"));
+        assertEquals(3, instance.add("c"));
+        assertEquals(3, instance.id("c"));
+        assertEquals("c", instance.word(3));
+        assertEquals(3, instance.asMap().size());
+        assertEquals(3, instance.asMap().getInt("c"));
+        assertTrue(instance.asMap().containsKey("a"));
+        assertFalse(instance.asMap().containsKey("d"));
+        assertEquals("a", instance.asInverseMap().get(1));
+        assertEquals(3, instance.asInverseMap().int2ObjectEntrySet().size());
+        final Vocabulary empty = new Vocabulary();
+        assertEquals(0, empty.id("a"));
+        assertEquals(1, empty.add("a"));
+    }
+
+    /**
+     * Test that words added on top of maps whose ids have gaps get new ids
+     */
+    @Test
+    public void testAddWithGaps() {
+        System.out.println("addWithGaps");
+        final Object2IntOpenHashMap<String> wordMap = new Object2IntOpenHashMap<String>();
+        final Int2ObjectOpenHashMap<String> invWordMap = new Int2ObjectOpenHashMap<String>();
+        final String[] words = { "a", "b", "e" };
+        final int[] ids = { 1, 2, 5 };
+        for (int i = 0; i < words.length; i++) {
+            wordMap.put(words[i], ids[i]);
+            invWordMap.put(ids[i], words[i]);
+        }
+        final Vocabulary instance = new Vocabulary(wordMap, invWordMap);
+        assertEquals(6, instance.add("f"));
+        assertEquals("e", instance.word(5));
+        assertEquals("f", instance.word(6));
+        assertNull(instance.word(3));
+        assertEquals(4, instance.size());
+        assertEquals(6, instance.maxId());
+        assertFalse(instance.asInverseMap().containsKey(3));
+        assertTrue(instance.asInverseMap().containsKey(5));
+        final List<String> seen = new ArrayList<String>();
+        for (Int2ObjectMap.Entry<String> e : instance.asInverseMap().int2ObjectEntrySet()) {
+            seen.add(e.getIntKey() + "=" + e.getValue());
+        }
+        assertEquals(Arrays.asList("1=a", "2=b", "5=e", "6=f"), seen);
+        instance.asMap().put("g", 7);
+        assertEquals(7, instance.id("g"));
+    }
+}